@@ -35,6 +35,7 @@ import com.google.gerrit.server.git.ReceivePackInitializer;
 import com.google.gerrit.server.git.SearchingChangeCacheImpl;
 import com.google.gerrit.server.git.TagCache;
 import com.google.gerrit.server.git.TransferConfig;
+import com.google.gerrit.server.git.VisibleChangesCache;
 import com.google.gerrit.server.git.VisibleRefFilter;
 import com.google.gerrit.server.git.validators.UploadValidators;
 import com.google.gerrit.server.notedb.ChangeNotes;
@@ -214,6 +215,7 @@ class InProcessProtocol extends TestProtocol<Context> {
     private final Provider<CurrentUser> userProvider;
     private final TagCache tagCache;
     @Nullable private final SearchingChangeCacheImpl changeCache;
+    @Nullable private final VisibleChangesCache visibleChangesCache;
     private final ProjectControl.GenericFactory projectControlFactory;
     private final ChangeNotes.Factory changeNotesFactory;
     private final TransferConfig transferConfig;
@@ -227,6 +229,7 @@ class InProcessProtocol extends TestProtocol<Context> {
         Provider<CurrentUser> userProvider,
         TagCache tagCache,
         @Nullable SearchingChangeCacheImpl changeCache,
+        @Nullable VisibleChangesCache visibleChangesCache,
         ProjectControl.GenericFactory projectControlFactory,
         ChangeNotes.Factory changeNotesFactory,
         TransferConfig transferConfig,
@@ -237,6 +240,7 @@ class InProcessProtocol extends TestProtocol<Context> {
       this.userProvider = userProvider;
       this.tagCache = tagCache;
       this.changeCache = changeCache;
+      this.visibleChangesCache = visibleChangesCache;
       this.projectControlFactory = projectControlFactory;
       this.changeNotesFactory = changeNotesFactory;
       this.transferConfig = transferConfig;
@@ -265,8 +269,8 @@ class InProcessProtocol extends TestProtocol<Context> {
         up.setPackConfig(transferConfig.getPackConfig());
         up.setTimeout(transferConfig.getTimeout());
         up.setAdvertiseRefsHook(new VisibleRefFilter(
-            tagCache, changeNotesFactory, changeCache, repo, ctl,
-            dbProvider.get(), true));
+            tagCache, changeNotesFactory, changeCache, visibleChangesCache,
+            repo, ctl, dbProvider.get(), true));
         List<PreUploadHook> hooks = Lists.newArrayList(preUploadHooks);
         hooks.add(uploadValidatorsFactory.create(
             ctl.getProject(), repo, "localhost-test"));
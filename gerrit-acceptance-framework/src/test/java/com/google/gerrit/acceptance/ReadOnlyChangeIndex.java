@@ -61,6 +61,11 @@ public class ReadOnlyChangeIndex implements ChangeIndex {
     // do nothing
   }
 
+  @Override
+  public void commit() throws IOException {
+    // do nothing
+  }
+
   @Override
   public DataSource<ChangeData> getSource(Predicate<ChangeData> p,
       QueryOptions opts) throws QueryParseException {
@@ -0,0 +1,230 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.acceptance.git;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.server.group.SystemGroupBackend.REGISTERED_USERS;
+
+import com.google.common.cache.Cache;
+import com.google.gerrit.acceptance.AbstractDaemonTest;
+import com.google.gerrit.acceptance.GerritConfig;
+import com.google.gerrit.acceptance.NoHttpd;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.common.data.Permission;
+import com.google.gerrit.extensions.api.projects.BranchInput;
+import com.google.gerrit.extensions.registration.DynamicMap;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.git.AdvertisedRefsCache;
+import com.google.gerrit.server.git.ProjectConfig;
+import com.google.gerrit.server.git.SearchingChangeCacheImpl;
+import com.google.gerrit.server.git.TagCache;
+import com.google.gerrit.server.git.VisibleRefFilter;
+import com.google.gerrit.server.project.ProjectControl;
+import com.google.gerrit.server.project.Util;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.transport.UploadPack;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@NoHttpd
+public class AdvertisedRefsCacheIT extends AbstractDaemonTest {
+  private static final String HIDDEN = "refs/heads/hidden";
+
+  @Inject
+  private AdvertisedRefsCache advertisedRefsCache;
+
+  @Inject
+  private DynamicMap<Cache<?, ?>> caches;
+
+  @Inject
+  private ProjectControl.GenericFactory projectControlFactory;
+
+  @Inject
+  @Nullable
+  private SearchingChangeCacheImpl changeCache;
+
+  @Inject
+  private TagCache tagCache;
+
+  @Inject
+  private Provider<CurrentUser> userProvider;
+
+  private Cache<?, ?> cache;
+
+  @Before
+  public void setUp() throws Exception {
+    createChange();
+    gApi.projects().name(project.get()).branch(HIDDEN)
+        .create(new BranchInput());
+    blockRead(HIDDEN);
+    try (Repository repo = repoManager.openRepository(project)) {
+      TestRepository<Repository> tr = new TestRepository<>(repo);
+      RevCommit master = tr.getRevWalk().parseCommit(repo.resolve("master"));
+      tr.update("refs/tags/annotated", tr.tag("annotated", master));
+    }
+    cache = caches.get("gerrit", "advertised_refs");
+    cache.invalidateAll();
+  }
+
+  @Test
+  public void cachedRefsEqualFilteredRefs() throws Exception {
+    assertAdvertisedRefsAreFiltered();
+    // Again, from the cache.
+    assertAdvertisedRefsAreFiltered();
+    assertThat(cache.size()).isEqualTo(1);
+
+    setApiUser(user);
+    assertAdvertisedRefsAreFiltered();
+    assertAdvertisedRefsAreFiltered();
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(advertise()).doesNotContainKey(HIDDEN);
+  }
+
+  @Test
+  public void annotatedTagsArePeeled() throws Exception {
+    advertise();
+    Ref tag = advertise().get("refs/tags/annotated");
+    assertThat(tag.isPeeled()).isTrue();
+    try (Repository repo = repoManager.openRepository(project)) {
+      assertThat(tag.getPeeledObjectId()).isEqualTo(repo.resolve("master"));
+    }
+  }
+
+  @Test
+  public void keyChangesWithAccount() throws Exception {
+    advertise();
+    advertise();
+    assertThat(cache.size()).isEqualTo(1);
+
+    setApiUser(user);
+    advertise();
+    assertThat(cache.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void keyChangesWithGroupMembership() throws Exception {
+    setApiUser(user);
+    advertise();
+    assertThat(cache.size()).isEqualTo(1);
+
+    setApiUser(admin);
+    gApi.groups().create(name("group")).addMembers(user.username);
+    setApiUser(user);
+    advertise();
+    assertThat(cache.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void keyChangesWithProjectConfigRevision() throws Exception {
+    advertise();
+    assertThat(cache.size()).isEqualTo(1);
+
+    // The config of the parent project is not a ref of the project, so only
+    // the revision of the config tells the entries apart.
+    ProjectConfig cfg = projectCache.checkedGet(allProjects).getConfig();
+    Util.allow(cfg, Permission.READ, REGISTERED_USERS, "refs/heads/foo");
+    saveProjectConfig(allProjects, cfg);
+    advertise();
+    assertThat(cache.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void keyChangesWithRefUpdate() throws Exception {
+    setApiUser(user);
+    Map<String, Ref> before = advertise();
+    assertThat(cache.size()).isEqualTo(1);
+
+    // The user cannot see the updated ref, but it may still be reachable
+    // from the visible refs, so the entry is not reused.
+    try (Repository repo = repoManager.openRepository(project)) {
+      TestRepository<Repository> tr = new TestRepository<>(repo);
+      tr.branch(HIDDEN).commit().message("hidden").create();
+    }
+    assertThat(ids(advertise())).isEqualTo(ids(before));
+    assertThat(cache.size()).isEqualTo(2);
+
+    setApiUser(admin);
+    gApi.projects().name(project.get()).branch("other")
+        .create(new BranchInput());
+    setApiUser(user);
+    assertThat(advertise()).containsKey("refs/heads/other");
+    assertThat(cache.size()).isEqualTo(3);
+  }
+
+  @Test
+  @GerritConfig(name = "cache.advertised_refs.memoryLimit", value = "80")
+  public void advertisementAboveSegmentWeightIsNotCached() throws Exception {
+    // Each of the 4 segments of the cache holds a weight of 20.
+    assertAdvertisedRefsAreFiltered();
+    assertThat(cache.size()).isEqualTo(1);
+
+    try (Repository repo = repoManager.openRepository(project)) {
+      TestRepository<Repository> tr = new TestRepository<>(repo);
+      RevCommit master = tr.getRevWalk().parseCommit(repo.resolve("master"));
+      for (int i = 0; i < 20; i++) {
+        tr.update("refs/heads/branch-" + i, master);
+      }
+    }
+    cache.invalidateAll();
+    assertAdvertisedRefsAreFiltered();
+    assertAdvertisedRefsAreFiltered();
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  private void assertAdvertisedRefsAreFiltered() throws Exception {
+    Map<String, Ref> advertised = advertise();
+    Map<String, Ref> filtered;
+    try (Repository repo = repoManager.openRepository(project)) {
+      filtered = newFilter(repo).filter(repo.getAllRefs(), false);
+    }
+    assertThat(ids(advertised)).isEqualTo(ids(filtered));
+  }
+
+  private Map<String, Ref> advertise() throws Exception {
+    try (Repository repo = repoManager.openRepository(project)) {
+      UploadPack up = new UploadPack(repo);
+      advertisedRefsCache.newHook(newFilter(repo), projectControl())
+          .advertiseRefs(up);
+      return up.getAdvertisedRefs();
+    }
+  }
+
+  private VisibleRefFilter newFilter(Repository repo) throws Exception {
+    return new VisibleRefFilter(tagCache, notesFactory, changeCache, null,
+        repo, projectControl(), db, true);
+  }
+
+  private ProjectControl projectControl() throws Exception {
+    return projectControlFactory.controlFor(project, userProvider.get());
+  }
+
+  private static Map<String, ObjectId> ids(Map<String, Ref> refs) {
+    Map<String, ObjectId> ids = new HashMap<>();
+    for (Ref r : refs.values()) {
+      ids.put(r.getName(), r.getObjectId());
+    }
+    return ids;
+  }
+}
@@ -0,0 +1,203 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.acceptance.git;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.acceptance.GitUtil.assertPushOk;
+import static com.google.gerrit.acceptance.GitUtil.assertPushRejected;
+import static com.google.gerrit.acceptance.GitUtil.pushHead;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.gerrit.acceptance.AbstractDaemonTest;
+import com.google.gerrit.acceptance.GerritConfig;
+import com.google.gerrit.acceptance.GitUtil;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.extensions.registration.RegistrationHandle;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.events.CommitReceivedEvent;
+import com.google.gerrit.server.git.validators.CommitValidationException;
+import com.google.gerrit.server.git.validators.CommitValidationListener;
+import com.google.gerrit.server.git.validators.CommitValidationMessage;
+import com.google.gerrit.testutil.ConfigSuite;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+public class CommitValidationIT extends AbstractDaemonTest {
+  private static final int THREADS = 4;
+  private static final String MASTER = "refs/heads/master";
+
+  @ConfigSuite.Default
+  public static Config parallelConfig() {
+    Config cfg = new Config();
+    cfg.setInt("receive", null, "commitValidationThreads", THREADS);
+    cfg.setLong("cache", "commit_validation", "memoryLimit", 8192);
+    return cfg;
+  }
+
+  @Inject
+  private DynamicSet<CommitValidationListener> source;
+
+  @Inject
+  private Provider<ReviewDb> dbProvider;
+
+  private final List<ObjectId> validated =
+      Collections.synchronizedList(new ArrayList<ObjectId>());
+  private final Set<ReviewDb> dbs = Collections.synchronizedSet(
+      Collections.newSetFromMap(new IdentityHashMap<ReviewDb, Boolean>()));
+  private volatile CountDownLatch barrier;
+  private volatile boolean rejecting = true;
+  private RegistrationHandle registration;
+  private CredentialsProvider defaultCredentials;
+
+  @Before
+  public void setUp() {
+    defaultCredentials = CredentialsProvider.getDefault();
+    registration = source.add(new CommitValidationListener() {
+      @Override
+      public List<CommitValidationMessage> onCommitReceived(
+          CommitReceivedEvent receiveEvent)
+          throws CommitValidationException {
+        validated.add(receiveEvent.commit.copy());
+        dbs.add(dbProvider.get());
+        CountDownLatch b = barrier;
+        if (b != null) {
+          // Wait until the other validations have started, which only
+          // completes if they run concurrently.
+          b.countDown();
+          try {
+            b.await(10, SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        if (rejecting
+            && receiveEvent.commit.getShortMessage().startsWith("reject")) {
+          throw new CommitValidationException("rejected by test");
+        }
+        return Collections.emptyList();
+      }
+    });
+  }
+
+  @After
+  public void cleanup() {
+    registration.remove();
+    CredentialsProvider.setDefault(defaultCredentials);
+  }
+
+  @Test
+  public void validateCommitsInParallel() throws Exception {
+    barrier = new CountDownLatch(THREADS);
+    List<RevCommit> commits = new ArrayList<>();
+    for (int i = 0; i < 2 * THREADS; i++) {
+      commits.add(commit("commit " + i));
+    }
+
+    assertPushOk(pushHead(testRepo, MASTER), MASTER);
+
+    assertThat(barrier.getCount()).isEqualTo(0);
+    assertThat(validated).containsExactlyElementsIn(commits);
+    // Validators on other threads do not share the request's ReviewDb.
+    assertThat(dbs.size()).isAtLeast(THREADS);
+  }
+
+  @Test
+  public void firstInvalidCommitRejectsPush() throws Exception {
+    ObjectId head = getRemoteHead().copy();
+    commit("a");
+    commit("reject b");
+    commit("c");
+    commit("d");
+
+    assertPushRejected(pushHead(testRepo, MASTER), MASTER, "rejected by test");
+    assertThat(getRemoteHead()).isEqualTo(head);
+  }
+
+  @Test
+  public void retriedPushDoesNotValidateCommitsAgain() throws Exception {
+    // Commits are validated from the tip, so the oldest commit is rejected
+    // after the others passed.
+    RevCommit a = commit("reject a");
+    RevCommit b = commit("b");
+    RevCommit c = commit("c");
+    assertPushRejected(pushHead(testRepo, MASTER), MASTER, "rejected by test");
+    assertThat(validated).containsExactly(a, b, c);
+
+    // E.g. an external system checked by a validator was fixed.
+    rejecting = false;
+    validated.clear();
+    assertPushOk(pushHead(testRepo, MASTER), MASTER);
+    assertThat(validated).containsExactly(a);
+  }
+
+  @Test
+  @GerritConfig(name = "cache.commit_validation.memoryLimit", value = "0")
+  public void retriedPushValidatesCommitsAgainWithoutCache() throws Exception {
+    RevCommit a = commit("reject a");
+    RevCommit b = commit("b");
+    RevCommit c = commit("c");
+    assertPushRejected(pushHead(testRepo, MASTER), MASTER, "rejected by test");
+
+    rejecting = false;
+    validated.clear();
+    assertPushOk(pushHead(testRepo, MASTER), MASTER);
+    assertThat(validated).containsExactly(a, b, c);
+  }
+
+  @Test
+  public void groupChangeValidatesCommitsAgain() throws Exception {
+    // A user pushing over SSH may be reused between the pushes of a test,
+    // keeping its groups; each HTTP request gets a new user.
+    CredentialsProvider.setDefault(new UsernamePasswordCredentialsProvider(
+        admin.username, admin.httpPassword));
+    testRepo = GitUtil.cloneProject(
+        project, admin.getHttpUrl(server) + "/" + project.get());
+    RevCommit a = commit("reject a");
+    RevCommit b = commit("b");
+    RevCommit c = commit("c");
+    assertPushRejected(pushHead(testRepo, MASTER), MASTER, "rejected by test");
+
+    // Validators may check permissions of the user's groups.
+    gApi.groups().create(name("group")).addMembers(admin.username);
+
+    rejecting = false;
+    validated.clear();
+    assertPushOk(pushHead(testRepo, MASTER), MASTER);
+    assertThat(validated).containsExactly(a, b, c);
+  }
+
+  private RevCommit commit(String subject) throws Exception {
+    return testRepo.branch("HEAD").commit().insertChangeId()
+        .message(subject)
+        .add(subject.replace(' ', '_') + ".txt", subject)
+        .create();
+  }
+}
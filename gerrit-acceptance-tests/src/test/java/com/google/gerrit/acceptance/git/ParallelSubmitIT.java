@@ -0,0 +1,159 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.acceptance.git;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.gerrit.acceptance.GitUtil.getChangeId;
+
+import com.google.gerrit.acceptance.NoHttpd;
+import com.google.gerrit.extensions.client.ChangeStatus;
+import com.google.gerrit.server.git.MergeOp;
+import com.google.gerrit.testutil.ConfigSuite;
+import com.google.gerrit.testutil.log.LogUtil;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+@NoHttpd
+public class ParallelSubmitIT extends AbstractSubmoduleSubscription {
+  private static final int PROJECTS = 3;
+
+  @ConfigSuite.Default
+  public static Config parallelConfig() {
+    Config cfg = submitByMergeIfNecessary();
+    cfg.setInt("change", null, "submitThreads", 4);
+    return cfg;
+  }
+
+  private final List<LoggingEvent> events =
+      Collections.synchronizedList(new ArrayList<LoggingEvent>());
+  private Logger mergeOpLog;
+  private Level level;
+  private LogUtil.LoggerSettings loggerSettings;
+
+  @Before
+  public void captureMergeOpLog() {
+    mergeOpLog = LogManager.getLogger(MergeOp.class);
+    level = mergeOpLog.getLevel();
+    loggerSettings = LogUtil.logToCollection(MergeOp.class.getName(), events);
+    mergeOpLog.setLevel(Level.DEBUG);
+  }
+
+  @After
+  public void restoreMergeOpLog() {
+    mergeOpLog.setLevel(level);
+    loggerSettings.pushOntoLogger(mergeOpLog);
+  }
+
+  @Test
+  public void submitTopicAcrossProjectsInParallel() throws Exception {
+    List<TestRepository<?>> repos = new ArrayList<>();
+    List<RevCommit> changes = new ArrayList<>();
+    List<ObjectId> tips = new ArrayList<>();
+    for (int i = 0; i < PROJECTS; i++) {
+      TestRepository<?> repo = createProjectWithPush("project-" + i);
+      ObjectId base = repo.getRepository().resolve("HEAD");
+      changes.add(repo.getRevWalk().parseCommit(pushChangeTo(
+          repo, "refs/for/master", "change " + i, "topic")));
+      // Let the branch move on, so that every project needs a merge.
+      repo.reset(base);
+      tips.add(pushChangeTo(repo, "refs/heads/master", "b.txt", "b contents",
+          "direct push " + i, ""));
+      repos.add(repo);
+    }
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < PROJECTS; i++) {
+      ids.add(getChangeId(repos.get(i), changes.get(i)).get());
+      approve(ids.get(i));
+    }
+
+    gApi.changes().id(ids.get(0)).current().submit();
+
+    assertThat(updatedInParallel()).isTrue();
+    for (int i = 0; i < PROJECTS; i++) {
+      TestRepository<?> repo = repos.get(i);
+      RevCommit c = changes.get(i);
+      assertThat(gApi.changes().id(ids.get(i)).get().status)
+          .isEqualTo(ChangeStatus.MERGED);
+      RevCommit head = remoteHead(repo);
+      assertThat(head.getParentCount()).isEqualTo(2);
+      assertThat(head.getParent(0)).isEqualTo(tips.get(i));
+      assertThat(head.getParent(1)).isEqualTo(c);
+    }
+  }
+
+  @Test
+  public void submitTopicWithSubscriptionSerially() throws Exception {
+    TestRepository<?> superRepo = createProjectWithPush("super-project");
+    TestRepository<?> subRepo = createProjectWithPush("subscribed-to-project");
+    allowMatchingSubmoduleSubscription("subscribed-to-project",
+        "refs/heads/master", "super-project", "refs/heads/master");
+    createSubmoduleSubscription(superRepo, "master",
+        "subscribed-to-project", "master");
+
+    RevCommit superChange = superRepo.getRevWalk().parseCommit(pushChangeTo(
+        superRepo, "refs/for/master", "super change", "topic"));
+    RevCommit subChange = subRepo.getRevWalk().parseCommit(pushChangeTo(
+        subRepo, "refs/for/master", "sub change", "topic"));
+    String superId = getChangeId(superRepo, superChange).get();
+    String subId = getChangeId(subRepo, subChange).get();
+    approve(superId);
+    approve(subId);
+
+    gApi.changes().id(superId).current().submit();
+
+    // The gitlink of the superproject depends on the new submodule tip.
+    assertThat(updatedInParallel()).isFalse();
+    assertThat(gApi.changes().id(superId).get().status)
+        .isEqualTo(ChangeStatus.MERGED);
+    assertThat(gApi.changes().id(subId).get().status)
+        .isEqualTo(ChangeStatus.MERGED);
+    assertThat(remoteHead(subRepo)).isEqualTo(subChange);
+    assertThat(superRepo.getRevWalk().isMergedInto(
+        superChange, remoteHead(superRepo))).isTrue();
+    expectToHaveSubmoduleState(superRepo, "master",
+        "subscribed-to-project", subChange);
+  }
+
+  private RevCommit remoteHead(TestRepository<?> repo) throws Exception {
+    ObjectId id = repo.git().fetch().setRemote("origin").call()
+        .getAdvertisedRef("refs/heads/master").getObjectId();
+    return repo.getRevWalk().parseCommit(id);
+  }
+
+  private boolean updatedInParallel() {
+    synchronized (events) {
+      for (LoggingEvent e : events) {
+        if (e.getRenderedMessage().contains("repositories in parallel")) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
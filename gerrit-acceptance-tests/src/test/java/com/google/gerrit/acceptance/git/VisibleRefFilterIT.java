@@ -18,8 +18,11 @@ import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.TruthJUnit.assume;
 import static com.google.gerrit.server.group.SystemGroupBackend.REGISTERED_USERS;
 
+import com.google.common.collect.ImmutableList;
 import com.google.gerrit.acceptance.AbstractDaemonTest;
 import com.google.gerrit.acceptance.AcceptanceTestRequestScope;
+import com.google.gerrit.acceptance.GerritConfig;
+import com.google.gerrit.acceptance.GerritConfigs;
 import com.google.gerrit.acceptance.NoHttpd;
 import com.google.gerrit.acceptance.PushOneCommit;
 import com.google.gerrit.common.Nullable;
@@ -38,13 +41,16 @@ import com.google.gerrit.server.edit.ChangeEditModifier;
 import com.google.gerrit.server.git.ProjectConfig;
 import com.google.gerrit.server.git.SearchingChangeCacheImpl;
 import com.google.gerrit.server.git.TagCache;
+import com.google.gerrit.server.git.VisibleChangesCache;
 import com.google.gerrit.server.git.VisibleRefFilter;
 import com.google.gerrit.server.project.ProjectControl;
 import com.google.gerrit.server.project.Util;
+import com.google.gerrit.testutil.ConfigSuite;
 import com.google.gerrit.testutil.DisabledReviewDb;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefUpdate;
@@ -58,6 +64,14 @@ import java.util.Map;
 
 @NoHttpd
 public class VisibleRefFilterIT extends AbstractDaemonTest {
+  @ConfigSuite.Default
+  public static Config defaultConfig() {
+    // VisibleChangesCache is only used when enabled.
+    Config cfg = new Config();
+    cfg.setLong("cache", "visible_changes", "memoryLimit", 1024);
+    return cfg;
+  }
+
   @Inject
   private ChangeEditModifier editModifier;
 
@@ -68,6 +82,10 @@ public class VisibleRefFilterIT extends AbstractDaemonTest {
   @Nullable
   private SearchingChangeCacheImpl changeCache;
 
+  @Inject
+  @Nullable
+  private VisibleChangesCache visibleChangesCache;
+
   @Inject
   private TagCache tagCache;
 
@@ -303,6 +321,44 @@ public class VisibleRefFilterIT extends AbstractDaemonTest {
         "refs/tags/master-tag");
   }
 
+  @Test
+  @GerritConfigs({
+      @GerritConfig(name = "cache.changes.incrementalUpdate", value = "true"),
+      @GerritConfig(name = "cache.changes.memoryLimit", value = "1024"),
+      @GerritConfig(name = "cache.visible_changes.memoryLimit",
+          value = "1024")})
+  public void newChangeVisibleWithIncrementalChangeCache() throws Exception {
+    allow(Permission.READ, REGISTERED_USERS, "refs/heads/master");
+    deny(Permission.READ, REGISTERED_USERS, "refs/heads/branch");
+
+    setApiUser(user);
+    assertRefs(
+        "HEAD",
+        r1 + "1",
+        r1 + "meta",
+        "refs/heads/master",
+        "refs/tags/master-tag");
+
+    setApiUser(admin);
+    PushOneCommit.Result mr = pushFactory.create(db, admin.getIdent(), testRepo)
+        .to("refs/for/master");
+    mr.assertOkStatus();
+    String r3 = changeRefPrefix(mr.getChange().getId());
+    PushOneCommit.Result br = pushFactory.create(db, admin.getIdent(), testRepo)
+        .to("refs/for/branch");
+    br.assertOkStatus();
+
+    setApiUser(user);
+    assertRefs(
+        "HEAD",
+        r1 + "1",
+        r1 + "meta",
+        r3 + "1",
+        r3 + "meta",
+        "refs/heads/master",
+        "refs/tags/master-tag");
+  }
+
   @Test
   public void noSearchingChangeCacheImpl() throws Exception {
     allow(Permission.READ, REGISTERED_USERS, "refs/heads/*");
@@ -311,7 +367,7 @@ public class VisibleRefFilterIT extends AbstractDaemonTest {
     try (Repository repo = repoManager.openRepository(project)) {
       assertRefs(
           repo,
-          new VisibleRefFilter(tagCache, notesFactory, null, repo,
+          new VisibleRefFilter(tagCache, notesFactory, null, null, repo,
               projectControl(), db, true),
           // Can't use stored values from the index so DB must be enabled.
           false,
@@ -348,6 +404,38 @@ public class VisibleRefFilterIT extends AbstractDaemonTest {
     }
   }
 
+  @Test
+  public void filterPrefixes() throws Exception {
+    allow(Permission.READ, REGISTERED_USERS, "refs/heads/master");
+    deny(Permission.READ, REGISTERED_USERS, "refs/heads/branch");
+
+    setApiUser(user);
+    try (Repository repo = repoManager.openRepository(project)) {
+      VisibleRefFilter filter = newFilter(db, repo, project);
+      assertThat(filter.filterPrefixes(
+              ImmutableList.of("HEAD", RefNames.REFS_HEADS)).keySet())
+          .containsExactly("HEAD", "refs/heads/master");
+      assertThat(filter.filterPrefixes(
+              ImmutableList.of(RefNames.REFS_TAGS)).keySet())
+          .containsExactly("refs/tags/master-tag");
+      // New filters check the changes of the prefix one by one, rather than
+      // all changes of the project as computed for the tags above.
+      assertThat(newFilter(db, repo, project)
+              .filterPrefixes(ImmutableList.of(r1)).keySet())
+          .contains(r1 + "1");
+      assertThat(newFilter(db, repo, project)
+              .filterPrefixes(ImmutableList.of(r2)).keySet())
+          .isEmpty();
+      assertThat(filter.filterPrefixes(ImmutableList.of(r1)).keySet())
+          .contains(r1 + "1");
+      assertThat(filter.filterPrefixes(ImmutableList.of(r2)).keySet())
+          .isEmpty();
+      assertThat(filter.filterPrefixes(ImmutableList.<String> of()).keySet())
+          .containsExactlyElementsIn(
+              filter.filter(repo.getAllRefs(), false).keySet());
+    }
+  }
+
   /**
    * Assert that refs seen by a non-admin user match expected.
    *
@@ -360,8 +448,15 @@ public class VisibleRefFilterIT extends AbstractDaemonTest {
     try (Repository repo = repoManager.openRepository(project)) {
       assertRefs(
           repo,
-          new VisibleRefFilter(tagCache, notesFactory, changeCache, repo,
-              projectControl(), new DisabledReviewDb(), true),
+          new VisibleRefFilter(tagCache, notesFactory, changeCache, null,
+              repo, projectControl(), new DisabledReviewDb(), true),
+          true,
+          expectedWithMeta);
+      assertRefs(
+          repo,
+          new VisibleRefFilter(tagCache, notesFactory, changeCache,
+              visibleChangesCache, repo, projectControl(),
+              new DisabledReviewDb(), true),
           true,
           expectedWithMeta);
     }
@@ -398,7 +493,7 @@ public class VisibleRefFilterIT extends AbstractDaemonTest {
   private VisibleRefFilter newFilter(ReviewDb db, Repository repo,
       Project.NameKey project) throws Exception {
     return new VisibleRefFilter(
-        tagCache, notesFactory, null, repo,
+        tagCache, notesFactory, null, null, repo,
         projectControlFactory.controlFor(project, userProvider.get()),
         db, true);
   }
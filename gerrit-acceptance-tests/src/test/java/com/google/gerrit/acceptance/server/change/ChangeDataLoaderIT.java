@@ -0,0 +1,112 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.acceptance.server.change;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.Lists;
+import com.google.gerrit.acceptance.AbstractDaemonTest;
+import com.google.gerrit.acceptance.NoHttpd;
+import com.google.gerrit.acceptance.PushOneCommit;
+import com.google.gerrit.extensions.client.ListChangesOption;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.server.query.change.ChangeDataLoader;
+import com.google.gerrit.testutil.ConfigSuite;
+import com.google.inject.Inject;
+
+import org.eclipse.jgit.lib.Config;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@NoHttpd
+public class ChangeDataLoaderIT extends AbstractDaemonTest {
+  @ConfigSuite.Default
+  public static Config loadThreadsConfig() {
+    Config cfg = new Config();
+    cfg.setInt("change", null, "loadThreads", 4);
+    return cfg;
+  }
+
+  @Inject
+  private ChangeDataLoader loader;
+
+  @Test
+  public void queryResultsKeepOrderAndData() throws Exception {
+    assertThat(loader.isEnabled()).isTrue();
+
+    List<String> ids = new ArrayList<>();
+    for (int i = 1; i <= 10; i++) {
+      StringBuilder content = new StringBuilder();
+      for (int line = 0; line < i; line++) {
+        content.append(line).append('\n');
+      }
+      PushOneCommit.Result r = createChange(
+          "Change " + i, "file" + i + ".txt", content.toString());
+      r.assertOkStatus();
+      ids.add(r.getChangeId());
+    }
+
+    List<ChangeInfo> result = gApi.changes()
+        .query("project:" + project.get())
+        .withOption(ListChangesOption.CURRENT_REVISION)
+        .get();
+
+    // Most recently updated first.
+    List<String> expected = Lists.reverse(ids);
+    assertThat(result).hasSize(expected.size());
+    for (int i = 0; i < result.size(); i++) {
+      ChangeInfo info = result.get(i);
+      assertThat(info.changeId).isEqualTo(expected.get(i));
+      assertThat(info.insertions).isEqualTo(expected.size() - i);
+      assertThat(info.deletions).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void paginatedQueryKeepsOrder() throws Exception {
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      ids.add(createChange().getChangeId());
+    }
+
+    List<ChangeInfo> first = gApi.changes()
+        .query("project:" + project.get())
+        .withLimit(3)
+        .get();
+    List<ChangeInfo> second = gApi.changes()
+        .query("project:" + project.get())
+        .withLimit(3)
+        .withStart(3)
+        .get();
+
+    assertThat(changeIds(first))
+        .containsExactlyElementsIn(Lists.reverse(ids).subList(0, 3))
+        .inOrder();
+    assertThat(first.get(2)._moreChanges).isTrue();
+    assertThat(changeIds(second))
+        .containsExactlyElementsIn(Lists.reverse(ids).subList(3, 5))
+        .inOrder();
+  }
+
+  private static List<String> changeIds(List<ChangeInfo> infos) {
+    List<String> ids = new ArrayList<>(infos.size());
+    for (ChangeInfo info : infos) {
+      ids.add(info.changeId);
+    }
+    return ids;
+  }
+}
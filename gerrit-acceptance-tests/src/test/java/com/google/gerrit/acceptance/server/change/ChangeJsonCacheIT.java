@@ -0,0 +1,201 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.acceptance.server.change;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.TruthJUnit.assume;
+
+import com.google.common.cache.Cache;
+import com.google.gerrit.acceptance.AbstractDaemonTest;
+import com.google.gerrit.acceptance.NoHttpd;
+import com.google.gerrit.acceptance.PushOneCommit;
+import com.google.gerrit.common.TimeUtil;
+import com.google.gerrit.extensions.api.changes.DraftInput;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.common.ChangeInput;
+import com.google.gerrit.extensions.registration.DynamicMap;
+import com.google.gerrit.reviewdb.client.Patch;
+import com.google.gerrit.reviewdb.client.PatchLineComment;
+import com.google.gerrit.server.change.GetDetail;
+import com.google.gerrit.server.edit.ChangeEditModifier;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+
+import org.eclipse.jgit.lib.RefUpdate;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+@NoHttpd
+public class ChangeJsonCacheIT extends AbstractDaemonTest {
+  @Inject
+  private DynamicMap<Cache<?, ?>> caches;
+
+  @Inject
+  private Provider<GetDetail> getDetail;
+
+  @Inject
+  private ChangeEditModifier editModifier;
+
+  private Cache<?, ?> cache;
+  private PushOneCommit.Result change;
+  private String changeId;
+
+  @Before
+  public void setUp() throws Exception {
+    cache = caches.get("gerrit", "change_json");
+    change = createChange();
+    changeId = change.getChangeId();
+    cache.invalidateAll();
+  }
+
+  @Test
+  public void cachedChangeIsReused() throws Exception {
+    ChangeInfo first = format();
+    assertThat(cache.size()).isEqualTo(1);
+    ChangeInfo second = format();
+    assertThat(cache.size()).isEqualTo(1);
+    assertThat(second.subject).isEqualTo(first.subject);
+    assertThat(second.updated).isEqualTo(first.updated);
+    assertThat(second.messages).hasSize(1);
+  }
+
+  @Test
+  public void callersGetCopies() throws Exception {
+    ChangeInfo info = format();
+    String subject = info.subject;
+    info.subject = "modified";
+    info.messages.clear();
+
+    ChangeInfo cached = format();
+    assertThat(cached).isNotSameAs(info);
+    assertThat(cached.subject).isEqualTo(subject);
+    assertThat(cached.messages).hasSize(1);
+    cached.subject = "modified";
+    cached.messages.clear();
+    assertThat(format().subject).isEqualTo(subject);
+    assertThat(format().messages).hasSize(1);
+  }
+
+  @Test
+  public void entriesArePerUser() throws Exception {
+    gApi.accounts().self().starChange(changeId);
+    assertThat(format().starred).isTrue();
+
+    setApiUser(user);
+    assertThat(format().starred).isNull();
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(format().starred).isNull();
+    assertThat(cache.size()).isEqualTo(2);
+
+    setApiUser(admin);
+    assertThat(format().starred).isTrue();
+    assertThat(cache.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void refUpdateEvictsEntriesOfChange() throws Exception {
+    ChangeInput in = new ChangeInput();
+    in.project = project.get();
+    in.branch = "master";
+    in.subject = "other change";
+    String otherId = gApi.changes().create(in).get().changeId;
+    format();
+    format(otherId);
+    setApiUser(user);
+    format();
+    assertThat(cache.size()).isEqualTo(3);
+
+    setApiUser(admin);
+    PushOneCommit.Result r = amendChange(changeId);
+    r.assertOkStatus();
+    // Only the entry of the other change is left.
+    assertThat(cache.size()).isEqualTo(1);
+
+    assertThat(format().messages).hasSize(2);
+  }
+
+  @Test
+  public void destinationBranchIsKeyed() throws Exception {
+    format();
+    assertThat(cache.size()).isEqualTo(1);
+
+    testRepo.reset("HEAD~1");
+    pushFactory.create(db, admin.getIdent(), testRepo, "other", "b.txt", "b")
+        .to("refs/heads/master")
+        .assertOkStatus();
+    format();
+    assertThat(cache.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void draftsAreKeyed() throws Exception {
+    format();
+    assertThat(cache.size()).isEqualTo(1);
+
+    DraftInput in = new DraftInput();
+    in.path = Patch.COMMIT_MSG;
+    in.line = 1;
+    in.message = "draft";
+    gApi.changes().id(changeId).current().createDraft(in);
+    format();
+    assertThat(cache.size()).isEqualTo(2);
+
+    // Other users don't see the drafts.
+    setApiUser(user);
+    format();
+    format();
+    assertThat(cache.size()).isEqualTo(3);
+  }
+
+  @Test
+  public void draftsNotUpdatingChangeAreKeyed() throws Exception {
+    // Drafts stored in NoteDb cannot be written without the API.
+    assume().that(notesMigration.readChanges()).isFalse();
+    format();
+    assertThat(cache.size()).isEqualTo(1);
+
+    PatchLineComment c = new PatchLineComment(
+        new PatchLineComment.Key(
+            new Patch.Key(change.getPatchSetId(), Patch.COMMIT_MSG), "uuid"),
+        1, admin.id, null, TimeUtil.nowTs());
+    c.setStatus(PatchLineComment.Status.DRAFT);
+    c.setMessage("draft");
+    db.patchComments().insert(Collections.singleton(c));
+    format();
+    assertThat(cache.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void editsAreKeyed() throws Exception {
+    format();
+    assertThat(cache.size()).isEqualTo(1);
+
+    assertThat(editModifier.createEdit(change.getChange().change(),
+        change.getChange().currentPatchSet()))
+        .isEqualTo(RefUpdate.Result.NEW);
+    format();
+    assertThat(cache.size()).isEqualTo(2);
+  }
+
+  private ChangeInfo format() throws Exception {
+    return format(changeId);
+  }
+
+  private ChangeInfo format(String id) throws Exception {
+    return getDetail.get().apply(parseChangeResource(id)).value();
+  }
+}
@@ -19,15 +19,19 @@ import static com.google.gerrit.acceptance.GitUtil.getChangeId;
 import static com.google.gerrit.acceptance.GitUtil.pushHead;
 
 import com.google.gerrit.acceptance.AbstractDaemonTest;
+import com.google.gerrit.acceptance.GerritConfig;
+import com.google.gerrit.acceptance.GerritConfigs;
 import com.google.gerrit.acceptance.NoHttpd;
 import com.google.gerrit.extensions.client.DiffPreferencesInfo.Whitespace;
 import com.google.gerrit.reviewdb.client.Patch;
 import com.google.gerrit.reviewdb.client.Patch.ChangeType;
+import com.google.gerrit.server.patch.PatchList;
 import com.google.gerrit.server.patch.PatchListCache;
 import com.google.gerrit.server.patch.PatchListEntry;
 import com.google.gerrit.server.patch.PatchListKey;
 import com.google.inject.Inject;
 
+import org.eclipse.jgit.diff.Edit;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.junit.Test;
@@ -212,6 +216,93 @@ public class PatchListCacheIT extends AbstractDaemonTest {
     assertDeleted(FILE_C, entriesReverse.get(1));
   }
 
+  @Test
+  @GerritConfigs({
+      @GerritConfig(name = "cache.diff.fileThreads", value = "4"),
+      @GerritConfig(name = "change.cacheAutomerge", value = "false")
+  })
+  public void listPatchesOfMergeInParallel() throws Exception {
+    RevCommit base = commitBuilder()
+        .add(FILE_A, "1")
+        .add(FILE_B, "2")
+        .message(SUBJECT_1)
+        .create();
+    RevCommit p1 = commitBuilder()
+        .add(FILE_A, "1a")
+        .add(FILE_B, "2a")
+        .message(SUBJECT_2)
+        .create();
+    testRepo.reset(base);
+    RevCommit p2 = commitBuilder()
+        .add(FILE_A, "1b")
+        .add(FILE_B, "2b")
+        .message(SUBJECT_3)
+        .create();
+
+    // Both files conflict, so the auto-merge has new blobs that are only held
+    // by the in-memory inserter of the loader.
+    RevCommit merge = testRepo.commit()
+        .parent(p1)
+        .parent(p2)
+        .add(FILE_A, "1c")
+        .add(FILE_B, "2c")
+        .add(FILE_C, "3")
+        .message("merge")
+        .create();
+    testRepo.reset(merge);
+    pushHead(testRepo, "refs/heads/master", false);
+
+    List<PatchListEntry> entries = patchListCache
+        .get(getKey(null, merge), project)
+        .getPatches();
+    assertThat(entries).hasSize(5);
+    assertAdded(Patch.COMMIT_MSG, entries.get(0));
+    assertAdded(Patch.MERGE_LIST, entries.get(1));
+    assertModified(FILE_A, entries.get(2));
+    assertModified(FILE_B, entries.get(3));
+    assertAdded(FILE_C, entries.get(4));
+    for (PatchListEntry e : entries.subList(2, 5)) {
+      assertThat(e.getEdits()).isNotEmpty();
+    }
+  }
+
+  @Test
+  @GerritConfigs({
+      @GerritConfig(name = "cache.diff.fileThreads", value = "4"),
+      @GerritConfig(name = "cache.diff.timeout", value = "0")
+  })
+  public void cacheHistogramDiffOfTimedOutFiles() throws Exception {
+    RevCommit base = commitBuilder()
+        .add(FILE_A, "1\n2\n3\n")
+        .add(FILE_B, "1\n2\n3\n")
+        .message(SUBJECT_1)
+        .create();
+    // The deadline has passed before any file is diffed on the executor, so
+    // all files fall back to the histogram diff.
+    RevCommit c = commitBuilder()
+        .add(FILE_A, "1\n2a\n3\n")
+        .add(FILE_B, "1\n2\n3\n4\n")
+        .add(FILE_C, "3")
+        .message(SUBJECT_2)
+        .create();
+    pushHead(testRepo, "refs/heads/master", false);
+
+    PatchListKey key = getKey(base, c);
+    PatchList first = patchListCache.get(key, project);
+    List<PatchListEntry> entries = first.getPatches();
+    assertThat(entries).hasSize(4);
+    assertModified(FILE_A, entries.get(1));
+    assertThat(entries.get(1).getEdits()).containsExactly(
+        new Edit(1, 2, 1, 2));
+    assertModified(FILE_B, entries.get(2));
+    assertThat(entries.get(2).getEdits()).containsExactly(
+        new Edit(3, 3, 3, 4));
+    assertAdded(FILE_C, entries.get(3));
+
+    // As when diffing one file at a time, the fallback result is cached.
+    assertThat(patchListCache.get(key, project)).isSameAs(first);
+  }
+
   private static void assertAdded(String expectedNewName, PatchListEntry e) {
     assertName(expectedNewName, e);
     assertThat(e.getChangeType()).isEqualTo(ChangeType.ADDED);
@@ -0,0 +1,168 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.benchmark;
+
+import com.google.gerrit.common.TimeUtil;
+import com.google.gerrit.extensions.api.GerritApi;
+import com.google.gerrit.lifecycle.LifecycleManager;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.Sequences;
+import com.google.gerrit.server.account.AccountManager;
+import com.google.gerrit.server.account.AuthRequest;
+import com.google.gerrit.server.change.ChangeInserter;
+import com.google.gerrit.server.git.BatchUpdate;
+import com.google.gerrit.server.git.validators.CommitValidators;
+import com.google.gerrit.server.schema.SchemaCreator;
+import com.google.gerrit.server.util.RequestContext;
+import com.google.gerrit.server.util.ThreadLocalRequestContext;
+import com.google.gerrit.testutil.InMemoryDatabase;
+import com.google.gerrit.testutil.InMemoryModule;
+import com.google.gerrit.testutil.InMemoryRepositoryManager;
+import com.google.gerrit.testutil.InMemoryRepositoryManager.Repo;
+import com.google.gerrit.testutil.TestNotesMigration;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Provider;
+import com.google.inject.util.Providers;
+
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+/**
+ * Gerrit site backed entirely by memory, for benchmarks that need a server
+ * injector.
+ * <p>
+ * Repositories come from {@link InMemoryRepositoryManager}, the database is an
+ * in-memory H2 instance and the secondary index is an in-memory Lucene index,
+ * so no external services are required. The first account created by {@link
+ * #start()} is an administrator.
+ */
+public class InMemorySite {
+  @Inject private AccountManager accountManager;
+  @Inject private BatchUpdate.Factory updateFactory;
+  @Inject private ChangeInserter.Factory changeFactory;
+  @Inject private GerritApi gApi;
+  @Inject private IdentifiedUser.GenericFactory userFactory;
+  @Inject private InMemoryDatabase schemaFactory;
+  @Inject private InMemoryRepositoryManager repoManager;
+  @Inject private SchemaCreator schemaCreator;
+  @Inject private Sequences seq;
+  @Inject private ThreadLocalRequestContext requestContext;
+
+  private final Injector injector;
+  private final LifecycleManager lifecycle;
+  private ReviewDb db;
+  private Account.Id adminId;
+
+  public InMemorySite() {
+    this(InMemoryModule.newDefaultConfig());
+  }
+
+  public InMemorySite(Config cfg) {
+    injector = Guice.createInjector(
+        new InMemoryModule(cfg, new TestNotesMigration()));
+    lifecycle = new LifecycleManager();
+    lifecycle.add(injector);
+    injector.injectMembers(this);
+  }
+
+  public void start() throws Exception {
+    lifecycle.start();
+    db = schemaFactory.open();
+    schemaCreator.create(db);
+    adminId = createAccount("admin");
+    setCurrentUser(adminId);
+  }
+
+  public void stop() {
+    lifecycle.stop();
+    requestContext.setContext(null);
+    if (db != null) {
+      db.close();
+    }
+    InMemoryDatabase.drop(schemaFactory);
+  }
+
+  public <T> T getInstance(Class<T> type) {
+    return injector.getInstance(type);
+  }
+
+  public ReviewDb getDb() {
+    return db;
+  }
+
+  public Account.Id getAdminId() {
+    return adminId;
+  }
+
+  public Account.Id createAccount(String username) throws Exception {
+    return accountManager.authenticate(AuthRequest.forUser(username))
+        .getAccountId();
+  }
+
+  public IdentifiedUser user(Account.Id id) {
+    return userFactory.create(id);
+  }
+
+  public void setCurrentUser(Account.Id id) {
+    final CurrentUser user = userFactory.create(id);
+    requestContext.setContext(new RequestContext() {
+      @Override
+      public CurrentUser getUser() {
+        return user;
+      }
+
+      @Override
+      public Provider<ReviewDb> getReviewDbProvider() {
+        return Providers.of(db);
+      }
+    });
+  }
+
+  public TestRepository<Repo> createProject(String name) throws Exception {
+    gApi.projects().create(name).get();
+    return new TestRepository<>(
+        repoManager.openRepository(new Project.NameKey(name)));
+  }
+
+  public Change createChange(TestRepository<Repo> repo, String branch)
+      throws Exception {
+    RevCommit commit =
+        repo.parseBody(repo.commit().message("Benchmark change").create());
+    return createChange(repo, commit, branch);
+  }
+
+  public Change createChange(TestRepository<Repo> repo, RevCommit commit,
+      String branch) throws Exception {
+    Project.NameKey project = new Project.NameKey(
+        repo.getRepository().getDescription().getRepositoryName());
+    Change.Id id = new Change.Id(seq.nextChangeId());
+    ChangeInserter ins = changeFactory.create(id, commit, branch)
+        .setValidatePolicy(CommitValidators.Policy.NONE);
+    try (BatchUpdate bu =
+        updateFactory.create(db, project, user(adminId), TimeUtil.nowTs())) {
+      bu.insertChange(ins);
+      bu.execute();
+    }
+    return ins.getChange();
+  }
+}
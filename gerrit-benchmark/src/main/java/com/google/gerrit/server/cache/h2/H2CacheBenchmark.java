@@ -0,0 +1,118 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache.h2;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gerrit.server.cache.h2.H2CacheImpl.SqlStore;
+import com.google.gerrit.server.cache.h2.H2CacheImpl.ValueHolder;
+import com.google.inject.TypeLiteral;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads and writes a persistent cache backed by an in-memory H2 database.
+ * <p>
+ * The store is written synchronously, so {@link #put()} includes the cost of
+ * the SQL {@code MERGE}. {@link #getFromDisk()} drops the in-memory copy
+ * before each read, which is what a server sees after a restart or once the
+ * memory limit of the cache is exceeded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class H2CacheBenchmark {
+  private static int dbCnt;
+
+  @Param({"1000", "10000"})
+  int entries;
+
+  @Param({"100", "10000"})
+  int valueSize;
+
+  private Cache<String, ValueHolder<String>> mem;
+  private H2CacheImpl<String, String> impl;
+  private String[] keys;
+  private String value;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    mem = CacheBuilder.newBuilder().build();
+    TypeLiteral<String> keyType = new TypeLiteral<String>() {};
+    SqlStore<String, String> store = new SqlStore<>(
+        "jdbc:h2:mem:Benchmark_" + (++dbCnt),
+        keyType,
+        null,
+        1L << 30,
+        0);
+    impl =
+        new H2CacheImpl<>(MoreExecutors.directExecutor(), store, keyType, mem);
+    impl.start();
+
+    keys = new String[entries];
+    value = Strings.repeat("x", valueSize);
+    for (int i = 0; i < entries; i++) {
+      keys[i] = "key-" + i;
+      impl.put(keys[i], value);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    impl.stop();
+  }
+
+  @Benchmark
+  public String getFromMemory() {
+    return impl.getIfPresent(nextKey());
+  }
+
+  @Benchmark
+  public String getFromDisk() {
+    String key = nextKey();
+    mem.invalidate(key);
+    return impl.getIfPresent(key);
+  }
+
+  @Benchmark
+  public void put() {
+    impl.put(nextKey(), value);
+  }
+
+  private String nextKey() {
+    String key = keys[next];
+    next = (next + 1) % keys.length;
+    return key;
+  }
+}
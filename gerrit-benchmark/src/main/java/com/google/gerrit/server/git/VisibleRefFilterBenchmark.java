@@ -0,0 +1,154 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import static com.google.gerrit.server.group.SystemGroupBackend.REGISTERED_USERS;
+
+import com.google.gerrit.benchmark.InMemorySite;
+import com.google.gerrit.common.data.Permission;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.notedb.ChangeNotes;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectControl;
+import com.google.gerrit.server.project.Util;
+import com.google.gerrit.testutil.InMemoryModule;
+import com.google.gerrit.testutil.InMemoryRepositoryManager.Repo;
+
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filters the advertisement of a project for a non-administrator.
+ * <p>
+ * Half of the branches are hidden from registered users, changes are spread
+ * evenly across all branches and every branch carries a tag, so all of the
+ * branch, change and tag reachability paths are exercised. {@link #strategy}
+ * selects how visible changes are computed: by scanning the repository, from
+ * the {@link SearchingChangeCacheImpl}, or from the {@link
+ * VisibleChangesCache}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class VisibleRefFilterBenchmark {
+  @Param({"100"})
+  int branches;
+
+  @Param({"100", "1000"})
+  int changes;
+
+  @Param({"scan", "search", "bitmap"})
+  String strategy;
+
+  private InMemorySite site;
+  private Project.NameKey project;
+  private Repo repo;
+  private Map<String, Ref> refs;
+  private IdentifiedUser user;
+  private ProjectControl.GenericFactory projectControlFactory;
+  private TagCache tagCache;
+  private ChangeNotes.Factory notesFactory;
+  private SearchingChangeCacheImpl changeCache;
+  private VisibleChangesCache visibleChangesCache;
+
+  @Setup
+  public void setUp() throws Exception {
+    Config cfg = InMemoryModule.newDefaultConfig();
+    cfg.setLong("cache", "changes", "memoryLimit", 1024);
+    cfg.setLong("cache", VisibleChangesCache.CACHE_NAME, "memoryLimit", 1024);
+    site = new InMemorySite(cfg);
+    site.start();
+
+    project = new Project.NameKey("benchmark");
+    TestRepository<Repo> tr = site.createProject(project.get());
+    repo = tr.getRepository();
+    blockSecretBranches();
+
+    for (int i = 0; i < branches; i++) {
+      String name = branchName(i);
+      RevCommit c = tr.branch(name).commit().message(name).create();
+      tr.update("refs/tags/v" + i, tr.tag("v" + i, c));
+    }
+    for (int i = 0; i < changes; i++) {
+      site.createChange(tr, branchName(i % branches));
+    }
+    refs = repo.getRefDatabase().getRefs(RefDatabase.ALL);
+
+    user = site.user(site.createAccount("user"));
+    projectControlFactory =
+        site.getInstance(ProjectControl.GenericFactory.class);
+    tagCache = site.getInstance(TagCache.class);
+    notesFactory = site.getInstance(ChangeNotes.Factory.class);
+    if (!strategy.equals("scan")) {
+      changeCache = site.getInstance(SearchingChangeCacheImpl.class);
+    }
+    if (strategy.equals("bitmap")) {
+      visibleChangesCache = site.getInstance(VisibleChangesCache.class);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    repo.close();
+    site.stop();
+  }
+
+  @Benchmark
+  public Map<String, Ref> filter() throws Exception {
+    ProjectControl ctl = projectControlFactory.controlFor(project, user);
+    return new VisibleRefFilter(tagCache, notesFactory, changeCache,
+        visibleChangesCache, repo, ctl, site.getDb(), true)
+        .filter(refs, false);
+  }
+
+  private void blockSecretBranches() throws Exception {
+    ProjectCache projectCache = site.getInstance(ProjectCache.class);
+    ProjectConfig cfg = projectCache.checkedGet(project).getConfig();
+    Util.block(cfg, Permission.READ, REGISTERED_USERS, "refs/heads/secret/*");
+    try (MetaDataUpdate md =
+        site.getInstance(MetaDataUpdate.Server.class).create(project)) {
+      cfg.commit(md);
+    }
+    projectCache.evict(cfg.getProject());
+  }
+
+  private static String branchName(int i) {
+    return i % 2 == 0
+        ? "refs/heads/branch-" + i
+        : "refs/heads/secret/branch-" + i;
+  }
+}
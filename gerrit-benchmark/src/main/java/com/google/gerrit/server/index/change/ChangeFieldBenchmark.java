@@ -0,0 +1,119 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index.change;
+
+import com.google.gerrit.benchmark.InMemorySite;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.index.FieldDef.FillArgs;
+import com.google.gerrit.server.index.Schema;
+import com.google.gerrit.server.index.Schema.Values;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.testutil.InMemoryRepositoryManager.Repo;
+
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the field values of the latest change schema, as the indexer does
+ * before handing a document to the index.
+ * <p>
+ * {@link #buildFields()} starts from a fresh {@link ChangeData} and so
+ * includes loading everything the fields need; {@link #buildFieldsLoaded()}
+ * reuses a fully loaded instance and only measures the field conversion.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ChangeFieldBenchmark {
+  @Param({"10", "100"})
+  int files;
+
+  private InMemorySite site;
+  private Schema<ChangeData> schema;
+  private FillArgs fillArgs;
+  private ChangeData.Factory changeDataFactory;
+  private Project.NameKey project;
+  private Change.Id changeId;
+  private ChangeData loaded;
+
+  @Setup
+  public void setUp() throws Exception {
+    site = new InMemorySite();
+    site.start();
+
+    project = new Project.NameKey("benchmark");
+    TestRepository<Repo> tr = site.createProject(project.get());
+    TestRepository<Repo>.CommitBuilder cb = tr.commit()
+        .message("Benchmark change\n\nTouches " + files + " files.");
+    for (int i = 0; i < files; i++) {
+      cb.add("dir" + (i % 10) + "/file" + i + ".txt",
+          "line 1\nline 2\nfile " + i + "\n");
+    }
+    RevCommit commit = tr.parseBody(cb.create());
+    changeId = site.createChange(tr, commit, "refs/heads/master").getId();
+    tr.getRepository().close();
+
+    schema = ChangeSchemaDefinitions.INSTANCE.getLatest();
+    fillArgs = site.getInstance(FillArgs.class);
+    changeDataFactory = site.getInstance(ChangeData.Factory.class);
+    loaded = changeDataFactory.create(site.getDb(), project, changeId);
+    count(loaded);
+  }
+
+  @TearDown
+  public void tearDown() {
+    site.stop();
+  }
+
+  @Benchmark
+  public int buildFields() {
+    return count(changeDataFactory.create(site.getDb(), project, changeId));
+  }
+
+  @Benchmark
+  public int buildFieldsLoaded() {
+    return count(loaded);
+  }
+
+  private int count(ChangeData cd) {
+    int n = 0;
+    for (Values<ChangeData> values : schema.buildFields(cd, fillArgs)) {
+      for (Object v : values.getValues()) {
+        if (v != null) {
+          n++;
+        }
+      }
+    }
+    return n;
+  }
+}
@@ -0,0 +1,164 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.notedb;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.RefNames;
+import com.google.gerrit.server.notedb.ChangeNotesCommit.ChangeNotesRevWalk;
+import com.google.gerrit.testutil.FakeAccountCache;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses a synthetic {@code refs/changes/XX/YYYY/meta} branch.
+ * <p>
+ * The meta branch mimics a long lived review: a new patch set every
+ * {@link #PATCH_SETS_EVERY} updates, with reviewers voting and leaving change
+ * messages in between.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ChangeNotesParserBenchmark {
+  private static final String SERVER_ID = "gerrit";
+  private static final int PATCH_SETS_EVERY = 20;
+  private static final int REVIEWERS = 10;
+
+  @Param({"10", "100", "1000", "5000"})
+  int updates;
+
+  private InMemoryRepository repo;
+  private ChangeNotesRevWalk walk;
+  private ChangeNoteUtil noteUtil;
+  private NoteDbMetrics metrics;
+  private Change.Id changeId;
+  private ObjectId tip;
+
+  @Setup
+  public void setUp() throws Exception {
+    repo = new InMemoryRepository(new DfsRepositoryDescription("benchmark"));
+    PersonIdent serverIdent = new PersonIdent("Gerrit Server",
+        "noreply@gerrit.com", 1234567890000L, 0);
+    noteUtil = new ChangeNoteUtil(new FakeAccountCache(), serverIdent,
+        "Anonymous Coward", SERVER_ID, new Config());
+    metrics = new NoteDbMetrics(new DisabledMetricMaker());
+    changeId = new Change.Id(1);
+    tip = writeMetaBranch(serverIdent);
+    walk = ChangeNotesCommit.newRevWalk(repo);
+  }
+
+  @TearDown
+  public void tearDown() {
+    walk.close();
+    repo.close();
+  }
+
+  @Benchmark
+  public ChangeNotesState parseAll() throws Exception {
+    return new ChangeNotesParser(changeId, tip, walk, noteUtil, metrics)
+        .parseAll();
+  }
+
+  private ObjectId writeMetaBranch(PersonIdent serverIdent) throws Exception {
+    TestRepository<InMemoryRepository> tr = new TestRepository<>(repo);
+    ObjectId emptyTree = tr.tree();
+    ObjectId parent = null;
+    int psId = 0;
+    try (ObjectInserter ins = repo.newObjectInserter()) {
+      for (int i = 0; i < updates; i++) {
+        StringBuilder msg = new StringBuilder();
+        int author;
+        if (i % PATCH_SETS_EVERY == 0) {
+          author = 1;
+          psId++;
+          msg.append("Update patch set ").append(psId).append("\n\n")
+              .append("Uploaded patch set ").append(psId).append(".\n\n");
+          if (psId == 1) {
+            msg.append("Branch: refs/heads/master\n")
+                .append("Change-id: I").append(ObjectId.zeroId().name())
+                .append('\n')
+                .append("Status: new\n");
+          }
+          msg.append("Patch-set: ").append(psId).append('\n')
+              .append("Subject: Benchmark change ").append(psId).append('\n')
+              .append("Commit: ")
+              .append(tr.commit().message("Patch set " + psId).create().name())
+              .append('\n');
+          if (psId == 1) {
+            for (int r = 2; r <= REVIEWERS + 1; r++) {
+              msg.append("Reviewer: ").append(ident(r)).append('\n');
+            }
+          }
+        } else {
+          author = 2 + i % REVIEWERS;
+          int vote = (i % 5) - 2;
+          msg.append("Update patch set ").append(psId).append("\n\n")
+              .append("Patch Set ").append(psId).append(": Code-Review")
+              .append(vote >= 0 ? "+" : "").append(vote).append("\n\n")
+              .append("Comment number ").append(i).append(".\n\n")
+              .append("Patch-set: ").append(psId).append('\n')
+              .append("Label: Code-Review=").append(vote >= 0 ? "+" : "")
+              .append(vote).append('\n');
+        }
+
+        long when = serverIdent.getWhen().getTime() + i * 1000L;
+        CommitBuilder cb = new CommitBuilder();
+        if (parent != null) {
+          cb.setParentId(parent);
+        }
+        cb.setAuthor(new PersonIdent("Gerrit User " + author,
+            author + "@" + SERVER_ID, when, 0));
+        cb.setCommitter(new PersonIdent(serverIdent.getName(),
+            serverIdent.getEmailAddress(), when, 0));
+        cb.setTreeId(emptyTree);
+        cb.setMessage(msg.toString());
+        parent = ins.insert(cb);
+      }
+      ins.flush();
+    }
+    tr.update(RefNames.changeMetaRef(changeId), parent);
+    return parent;
+  }
+
+  private static String ident(int accountId) {
+    return "Gerrit User " + accountId + " <" + accountId + "@" + SERVER_ID
+        + ">";
+  }
+}
@@ -0,0 +1,136 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.extensions.client.DiffPreferencesInfo.Whitespace;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.testutil.InMemoryRepositoryManager;
+import com.google.gerrit.testutil.InMemoryRepositoryManager.Repo;
+
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes the patch list of a synthetic commit against its parent.
+ * <p>
+ * Every file of the parent is modified in a few places, and one file in ten
+ * is added or deleted, so rename detection and the per-file diff both run.
+ * The diff executor is a cached thread pool, as configured by {@link
+ * DiffExecutorModule}; {@code fileThreads} is {@code cache.diff.fileThreads}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class PatchListLoaderBenchmark {
+  private static final int LINES = 200;
+
+  @Param({"10", "100", "1000"})
+  int files;
+
+  @Param({"1", "4"})
+  int fileThreads;
+
+  private InMemoryRepositoryManager repoManager;
+  private Project.NameKey project;
+  private ExecutorService diffExecutor;
+  private Config cfg;
+  private DiffMetrics metrics;
+  private PatchListKey key;
+
+  @Setup
+  public void setUp() throws Exception {
+    repoManager = new InMemoryRepositoryManager();
+    project = new Project.NameKey("benchmark");
+    try (Repo repo = repoManager.createRepository(project)) {
+      TestRepository<Repo> tr = new TestRepository<>(repo);
+      TestRepository<Repo>.CommitBuilder base = tr.commit().message("Base");
+      for (int i = 0; i < files; i++) {
+        base.add(path(i), content(i, false));
+      }
+      RevCommit parent = base.create();
+
+      TestRepository<Repo>.CommitBuilder change =
+          tr.commit().parent(parent).message("Change");
+      for (int i = 0; i < files; i++) {
+        if (i % 10 == 9) {
+          change.rm(path(i));
+          change.add(path(i) + ".new", content(i + files, false));
+        } else {
+          change.add(path(i), content(i, true));
+        }
+      }
+      key = PatchListKey.againstDefaultBase(
+          change.create(), Whitespace.IGNORE_NONE);
+    }
+
+    diffExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+        .setNameFormat("Diff-%d").setDaemon(true).build());
+    cfg = new Config();
+    cfg.setInt("cache", PatchListCacheImpl.FILE_NAME, "fileThreads",
+        fileThreads);
+    metrics = new DiffMetrics(new DisabledMetricMaker());
+  }
+
+  @TearDown
+  public void tearDown() {
+    diffExecutor.shutdownNow();
+  }
+
+  @Benchmark
+  public PatchList load() throws Exception {
+    return new PatchListLoader(
+        repoManager, null, cfg, diffExecutor, null, metrics, key,
+        project).call();
+  }
+
+  private static String path(int i) {
+    return "src/dir" + (i % 20) + "/File" + i + ".java";
+  }
+
+  private static String content(int i, boolean modified) {
+    StringBuilder b = new StringBuilder();
+    for (int line = 0; line < LINES; line++) {
+      if (modified && line % 50 == i % 50) {
+        b.append("  // modified line ").append(line).append('\n');
+      } else {
+        b.append("  int field").append(i).append('_').append(line)
+            .append(" = ").append(line).append(";\n");
+      }
+    }
+    return b.toString();
+  }
+}
@@ -0,0 +1,175 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.project;
+
+import static com.google.gerrit.server.group.SystemGroupBackend.REGISTERED_USERS;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.gerrit.common.data.AccessSection;
+import com.google.gerrit.common.data.GroupReference;
+import com.google.gerrit.common.data.Permission;
+import com.google.gerrit.common.data.PermissionRule;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.account.GroupMembership;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluates reference permissions over a synthetic access configuration.
+ * <p>
+ * The configuration mixes exact, prefix, regular expression and
+ * {@code ${username}} sections, the same shapes a large installation
+ * accumulates in {@code All-Projects} and its children. Each invocation
+ * evaluates the next reference from a fixed list, so both matching and
+ * non-matching sections are visited.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class RefPermissionBenchmark {
+  private static final Project.NameKey PROJECT =
+      new Project.NameKey("benchmark");
+
+  @Param({"10", "100"})
+  int sections;
+
+  private List<AccessSection> accessSections;
+  private List<SectionMatcher> matchers;
+  private SectionSortCache uncachedSorter;
+  private SectionSortCache cachedSorter;
+  private PermissionCollection.Factory permissionFactory;
+  private CurrentUser user;
+  private String[] refs;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    PermissionRule rule =
+        new PermissionRule(new GroupReference(REGISTERED_USERS, "Registered"));
+    accessSections = new ArrayList<>(sections);
+    matchers = new ArrayList<>(sections);
+    for (int i = 0; i < sections; i++) {
+      AccessSection s = new AccessSection(sectionName(i));
+      s.getPermission(Permission.READ, true).add(rule);
+      s.getPermission(Permission.PUSH, true).add(rule);
+      accessSections.add(s);
+      matchers.add(SectionMatcher.wrap(PROJECT, s));
+    }
+
+    uncachedSorter = new SectionSortCache(
+        CacheBuilder.newBuilder().maximumSize(0)
+            .<SectionSortCache.EntryKey, SectionSortCache.EntryVal> build());
+    cachedSorter = new SectionSortCache(CacheBuilder.newBuilder()
+        .<SectionSortCache.EntryKey, SectionSortCache.EntryVal> build());
+    permissionFactory = new PermissionCollection.Factory(cachedSorter);
+
+    user = new CurrentUser(null) {
+      @Override
+      public GroupMembership getEffectiveGroups() {
+        return GroupMembership.EMPTY;
+      }
+
+      @Override
+      public String getUserName() {
+        return "bench";
+      }
+    };
+
+    refs = new String[] {
+      "refs/heads/master",
+      "refs/heads/team-3/topic",
+      "refs/heads/feature-12-5/fix",
+      "refs/heads/users/bench/wip",
+      "refs/heads/users/other/wip",
+      "refs/heads/release-7",
+      "refs/tags/v1.0",
+      "refs/meta/config",
+    };
+  }
+
+  @Benchmark
+  public int match() {
+    String ref = nextRef();
+    int n = 0;
+    for (SectionMatcher m : matchers) {
+      if (m.match(ref, user)) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  @Benchmark
+  public List<AccessSection> sortUncached() {
+    List<AccessSection> s = new ArrayList<>(accessSections);
+    uncachedSorter.sort(nextRef(), s);
+    return s;
+  }
+
+  @Benchmark
+  public List<AccessSection> sortCached() {
+    List<AccessSection> s = new ArrayList<>(accessSections);
+    cachedSorter.sort(nextRef(), s);
+    return s;
+  }
+
+  @Benchmark
+  public PermissionCollection filter() {
+    return permissionFactory.filter(matchers, nextRef(), user);
+  }
+
+  private String nextRef() {
+    String ref = refs[next];
+    next = (next + 1) % refs.length;
+    return ref;
+  }
+
+  private static String sectionName(int i) {
+    switch (i % 6) {
+      case 0:
+        return i == 0 ? "refs/*" : "refs/heads/release-" + i;
+      case 1:
+        return "refs/heads/team-" + i + "/*";
+      case 2:
+        return "^refs/heads/feature-[0-9]+-" + i + "/.*";
+      case 3:
+        return i == 3
+            ? "refs/heads/users/${username}/*"
+            : "refs/heads/users/${username}/" + i + "/*";
+      case 4:
+        return "^refs/tags/v" + i + "\\..*";
+      default:
+        return i == 5 ? "refs/heads/*" : "refs/heads/sandbox-" + i + "/*";
+    }
+  }
+}
@@ -68,15 +68,18 @@ public class DefaultCacheFactory implements MemoryCacheFactory {
     return create(def, false).build(loader);
   }
 
+  @Override
+  public long memoryLimit(CacheBinding<?, ?> def) {
+    return cfg.getLong("cache", def.name(), "memoryLimit", def.maximumWeight());
+  }
+
   @SuppressWarnings("unchecked")
   <K, V> CacheBuilder<K, V> create(
       CacheBinding<K, V> def,
       boolean unwrapValueHolder) {
     CacheBuilder<K,V> builder = newCacheBuilder();
     builder.recordStats();
-    builder.maximumWeight(cfg.getLong(
-        "cache", def.name(), "memoryLimit",
-        def.maximumWeight()));
+    builder.maximumWeight(memoryLimit(def));
 
     builder = builder.removalListener(forwardingRemovalListenerFactory.create(def.name()));
 
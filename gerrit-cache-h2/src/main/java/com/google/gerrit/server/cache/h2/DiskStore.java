@@ -0,0 +1,52 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache.h2;
+
+import com.google.common.cache.Cache;
+import com.google.gerrit.server.cache.PersistentCache.DiskStats;
+import com.google.gerrit.server.cache.h2.H2CacheImpl.ValueHolder;
+
+/**
+ * On-disk storage behind an {@link H2CacheImpl}.
+ * <p>
+ * Implementations must be safe for concurrent readers. Writes are issued from
+ * the single disk cache store thread, or from the caller during shutdown.
+ */
+interface DiskStore<K, V> {
+  void open();
+
+  void close();
+
+  /** @return false if the key is definitely not stored. */
+  boolean mightContain(K key);
+
+  ValueHolder<V> getIfPresent(K key);
+
+  void put(K key, ValueHolder<V> holder);
+
+  void invalidate(K key);
+
+  void invalidateAll();
+
+  /**
+   * Trim the store to its size limit.
+   *
+   * @param mem in-memory cache in front of this store; entries present in it
+   *     are considered recently used.
+   */
+  void prune(Cache<K, ?> mem);
+
+  DiskStats diskStats();
+}
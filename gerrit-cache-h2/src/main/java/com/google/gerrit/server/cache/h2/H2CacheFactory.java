@@ -21,6 +21,7 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.gerrit.extensions.registration.DynamicMap;
 import com.google.gerrit.server.cache.CacheBinding;
+import com.google.gerrit.server.cache.CacheSerializer;
 import com.google.gerrit.server.cache.PersistentCacheFactory;
 import com.google.gerrit.server.cache.h2.H2CacheImpl.SqlStore;
 import com.google.gerrit.server.cache.h2.H2CacheImpl.ValueHolder;
@@ -52,6 +53,15 @@ class H2CacheFactory implements PersistentCacheFactory, LifecycleListener {
   private static final Logger log =
       LoggerFactory.getLogger(H2CacheFactory.class);
 
+  /** Storage format of a persistent cache on disk. */
+  enum DiskStoreType {
+    /** H2 database; see {@link SqlStore}. */
+    H2,
+
+    /** Memory-mapped, log-structured segments; see {@link LogStore}. */
+    MMAP
+  }
+
   private final DefaultCacheFactory defaultFactory;
   private final Config config;
   private final Path cacheDir;
@@ -61,6 +71,7 @@ class H2CacheFactory implements PersistentCacheFactory, LifecycleListener {
   private final ScheduledExecutorService cleanup;
   private final long h2CacheSize;
   private final boolean h2AutoServer;
+  private final DiskStoreType defaultDiskStore;
 
   @Inject
   H2CacheFactory(
@@ -73,6 +84,8 @@ class H2CacheFactory implements PersistentCacheFactory, LifecycleListener {
     cacheDir = getCacheDir(site, cfg.getString("cache", null, "directory"));
     h2CacheSize = cfg.getLong("cache", null, "h2CacheSize", -1);
     h2AutoServer = cfg.getBoolean("cache", null, "h2AutoServer", false);
+    defaultDiskStore = cfg.getEnum(DiskStoreType.values(),
+        "cache", null, "diskStore", DiskStoreType.H2);
     caches = new LinkedList<>();
     this.cacheMap = cacheMap;
 
@@ -156,14 +169,14 @@ class H2CacheFactory implements PersistentCacheFactory, LifecycleListener {
   @SuppressWarnings({"unchecked"})
   @Override
   public <K, V> Cache<K, V> build(CacheBinding<K, V> def) {
-    long limit = config.getLong("cache", def.name(), "diskLimit", 128 << 20);
+    long limit = config.getLong(
+        "cache", def.name(), "diskLimit", def.diskLimit());
 
     if (cacheDir == null || limit <= 0) {
       return defaultFactory.build(def);
     }
 
-    SqlStore<K, V> store = newSqlStore(def.name(), def.keyType(), limit,
-        def.expireAfterWrite(TimeUnit.SECONDS));
+    DiskStore<K, V> store = newStore(def, limit);
     H2CacheImpl<K, V> cache = new H2CacheImpl<>(
         executor, store, def.keyType(),
         (Cache<K, ValueHolder<V>>) defaultFactory.create(def, true).build());
@@ -178,14 +191,14 @@ class H2CacheFactory implements PersistentCacheFactory, LifecycleListener {
   public <K, V> LoadingCache<K, V> build(
       CacheBinding<K, V> def,
       CacheLoader<K, V> loader) {
-    long limit = config.getLong("cache", def.name(), "diskLimit", 128 << 20);
+    long limit = config.getLong(
+        "cache", def.name(), "diskLimit", def.diskLimit());
 
     if (cacheDir == null || limit <= 0) {
       return defaultFactory.build(def, loader);
     }
 
-    SqlStore<K, V> store = newSqlStore(def.name(), def.keyType(), limit,
-        def.expireAfterWrite(TimeUnit.SECONDS));
+    DiskStore<K, V> store = newStore(def, limit);
     Cache<K, ValueHolder<V>> mem = (Cache<K, ValueHolder<V>>)
         defaultFactory.create(def, true)
         .build((CacheLoader<K, V>) new H2CacheImpl.Loader<>(
@@ -209,11 +222,43 @@ class H2CacheFactory implements PersistentCacheFactory, LifecycleListener {
     }
   }
 
+  private <K, V> DiskStore<K, V> newStore(CacheBinding<K, V> def,
+      long limit) {
+    Long age = def.expireAfterWrite(TimeUnit.SECONDS);
+    long expireAfterWrite = age == null ? 0 : age.longValue();
+    DiskStoreType type = config.getEnum(DiskStoreType.values(),
+        "cache", def.name(), "diskStore", defaultDiskStore);
+    if (type == DiskStoreType.MMAP) {
+      return new LogStore<>(
+          cacheDir.resolve(def.name() + ".mmap"),
+          keySerializer(def.keyType()),
+          def.serializer() != null
+              ? def.serializer()
+              : new LogStore.JavaSerializer<V>(),
+          limit,
+          expireAfterWrite,
+          executor,
+          cleanup);
+    }
+    return newSqlStore(def.name(), def.keyType(), def.serializer(), limit,
+        expireAfterWrite);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <K> CacheSerializer<K> keySerializer(
+      TypeLiteral<K> keyType) {
+    if (keyType.getRawType() == String.class) {
+      return (CacheSerializer<K>) new LogStore.StringSerializer();
+    }
+    return new LogStore.JavaSerializer<>();
+  }
+
   private <V, K> SqlStore<K, V> newSqlStore(
       String name,
       TypeLiteral<K> keyType,
+      CacheSerializer<V> serializer,
       long maxSize,
-      Long expireAfterWrite) {
+      long expireAfterWrite) {
     StringBuilder url = new StringBuilder();
     url.append("jdbc:h2:").append(cacheDir.resolve(name).toUri());
     if (h2CacheSize >= 0) {
@@ -224,7 +269,7 @@ class H2CacheFactory implements PersistentCacheFactory, LifecycleListener {
     if (h2AutoServer) {
       url.append(";AUTO_SERVER=TRUE");
     }
-    return new SqlStore<>(url.toString(), keyType, maxSize,
-        expireAfterWrite == null ? 0 : expireAfterWrite.longValue());
+    return new SqlStore<>(url.toString(), keyType, serializer, maxSize,
+        expireAfterWrite);
   }
 }
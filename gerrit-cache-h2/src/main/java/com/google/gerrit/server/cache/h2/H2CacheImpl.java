@@ -25,7 +25,9 @@ import com.google.common.hash.BloomFilter;
 import com.google.common.hash.Funnel;
 import com.google.common.hash.Funnels;
 import com.google.common.hash.PrimitiveSink;
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.common.TimeUtil;
+import com.google.gerrit.server.cache.CacheSerializer;
 import com.google.gerrit.server.cache.PersistentCache;
 import com.google.inject.TypeLiteral;
 
@@ -69,6 +71,9 @@ import java.util.concurrent.atomic.AtomicLong;
  * the latency associated with serializing the key and value pairs and writing
  * them to the database log.
  * <p>
+ * The disk store is either an H2 database ({@link SqlStore}) or memory-mapped
+ * log segments ({@link LogStore}), selected per cache by the factory.
+ * <p>
  * A BloomFilter is used around the database to reduce the number of SELECTs
  * issued against the database for new cache items that have not been seen
  * before, a common operation for the PatchListCache. The BloomFilter is sized
@@ -87,12 +92,12 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements
       "com.google.gerrit.server.change.ChangeKind");
 
   private final Executor executor;
-  private final SqlStore<K, V> store;
+  private final DiskStore<K, V> store;
   private final TypeLiteral<K> keyType;
   private final Cache<K, ValueHolder<V>> mem;
 
   H2CacheImpl(Executor executor,
-      SqlStore<K, V> store,
+      DiskStore<K, V> store,
       TypeLiteral<K> keyType,
       Cache<K, ValueHolder<V>> mem) {
     this.executor = executor;
@@ -217,10 +222,11 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements
 
   static class Loader<K, V> extends CacheLoader<K, ValueHolder<V>> {
     private final Executor executor;
-    private final SqlStore<K, V> store;
+    private final DiskStore<K, V> store;
     private final CacheLoader<K, V> loader;
 
-    Loader(Executor executor, SqlStore<K, V> store, CacheLoader<K, V> loader) {
+    Loader(Executor executor, DiskStore<K, V> store,
+        CacheLoader<K, V> loader) {
       this.executor = executor;
       this.store = store;
       this.loader = loader;
@@ -333,9 +339,10 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements
     };
   }
 
-  static class SqlStore<K, V> {
+  static class SqlStore<K, V> implements DiskStore<K, V> {
     private final String url;
     private final KeyType<K> keyType;
+    private final CacheSerializer<V> serializer;
     private final long maxSize;
     private final long expireAfterWrite;
     private final BlockingQueue<SqlHandle> handles;
@@ -344,10 +351,12 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements
     private volatile BloomFilter<K> bloomFilter;
     private int estimatedSize;
 
-    SqlStore(String jdbcUrl, TypeLiteral<K> keyType, long maxSize,
+    SqlStore(String jdbcUrl, TypeLiteral<K> keyType,
+        @Nullable CacheSerializer<V> serializer, long maxSize,
         long expireAfterWrite) {
       this.url = jdbcUrl;
       this.keyType = KeyType.create(keyType);
+      this.serializer = serializer;
       this.maxSize = maxSize;
       this.expireAfterWrite = expireAfterWrite;
 
@@ -356,20 +365,23 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements
       this.handles = new ArrayBlockingQueue<>(keep);
     }
 
-    synchronized void open() {
+    @Override
+    public synchronized void open() {
       if (bloomFilter == null) {
         bloomFilter = buildBloomFilter();
       }
     }
 
-    void close() {
+    @Override
+    public void close() {
       SqlHandle h;
       while ((h = handles.poll()) != null) {
         h.close();
       }
     }
 
-    boolean mightContain(K key) {
+    @Override
+    public boolean mightContain(K key) {
       BloomFilter<K> b = bloomFilter;
       if (b == null) {
         synchronized (this) {
@@ -420,7 +432,8 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements
       }
     }
 
-    ValueHolder<V> getIfPresent(K key) {
+    @Override
+    public ValueHolder<V> getIfPresent(K key) {
       SqlHandle c = null;
       try {
         c = acquire();
@@ -441,8 +454,15 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements
             return null;
           }
 
-          @SuppressWarnings("unchecked")
-          V val = (V) r.getObject(1);
+          V val;
+          try {
+            val = readValue(r);
+          } catch (IOException | RuntimeException e) {
+            log.warn("Cannot read cache " + url + " for " + key, e);
+            invalidate(key);
+            missCount.incrementAndGet();
+            return null;
+          }
           ValueHolder<V> h = new ValueHolder<>(val);
           h.clean = true;
           hitCount.incrementAndGet();
@@ -462,6 +482,14 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements
       }
     }
 
+    @SuppressWarnings("unchecked")
+    private V readValue(ResultSet r) throws SQLException, IOException {
+      if (serializer != null) {
+        return serializer.deserialize(r.getBytes(1));
+      }
+      return (V) r.getObject(1);
+    }
+
     private static boolean isOldClassNameError(Throwable t) {
       for (Throwable c : Throwables.getCausalChain(t)) {
         if (c instanceof ClassNotFoundException
@@ -493,7 +521,8 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements
       }
     }
 
-    void put(K key, ValueHolder<V> holder) {
+    @Override
+    public void put(K key, ValueHolder<V> holder) {
       if (holder.clean) {
         return;
       }
@@ -512,7 +541,11 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements
         }
         try {
           keyType.set(c.put, 1, key);
-          c.put.setObject(2, holder.value, Types.JAVA_OBJECT);
+          if (serializer != null) {
+            c.put.setBytes(2, serializer.serialize(holder.value));
+          } else {
+            c.put.setObject(2, holder.value, Types.JAVA_OBJECT);
+          }
           c.put.setTimestamp(3, new Timestamp(holder.created));
           c.put.setTimestamp(4, TimeUtil.nowTs());
           c.put.executeUpdate();
@@ -520,7 +553,7 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements
         } finally {
           c.put.clearParameters();
         }
-      } catch (SQLException e) {
+      } catch (SQLException | IOException e) {
         log.warn("Cannot put into cache " + url, e);
         c = close(c);
       } finally {
@@ -528,7 +561,8 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements
       }
     }
 
-    void invalidate(K key) {
+    @Override
+    public void invalidate(K key) {
       SqlHandle c = null;
       try {
         c = acquire();
@@ -553,7 +587,8 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements
       }
     }
 
-    void invalidateAll() {
+    @Override
+    public void invalidateAll() {
       SqlHandle c = null;
       try {
         c = acquire();
@@ -569,7 +604,8 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements
       }
     }
 
-    void prune(Cache<K, ?> mem) {
+    @Override
+    public void prune(Cache<K, ?> mem) {
       SqlHandle c = null;
       try {
         c = acquire();
@@ -610,7 +646,8 @@ public class H2CacheImpl<K, V> extends AbstractLoadingCache<K, V> implements
       }
     }
 
-    DiskStats diskStats() {
+    @Override
+    public DiskStats diskStats() {
       long size = 0;
       long space = 0;
       SqlHandle c = null;
@@ -0,0 +1,628 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache.h2;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.cache.Cache;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.common.TimeUtil;
+import com.google.gerrit.server.cache.CacheSerializer;
+import com.google.gerrit.server.cache.PersistentCache.DiskStats;
+import com.google.gerrit.server.cache.h2.H2CacheImpl.ValueHolder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Log-structured store of cache entries in memory-mapped segment files.
+ * <p>
+ * Entries are appended to the newest segment of the cache directory; once it
+ * is full a new segment is started. The location of the latest record of
+ * every key is kept in an in-memory hash index, keyed by a 128-bit hash of the
+ * serialized key, so a read is one index lookup and one copy out of the
+ * mapped segment, without any locking. The index is rebuilt by scanning the
+ * segments when the store is opened.
+ * <p>
+ * Invalidations append a tombstone. Overwritten and invalidated records stay
+ * in their segment until it is compacted: a full segment whose live records
+ * take up less than half of it is rewritten by copying its live records to
+ * the newest segment. If the segments exceed the size limit, the oldest
+ * segment is evicted; only records that were read since they were last
+ * written or copied are carried forward.
+ * <p>
+ * Compaction runs on the supplied executor, and never blocks readers. Writes
+ * are serialized on the store. Expired or unreadable records found by a
+ * reader are removed on the store thread, so reads never write.
+ */
+class LogStore<K, V> implements DiskStore<K, V> {
+  private static final Logger log = LoggerFactory.getLogger(LogStore.class);
+
+  private static final int MAGIC = 0x47434c53; // "GCLS"
+  private static final int VERSION = 1;
+  private static final int SEGMENT_HEADER = 8;
+  private static final int RECORD_HEADER = 20;
+  private static final int TOMBSTONE = -1;
+  private static final String SUFFIX = ".seg";
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  static final int MIN_SEGMENT_SIZE = 1 << 20;
+  static final int MAX_SEGMENT_SIZE = 64 << 20;
+
+  /** Serializes any {@link java.io.Serializable} object. */
+  static class JavaSerializer<T> implements CacheSerializer<T> {
+    @Override
+    public byte[] serialize(T object) throws IOException {
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      try (ObjectOutputStream out = new ObjectOutputStream(buf)) {
+        out.writeObject(object);
+      }
+      return buf.toByteArray();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T deserialize(byte[] in) throws IOException {
+      try (ObjectInputStream ois =
+          new ObjectInputStream(new ByteArrayInputStream(in))) {
+        return (T) ois.readObject();
+      } catch (ClassNotFoundException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  /** Serializes strings as UTF-8. */
+  static class StringSerializer implements CacheSerializer<String> {
+    @Override
+    public byte[] serialize(String object) {
+      return object.getBytes(UTF_8);
+    }
+
+    @Override
+    public String deserialize(byte[] in) {
+      return new String(in, UTF_8);
+    }
+  }
+
+  private static class Segment {
+    final int id;
+    final Path path;
+    final MappedByteBuffer buf;
+
+    /** End of the last record; guarded by the store. */
+    int end;
+
+    /** Bytes of records the index points to; guarded by the store. */
+    long live;
+
+    Segment(int id, Path path, MappedByteBuffer buf) {
+      this.id = id;
+      this.path = path;
+      this.buf = buf;
+    }
+
+    ByteBuffer read(int offset) {
+      ByteBuffer b = buf.duplicate();
+      b.position(offset);
+      return b;
+    }
+  }
+
+  private static class Location {
+    final Segment segment;
+    final int offset;
+    final int length;
+    final long created;
+    volatile boolean accessed;
+
+    Location(Segment segment, int offset, int length, long created) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+      this.created = created;
+    }
+  }
+
+  private final Path dir;
+  private final CacheSerializer<K> keySerializer;
+  private final CacheSerializer<V> valueSerializer;
+  private final long maxSize;
+  private final int segmentSize;
+  private final long expireAfterWrite;
+  private final Executor writer;
+  private final Executor compactor;
+  private final Map<HashCode, Location> index = new ConcurrentHashMap<>();
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  // Guarded by this.
+  private final List<Segment> segments = new ArrayList<>();
+  private boolean compacting;
+  private volatile boolean opened;
+
+  LogStore(Path dir,
+      CacheSerializer<K> keySerializer,
+      CacheSerializer<V> valueSerializer,
+      long maxSize,
+      long expireAfterWrite,
+      Executor writer,
+      Executor compactor) {
+    this.dir = dir;
+    this.keySerializer = keySerializer;
+    this.valueSerializer = valueSerializer;
+    this.maxSize = maxSize;
+    this.segmentSize = (int) Math.max(MIN_SEGMENT_SIZE,
+        Math.min(MAX_SEGMENT_SIZE, maxSize / 8));
+    this.expireAfterWrite = expireAfterWrite;
+    this.writer = writer;
+    this.compactor = compactor;
+  }
+
+  @Override
+  public synchronized void open() {
+    if (opened) {
+      return;
+    }
+    try {
+      Files.createDirectories(dir);
+      for (Path p : listSegments()) {
+        Segment s = openSegment(p);
+        if (s != null) {
+          scan(s);
+          segments.add(s);
+        }
+      }
+    } catch (IOException e) {
+      log.warn("Cannot open cache " + dir, e);
+    }
+    opened = true;
+  }
+
+  private List<Path> listSegments() throws IOException {
+    List<Path> paths = new ArrayList<>();
+    try (DirectoryStream<Path> ds =
+        Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+      for (Path p : ds) {
+        paths.add(p);
+      }
+    }
+    Collections.sort(paths);
+    return paths;
+  }
+
+  private Segment openSegment(Path p) throws IOException {
+    String n = p.getFileName().toString();
+    int id;
+    try {
+      id = Integer.parseInt(n.substring(0, n.length() - SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    MappedByteBuffer buf;
+    try (FileChannel fc = FileChannel.open(p,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      buf = fc.map(FileChannel.MapMode.READ_WRITE, 0, fc.size());
+    }
+    if (buf.capacity() < SEGMENT_HEADER
+        || buf.getInt(0) != MAGIC
+        || buf.getInt(4) != VERSION) {
+      log.warn("Deleting unreadable cache segment " + p);
+      Files.delete(p);
+      return null;
+    }
+    return new Segment(id, p, buf);
+  }
+
+  private Segment newSegment() throws IOException {
+    int id = segments.isEmpty() ? 1 : last().id + 1;
+    Path p = dir.resolve(String.format("%08d%s", id, SUFFIX));
+    MappedByteBuffer buf;
+    try (FileChannel fc = FileChannel.open(p, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      buf = fc.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+    buf.putInt(0, MAGIC);
+    buf.putInt(4, VERSION);
+    Segment s = new Segment(id, p, buf);
+    s.end = SEGMENT_HEADER;
+    segments.add(s);
+    return s;
+  }
+
+  /** Rebuild the index from a segment, stopping at the first bad record. */
+  private void scan(Segment s) {
+    int pos = SEGMENT_HEADER;
+    ByteBuffer b = s.read(pos);
+    while (b.remaining() >= RECORD_HEADER) {
+      int keyLen = b.getInt();
+      int valueLen = b.getInt();
+      long created = b.getLong();
+      int crc = b.getInt();
+      int dataLen = keyLen + Math.max(valueLen, 0);
+      if (keyLen <= 0 || valueLen < TOMBSTONE
+          || dataLen > b.remaining() || dataLen < 0) {
+        break;
+      }
+      byte[] data = new byte[dataLen];
+      b.get(data);
+      if (crc != crc(data)) {
+        break;
+      }
+      HashCode h = HASH.hashBytes(data, 0, keyLen);
+      int len = RECORD_HEADER + dataLen;
+      if (valueLen == TOMBSTONE) {
+        drop(h);
+      } else {
+        replace(h, new Location(s, pos, len, created));
+      }
+      pos += len;
+    }
+    s.end = pos;
+  }
+
+  @Override
+  public void close() {
+    synchronized (this) {
+      for (Segment s : segments) {
+        s.buf.force();
+      }
+    }
+  }
+
+  @Override
+  public boolean mightContain(K key) {
+    if (!opened) {
+      open();
+    }
+    return true;
+  }
+
+  @Override
+  public ValueHolder<V> getIfPresent(K key) {
+    byte[] k;
+    try {
+      k = keySerializer.serialize(key);
+    } catch (IOException e) {
+      log.warn("Cannot serialize key for cache " + dir, e);
+      return null;
+    }
+    HashCode hash = HASH.hashBytes(k);
+    Location loc = index.get(hash);
+    if (loc == null) {
+      missCount.incrementAndGet();
+      return null;
+    }
+    if (expired(loc.created)) {
+      remove(hash, loc, k);
+      missCount.incrementAndGet();
+      return null;
+    }
+
+    ByteBuffer b = loc.segment.read(loc.offset);
+    int keyLen = b.getInt();
+    int valueLen = b.getInt();
+    b.getLong();
+    b.getInt();
+    byte[] storedKey = new byte[keyLen];
+    b.get(storedKey);
+    if (!Arrays.equals(k, storedKey)) {
+      // Different key with the same hash; only one of them can be stored.
+      missCount.incrementAndGet();
+      return null;
+    }
+    byte[] v = new byte[valueLen];
+    b.get(v);
+
+    ValueHolder<V> h;
+    try {
+      h = new ValueHolder<>(valueSerializer.deserialize(v));
+    } catch (IOException | RuntimeException e) {
+      log.warn("Cannot read cache " + dir + " for " + key, e);
+      remove(hash, loc, k);
+      missCount.incrementAndGet();
+      return null;
+    }
+    h.created = loc.created;
+    h.clean = true;
+    loc.accessed = true;
+    hitCount.incrementAndGet();
+    return h;
+  }
+
+  /**
+   * Remove a record found by a reader, unless it was replaced meanwhile.
+   * <p>
+   * The tombstone is appended on the store thread, which also performs all
+   * other writes.
+   */
+  private void remove(HashCode h, Location loc, byte[] k) {
+    Runnable r = () -> {
+      try {
+        synchronized (this) {
+          if (index.get(h) == loc) {
+            append(h, k.length, TOMBSTONE, TimeUtil.nowMs(), k);
+          }
+        }
+      } catch (IOException e) {
+        log.warn("Cannot invalidate cache " + dir, e);
+      }
+    };
+    if (writer == null) {
+      r.run();
+      return;
+    }
+    try {
+      writer.execute(r);
+    } catch (RejectedExecutionException e) {
+      // Shutting down; expired records are also dropped by compaction.
+    }
+  }
+
+  private boolean expired(long created) {
+    if (expireAfterWrite == 0) {
+      return false;
+    }
+    long age = TimeUtil.nowMs() - created;
+    return 1000 * expireAfterWrite < age;
+  }
+
+  @Override
+  public void put(K key, ValueHolder<V> holder) {
+    if (holder.clean) {
+      return;
+    }
+    if (!opened) {
+      open();
+    }
+    byte[] k;
+    byte[] v;
+    try {
+      k = keySerializer.serialize(key);
+      v = valueSerializer.serialize(holder.value);
+    } catch (IOException | RuntimeException e) {
+      log.warn("Cannot serialize entry for cache " + dir, e);
+      return;
+    }
+    if (RECORD_HEADER + k.length + v.length > segmentSize - SEGMENT_HEADER) {
+      return;
+    }
+
+    byte[] data = new byte[k.length + v.length];
+    System.arraycopy(k, 0, data, 0, k.length);
+    System.arraycopy(v, 0, data, k.length, v.length);
+    try {
+      synchronized (this) {
+        append(HASH.hashBytes(k), k.length, v.length, holder.created, data);
+      }
+      holder.clean = true;
+    } catch (IOException e) {
+      log.warn("Cannot put into cache " + dir, e);
+    }
+  }
+
+  @Override
+  public void invalidate(K key) {
+    if (!opened) {
+      open();
+    }
+    byte[] k;
+    try {
+      k = keySerializer.serialize(key);
+    } catch (IOException e) {
+      log.warn("Cannot serialize key for cache " + dir, e);
+      return;
+    }
+    HashCode h = HASH.hashBytes(k);
+    try {
+      synchronized (this) {
+        if (index.containsKey(h)) {
+          append(h, k.length, TOMBSTONE, TimeUtil.nowMs(), k);
+        }
+      }
+    } catch (IOException e) {
+      log.warn("Cannot invalidate cache " + dir, e);
+    }
+  }
+
+  @Override
+  public synchronized void invalidateAll() {
+    index.clear();
+    for (Segment s : segments) {
+      delete(s);
+    }
+    segments.clear();
+  }
+
+  /** Append a record; must be called while holding the store's lock. */
+  private void append(HashCode h, int keyLen, int valueLen, long created,
+      byte[] data) throws IOException {
+    int len = RECORD_HEADER + data.length;
+    Segment s = segments.isEmpty() ? null : last();
+    if (s == null || s.buf.capacity() - s.end < len) {
+      s = newSegment();
+      scheduleCompaction();
+    }
+    int pos = s.end;
+    ByteBuffer b = s.read(pos);
+    b.putInt(keyLen);
+    b.putInt(valueLen);
+    b.putLong(created);
+    b.putInt(crc(data));
+    b.put(data);
+    s.end = pos + len;
+
+    if (valueLen == TOMBSTONE) {
+      drop(h);
+    } else {
+      replace(h, new Location(s, pos, len, created));
+    }
+  }
+
+  private void replace(HashCode h, Location loc) {
+    Location old = index.put(h, loc);
+    if (old != null) {
+      old.segment.live -= old.length;
+    }
+    loc.segment.live += loc.length;
+  }
+
+  private void drop(HashCode h) {
+    Location old = index.remove(h);
+    if (old != null) {
+      old.segment.live -= old.length;
+    }
+  }
+
+  private synchronized void scheduleCompaction() {
+    if (!compacting && compactor != null) {
+      compacting = true;
+      compactor.execute(this::compact);
+    }
+  }
+
+  @Override
+  public void prune(Cache<K, ?> mem) {
+    compact();
+  }
+
+  /** Compact sparse segments, then evict segments over the size limit. */
+  void compact() {
+    synchronized (this) {
+      compacting = false;
+    }
+    try {
+      for (Segment s : sealedSegments()) {
+        synchronized (this) {
+          if (segments.contains(s) && s.live < s.end / 2) {
+            rewrite(s, false);
+          }
+        }
+      }
+      while (true) {
+        synchronized (this) {
+          if (segments.size() < 2
+              || (long) segments.size() * segmentSize <= maxSize) {
+            break;
+          }
+          rewrite(segments.get(0), true);
+        }
+      }
+    } catch (IOException e) {
+      log.warn("Cannot compact cache " + dir, e);
+    }
+  }
+
+  private synchronized List<Segment> sealedSegments() {
+    int sealed = Math.max(segments.size() - 1, 0);
+    return new ArrayList<>(segments.subList(0, sealed));
+  }
+
+  /**
+   * Copy the records still needed from a sealed segment to the newest segment,
+   * then delete it. Must be called while holding the store's lock.
+   *
+   * @param s segment to remove.
+   * @param evict if true, only records read since they were written are kept.
+   */
+  private void rewrite(Segment s, boolean evict) throws IOException {
+    boolean older = segments.indexOf(s) > 0;
+    int pos = SEGMENT_HEADER;
+    ByteBuffer b = s.read(pos);
+    while (pos < s.end) {
+      int keyLen = b.getInt();
+      int valueLen = b.getInt();
+      long created = b.getLong();
+      b.getInt();
+      byte[] data = new byte[keyLen + Math.max(valueLen, 0)];
+      b.get(data);
+      int len = RECORD_HEADER + data.length;
+      HashCode h = HASH.hashBytes(data, 0, keyLen);
+      Location loc = index.get(h);
+      if (valueLen == TOMBSTONE) {
+        // Keep hiding an invalidated record in an older segment, unless the
+        // key was stored again since.
+        if (older && loc == null) {
+          append(h, keyLen, valueLen, created, data);
+        }
+      } else if (loc != null && loc.segment == s && loc.offset == pos) {
+        if (expired(created) || (evict && !loc.accessed)) {
+          drop(h);
+        } else {
+          append(h, keyLen, valueLen, created, data);
+        }
+      }
+      pos += len;
+    }
+    segments.remove(s);
+    delete(s);
+  }
+
+  private void delete(Segment s) {
+    // The mapping is released once the buffer is garbage collected; readers
+    // that looked up a record in this segment can still finish reading it.
+    try {
+      Files.deleteIfExists(s.path);
+    } catch (IOException e) {
+      log.warn("Cannot delete cache segment " + s.path, e);
+    }
+  }
+
+  private Segment last() {
+    return segments.get(segments.size() - 1);
+  }
+
+  private static int crc(byte[] data) {
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    return (int) crc.getValue();
+  }
+
+  @Override
+  public DiskStats diskStats() {
+    long space = 0;
+    synchronized (this) {
+      for (Segment s : segments) {
+        space += s.live;
+      }
+    }
+    return new DiskStats(index.size(), space, hitCount.get(), missCount.get());
+  }
+}
@@ -21,6 +21,7 @@ import static org.junit.Assert.assertTrue;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gerrit.server.cache.BooleanCacheSerializer;
 import com.google.gerrit.server.cache.h2.H2CacheImpl.SqlStore;
 import com.google.gerrit.server.cache.h2.H2CacheImpl.ValueHolder;
 import com.google.inject.TypeLiteral;
@@ -46,6 +47,7 @@ public class H2CacheTest {
     SqlStore<String, Boolean> store = new SqlStore<>(
         "jdbc:h2:mem:" + "Test_" + (++dbCnt),
         keyType,
+        null,
         1 << 20,
         0);
     impl =
@@ -79,4 +81,23 @@ public class H2CacheTest {
     }));
     assertFalse("did not invoke Callable", called.get());
   }
+
+  @Test
+  public void getWithSerializer() {
+    TypeLiteral<String> keyType = new TypeLiteral<String>() {};
+    SqlStore<String, Boolean> store = new SqlStore<>(
+        "jdbc:h2:mem:" + "Test_" + (++dbCnt),
+        keyType,
+        BooleanCacheSerializer.INSTANCE,
+        1 << 20,
+        0);
+    impl =
+        new H2CacheImpl<>(MoreExecutors.directExecutor(), store, keyType, mem);
+
+    impl.put("foo", true);
+    impl.put("bar", false);
+    mem.invalidateAll();
+    assertTrue("exists on disk", impl.getIfPresent("foo"));
+    assertFalse("exists on disk", impl.getIfPresent("bar"));
+  }
 }
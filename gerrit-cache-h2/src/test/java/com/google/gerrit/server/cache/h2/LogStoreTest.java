@@ -0,0 +1,163 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache.h2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Strings;
+import com.google.gerrit.server.cache.h2.H2CacheImpl.ValueHolder;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+public class LogStoreTest {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path dir;
+  private LogStore<String, String> store;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = tmp.newFolder().toPath();
+    store = newStore(1 << 30);
+  }
+
+  @Test
+  public void getAfterPut() {
+    assertNull(store.getIfPresent("foo"));
+    put(store, "foo", "bar");
+    assertEquals("bar", store.getIfPresent("foo").value);
+    put(store, "foo", "baz");
+    assertEquals("baz", store.getIfPresent("foo").value);
+  }
+
+  @Test
+  public void invalidate() {
+    put(store, "foo", "bar");
+    store.invalidate("foo");
+    assertNull(store.getIfPresent("foo"));
+  }
+
+  @Test
+  public void reopen() {
+    put(store, "foo", "bar");
+    put(store, "foo", "baz");
+    put(store, "gone", "bar");
+    store.invalidate("gone");
+    store.close();
+
+    LogStore<String, String> reopened = newStore(1 << 30);
+    assertEquals("baz", reopened.getIfPresent("foo").value);
+    assertNull(reopened.getIfPresent("gone"));
+    assertEquals(1, reopened.diskStats().size());
+  }
+
+  @Test
+  public void compactKeepsLiveEntries() {
+    store = newStore(8 * LogStore.MIN_SEGMENT_SIZE);
+    String big = Strings.repeat("x", 1000);
+    for (int i = 0; i < 5000; i++) {
+      put(store, "key", big + i);
+    }
+    put(store, "other", "value");
+    store.compact();
+    assertEquals(big + 4999, store.getIfPresent("key").value);
+    assertEquals("value", store.getIfPresent("other").value);
+
+    store.close();
+    LogStore<String, String> reopened =
+        newStore(8 * LogStore.MIN_SEGMENT_SIZE);
+    assertEquals(big + 4999, reopened.getIfPresent("key").value);
+    assertEquals("value", reopened.getIfPresent("other").value);
+  }
+
+  @Test
+  public void evictKeepsEntriesThatWereRead() {
+    store = newStore(2 * LogStore.MIN_SEGMENT_SIZE);
+    String big = Strings.repeat("x", 1000);
+    put(store, "read", "value");
+    put(store, "unread", "value");
+    assertNotNull(store.getIfPresent("read"));
+    for (int i = 0; i < 5000; i++) {
+      put(store, "filler-" + i, big);
+    }
+    store.compact();
+    assertTrue(store.diskStats().space() <= 2 * LogStore.MIN_SEGMENT_SIZE);
+    assertEquals("value", store.getIfPresent("read").value);
+    assertNull(store.getIfPresent("unread"));
+  }
+
+  @Test
+  public void expiredEntryIsRemovedOnWriter() {
+    List<Runnable> writes = new ArrayList<>();
+    store = newStore(1 << 30, 60, writes::add);
+    put(store, "foo", "bar", System.currentTimeMillis() - 3600 * 1000);
+
+    assertNull(store.getIfPresent("foo"));
+    assertEquals(1, writes.size());
+    // Reading did not write the tombstone.
+    assertEquals(1, store.diskStats().size());
+
+    writes.get(0).run();
+    assertEquals(0, store.diskStats().size());
+  }
+
+  @Test
+  public void expiredEntryReplacedBeforeRemovalIsKept() {
+    List<Runnable> writes = new ArrayList<>();
+    store = newStore(1 << 30, 60, writes::add);
+    put(store, "foo", "old", System.currentTimeMillis() - 3600 * 1000);
+
+    assertNull(store.getIfPresent("foo"));
+    put(store, "foo", "new");
+    writes.get(0).run();
+    assertEquals("new", store.getIfPresent("foo").value);
+  }
+
+  private LogStore<String, String> newStore(long maxSize) {
+    return newStore(maxSize, 0, null);
+  }
+
+  private LogStore<String, String> newStore(long maxSize,
+      long expireAfterWrite, Executor writer) {
+    LogStore<String, String> s = new LogStore<>(dir,
+        new LogStore.StringSerializer(), new LogStore.StringSerializer(),
+        maxSize, expireAfterWrite, writer, null);
+    s.open();
+    return s;
+  }
+
+  private static void put(LogStore<String, String> s, String k, String v) {
+    put(s, k, v, System.currentTimeMillis());
+  }
+
+  private static void put(LogStore<String, String> s, String k, String v,
+      long created) {
+    ValueHolder<String> h = new ValueHolder<>(v);
+    h.created = created;
+    s.put(k, h);
+  }
+}
@@ -25,12 +25,14 @@ import com.google.gerrit.server.AccessPath;
 import com.google.gerrit.server.AnonymousUser;
 import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.git.AdvertisedRefsCache;
 import com.google.gerrit.server.git.AsyncReceiveCommits;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.ReceiveCommits;
 import com.google.gerrit.server.git.SearchingChangeCacheImpl;
 import com.google.gerrit.server.git.TagCache;
 import com.google.gerrit.server.git.TransferConfig;
+import com.google.gerrit.server.git.VisibleChangesCache;
 import com.google.gerrit.server.git.VisibleRefFilter;
 import com.google.gerrit.server.git.validators.UploadValidators;
 import com.google.gerrit.server.notedb.ChangeNotes;
@@ -227,19 +229,25 @@ public class GitOverHttpServlet extends GitServlet {
   static class UploadFilter implements Filter {
     private final Provider<ReviewDb> db;
     private final TagCache tagCache;
+    private final AdvertisedRefsCache advertisedRefsCache;
     private final ChangeNotes.Factory changeNotesFactory;
     @Nullable private final SearchingChangeCacheImpl changeCache;
+    @Nullable private final VisibleChangesCache visibleChangesCache;
     private final UploadValidators.Factory uploadValidatorsFactory;
 
     @Inject
     UploadFilter(Provider<ReviewDb> db, TagCache tagCache,
+        AdvertisedRefsCache advertisedRefsCache,
         ChangeNotes.Factory changeNotesFactory,
         @Nullable SearchingChangeCacheImpl changeCache,
+        @Nullable VisibleChangesCache visibleChangesCache,
         UploadValidators.Factory uploadValidatorsFactory) {
       this.db = db;
       this.tagCache = tagCache;
+      this.advertisedRefsCache = advertisedRefsCache;
       this.changeNotesFactory = changeNotesFactory;
       this.changeCache = changeCache;
+      this.visibleChangesCache = visibleChangesCache;
       this.uploadValidatorsFactory = uploadValidatorsFactory;
     }
 
@@ -263,8 +271,10 @@ public class GitOverHttpServlet extends GitServlet {
           uploadValidatorsFactory.create(pc.getProject(), repo, request.getRemoteHost());
       up.setPreUploadHook(PreUploadHookChain.newChain(
           Lists.newArrayList(up.getPreUploadHook(), uploadValidators)));
-      up.setAdvertiseRefsHook(new VisibleRefFilter(tagCache, changeNotesFactory,
-          changeCache, repo, pc, db.get(), true));
+      up.setAdvertiseRefsHook(advertisedRefsCache.newHook(
+          new VisibleRefFilter(tagCache, changeNotesFactory, changeCache,
+              visibleChangesCache, repo, pc, db.get(), true),
+          pc));
 
       next.doFilter(request, response);
     }
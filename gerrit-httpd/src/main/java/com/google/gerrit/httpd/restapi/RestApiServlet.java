@@ -53,6 +53,7 @@ import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.CountingOutputStream;
 import com.google.common.math.IntMath;
 import com.google.common.net.HttpHeaders;
@@ -170,6 +171,9 @@ public class RestApiServlet extends HttpServlet {
 
   private static final int HEAP_EST_SIZE = 10 * 8 * 1024; // Presize 10 blocks.
 
+  /** JSON responses larger than this are streamed while being serialized. */
+  private static final int JSON_STREAM_THRESHOLD = 1 << 20;
+
   /**
    * Garbage prefix inserted before JSON output to prevent XSSI.
    * <p>
@@ -774,7 +778,7 @@ public class RestApiServlet extends HttpServlet {
       Multimap<String, String> config,
       Object result)
       throws IOException {
-    TemporaryBuffer.Heap buf = heap(HEAP_EST_SIZE, Integer.MAX_VALUE);
+    JsonBuffer buf = new JsonBuffer(req, res);
     buf.write(JSON_MAGIC);
     Writer w = new BufferedWriter(new OutputStreamWriter(buf, UTF_8));
     Gson gson = newGson(config, req);
@@ -785,6 +789,9 @@ public class RestApiServlet extends HttpServlet {
     }
     w.write('\n');
     w.flush();
+    if (buf.isStreaming()) {
+      return buf.finish();
+    }
     return replyBinaryResult(req, res, asBinaryResult(buf)
       .setContentType(JSON_TYPE)
       .setCharacterEncoding(UTF_8));
@@ -1189,7 +1196,7 @@ public class RestApiServlet extends HttpServlet {
   }
 
   @SuppressWarnings("resource")
-  private static BinaryResult asBinaryResult(final TemporaryBuffer.Heap buf) {
+  private static BinaryResult asBinaryResult(final TemporaryBuffer buf) {
     return new BinaryResult() {
       @Override
       public void writeTo(OutputStream os) throws IOException {
@@ -1202,6 +1209,56 @@ public class RestApiServlet extends HttpServlet {
     return new TemporaryBuffer.Heap(est, max);
   }
 
+  /**
+   * Buffer of a JSON response, streamed to the client once it gets large.
+   * <p>
+   * Responses up to {@link #JSON_STREAM_THRESHOLD} are kept in memory, so that
+   * they are sent with a {@code Content-Length} and only compressed if that
+   * makes them smaller. Larger responses, e.g. of queries for thousands of
+   * changes, are sent while the rest is still being serialized: without a
+   * {@code Content-Length}, so that the container uses chunked encoding, and
+   * compressed on the fly if the client accepts gzip. Memory used by the
+   * response is then bounded by the threshold, whatever its size.
+   */
+  private static class JsonBuffer extends TemporaryBuffer {
+    private final HttpServletRequest req;
+    private final HttpServletResponse res;
+    private CountingOutputStream dst;
+
+    JsonBuffer(@Nullable HttpServletRequest req, HttpServletResponse res) {
+      super(HEAP_EST_SIZE, JSON_STREAM_THRESHOLD);
+      this.req = req;
+      this.res = res;
+    }
+
+    boolean isStreaming() {
+      return dst != null;
+    }
+
+    /** @return number of bytes sent to the client. */
+    long finish() throws IOException {
+      close();
+      return isHead() ? 0 : dst.getCount();
+    }
+
+    @Override
+    protected OutputStream overflow() throws IOException {
+      res.setContentType(JSON_TYPE + "; charset=" + UTF_8.name());
+      dst = new CountingOutputStream(isHead()
+          ? ByteStreams.nullOutputStream()
+          : res.getOutputStream());
+      if (acceptsGzip(req)) {
+        res.setHeader("Content-Encoding", "gzip");
+        return new GZIPOutputStream(dst, HEAP_EST_SIZE);
+      }
+      return dst;
+    }
+
+    private boolean isHead() {
+      return req != null && "HEAD".equals(req.getMethod());
+    }
+  }
+
   @SuppressWarnings("serial")
   private static class AmbiguousViewException extends Exception {
     AmbiguousViewException(String message) {
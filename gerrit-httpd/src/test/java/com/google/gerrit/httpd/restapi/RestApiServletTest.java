@@ -0,0 +1,97 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.httpd.restapi;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.HttpHeaders;
+import com.google.gerrit.util.http.testutil.FakeHttpServletRequest;
+import com.google.gerrit.util.http.testutil.FakeHttpServletResponse;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+public class RestApiServletTest {
+  @Test
+  public void smallJsonResponseIsBuffered() throws Exception {
+    List<String> result = strings(10);
+    FakeHttpServletResponse res = new FakeHttpServletResponse();
+    long n = RestApiServlet.replyJson(
+        new FakeHttpServletRequest(), res, ImmutableMultimap.of(), result);
+
+    byte[] body = res.getActualBody();
+    assertThat(n).isEqualTo(body.length);
+    assertThat(res.getHeader(HttpHeaders.CONTENT_LENGTH))
+        .isEqualTo(Integer.toString(body.length));
+    assertThat(parse(body)).isEqualTo(result);
+  }
+
+  @Test
+  public void largeJsonResponseIsStreamed() throws Exception {
+    List<String> result = strings(100000);
+    FakeHttpServletResponse res = new FakeHttpServletResponse();
+    long n = RestApiServlet.replyJson(
+        new FakeHttpServletRequest(), res, ImmutableMultimap.of(), result);
+
+    byte[] body = res.getActualBody();
+    assertThat(n).isEqualTo(body.length);
+    assertThat(res.getHeader(HttpHeaders.CONTENT_LENGTH)).isNull();
+    assertThat(res.getHeader(HttpHeaders.CONTENT_ENCODING)).isNull();
+    assertThat(res.getHeader(HttpHeaders.CONTENT_TYPE))
+        .isEqualTo("application/json; charset=UTF-8");
+    assertThat(parse(body)).isEqualTo(result);
+  }
+
+  @Test
+  public void largeJsonResponseIsCompressedWhileStreamed() throws Exception {
+    List<String> result = strings(100000);
+    FakeHttpServletRequest req = new FakeHttpServletRequest()
+        .addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+    FakeHttpServletResponse res = new FakeHttpServletResponse();
+    long n = RestApiServlet.replyJson(
+        req, res, ImmutableMultimap.of(), result);
+
+    byte[] body = res.getActualBody();
+    assertThat(n).isEqualTo(body.length);
+    assertThat(res.getHeader(HttpHeaders.CONTENT_LENGTH)).isNull();
+    assertThat(res.getHeader(HttpHeaders.CONTENT_ENCODING)).isEqualTo("gzip");
+    assertThat(parse(ByteStreams.toByteArray(
+        new GZIPInputStream(new ByteArrayInputStream(body))))).isEqualTo(result);
+  }
+
+  private static List<String> strings(int n) {
+    List<String> r = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      r.add("change-" + i);
+    }
+    return r;
+  }
+
+  private static List<String> parse(byte[] body) {
+    String json = new String(body, UTF_8);
+    assertThat(json).startsWith(")]}'\n");
+    return new Gson().fromJson(json.substring(5),
+        new TypeToken<List<String>>() {}.getType());
+  }
+}
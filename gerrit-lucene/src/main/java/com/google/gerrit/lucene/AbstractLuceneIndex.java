@@ -41,10 +41,8 @@ import org.apache.lucene.document.LongField;
 import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
-import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TrackingIndexWriter;
-import org.apache.lucene.search.ControlledRealTimeReopenThread;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.ReferenceManager;
 import org.apache.lucene.search.ReferenceManager.RefreshListener;
@@ -57,6 +55,8 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -91,9 +91,12 @@ public abstract class AbstractLuceneIndex<K, V> implements Index<K, V> {
   private final Directory dir;
   private final String name;
   private final ListeningExecutorService writerThread;
+  private final AutoCommitWriter delegateWriter;
   private final TrackingIndexWriter writer;
   private final ReferenceManager<IndexSearcher> searcherManager;
-  private final ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
+  private final LuceneMetrics metrics;
+  private final String metricName;
+  private final NrtRefreshThread reopenThread;
   private final Set<NrtFuture> notDoneNrtFutures;
   private ScheduledThreadPoolExecutor autoCommitExecutor;
 
@@ -104,23 +107,30 @@ public abstract class AbstractLuceneIndex<K, V> implements Index<K, V> {
       String name,
       String subIndex,
       GerritIndexWriterConfig writerConfig,
-      SearcherFactory searcherFactory) throws IOException {
+      SearcherFactory searcherFactory,
+      LuceneMetrics metrics) throws IOException {
     this.schema = schema;
     this.sitePaths = sitePaths;
     this.dir = dir;
     this.name = name;
+    this.metrics = metrics;
     final String index = Joiner.on('_').skipNulls().join(name, subIndex);
-    IndexWriter delegateWriter;
+    // Old and new schema versions are open at the same time during online
+    // upgrades.
+    metricName = Joiner.on('_').skipNulls().join(
+        name, String.format("%04d", schema.getVersion()), subIndex);
     long commitPeriod = writerConfig.getCommitWithinMs();
 
     if (commitPeriod < 0) {
-      delegateWriter = new AutoCommitWriter(dir, writerConfig.getLuceneConfig());
+      delegateWriter = new AutoCommitWriter(dir, writerConfig.getLuceneConfig(),
+          false, metrics.commitLatency, metricName);
     } else if (commitPeriod == 0) {
-      delegateWriter =
-          new AutoCommitWriter(dir, writerConfig.getLuceneConfig(), true);
+      delegateWriter = new AutoCommitWriter(dir, writerConfig.getLuceneConfig(),
+          true, metrics.commitLatency, metricName);
     } else {
       final AutoCommitWriter autoCommitWriter =
-          new AutoCommitWriter(dir, writerConfig.getLuceneConfig());
+          new AutoCommitWriter(dir, writerConfig.getLuceneConfig(),
+              false, metrics.commitLatency, metricName);
       delegateWriter = autoCommitWriter;
 
       autoCommitExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
@@ -133,7 +143,7 @@ public abstract class AbstractLuceneIndex<K, V> implements Index<K, V> {
               try {
                 if (autoCommitWriter.hasUncommittedChanges()) {
                   autoCommitWriter.manualFlush();
-                  autoCommitWriter.commit();
+                  autoCommitWriter.commitAndRecord();
                 }
               } catch (IOException e) {
                 log.error("Error committing " + index + " Lucene index", e);
@@ -155,31 +165,32 @@ public abstract class AbstractLuceneIndex<K, V> implements Index<K, V> {
 
     notDoneNrtFutures = Sets.newConcurrentHashSet();
 
+    // More than one writer thread lets Lucene invert documents concurrently
+    // into per-thread segments, but writes of the same document may then be
+    // reordered. This is only safe when each document is written once, as
+    // during an offline reindex.
     writerThread = MoreExecutors.listeningDecorator(
-        Executors.newFixedThreadPool(1,
+        Executors.newFixedThreadPool(writerConfig.getWriterThreads(),
             new ThreadFactoryBuilder()
               .setNameFormat(index + " Write-%d")
               .setDaemon(true)
               .build()));
 
-    reopenThread = new ControlledRealTimeReopenThread<>(
-        writer, searcherManager,
-        0.500 /* maximum stale age (seconds) */,
-        0.010 /* minimum stale age (seconds) */);
-    reopenThread.setName(index + " NRT");
+    reopenThread = new NrtRefreshThread(index, writer, searcherManager,
+        metrics.refreshLatency,
+        10 /* minimum stale age */,
+        500 /* maximum stale age */,
+        MILLISECONDS);
     reopenThread.setPriority(Math.min(
         Thread.currentThread().getPriority() + 2,
         Thread.MAX_PRIORITY));
-    reopenThread.setDaemon(true);
 
     // This must be added after the reopen thread is created. The reopen thread
     // adds its own listener which copies its internally last-refreshed
     // generation to the searching generation. removeIfDone() depends on the
     // searching generation being up to date when calling
-    // reopenThread.waitForGeneration(gen, 0), therefore the reopen thread's
-    // internal listener needs to be called first.
-    // TODO(dborowitz): This may have been fixed by
-    // http://issues.apache.org/jira/browse/LUCENE-5461
+    // reopenThread.isSearchable(gen), therefore the reopen thread's internal
+    // listener needs to be called first.
     searcherManager.addListener(new RefreshListener() {
       @Override
       public void beforeRefresh() throws IOException {
@@ -194,6 +205,7 @@ public abstract class AbstractLuceneIndex<K, V> implements Index<K, V> {
     });
 
     reopenThread.start();
+    metrics.register(metricName, this);
   }
 
   @Override
@@ -203,6 +215,7 @@ public abstract class AbstractLuceneIndex<K, V> implements Index<K, V> {
 
   @Override
   public void close() {
+    metrics.unregister(metricName, this);
     if (autoCommitExecutor != null) {
       autoCommitExecutor.shutdown();
     }
@@ -272,15 +285,39 @@ public abstract class AbstractLuceneIndex<K, V> implements Index<K, V> {
     });
   }
 
+  /**
+   * Replace and delete several documents in a single task of the writer
+   * thread.
+   * <p>
+   * The writes are flushed, and committed if the index commits after every
+   * write, only once, and the returned future waits for a single refresh
+   * that makes all of them visible to searches.
+   *
+   * @param replace documents to add or replace, keyed by the term
+   *     identifying the document they replace.
+   * @param delete terms of documents to delete.
+   * @return future that completes once all writes are searchable.
+   */
+  ListenableFuture<?> write(final Map<Term, Document> replace,
+      final Collection<Term> delete) {
+    return submit(new Callable<Long>() {
+      @Override
+      public Long call() throws IOException, InterruptedException {
+        delegateWriter.updateAndDelete(replace, delete);
+        return writer.getGeneration();
+      }
+    });
+  }
+
   private ListenableFuture<?> submit(Callable<Long> task) {
     ListenableFuture<Long> future =
         Futures.nonCancellationPropagating(writerThread.submit(task));
     return Futures.transformAsync(future, new AsyncFunction<Long, Void>() {
       @Override
-      public ListenableFuture<Void> apply(Long gen) throws InterruptedException {
-        // Tell the reopen thread a future is waiting on this
-        // generation so it uses the min stale time when refreshing.
-        reopenThread.waitForGeneration(gen, 0);
+      public ListenableFuture<Void> apply(Long gen) {
+        // Tell the reopen thread there is a write to refresh for. Readers
+        // waiting for it are only known once the future is waited for.
+        reopenThread.written(gen);
         return new NrtFuture(gen);
       }
     });
@@ -288,13 +325,27 @@ public abstract class AbstractLuceneIndex<K, V> implements Index<K, V> {
 
   @Override
   public void deleteAll() throws IOException {
-    writer.deleteAll();
+    reopenThread.written(writer.deleteAll());
+  }
+
+  @Override
+  public void commit() throws IOException {
+    delegateWriter.commitAndRecord();
   }
 
   public TrackingIndexWriter getWriter() {
     return writer;
   }
 
+  int getSegmentCount() throws IOException {
+    IndexSearcher searcher = acquire();
+    try {
+      return searcher.getIndexReader().leaves().size();
+    } finally {
+      release(searcher);
+    }
+  }
+
   IndexSearcher acquire() throws IOException {
     return searcherManager.acquire();
   }
@@ -372,7 +423,7 @@ public abstract class AbstractLuceneIndex<K, V> implements Index<K, V> {
     public Void get(long timeout, TimeUnit unit) throws InterruptedException,
         TimeoutException, ExecutionException {
       if (!isDone()) {
-        if (!reopenThread.waitForGeneration(gen, (int) unit.toMillis(timeout))) {
+        if (!reopenThread.waitForGeneration(gen, timeout, unit)) {
           throw new TimeoutException();
         }
         set(null);
@@ -400,6 +451,8 @@ public abstract class AbstractLuceneIndex<K, V> implements Index<K, V> {
         set(null);
       } else if (!isDone()) {
         notDoneNrtFutures.add(this);
+        // The listener waits for the write, so refresh soon.
+        reopenThread.request(gen);
       }
       super.addListener(listener, executor);
     }
@@ -423,12 +476,7 @@ public abstract class AbstractLuceneIndex<K, V> implements Index<K, V> {
     }
 
     private boolean isGenAvailableNowForCurrentSearcher() {
-      try {
-        return reopenThread.waitForGeneration(gen, 0);
-      } catch (InterruptedException e) {
-        log.warn("Interrupted waiting for searcher generation", e);
-        return false;
-      }
+      return reopenThread.isSearchable(gen);
     }
   }
 
@@ -14,6 +14,9 @@
 
 package com.google.gerrit.lucene;
 
+import com.google.gerrit.metrics.Timer1;
+
+import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
@@ -23,19 +26,20 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.store.Directory;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
 
 /** Writer that optionally flushes/commits after every write. */
 public class AutoCommitWriter extends IndexWriter {
+  private final Timer1<String> commitLatency;
+  private final String index;
   private boolean autoCommit;
 
-  AutoCommitWriter(Directory dir, IndexWriterConfig config)
-      throws IOException {
-    this(dir, config, false);
-  }
-
-  AutoCommitWriter(Directory dir, IndexWriterConfig config, boolean autoCommit)
-      throws IOException {
+  AutoCommitWriter(Directory dir, IndexWriterConfig config, boolean autoCommit,
+      Timer1<String> commitLatency, String index) throws IOException {
     super(dir, config);
+    this.commitLatency = commitLatency;
+    this.index = index;
     setAutoCommit(autoCommit);
   }
 
@@ -107,9 +111,35 @@ public class AutoCommitWriter extends IndexWriter {
     autoFlush();
   }
 
+  /**
+   * Update and delete several documents, flushing only once afterwards.
+   *
+   * @param updates documents to add or replace, keyed by the term identifying
+   *     the document they replace.
+   * @param deletes terms of documents to delete.
+   * @throws IOException the writes or the flush failed.
+   */
+  void updateAndDelete(Map<Term, Document> updates, Collection<Term> deletes)
+      throws IOException {
+    for (Map.Entry<Term, Document> e : updates.entrySet()) {
+      super.updateDocument(e.getKey(), e.getValue());
+    }
+    if (!deletes.isEmpty()) {
+      super.deleteDocuments(deletes.toArray(new Term[deletes.size()]));
+    }
+    autoFlush();
+  }
+
   void manualFlush() throws IOException {
     flush();
     if (autoCommit) {
+      commitAndRecord();
+    }
+  }
+
+  /** Commit, recording the latency of the commit. */
+  void commitAndRecord() throws IOException {
+    try (Timer1.Context ctx = commitLatency.start(index)) {
       commit();
     }
   }
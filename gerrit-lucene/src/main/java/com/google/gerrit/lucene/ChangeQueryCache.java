@@ -0,0 +1,204 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.lucene;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.index.FieldDef;
+import com.google.gerrit.server.index.change.ChangeField;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LRUQueryCache;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryCachingPolicy;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.TermQuery;
+import org.eclipse.jgit.lib.Config;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache of the changes matching repeated queries, e.g. of dashboards.
+ * <p>
+ * Matches are cached as bitsets per Lucene segment, keyed by the query built
+ * from the rewritten predicate and the segment. Segments never change once
+ * written, so new segments are the only ones searched again after writes;
+ * deletions are applied to cached matches when they are read. Small segments,
+ * typically the most recent writes, are not cached.
+ * <p>
+ * Each clause of a query is cached on its own once it was used twice among the
+ * recent queries, so e.g. {@code status:open} is shared between dashboards of
+ * all users. Clauses on per-user fields, and queries containing them, are
+ * neither cached nor tracked, so they don't evict shared entries.
+ */
+@Singleton
+class ChangeQueryCache {
+  private static final Set<String> PER_USER_FIELDS = names(
+      ChangeField.OWNER,
+      ChangeField.ASSIGNEE,
+      ChangeField.LEGACY_REVIEWER,
+      ChangeField.REVIEWER,
+      ChangeField.COMMENTBY,
+      ChangeField.STARREDBY,
+      ChangeField.STAR,
+      ChangeField.STARBY,
+      ChangeField.EDITBY,
+      ChangeField.DRAFTBY,
+      ChangeField.REVIEWEDBY);
+
+  @SafeVarargs
+  private static Set<String> names(FieldDef<ChangeData, ?>... fields) {
+    ImmutableSet.Builder<String> b = ImmutableSet.builder();
+    for (FieldDef<ChangeData, ?> f : fields) {
+      b.add(f.getName());
+    }
+    return b.build();
+  }
+
+  private final LRUQueryCache cache;
+  private final QueryCachingPolicy policy;
+
+  @Inject
+  ChangeQueryCache(@GerritServerConfig Config cfg, MetricMaker metrics) {
+    int maxEntries = cfg.getInt("index", null, "queryCacheEntries", 1000);
+    long maxBytes = cfg.getLong("index", null, "queryCacheSize", 32 << 20);
+    if (maxEntries <= 0 || maxBytes <= 0) {
+      cache = null;
+      policy = null;
+      return;
+    }
+
+    cache = new LRUQueryCache(maxEntries, maxBytes);
+    policy = new Policy();
+    metrics.newCallbackMetric(
+        "index/lucene/query_cache/hit_ratio",
+        Double.class,
+        new Description("Hit ratio of the change query cache by segment")
+            .setGauge()
+            .setUnit("percent"),
+        () -> {
+          long total = cache.getTotalCount();
+          return total > 0 ? (double) cache.getHitCount() / total * 100 : 100;
+        });
+    metrics.newCallbackMetric(
+        "index/lucene/query_cache/memory_used",
+        Long.class,
+        new Description("Memory used by the change query cache")
+            .setGauge()
+            .setUnit("bytes"),
+        cache::ramBytesUsed);
+  }
+
+  /** @return factory of searchers of change sub-indexes using this cache. */
+  SearcherFactory newSearcherFactory() {
+    return new SearcherFactory() {
+      @Override
+      public IndexSearcher newSearcher(IndexReader reader,
+          IndexReader previousReader) throws IOException {
+        IndexSearcher searcher = super.newSearcher(reader, previousReader);
+        searcher.setQueryCache(cache);
+        if (policy != null) {
+          searcher.setQueryCachingPolicy(policy);
+        }
+        return searcher;
+      }
+    };
+  }
+
+  @VisibleForTesting
+  static class Policy implements QueryCachingPolicy {
+    static final int MIN_FREQUENCY = 2;
+    private static final int HISTORY_SIZE = 256;
+
+    // Unlike Lucene's default policy, also cache term queries, e.g. of the
+    // status or project, and segments of indexes with fewer than 10000
+    // changes. Segments smaller than 3% of the index are still not cached.
+    private final QueryCachingPolicy segments =
+        new QueryCachingPolicy.CacheOnLargeSegments(0, 0.03f);
+
+    // Guarded by itself.
+    private final Map<Query, Integer> uses =
+        new LinkedHashMap<Query, Integer>(16, 0.75f, true) {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Query, Integer> e) {
+            return size() > HISTORY_SIZE;
+          }
+        };
+
+    @Override
+    public void onUse(Query query) {
+      if (isShared(query)) {
+        synchronized (uses) {
+          uses.merge(query, 1, Integer::sum);
+        }
+      }
+    }
+
+    @Override
+    public boolean shouldCache(Query query, LeafReaderContext context)
+        throws IOException {
+      if (!isShared(query) || !segments.shouldCache(query, context)) {
+        return false;
+      }
+      synchronized (uses) {
+        Integer n = uses.get(query);
+        return n != null && n >= MIN_FREQUENCY;
+      }
+    }
+
+    private static boolean isShared(Query query) {
+      return !(query instanceof MatchAllDocsQuery) && !isPerUser(query);
+    }
+  }
+
+  @VisibleForTesting
+  static boolean isPerUser(Query query) {
+    if (query instanceof TermQuery) {
+      return PER_USER_FIELDS.contains(((TermQuery) query).getTerm().field());
+    } else if (query instanceof MultiTermQuery) {
+      return PER_USER_FIELDS.contains(((MultiTermQuery) query).getField());
+    } else if (query instanceof ConstantScoreQuery) {
+      return isPerUser(((ConstantScoreQuery) query).getQuery());
+    } else if (query instanceof BoostQuery) {
+      return isPerUser(((BoostQuery) query).getQuery());
+    } else if (query instanceof BooleanQuery) {
+      for (BooleanClause c : ((BooleanQuery) query).clauses()) {
+        if (isPerUser(c.getQuery())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
@@ -49,9 +49,10 @@ public class ChangeSubIndex extends AbstractLuceneIndex<Change.Id, ChangeData>
       SitePaths sitePaths,
       Path path,
       GerritIndexWriterConfig writerConfig,
-      SearcherFactory searcherFactory) throws IOException {
+      SearcherFactory searcherFactory,
+      LuceneMetrics metrics) throws IOException {
     this(schema, sitePaths, FSDirectory.open(path),
-        path.getFileName().toString(), writerConfig, searcherFactory);
+        path.getFileName().toString(), writerConfig, searcherFactory, metrics);
   }
 
   ChangeSubIndex(
@@ -60,9 +61,10 @@ public class ChangeSubIndex extends AbstractLuceneIndex<Change.Id, ChangeData>
       Directory dir,
       String subIndex,
       GerritIndexWriterConfig writerConfig,
-      SearcherFactory searcherFactory) throws IOException {
+      SearcherFactory searcherFactory,
+      LuceneMetrics metrics) throws IOException {
     super(schema, sitePaths, dir, NAME, subIndex, writerConfig,
-        searcherFactory);
+        searcherFactory, metrics);
   }
 
   @Override
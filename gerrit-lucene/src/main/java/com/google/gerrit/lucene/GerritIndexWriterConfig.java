@@ -38,6 +38,7 @@ class GerritIndexWriterConfig {
 
   private final IndexWriterConfig luceneConfig;
   private long commitWithinMs;
+  private final int writerThreads;
   private final CustomMappingAnalyzer analyzer;
 
   GerritIndexWriterConfig(Config cfg, String name) {
@@ -61,6 +62,7 @@ class GerritIndexWriterConfig {
     } catch (IllegalArgumentException e) {
       commitWithinMs = cfg.getLong("index", name, "commitWithin", 0);
     }
+    writerThreads = Math.max(cfg.getInt("index", name, "writerThreads", 1), 1);
   }
 
   CustomMappingAnalyzer getAnalyzer() {
@@ -74,4 +76,8 @@ class GerritIndexWriterConfig {
   long getCommitWithinMs() {
     return commitWithinMs;
   }
+
+  int getWriterThreads() {
+    return writerThreads;
+  }
 }
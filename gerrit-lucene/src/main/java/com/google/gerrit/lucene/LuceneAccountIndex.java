@@ -96,9 +96,11 @@ public class LuceneAccountIndex
       @GerritServerConfig Config cfg,
       SitePaths sitePaths,
       AccountCache accountCache,
+      LuceneMetrics metrics,
       @Assisted Schema<AccountState> schema) throws IOException {
     super(schema, sitePaths, dir(schema, cfg, sitePaths), ACCOUNTS, null,
-        new GerritIndexWriterConfig(cfg, ACCOUNTS), new SearcherFactory());
+        new GerritIndexWriterConfig(cfg, ACCOUNTS), new SearcherFactory(),
+        metrics);
     this.accountCache = accountCache;
 
     indexWriterConfig =
@@ -89,7 +89,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -156,6 +158,8 @@ public class LuceneChangeIndex implements ChangeIndex {
       Provider<ReviewDb> db,
       ChangeData.Factory changeDataFactory,
       FillArgs fillArgs,
+      LuceneMetrics metrics,
+      ChangeQueryCache queryCache,
       @Assisted Schema<ChangeData> schema) throws IOException {
     this.fillArgs = fillArgs;
     this.executor = executor;
@@ -170,18 +174,19 @@ public class LuceneChangeIndex implements ChangeIndex {
 
     queryBuilder = new QueryBuilder<>(schema, openConfig.getAnalyzer());
 
-    SearcherFactory searcherFactory = new SearcherFactory();
+    SearcherFactory searcherFactory = queryCache.newSearcherFactory();
     if (LuceneIndexModule.isInMemoryTest(cfg)) {
       openIndex = new ChangeSubIndex(schema, sitePaths, new RAMDirectory(),
-          "ramOpen", openConfig, searcherFactory);
+          "ramOpen", openConfig, searcherFactory, metrics);
       closedIndex = new ChangeSubIndex(schema, sitePaths, new RAMDirectory(),
-          "ramClosed", closedConfig, searcherFactory);
+          "ramClosed", closedConfig, searcherFactory, metrics);
     } else {
       Path dir = LuceneVersionManager.getDir(sitePaths, CHANGES_PREFIX, schema);
       openIndex = new ChangeSubIndex(schema, sitePaths,
-          dir.resolve(CHANGES_OPEN), openConfig, searcherFactory);
+          dir.resolve(CHANGES_OPEN), openConfig, searcherFactory, metrics);
       closedIndex = new ChangeSubIndex(schema, sitePaths,
-          dir.resolve(CHANGES_CLOSED), closedConfig, searcherFactory);
+          dir.resolve(CHANGES_CLOSED), closedConfig, searcherFactory,
+          metrics);
     }
   }
 
@@ -203,20 +208,29 @@ public class LuceneChangeIndex implements ChangeIndex {
 
   @Override
   public void replace(ChangeData cd) throws IOException {
-    Term id = LuceneChangeIndex.idTerm(cd);
-    // toDocument is essentially static and doesn't depend on the specific
-    // sub-index, so just pick one.
-    Document doc = openIndex.toDocument(cd, fillArgs);
+    replaceAll(Collections.singletonList(cd));
+  }
+
+  @Override
+  public void replaceAll(Collection<ChangeData> cds) throws IOException {
+    Map<Term, Document> open = new LinkedHashMap<>();
+    Map<Term, Document> closed = new LinkedHashMap<>();
     try {
-      if (cd.change().getStatus().isOpen()) {
-        Futures.allAsList(
-            closedIndex.delete(id),
-            openIndex.replace(id, doc)).get();
-      } else {
-        Futures.allAsList(
-            openIndex.delete(id),
-            closedIndex.replace(id, doc)).get();
+      for (ChangeData cd : cds) {
+        // toDocument is essentially static and doesn't depend on the specific
+        // sub-index, so just pick one.
+        Document doc = openIndex.toDocument(cd, fillArgs);
+        if (cd.change().getStatus().isOpen()) {
+          open.put(idTerm(cd), doc);
+        } else {
+          closed.put(idTerm(cd), doc);
+        }
       }
+      // A change moves between sub-indexes when its status changes, so delete
+      // each document from the sub-index it is not written to.
+      Futures.allAsList(
+          openIndex.write(open, closed.keySet()),
+          closedIndex.write(closed, open.keySet())).get();
     } catch (OrmException | ExecutionException | InterruptedException e) {
       throw new IOException(e);
     }
@@ -240,6 +254,12 @@ public class LuceneChangeIndex implements ChangeIndex {
     closedIndex.deleteAll();
   }
 
+  @Override
+  public void commit() throws IOException {
+    openIndex.commit();
+    closedIndex.commit();
+  }
+
   @Override
   public ChangeDataSource getSource(Predicate<ChangeData> p, QueryOptions opts)
       throws QueryParseException {
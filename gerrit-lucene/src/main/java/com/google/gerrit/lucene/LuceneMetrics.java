@@ -0,0 +1,94 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.lucene;
+
+import com.google.gerrit.metrics.CallbackMetric1;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer1;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Metrics of the Lucene indexes, by index and sub-index name. */
+@Singleton
+class LuceneMetrics {
+  private static final Logger log =
+      LoggerFactory.getLogger(LuceneMetrics.class);
+
+  /** Time to refresh the searcher of an index after writes. */
+  final Timer1<String> refreshLatency;
+
+  /** Time to commit an index to disk. */
+  final Timer1<String> commitLatency;
+
+  private final Map<String, AbstractLuceneIndex<?, ?>> indexes;
+
+  @Inject
+  LuceneMetrics(MetricMaker metrics) {
+    Field<String> index = Field.ofString("index");
+    refreshLatency = metrics.newTimer(
+        "index/lucene/refresh_latency",
+        new Description("Latency of refreshing the searcher of an index")
+            .setCumulative()
+            .setUnit(Units.MILLISECONDS),
+        index);
+    commitLatency = metrics.newTimer(
+        "index/lucene/commit_latency",
+        new Description("Latency of committing an index to disk")
+            .setCumulative()
+            .setUnit(Units.MILLISECONDS),
+        index);
+
+    indexes = new ConcurrentHashMap<>();
+    final CallbackMetric1<String, Integer> segments = metrics.newCallbackMetric(
+        "index/lucene/segments",
+        Integer.class,
+        new Description("Segments searched in an index")
+            .setGauge()
+            .setUnit("segments"),
+        index);
+    metrics.newTrigger(segments, new Runnable() {
+      @Override
+      public void run() {
+        for (Map.Entry<String, AbstractLuceneIndex<?, ?>> e
+            : indexes.entrySet()) {
+          try {
+            segments.set(e.getKey(), e.getValue().getSegmentCount());
+          } catch (IOException err) {
+            log.warn("Cannot count segments of index " + e.getKey(), err);
+          }
+        }
+        segments.prune();
+      }
+    });
+  }
+
+  void register(String name, AbstractLuceneIndex<?, ?> index) {
+    indexes.put(name, index);
+  }
+
+  void unregister(String name, AbstractLuceneIndex<?, ?> index) {
+    indexes.remove(name, index);
+  }
+}
@@ -78,6 +78,7 @@ public class LuceneVersionManager implements LifecycleListener {
   private final Map<String, IndexDefinition<?, ?, ?>> defs;
   private final Map<String, OnlineReindexer<?, ?, ?>> reindexers;
   private final boolean onlineUpgrade;
+  private final boolean incrementalUpgrade;
   private final String runReindexMsg;
 
   @Inject
@@ -93,6 +94,8 @@ public class LuceneVersionManager implements LifecycleListener {
 
     reindexers = Maps.newHashMapWithExpectedSize(defs.size());
     onlineUpgrade = cfg.getBoolean("index", null, "onlineUpgrade", true);
+    incrementalUpgrade =
+        cfg.getBoolean("index", null, "incrementalUpgrade", false);
     runReindexMsg =
         "No index versions ready; run java -jar " +
         sitePaths.gerrit_war.toAbsolutePath() +
@@ -163,7 +166,7 @@ public class LuceneVersionManager implements LifecycleListener {
     markNotReady(cfg, def.getName(), versions.values(), write);
 
     int latest = write.get(0).version;
-    OnlineReindexer<K, V, I> reindexer = new OnlineReindexer<>(def, latest);
+    OnlineReindexer<K, V, I> reindexer = new OnlineReindexer<>(def, latest, incrementalUpgrade);
     synchronized (this) {
       if (!reindexers.containsKey(def.getName())) {
         reindexers.put(def.getName(), reindexer);
@@ -0,0 +1,286 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.lucene;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.gerrit.metrics.Timer1;
+
+import org.apache.lucene.index.TrackingIndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.ReferenceManager.RefreshListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread refreshing the searcher of an index to make writes visible.
+ * <p>
+ * Like Lucene's {@code ControlledRealTimeReopenThread}, writes are tracked by
+ * the generation of a {@link TrackingIndexWriter}, but the searcher is only
+ * refreshed if there are writes that are not searchable yet:
+ * <ul>
+ * <li>If a reader waits for a write, the searcher is refreshed immediately
+ * if writes are rare. Otherwise the refresh is delayed by the minimum
+ * staleness, or by as long as a refresh takes if that is longer, so that each
+ * refresh makes more writes searchable.</li>
+ * <li>Otherwise, the searcher is refreshed once writes are as old as the
+ * maximum staleness.</li>
+ * <li>Without writes, the thread sleeps until the next write.</li>
+ * </ul>
+ */
+class NrtRefreshThread extends Thread {
+  private static final Logger log =
+      LoggerFactory.getLogger(NrtRefreshThread.class);
+
+  /** Weight of the latest sample in the moving averages. */
+  private static final double ALPHA = 0.25;
+
+  private final String index;
+  private final TrackingIndexWriter writer;
+  private final ReferenceManager<IndexSearcher> manager;
+  private final Timer1<String> refreshLatency;
+  private final long minStaleNanos;
+  private final long maxStaleNanos;
+
+  // Guarded by this.
+  private long writtenGen;
+  private long waitingGen;
+  private long searchingGen;
+  private long writes;
+  private long refreshStartGen;
+  private long refreshStart;
+  private long pendingSince;
+  private boolean closed;
+
+  // Only accessed by this thread.
+  private double writesPerNano;
+  private double refreshNanos;
+
+  NrtRefreshThread(String index, TrackingIndexWriter writer,
+      ReferenceManager<IndexSearcher> manager, Timer1<String> refreshLatency,
+      long minStale, long maxStale, TimeUnit unit) {
+    this.index = index;
+    this.writer = writer;
+    this.manager = manager;
+    this.refreshLatency = refreshLatency;
+    this.minStaleNanos = unit.toNanos(minStale);
+    this.maxStaleNanos = unit.toNanos(maxStale);
+    setName(index + " NRT");
+    setDaemon(true);
+
+    manager.addListener(new RefreshListener() {
+      @Override
+      public void beforeRefresh() {
+      }
+
+      @Override
+      public void afterRefresh(boolean didRefresh) {
+        refreshed();
+      }
+    });
+  }
+
+  /**
+   * Record a write.
+   *
+   * @param gen generation returned by the writer for the write.
+   */
+  synchronized void written(long gen) {
+    writes++;
+    if (gen > writtenGen) {
+      if (writtenGen <= searchingGen) {
+        pendingSince = System.nanoTime();
+      }
+      writtenGen = gen;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Ask for a write to become searchable soon, without waiting for it.
+   *
+   * @param gen generation of the write.
+   */
+  synchronized void request(long gen) {
+    if (gen > waitingGen && gen > searchingGen) {
+      waitingGen = gen;
+      notifyAll();
+    }
+  }
+
+  /**
+   * @param gen generation of a write.
+   * @return whether the write is visible to the current searcher.
+   */
+  synchronized boolean isSearchable(long gen) {
+    return gen <= searchingGen;
+  }
+
+  /**
+   * Wait for a write to become searchable.
+   *
+   * @param gen generation of the write.
+   * @throws InterruptedException
+   */
+  synchronized void waitForGeneration(long gen) throws InterruptedException {
+    request(gen);
+    while (gen > searchingGen) {
+      wait();
+    }
+  }
+
+  /**
+   * Wait for a write to become searchable.
+   *
+   * @param gen generation of the write.
+   * @param timeout maximum time to wait.
+   * @param unit unit of {@code timeout}.
+   * @return whether the write is searchable.
+   * @throws InterruptedException
+   */
+  synchronized boolean waitForGeneration(long gen, long timeout,
+      TimeUnit unit) throws InterruptedException {
+    request(gen);
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (gen > searchingGen) {
+      long left = deadline - System.nanoTime();
+      if (left <= 0) {
+        return false;
+      }
+      NANOSECONDS.timedWait(this, left);
+    }
+    return true;
+  }
+
+  /**
+   * Stop refreshing.
+   * <p>
+   * Afterwards all writes are considered searchable, so no reader waits
+   * forever.
+   */
+  void close() {
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+    try {
+      join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      searchingGen = Long.MAX_VALUE;
+      notifyAll();
+    }
+  }
+
+  @Override
+  public void run() {
+    long lastStart = System.nanoTime();
+    long lastWrites = 0;
+    while (awaitRefresh(lastStart)) {
+      long start = System.nanoTime();
+      long writesNow;
+      synchronized (this) {
+        writesNow = writes;
+        refreshStart = start;
+        // Writes of this generation or older will be visible once the refresh
+        // completes; later writes get a newer generation.
+        refreshStartGen = writer.getAndIncrementGeneration();
+      }
+      try {
+        manager.maybeRefreshBlocking();
+      } catch (IOException e) {
+        log.error("Error refreshing searcher of " + index + " Lucene index", e);
+      }
+      long end = System.nanoTime();
+      refreshLatency.record(index, end - start, NANOSECONDS);
+
+      refreshNanos = average(refreshNanos, end - start);
+      writesPerNano = average(writesPerNano,
+          (double) (writesNow - lastWrites) / Math.max(start - lastStart, 1));
+      lastStart = start;
+      lastWrites = writesNow;
+    }
+  }
+
+  /**
+   * Sleep until the searcher needs to be refreshed.
+   *
+   * @param lastStart start of the previous refresh.
+   * @return false if the thread was closed.
+   */
+  private synchronized boolean awaitRefresh(long lastStart) {
+    while (!closed) {
+      long left;
+      if (writtenGen <= searchingGen) {
+        // Nothing to refresh; the next write wakes us up.
+        waitUninterruptibly(0);
+        continue;
+      } else if (waitingGen > searchingGen) {
+        left = lastStart + waitingDelay() - System.nanoTime();
+      } else {
+        left = pendingSince + maxStaleNanos - System.nanoTime();
+      }
+      if (left <= 0) {
+        return true;
+      }
+      waitUninterruptibly(left);
+    }
+    return false;
+  }
+
+  private long waitingDelay() {
+    // Delaying the refresh only helps if it makes more writes searchable at
+    // once; otherwise it is just latency for the waiting reader.
+    if (writesPerNano * minStaleNanos < 1) {
+      return 0;
+    }
+    // Don't spend more than about half of the time refreshing.
+    return Math.min(Math.max((long) refreshNanos, minStaleNanos),
+        maxStaleNanos);
+  }
+
+  private void waitUninterruptibly(long nanos) {
+    try {
+      if (nanos > 0) {
+        NANOSECONDS.timedWait(this, nanos);
+      } else {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      // Only close() stops this thread.
+    }
+  }
+
+  private synchronized void refreshed() {
+    if (refreshStartGen > searchingGen) {
+      searchingGen = refreshStartGen;
+      if (writtenGen > searchingGen) {
+        // Writes during the refresh are still pending.
+        pendingSince = refreshStart;
+      }
+    }
+    notifyAll();
+  }
+
+  private static double average(double avg, double sample) {
+    return avg == 0 ? sample : avg + ALPHA * (sample - avg);
+  }
+}
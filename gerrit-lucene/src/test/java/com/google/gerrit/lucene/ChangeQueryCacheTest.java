@@ -0,0 +1,199 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.lucene;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.index.change.ChangeField;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LRUQueryCache;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TotalHitCountCollector;
+import org.apache.lucene.store.RAMDirectory;
+import org.eclipse.jgit.lib.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChangeQueryCacheTest {
+  private static final Query OPEN = status("NEW");
+  private static final Query MERGED = status("MERGED");
+  private static final Query OWNER = owner(1000);
+  private static final Query REVIEWER = new TermQuery(
+      new Term(ChangeField.REVIEWER.getName(), "REVIEWER,1000"));
+
+  private RAMDirectory dir;
+  private DirectoryReader reader;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = new RAMDirectory();
+    try (IndexWriter writer = new IndexWriter(dir,
+        new IndexWriterConfig(new StandardAnalyzer()))) {
+      for (int i = 0; i < 10; i++) {
+        Document doc = new Document();
+        doc.add(new StringField(ChangeField.STATUS.getName(),
+            i % 2 == 0 ? "NEW" : "MERGED", Field.Store.NO));
+        doc.add(new IntField(ChangeField.OWNER.getName(), 1000 + i % 3,
+            Field.Store.NO));
+        writer.addDocument(doc);
+      }
+    }
+    reader = DirectoryReader.open(dir);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    reader.close();
+    dir.close();
+  }
+
+  @Test
+  public void perUserClauses() {
+    assertThat(ChangeQueryCache.isPerUser(OPEN)).isFalse();
+    assertThat(ChangeQueryCache.isPerUser(OWNER)).isTrue();
+    assertThat(ChangeQueryCache.isPerUser(REVIEWER)).isTrue();
+    assertThat(ChangeQueryCache.isPerUser(new ConstantScoreQuery(OWNER)))
+        .isTrue();
+    assertThat(ChangeQueryCache.isPerUser(new PrefixQuery(
+        new Term(ChangeField.STARBY.getName(), "1000:")))).isTrue();
+    assertThat(ChangeQueryCache.isPerUser(and(OPEN, MERGED))).isFalse();
+    assertThat(ChangeQueryCache.isPerUser(and(OPEN, OWNER))).isTrue();
+  }
+
+  @Test
+  public void sharedClauseIsCachedAfterMinFrequencyUses() throws Exception {
+    ChangeQueryCache.Policy policy = new ChangeQueryCache.Policy();
+    LeafReaderContext segment = reader.leaves().get(0);
+    for (int i = 1; i < ChangeQueryCache.Policy.MIN_FREQUENCY; i++) {
+      policy.onUse(OPEN);
+      assertThat(policy.shouldCache(OPEN, segment)).isFalse();
+    }
+    policy.onUse(OPEN);
+    assertThat(policy.shouldCache(OPEN, segment)).isTrue();
+    assertThat(policy.shouldCache(MERGED, segment)).isFalse();
+  }
+
+  @Test
+  public void perUserClauseIsNeverCached() throws Exception {
+    ChangeQueryCache.Policy policy = new ChangeQueryCache.Policy();
+    LeafReaderContext segment = reader.leaves().get(0);
+    Query query = and(OPEN, OWNER);
+    for (int i = 0; i < 10; i++) {
+      policy.onUse(OWNER);
+      policy.onUse(REVIEWER);
+      policy.onUse(query);
+    }
+    assertThat(policy.shouldCache(OWNER, segment)).isFalse();
+    assertThat(policy.shouldCache(REVIEWER, segment)).isFalse();
+    assertThat(policy.shouldCache(query, segment)).isFalse();
+  }
+
+  @Test
+  public void perUserClausesAreNotCounted() throws Exception {
+    ChangeQueryCache.Policy policy = new ChangeQueryCache.Policy();
+    LeafReaderContext segment = reader.leaves().get(0);
+    policy.onUse(OPEN);
+    policy.onUse(OPEN);
+    // Per-user clauses would push shared clauses out of the history if
+    // they were counted.
+    for (int i = 0; i < 1000; i++) {
+      policy.onUse(owner(i));
+    }
+    assertThat(policy.shouldCache(OPEN, segment)).isTrue();
+  }
+
+  @Test
+  public void cacheSharedClausesOfQueries() throws Exception {
+    IndexSearcher searcher = newSearcher(new Config());
+    LRUQueryCache cache = (LRUQueryCache) searcher.getQueryCache();
+    assertThat(cache).isNotNull();
+
+    Query query = and(OPEN, OWNER);
+    count(searcher, query);
+    assertThat(cache.getCacheSize()).isEqualTo(0);
+    count(searcher, query);
+    // Only status:open was cached, for the single segment.
+    assertThat(cache.getCacheSize()).isEqualTo(1);
+
+    long hits = cache.getHitCount();
+    assertThat(count(searcher, OPEN)).isEqualTo(5);
+    assertThat(cache.getHitCount()).isEqualTo(hits + 1);
+
+    for (int i = 0; i < 10; i++) {
+      count(searcher, OWNER);
+      count(searcher, REVIEWER);
+    }
+    assertThat(cache.getCacheSize()).isEqualTo(1);
+  }
+
+  @Test
+  public void zeroEntriesDisablesCache() throws Exception {
+    Config cfg = new Config();
+    cfg.setInt("index", null, "queryCacheEntries", 0);
+    IndexSearcher searcher = newSearcher(cfg);
+    assertThat(searcher.getQueryCache()).isNull();
+    for (int i = 0; i < 10; i++) {
+      assertThat(count(searcher, OPEN)).isEqualTo(5);
+    }
+  }
+
+  private IndexSearcher newSearcher(Config cfg) throws Exception {
+    return new ChangeQueryCache(cfg, new DisabledMetricMaker())
+        .newSearcherFactory().newSearcher(reader, null);
+  }
+
+  private static int count(IndexSearcher searcher, Query query)
+      throws Exception {
+    // Like change queries, collect matches without scores, which is when
+    // the query cache is used.
+    TotalHitCountCollector c = new TotalHitCountCollector();
+    searcher.search(query, c);
+    return c.getTotalHits();
+  }
+
+  private static Query status(String value) {
+    return new TermQuery(new Term(ChangeField.STATUS.getName(), value));
+  }
+
+  private static Query owner(int id) {
+    return new TermQuery(
+        QueryBuilder.intTerm(ChangeField.OWNER.getName(), id));
+  }
+
+  private static Query and(Query a, Query b) {
+    return new BooleanQuery.Builder()
+        .add(a, Occur.MUST)
+        .add(b, Occur.MUST)
+        .build();
+  }
+}
@@ -0,0 +1,175 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.lucene;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.gerrit.metrics.Timer1;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TrackingIndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager.RefreshListener;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class NrtRefreshThreadTest {
+  private IndexWriter delegate;
+  private TrackingIndexWriter writer;
+  private SearcherManager manager;
+  private AtomicInteger refreshes;
+  private NrtRefreshThread thread;
+
+  @Before
+  public void setUp() throws Exception {
+    delegate = new IndexWriter(new RAMDirectory(),
+        new IndexWriterConfig(new StandardAnalyzer()));
+    writer = new TrackingIndexWriter(delegate);
+    manager = new SearcherManager(delegate, new SearcherFactory());
+    refreshes = new AtomicInteger();
+    // Listeners are called in order, so this one counts a refresh before the
+    // thread wakes up readers.
+    manager.addListener(new RefreshListener() {
+      @Override
+      public void beforeRefresh() {
+      }
+
+      @Override
+      public void afterRefresh(boolean didRefresh) {
+        refreshes.incrementAndGet();
+      }
+    });
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (thread != null) {
+      thread.close();
+    }
+    manager.close();
+    delegate.close();
+  }
+
+  @Test
+  public void waiterReturnsAfterRefresh() throws Exception {
+    start(10, 60000);
+    long gen = write("1");
+    assertThat(thread.isSearchable(gen)).isFalse();
+
+    assertThat(thread.waitForGeneration(gen, 10, SECONDS)).isTrue();
+    assertThat(thread.isSearchable(gen)).isTrue();
+    assertThat(numDocs()).isEqualTo(1);
+    assertThat(refreshes.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void writeIsRefreshedAfterMaxStaleness() throws Exception {
+    start(10, 50);
+    long gen = write("1");
+
+    long deadline = System.nanoTime() + SECONDS.toNanos(10);
+    while (!thread.isSearchable(gen) && System.nanoTime() < deadline) {
+      MILLISECONDS.sleep(10);
+    }
+    assertThat(thread.isSearchable(gen)).isTrue();
+    assertThat(numDocs()).isEqualTo(1);
+  }
+
+  @Test
+  public void idleIndexIsNotRefreshed() throws Exception {
+    start(10, 20);
+    MILLISECONDS.sleep(200);
+    assertThat(refreshes.get()).isEqualTo(0);
+
+    long gen = write("1");
+    assertThat(thread.waitForGeneration(gen, 10, SECONDS)).isTrue();
+    int n = refreshes.get();
+    MILLISECONDS.sleep(200);
+    assertThat(refreshes.get()).isEqualTo(n);
+  }
+
+  @Test
+  public void closeWakesWaiters() throws Exception {
+    start(10, 60000);
+    // No write of this generation was recorded, so nothing will refresh the
+    // searcher to make it visible.
+    long gen = writer.getGeneration() + 100;
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          thread.waitForGeneration(gen);
+        } catch (InterruptedException e) {
+          // Fails the test below.
+        }
+      }
+    };
+    waiter.start();
+    waiter.join(200);
+    assertThat(waiter.isAlive()).isTrue();
+
+    thread.close();
+    waiter.join(SECONDS.toMillis(10));
+    assertThat(waiter.isAlive()).isFalse();
+    assertThat(thread.isSearchable(gen)).isTrue();
+    thread = null;
+  }
+
+  private void start(long minStale, long maxStale) {
+    Timer1<String> latency = new Timer1<String>() {
+      @Override
+      public void record(String index, long value, TimeUnit unit) {
+      }
+
+      @Override
+      public void remove() {
+      }
+    };
+    thread = new NrtRefreshThread("test", writer, manager, latency,
+        minStale, maxStale, MILLISECONDS);
+    thread.start();
+  }
+
+  private long write(String id) throws Exception {
+    Document doc = new Document();
+    doc.add(new StringField("id", id, Field.Store.YES));
+    long gen = writer.addDocument(doc);
+    thread.written(gen);
+    return gen;
+  }
+
+  private int numDocs() throws Exception {
+    IndexSearcher searcher = manager.acquire();
+    try {
+      return searcher.getIndexReader().numDocs();
+    } finally {
+      manager.release(searcher);
+    }
+  }
+}
@@ -28,10 +28,12 @@ import com.google.gerrit.pgm.util.SiteProgram;
 import com.google.gerrit.pgm.util.ThreadLimiter;
 import com.google.gerrit.server.change.ChangeResource;
 import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.config.SitePaths;
 import com.google.gerrit.server.index.Index;
 import com.google.gerrit.server.index.IndexDefinition;
 import com.google.gerrit.server.index.IndexModule;
 import com.google.gerrit.server.index.IndexModule.IndexType;
+import com.google.gerrit.server.index.ReindexCheckpoint;
 import com.google.gerrit.server.index.SiteIndexer;
 import com.google.gerrit.server.index.change.ChangeSchemaDefinitions;
 import com.google.inject.Inject;
@@ -44,6 +46,8 @@ import org.eclipse.jgit.util.io.NullOutputStream;
 import org.kohsuke.args4j.Option;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -70,6 +74,14 @@ public class Reindex extends SiteProgram {
   @Option(name = "--index", usage = "Only reindex specified indices")
   private List<String> indices = new ArrayList<>();
 
+  @Option(name = "--shard-size",
+      usage = "Maximum number of changes of a project indexed by one thread")
+  private Integer shardSize;
+
+  @Option(name = "--resume",
+      usage = "Resume an interrupted reindex instead of starting over")
+  private boolean resume;
+
   private Injector dbInjector;
   private Injector sysInjector;
   private Config globalConfig;
@@ -77,6 +89,9 @@ public class Reindex extends SiteProgram {
   @Inject
   private Collection<IndexDefinition<?, ?, ?>> indexDefs;
 
+  @Inject
+  private SitePaths sitePaths;
+
   @Override
   public int run() throws Exception {
     mustHaveValidSite();
@@ -86,6 +101,7 @@ public class Reindex extends SiteProgram {
     threads = ThreadLimiter.limitThreads(dbInjector, threads);
     checkNotSlaveMode();
     disableLuceneAutomaticCommit();
+    configureBatchIndexing();
     disableChangeCache();
     LifecycleManager dbManager = new LifecycleManager();
     dbManager.add(dbInjector);
@@ -183,6 +199,18 @@ public class Reindex extends SiteProgram {
     }
   }
 
+  private void configureBatchIndexing() {
+    if (IndexModule.getIndexType(dbInjector) == IndexType.LUCENE) {
+      // Every change is written exactly once, so documents can be written
+      // concurrently.
+      globalConfig.setInt("index", "changes_open", "writerThreads", threads);
+      globalConfig.setInt("index", "changes_closed", "writerThreads", threads);
+    }
+    if (shardSize != null) {
+      globalConfig.setInt("index", null, "batchShardSize", shardSize);
+    }
+  }
+
   private void disableChangeCache() {
     globalConfig.setLong("cache", "changes", "maximumWeight", 0);
   }
@@ -192,12 +220,23 @@ public class Reindex extends SiteProgram {
     I index = def.getIndexCollection().getSearchIndex();
     checkNotNull(index,
         "no active search index configured for %s", def.getName());
-    index.markReady(false);
-    index.deleteAll();
+    Path checkpointFile = sitePaths.index_dir.resolve(String.format(
+        "%s_%04d.checkpoint", def.getName(), index.getSchema().getVersion()));
+    boolean resuming = resume && Files.exists(checkpointFile);
+    ReindexCheckpoint checkpoint =
+        ReindexCheckpoint.open(checkpointFile, resuming);
+    if (resuming) {
+      System.out.format("Resuming reindex of %s index, skipping %d done\n",
+          def.getName(), checkpoint.size());
+    } else {
+      index.markReady(false);
+      index.deleteAll();
+    }
 
     SiteIndexer<K, V, I> siteIndexer = def.getSiteIndexer();
     siteIndexer.setProgressOut(System.err);
     siteIndexer.setVerboseOut(verbose ? System.out : NullOutputStream.INSTANCE);
+    siteIndexer.setCheckpoint(checkpoint);
     SiteIndexer.Result result = siteIndexer.indexAll(index);
     int n = result.doneCount() + result.failedCount();
     double t = result.elapsed(TimeUnit.MILLISECONDS) / 1000d;
@@ -205,6 +244,7 @@ public class Reindex extends SiteProgram {
         n, def.getName(), t, n / t);
     if (result.success()) {
       index.markReady(true);
+      checkpoint.delete();
     }
     return result.success();
   }
@@ -57,6 +57,7 @@ import com.google.gerrit.server.git.MergeUtil;
 import com.google.gerrit.server.git.ReceiveCommitsExecutorModule;
 import com.google.gerrit.server.git.SearchingChangeCacheImpl;
 import com.google.gerrit.server.git.TagCache;
+import com.google.gerrit.server.git.VisibleChangesCache;
 import com.google.gerrit.server.group.GroupModule;
 import com.google.gerrit.server.mail.ReplacePatchSetSender;
 import com.google.gerrit.server.notedb.NoteDbModule;
@@ -133,6 +134,8 @@ public class BatchProgramModule extends FactoryModule {
     // the change cache.
     bind(SearchingChangeCacheImpl.class).toProvider(
         Providers.<SearchingChangeCacheImpl>of(null));
+    bind(VisibleChangesCache.class).toProvider(
+        Providers.<VisibleChangesCache>of(null));
 
     bind(new TypeLiteral<ImmutableSet<GroupReference>>() {})
       .annotatedWith(AdministrateServerGroups.class)
@@ -180,7 +180,7 @@ public class IdentifiedUser extends CurrentUser {
   private AccountState state;
   private boolean loadedAllEmails;
   private Set<String> invalidEmails;
-  private GroupMembership effectiveGroups;
+  private volatile GroupMembership effectiveGroups;
   private CurrentUser realUser;
   private Map<PropertyKey<Object>, Object> properties;
 
@@ -259,7 +259,7 @@ public class IdentifiedUser extends CurrentUser {
     return state().getAccount();
   }
 
-  public boolean hasEmailAddress(String email) {
+  public synchronized boolean hasEmailAddress(String email) {
     if (validEmails.contains(email)) {
       return true;
     } else if (invalidEmails != null && invalidEmails.contains(email)) {
@@ -274,7 +274,7 @@ public class IdentifiedUser extends CurrentUser {
     return false;
   }
 
-  public Set<String> getEmailAddresses() {
+  public synchronized Set<String> getEmailAddresses() {
     if (!loadedAllEmails) {
       validEmails.addAll(realm.getEmailAddresses(this));
       loadedAllEmails = true;
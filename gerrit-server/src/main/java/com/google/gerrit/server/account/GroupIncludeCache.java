@@ -26,6 +26,12 @@ public interface GroupIncludeCache {
   /** @return any groups the passed group belongs to. */
   Set<AccountGroup.UUID> parentGroupsOf(AccountGroup.UUID groupId);
 
+  /**
+   * @return any groups the passed group belongs to, directly or through other
+   *     groups.
+   */
+  Set<AccountGroup.UUID> ancestorsOf(AccountGroup.UUID groupId);
+
   /** @return set of any UUIDs that are not internal groups. */
   Set<AccountGroup.UUID> allExternalMembers();
 
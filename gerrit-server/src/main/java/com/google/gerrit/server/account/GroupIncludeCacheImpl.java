@@ -31,8 +31,11 @@ import com.google.inject.name.Named;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
@@ -44,6 +47,7 @@ public class GroupIncludeCacheImpl implements GroupIncludeCache {
       .getLogger(GroupIncludeCacheImpl.class);
   private static final String PARENT_GROUPS_NAME = "groups_byinclude";
   private static final String SUBGROUPS_NAME = "groups_members";
+  private static final String ANCESTORS_NAME = "groups_ancestors";
   private static final String EXTERNAL_NAME = "groups_external";
 
   public static Module module() {
@@ -60,6 +64,11 @@ public class GroupIncludeCacheImpl implements GroupIncludeCache {
             new TypeLiteral<Set<AccountGroup.UUID>>() {})
           .loader(SubgroupsLoader.class);
 
+        cache(ANCESTORS_NAME,
+            AccountGroup.UUID.class,
+            new TypeLiteral<Set<AccountGroup.UUID>>() {})
+          .loader(AncestorsLoader.class);
+
         cache(EXTERNAL_NAME,
             String.class,
             new TypeLiteral<Set<AccountGroup.UUID>>() {})
@@ -73,15 +82,18 @@ public class GroupIncludeCacheImpl implements GroupIncludeCache {
 
   private final LoadingCache<AccountGroup.UUID, Set<AccountGroup.UUID>> subgroups;
   private final LoadingCache<AccountGroup.UUID, Set<AccountGroup.UUID>> parentGroups;
+  private final LoadingCache<AccountGroup.UUID, Set<AccountGroup.UUID>> ancestors;
   private final LoadingCache<String, Set<AccountGroup.UUID>> external;
 
   @Inject
   GroupIncludeCacheImpl(
       @Named(SUBGROUPS_NAME) LoadingCache<AccountGroup.UUID, Set<AccountGroup.UUID>> subgroups,
       @Named(PARENT_GROUPS_NAME) LoadingCache<AccountGroup.UUID, Set<AccountGroup.UUID>> parentGroups,
+      @Named(ANCESTORS_NAME) LoadingCache<AccountGroup.UUID, Set<AccountGroup.UUID>> ancestors,
       @Named(EXTERNAL_NAME) LoadingCache<String, Set<AccountGroup.UUID>> external) {
     this.subgroups = subgroups;
     this.parentGroups = parentGroups;
+    this.ancestors = ancestors;
     this.external = external;
   }
 
@@ -105,6 +117,16 @@ public class GroupIncludeCacheImpl implements GroupIncludeCache {
     }
   }
 
+  @Override
+  public Set<AccountGroup.UUID> ancestorsOf(AccountGroup.UUID groupId) {
+    try {
+      return ancestors.get(groupId);
+    } catch (ExecutionException e) {
+      log.warn("Cannot load ancestor groups", e);
+      return Collections.emptySet();
+    }
+  }
+
   @Override
   public void evictSubgroupsOf(AccountGroup.UUID groupId) {
     if (groupId != null) {
@@ -116,6 +138,7 @@ public class GroupIncludeCacheImpl implements GroupIncludeCache {
   public void evictParentGroupsOf(AccountGroup.UUID groupId) {
     if (groupId != null) {
       parentGroups.invalidate(groupId);
+      evictAncestorsOf(groupId);
 
       if (!AccountGroup.isInternalGroup(groupId)) {
         external.invalidate(EXTERNAL_NAME);
@@ -123,6 +146,21 @@ public class GroupIncludeCacheImpl implements GroupIncludeCache {
     }
   }
 
+  /**
+   * Evict the ancestors of a group whose parents changed, and of all cached
+   * groups that are included in it, since their ancestors may have changed
+   * too. The ancestors of unrelated groups stay cached.
+   */
+  private void evictAncestorsOf(AccountGroup.UUID groupId) {
+    ancestors.invalidate(groupId);
+    for (Iterator<Set<AccountGroup.UUID>> it =
+        ancestors.asMap().values().iterator(); it.hasNext();) {
+      if (it.next().contains(groupId)) {
+        it.remove();
+      }
+    }
+  }
+
   @Override
   public Set<AccountGroup.UUID> allExternalMembers() {
     try {
@@ -187,6 +225,35 @@ public class GroupIncludeCacheImpl implements GroupIncludeCache {
     }
   }
 
+  static class AncestorsLoader extends
+      CacheLoader<AccountGroup.UUID, Set<AccountGroup.UUID>> {
+    private final LoadingCache<AccountGroup.UUID, Set<AccountGroup.UUID>> parentGroups;
+
+    @Inject
+    AncestorsLoader(
+        @Named(PARENT_GROUPS_NAME) LoadingCache<AccountGroup.UUID, Set<AccountGroup.UUID>> parentGroups) {
+      this.parentGroups = parentGroups;
+    }
+
+    @Override
+    public Set<AccountGroup.UUID> load(AccountGroup.UUID key) throws Exception {
+      // Walk the parent groups rather than ancestor sets of other groups, as
+      // groups may include each other in a cycle.
+      Set<AccountGroup.UUID> ids = new HashSet<>();
+      Deque<AccountGroup.UUID> q = new ArrayDeque<>();
+      q.add(key);
+      while (!q.isEmpty()) {
+        for (AccountGroup.UUID g : parentGroups.get(q.remove())) {
+          if (g != null && ids.add(g)) {
+            q.add(g);
+          }
+        }
+      }
+      ids.remove(key);
+      return ImmutableSet.copyOf(ids);
+    }
+  }
+
   static class AllExternalLoader extends
       CacheLoader<String, Set<AccountGroup.UUID>> {
     private final SchemaFactory<ReviewDb> schema;
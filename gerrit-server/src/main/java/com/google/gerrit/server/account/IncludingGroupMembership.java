@@ -14,8 +14,8 @@
 
 package com.google.gerrit.server.account;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.gerrit.reviewdb.client.AccountGroup;
 import com.google.gerrit.server.IdentifiedUser;
@@ -23,19 +23,17 @@ import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 
 import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Group membership checker for the internal group system.
  * <p>
  * Groups the user is directly a member of are pulled from the in-memory
- * AccountCache by way of the IdentifiedUser. Transitive group memberhips are
- * resolved on demand starting from the requested group and looking for a path
- * to a group the user is a member of. Other group backends are supported by
- * recursively invoking the universal GroupMembership.
+ * AccountCache by way of the IdentifiedUser. Transitive group memberships are
+ * resolved by adding the precomputed ancestors of every group the user is a
+ * member of, including groups of other backends that are included in internal
+ * groups, so that later checks are a single set lookup. Membership in other
+ * backends is checked by invoking the universal GroupMembership.
  */
 public class IncludingGroupMembership implements GroupMembership {
   public interface Factory {
@@ -44,20 +42,15 @@ public class IncludingGroupMembership implements GroupMembership {
 
   private final GroupIncludeCache includeCache;
   private final IdentifiedUser user;
-  private final Map<AccountGroup.UUID, Boolean> memberOf;
-  private Set<AccountGroup.UUID> knownGroups;
+  private final Set<AccountGroup.UUID> direct;
+  private volatile Set<AccountGroup.UUID> knownGroups;
 
   @Inject
   IncludingGroupMembership(GroupIncludeCache includeCache,
       @Assisted IdentifiedUser user) {
     this.includeCache = includeCache;
     this.user = user;
-
-    Set<AccountGroup.UUID> groups = user.state().getInternalGroups();
-    memberOf = new ConcurrentHashMap<>(groups.size());
-    for (AccountGroup.UUID g : groups) {
-      memberOf.put(g, true);
-    }
+    this.direct = user.state().getInternalGroups();
   }
 
   @Override
@@ -65,39 +58,24 @@ public class IncludingGroupMembership implements GroupMembership {
     if (id == null) {
       return false;
     }
-
-    Boolean b = memberOf.get(id);
-    return b != null ? b : containsAnyOf(ImmutableSet.of(id));
+    return containsAnyOf(ImmutableSet.of(id));
   }
 
   @Override
   public boolean containsAnyOf(Iterable<AccountGroup.UUID> queryIds) {
-    // Prefer lookup of a cached result over expanding includes.
-    boolean tryExpanding = false;
+    // Prefer direct membership over expanding includes.
     for (AccountGroup.UUID id : queryIds) {
-      Boolean b = memberOf.get(id);
-      if (b == null) {
-        tryExpanding = true;
-      } else if (b) {
+      if (id != null && direct.contains(id)) {
         return true;
       }
     }
 
-    if (tryExpanding) {
-      for (AccountGroup.UUID id : queryIds) {
-        if (memberOf.containsKey(id)) {
-          // Membership was earlier proven to be false.
-          continue;
-        }
-
-        memberOf.put(id, false);
-        if (search(includeCache.subgroupsOf(id))) {
-          memberOf.put(id, true);
-          return true;
-        }
+    Set<AccountGroup.UUID> known = getKnownGroups();
+    for (AccountGroup.UUID id : queryIds) {
+      if (id != null && known.contains(id)) {
+        return true;
       }
     }
-
     return false;
   }
 
@@ -112,41 +90,31 @@ public class IncludingGroupMembership implements GroupMembership {
     return r;
   }
 
-  private boolean search(Set<AccountGroup.UUID> ids) {
-    return user.getEffectiveGroups().containsAnyOf(ids);
-  }
-
   private ImmutableSet<AccountGroup.UUID> computeKnownGroups() {
     GroupMembership membership = user.getEffectiveGroups();
-    Set<AccountGroup.UUID> direct = user.state().getInternalGroups();
     Set<AccountGroup.UUID> r = Sets.newHashSet(direct);
     r.remove(null);
 
-    List<AccountGroup.UUID> q = Lists.newArrayList(r);
     for (AccountGroup.UUID g : membership.intersection(
         includeCache.allExternalMembers())) {
-      if (g != null && r.add(g)) {
-        q.add(g);
+      if (g != null) {
+        r.add(g);
       }
     }
 
-    while (!q.isEmpty()) {
-      AccountGroup.UUID id = q.remove(q.size() - 1);
-      for (AccountGroup.UUID g : includeCache.parentGroupsOf(id)) {
-        if (g != null && r.add(g)) {
-          q.add(g);
-          memberOf.put(g, true);
-        }
-      }
+    for (AccountGroup.UUID g : ImmutableList.copyOf(r)) {
+      r.addAll(includeCache.ancestorsOf(g));
     }
     return ImmutableSet.copyOf(r);
   }
 
   @Override
   public Set<AccountGroup.UUID> getKnownGroups() {
-    if (knownGroups == null) {
-      knownGroups = computeKnownGroups();
+    Set<AccountGroup.UUID> r = knownGroups;
+    if (r == null) {
+      r = computeKnownGroups();
+      knownGroups = r;
     }
-    return knownGroups;
+    return r;
   }
 }
@@ -35,6 +35,15 @@ public interface CacheBinding<K, V> {
   /** Algorithm to weigh an object with a method other than the unit weight 1. */
   CacheBinding<K, V> weigher(Class<? extends Weigher<K, V>> clazz);
 
+  /** Store values on disk in this format, instead of Java serialization. */
+  CacheBinding<K, V> serializer(CacheSerializer<V> serializer);
+
+  /**
+   * Set the default size of the cache on disk, which may be overridden by
+   * {@code cache.<name>.diskLimit}; 0 keeps the cache in memory only.
+   */
+  CacheBinding<K, V> diskLimit(long limit);
+
   String name();
   TypeLiteral<K> keyType();
   TypeLiteral<V> valueType();
@@ -42,4 +51,6 @@ public interface CacheBinding<K, V> {
   @Nullable Long expireAfterWrite(TimeUnit unit);
   @Nullable Weigher<K, V> weigher();
   @Nullable CacheLoader<K, V> loader();
+  @Nullable CacheSerializer<V> serializer();
+  long diskLimit();
 }
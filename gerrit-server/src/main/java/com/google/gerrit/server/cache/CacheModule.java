@@ -178,4 +178,22 @@ public abstract class CacheModule extends FactoryModule {
     return ((CacheProvider<K, V>) cache(name, keyType, valType))
         .persist(true);
   }
+
+  /**
+   * Declare a named in-memory/on-disk cache whose values are stored on disk
+   * with the given serializer, and so do not need to be {@link Serializable}.
+   *
+   * @param <K> type of key used to lookup entries.
+   * @param <V> type of value stored by the cache.
+   * @return binding to describe the cache.
+   */
+  protected <K extends Serializable, V> CacheBinding<K, V> persist(
+      String name,
+      Class<K> keyType,
+      Class<V> valType,
+      CacheSerializer<V> serializer) {
+    return ((CacheProvider<K, V>) cache(name, keyType, valType))
+        .persist(true)
+        .serializer(serializer);
+  }
 }
@@ -41,6 +41,8 @@ class CacheProvider<K, V>
   private Long expireAfterWrite;
   private Provider<CacheLoader<K, V>> loader;
   private Provider<Weigher<K, V>> weigher;
+  private CacheSerializer<V> serializer;
+  private long diskLimit = 128 << 20;
 
   private String plugin;
   private MemoryCacheFactory memoryCacheFactory;
@@ -106,6 +108,20 @@ class CacheProvider<K, V>
     return this;
   }
 
+  @Override
+  public CacheBinding<K, V> serializer(CacheSerializer<V> s) {
+    Preconditions.checkState(!frozen, "binding frozen, cannot be modified");
+    serializer = s;
+    return this;
+  }
+
+  @Override
+  public CacheBinding<K, V> diskLimit(long limit) {
+    Preconditions.checkState(!frozen, "binding frozen, cannot be modified");
+    diskLimit = limit;
+    return this;
+  }
+
   @Override
   public String name() {
     if (!Strings.isNullOrEmpty(plugin)) {
@@ -149,6 +165,17 @@ class CacheProvider<K, V>
     return loader != null ? loader.get() : null;
   }
 
+  @Override
+  @Nullable
+  public CacheSerializer<V> serializer() {
+    return serializer;
+  }
+
+  @Override
+  public long diskLimit() {
+    return diskLimit;
+  }
+
   @Override
   public Cache<K, V> get() {
     frozen = true;
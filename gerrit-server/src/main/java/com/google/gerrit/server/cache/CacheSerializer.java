@@ -0,0 +1,41 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache;
+
+import java.io.IOException;
+
+/**
+ * Converts values of a persistent cache to and from bytes.
+ * <p>
+ * Persistent caches store values with Java serialization unless their
+ * {@link CacheBinding} sets a serializer. A serializer should start its output
+ * with a format version, and fail to deserialize any other version, so entries
+ * written by an older server are treated as missing instead of being misread.
+ *
+ * @param <T> type of value stored by the cache.
+ */
+public interface CacheSerializer<T> {
+  byte[] serialize(T object) throws IOException;
+
+  /**
+   * Read back a value.
+   *
+   * @param in bytes returned by {@link #serialize(Object)}.
+   * @return the value.
+   * @throws IOException if the bytes were not written by this serializer, or
+   *     by a different version of it.
+   */
+  T deserialize(byte[] in) throws IOException;
+}
@@ -0,0 +1,59 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+
+/**
+ * Stores an enum constant by name, after a version byte.
+ * <p>
+ * Names are used rather than ordinals so that constants may be added or
+ * reordered; a removed constant is read as a missing entry.
+ */
+public class EnumCacheSerializer<E extends Enum<E>>
+    implements CacheSerializer<E> {
+  private static final byte VERSION = 1;
+
+  private final Class<E> type;
+
+  public EnumCacheSerializer(Class<E> type) {
+    this.type = type;
+  }
+
+  @Override
+  public byte[] serialize(E object) {
+    byte[] name = object.name().getBytes(UTF_8);
+    byte[] out = new byte[name.length + 1];
+    out[0] = VERSION;
+    System.arraycopy(name, 0, out, 1, name.length);
+    return out;
+  }
+
+  @Override
+  public E deserialize(byte[] in) throws IOException {
+    if (in.length == 0 || in[0] != VERSION) {
+      throw new IOException(
+          "Unsupported " + type.getSimpleName() + " version");
+    }
+    String name = new String(in, 1, in.length - 1, UTF_8);
+    try {
+      return Enum.valueOf(type, name);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Unknown " + type.getSimpleName() + ": " + name);
+    }
+  }
+}
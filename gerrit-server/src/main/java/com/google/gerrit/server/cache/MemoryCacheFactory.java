@@ -24,4 +24,10 @@ public interface MemoryCacheFactory {
   <K, V> LoadingCache<K, V> build(
       CacheBinding<K, V> def,
       CacheLoader<K, V> loader);
+
+  /**
+   * @return maximum weight of caches built for {@code def}, after applying
+   *     the site's configuration; 0 if they do not keep any entries.
+   */
+  long memoryLimit(CacheBinding<?, ?> def);
 }
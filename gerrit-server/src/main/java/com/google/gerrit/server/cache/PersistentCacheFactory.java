@@ -19,6 +19,12 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.gerrit.server.plugins.Plugin;
 
+/**
+ * Builds caches declared with {@link CacheModule#persist}.
+ * <p>
+ * Values are stored on disk with {@link CacheBinding#serializer()} if the
+ * cache has one, and with Java serialization otherwise.
+ */
 public interface PersistentCacheFactory {
   <K, V> Cache<K, V> build(CacheBinding<K, V> def);
 
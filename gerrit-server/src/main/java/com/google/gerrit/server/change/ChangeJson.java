@@ -102,6 +102,7 @@ import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.LabelNormalizer;
 import com.google.gerrit.server.git.MergeUtil;
 import com.google.gerrit.server.notedb.ChangeNotes;
+import com.google.gerrit.server.notedb.NotesMigration;
 import com.google.gerrit.server.notedb.ReviewerStateInternal;
 import com.google.gerrit.server.patch.PatchListNotAvailableException;
 import com.google.gerrit.server.project.ChangeControl;
@@ -110,6 +111,7 @@ import com.google.gerrit.server.project.ProjectCache;
 import com.google.gerrit.server.project.SubmitRuleEvaluator;
 import com.google.gerrit.server.query.QueryResult;
 import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.query.change.ChangeDataLoader;
 import com.google.gerrit.server.query.change.ChangeData.ChangedLines;
 import com.google.gwtorm.server.OrmException;
 import com.google.inject.Provider;
@@ -171,6 +173,8 @@ public class ChangeJson {
   private final ChangeNotes.Factory notesFactory;
   private final ChangeResource.Factory changeResourceFactory;
   private final ChangeKindCache changeKindCache;
+  private final ChangeDataLoader changeDataLoader;
+  private final NotesMigration notesMigration;
 
   private boolean lazyLoad = true;
   private AccountLoader accountLoader;
@@ -201,6 +205,8 @@ public class ChangeJson {
       ChangeNotes.Factory notesFactory,
       ChangeResource.Factory changeResourceFactory,
       ChangeKindCache changeKindCache,
+      ChangeDataLoader changeDataLoader,
+      NotesMigration notesMigration,
       @Assisted Set<ListChangesOption> options) {
     this.db = db;
     this.labelNormalizer = ln;
@@ -223,6 +229,8 @@ public class ChangeJson {
     this.notesFactory = notesFactory;
     this.changeResourceFactory = changeResourceFactory;
     this.changeKindCache = changeKindCache;
+    this.changeDataLoader = changeDataLoader;
+    this.notesMigration = notesMigration;
     this.options = options.isEmpty()
         ? EnumSet.noneOf(ListChangesOption.class)
         : EnumSet.copyOf(options);
@@ -298,13 +306,13 @@ public class ChangeJson {
   public List<List<ChangeInfo>> formatQueryResults(
       List<QueryResult<ChangeData>> in) throws OrmException {
     accountLoader = accountLoaderFactory.create(has(DETAILED_ACCOUNTS));
-    ensureLoaded(
+    ChangeDataLoader.Batch batch = ensureLoaded(
         FluentIterable.from(in).transformAndConcat(QueryResult::entities));
 
     List<List<ChangeInfo>> res = Lists.newArrayListWithCapacity(in.size());
     Map<Change.Id, ChangeInfo> out = new HashMap<>();
     for (QueryResult<ChangeData> r : in) {
-      List<ChangeInfo> infos = toChangeInfo(out, r.entities());
+      List<ChangeInfo> infos = toChangeInfo(out, r.entities(), batch);
       if (!infos.isEmpty() && r.more()) {
         infos.get(infos.size() - 1)._moreChanges = true;
       }
@@ -317,17 +325,24 @@ public class ChangeJson {
   public List<ChangeInfo> formatChangeDatas(Collection<ChangeData> in)
       throws OrmException {
     accountLoader = accountLoaderFactory.create(has(DETAILED_ACCOUNTS));
-    ensureLoaded(in);
+    ChangeDataLoader.Batch batch = ensureLoaded(in);
     List<ChangeInfo> out = new ArrayList<>(in.size());
     for (ChangeData cd : in) {
+      batch.await(cd);
       out.add(format(cd));
     }
     accountLoader.fill();
     return out;
   }
 
-  private void ensureLoaded(Iterable<ChangeData> all) throws OrmException {
+  private ChangeDataLoader.Batch ensureLoaded(Iterable<ChangeData> all)
+      throws OrmException {
     if (lazyLoad) {
+      if (changeDataLoader.isEnabled() && notesMigration.readChanges()) {
+        // Notes and patch lists are loaded in parallel by the loader, and
+        // everything else is read lazily from the notes once they arrive.
+        return changeDataLoader.start(all, true);
+      }
       ChangeData.ensureChangeLoaded(all);
       if (has(ALL_REVISIONS)) {
         ChangeData.ensureAllPatchSetsLoaded(all);
@@ -338,11 +353,16 @@ public class ChangeJson {
         ChangeData.ensureReviewedByLoadedForOpenChanges(all);
       }
       ChangeData.ensureCurrentApprovalsLoaded(all);
+      if (changeDataLoader.isEnabled()) {
+        ChangeData.ensureCurrentPatchSetLoaded(all);
+        return changeDataLoader.start(all, true);
+      }
     } else {
       for (ChangeData cd : all) {
         cd.setLazyLoad(false);
       }
     }
+    return ChangeDataLoader.Batch.EMPTY;
   }
 
   private boolean has(ListChangesOption option) {
@@ -350,11 +370,12 @@ public class ChangeJson {
   }
 
   private List<ChangeInfo> toChangeInfo(Map<Change.Id, ChangeInfo> out,
-      List<ChangeData> changes) {
+      List<ChangeData> changes, ChangeDataLoader.Batch batch) {
     List<ChangeInfo> info = Lists.newArrayListWithCapacity(changes.size());
     for (ChangeData cd : changes) {
       ChangeInfo i = out.get(cd.getId());
       if (i == null) {
+        batch.await(cd);
         try {
           i = toChangeInfo(cd, Optional.<PatchSet.Id> absent());
         } catch (PatchListNotAvailableException | GpgException | OrmException
@@ -0,0 +1,204 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.change;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.cache.Cache;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.extensions.client.ListChangesOption;
+import com.google.gerrit.extensions.common.ChangeInfo;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.PatchLineComment;
+import com.google.gerrit.reviewdb.client.RefNames;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.OutputFormat;
+import com.google.gerrit.server.PatchLineCommentsUtil;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gson.Gson;
+import com.google.gwtorm.server.OrmException;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Changes formatted by {@link GetChange}, so that clients polling changes
+ * that did not change, e.g. the change screen or bots, don't format them
+ * again.
+ * <p>
+ * Entries are keyed by the change, the output options, the ETag of the
+ * change for the current user, which covers the change meta ref, the star
+ * ref and groups of the user and the project configs, the tip of the
+ * destination branch, on which mergeability and submittability depend, and
+ * the draft comments and change edits of the user. The ETag covers neither
+ * of the latter. Entries of a change are dropped when its refs are updated.
+ * <p>
+ * Callers get a copy of the cached change, so they may modify it.
+ */
+@Singleton
+public class ChangeJsonCache implements GitReferenceUpdatedListener {
+  static final String CACHE_NAME = "change_json";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        cache(CACHE_NAME, Key.class, ChangeInfo.class)
+          .maximumWeight(1024)
+          .expireAfterWrite(1, TimeUnit.HOURS);
+        bind(ChangeJsonCache.class);
+        DynamicSet.bind(binder(), GitReferenceUpdatedListener.class)
+            .to(ChangeJsonCache.class);
+      }
+    };
+  }
+
+  @AutoValue
+  abstract static class Key {
+    abstract Change.Id changeId();
+    abstract int options();
+    abstract String etag();
+    abstract String branchTip();
+    abstract String userState();
+  }
+
+  private static final Logger log =
+      LoggerFactory.getLogger(ChangeJsonCache.class);
+
+  private final Cache<Key, ChangeInfo> cache;
+  private final Provider<ReviewDb> db;
+  private final PatchLineCommentsUtil plcUtil;
+  private final GitRepositoryManager repoManager;
+  private final Gson gson = OutputFormat.JSON_COMPACT.newGson();
+
+  @Inject
+  ChangeJsonCache(@Named(CACHE_NAME) Cache<Key, ChangeInfo> cache,
+      Provider<ReviewDb> db,
+      PatchLineCommentsUtil plcUtil,
+      GitRepositoryManager repoManager) {
+    this.cache = cache;
+    this.db = db;
+    this.plcUtil = plcUtil;
+    this.repoManager = repoManager;
+  }
+
+  /**
+   * @param rsrc change to format.
+   * @param options output options.
+   * @return the cached change as formatted for the user of {@code rsrc}, or
+   *     null if it must be formatted.
+   */
+  @Nullable
+  ChangeInfo get(ChangeResource rsrc, Set<ListChangesOption> options) {
+    Key key = key(rsrc, options);
+    if (key == null) {
+      return null;
+    }
+    ChangeInfo info = cache.getIfPresent(key);
+    return info != null ? copy(info) : null;
+  }
+
+  /**
+   * @param rsrc formatted change.
+   * @param options output options.
+   * @param info the change formatted for the user of {@code rsrc}; a copy is
+   *     cached, so it may still be modified afterwards.
+   */
+  void put(ChangeResource rsrc, Set<ListChangesOption> options,
+      ChangeInfo info) {
+    Key key = key(rsrc, options);
+    if (key != null) {
+      cache.put(key, copy(info));
+    }
+  }
+
+  @Override
+  public void onGitReferenceUpdated(Event event) {
+    Change.Id id = Change.Id.fromRef(event.getRefName());
+    if (id != null) {
+      cache.asMap().keySet().removeIf(k -> k.changeId().equals(id));
+    }
+  }
+
+  private ChangeInfo copy(ChangeInfo info) {
+    return gson.fromJson(gson.toJsonTree(info), ChangeInfo.class);
+  }
+
+  @Nullable
+  private Key key(ChangeResource rsrc, Set<ListChangesOption> options) {
+    // Consistency checks may fix the change while formatting it.
+    if (options.contains(ListChangesOption.CHECK)) {
+      return null;
+    }
+    try (Repository repo = repoManager.openRepository(rsrc.getProject())) {
+      return new AutoValue_ChangeJsonCache_Key(rsrc.getId(),
+          ListChangesOption.toBits(options), rsrc.getETag(),
+          branchTip(repo, rsrc), userState(repo, rsrc));
+    } catch (IOException | OrmException e) {
+      log.warn("Cannot read state of change " + rsrc.getId(), e);
+      return null;
+    }
+  }
+
+  private static String branchTip(Repository repo, ChangeResource rsrc)
+      throws IOException {
+    Ref ref = repo.getRefDatabase().exactRef(rsrc.getChange().getDest().get());
+    return ref != null && ref.getObjectId() != null
+        ? ref.getObjectId().name()
+        : "";
+  }
+
+  private String userState(Repository repo, ChangeResource rsrc)
+      throws IOException, OrmException {
+    CurrentUser user = rsrc.getControl().getUser();
+    if (!user.isIdentifiedUser()) {
+      return "";
+    }
+    Account.Id accountId = user.getAccountId();
+    Hasher h = Hashing.md5().newHasher();
+    Map<String, Ref> edits = repo.getRefDatabase().getRefs(
+        RefNames.refsEditPrefix(accountId, rsrc.getId()));
+    for (Ref ref : edits.values()) {
+      h.putString(ref.getName(), UTF_8)
+        .putString(ref.getObjectId().name(), UTF_8);
+    }
+    for (PatchLineComment c
+        : plcUtil.draftByChangeAuthor(db.get(), rsrc.getNotes(), accountId)) {
+      h.putString(c.getKey().toString(), UTF_8)
+        .putLong(c.getWrittenOn().getTime());
+    }
+    return h.hash().toString();
+  }
+}
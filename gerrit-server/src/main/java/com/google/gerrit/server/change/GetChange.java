@@ -27,6 +27,7 @@ import java.util.EnumSet;
 
 public class GetChange implements RestReadView<ChangeResource> {
   private final ChangeJson.Factory json;
+  private final ChangeJsonCache cache;
   private final EnumSet<ListChangesOption> options =
       EnumSet.noneOf(ListChangesOption.class);
 
@@ -41,13 +42,19 @@ public class GetChange implements RestReadView<ChangeResource> {
   }
 
   @Inject
-  GetChange(ChangeJson.Factory json) {
+  GetChange(ChangeJson.Factory json, ChangeJsonCache cache) {
     this.json = json;
+    this.cache = cache;
   }
 
   @Override
   public Response<ChangeInfo> apply(ChangeResource rsrc) throws OrmException {
-    return Response.withMustRevalidate(json.create(options).format(rsrc));
+    ChangeInfo info = cache.get(rsrc, options);
+    if (info == null) {
+      info = json.create(options).format(rsrc);
+      cache.put(rsrc, options, info);
+    }
+    return Response.withMustRevalidate(info);
   }
 
   Response<ChangeInfo> apply(RevisionResource rsrc) throws OrmException {
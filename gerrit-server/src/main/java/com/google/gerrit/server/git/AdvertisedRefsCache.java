@@ -0,0 +1,226 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.reviewdb.client.AccountGroup;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.cache.CacheBinding;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.cache.MemoryCacheFactory;
+import com.google.gerrit.server.project.ProjectControl;
+import com.google.gerrit.server.project.ProjectState;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.AbstractAdvertiseRefsHook;
+import org.eclipse.jgit.transport.AdvertiseRefsHook;
+import org.eclipse.jgit.transport.ServiceMayNotContinueException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refs advertised by upload-pack, already filtered by {@link VisibleRefFilter}
+ * and peeled, so that repeated fetches of a repository by the same user, e.g.
+ * from many CI jobs, neither filter nor peel the refs again.
+ * <p>
+ * The key covers everything the filter depends on: the project, the names
+ * and values of all refs, the user and the user's groups, and the revisions of
+ * the project configs. Any ref update therefore leads to a new entry. Entries
+ * expire after ten minutes, which bounds the staleness of change visibility
+ * that is not reflected in refs, e.g. reviewers of draft changes stored only
+ * in ReviewDb.
+ * <p>
+ * The cache is split into 4 segments, each holding a quarter of its weight, so
+ * an advertisement of more than a quarter of {@code memoryLimit} refs would be
+ * evicted as soon as it is put, and is not cached at all.
+ */
+@Singleton
+public class AdvertisedRefsCache {
+  private static final Logger log =
+      LoggerFactory.getLogger(AdvertisedRefsCache.class);
+
+  private static final String CACHE_NAME = "advertised_refs";
+
+  /** Segments of caches built by the default cache factory. */
+  private static final int SEGMENTS = 4;
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        CacheBinding<String, Map<String, Ref>> binding =
+            cache(CACHE_NAME,
+                String.class,
+                new TypeLiteral<Map<String, Ref>>() {})
+              .maximumWeight(400000)
+              .expireAfterWrite(10, TimeUnit.MINUTES)
+              .weigher(RefsWeigher.class);
+        bind(new TypeLiteral<CacheBinding<String, Map<String, Ref>>>() {})
+            .annotatedWith(Names.named(CACHE_NAME))
+            .toInstance(binding);
+        bind(AdvertisedRefsCache.class);
+      }
+    };
+  }
+
+  static class RefsWeigher implements Weigher<String, Map<String, Ref>> {
+    @Override
+    public int weigh(String key, Map<String, Ref> refs) {
+      // Bound the total number of cached refs rather than the number of
+      // advertisements, as repositories differ in size by orders of magnitude.
+      return 1 + refs.size();
+    }
+  }
+
+  private final Cache<String, Map<String, Ref>> cache;
+  private final RefsWeigher weigher;
+  private final long maxEntryWeight;
+  private final Set<String> tooLarge = ConcurrentHashMap.newKeySet();
+
+  @Inject
+  AdvertisedRefsCache(
+      MemoryCacheFactory cacheFactory,
+      @Named(CACHE_NAME) CacheBinding<String, Map<String, Ref>> binding,
+      @Named(CACHE_NAME) Cache<String, Map<String, Ref>> cache,
+      RefsWeigher weigher) {
+    this.cache = cache;
+    this.weigher = weigher;
+    this.maxEntryWeight = cacheFactory.memoryLimit(binding) / SEGMENTS;
+  }
+
+  /**
+   * Create a hook advertising the refs visible to a user through this cache.
+   *
+   * @param filter filter of the refs visible to the user, used on cache misses.
+   * @param ctl control of the project for the user.
+   * @return hook to set on an {@code UploadPack}.
+   */
+  public AdvertiseRefsHook newHook(final VisibleRefFilter filter,
+      final ProjectControl ctl) {
+    return new AbstractAdvertiseRefsHook() {
+      @Override
+      protected Map<String, Ref> getAdvertisedRefs(Repository repo,
+          RevWalk revWalk) throws ServiceMayNotContinueException {
+        try {
+          return get(repo, filter, ctl);
+        } catch (ServiceMayNotContinueException e) {
+          throw e;
+        } catch (IOException e) {
+          ServiceMayNotContinueException ex =
+              new ServiceMayNotContinueException();
+          ex.initCause(e);
+          throw ex;
+        }
+      }
+    };
+  }
+
+  private Map<String, Ref> get(Repository repo, VisibleRefFilter filter,
+      ProjectControl ctl) throws IOException {
+    Map<String, Ref> all = repo.getRefDatabase().getRefs(RefDatabase.ALL);
+    String key = key(ctl, all);
+    Map<String, Ref> refs = cache.getIfPresent(key);
+    if (refs == null) {
+      refs = peel(repo, filter.filter(all, false));
+      if (weigher.weigh(key, refs) <= maxEntryWeight) {
+        cache.put(key, refs);
+      } else if (tooLarge.add(ctl.getProject().getName())) {
+        log.warn("Not caching advertisement of " + refs.size() + " refs of "
+            + ctl.getProject().getName() + ", as it exceeds a quarter of"
+            + " cache.advertised_refs.memoryLimit");
+      }
+    }
+    return refs;
+  }
+
+  private static Map<String, Ref> peel(Repository repo,
+      Map<String, Ref> refs) {
+    // The advertisement includes the peeled value of annotated tags; peeling
+    // them once here spares every later fetch the tag object reads.
+    ImmutableMap.Builder<String, Ref> b = ImmutableMap.builder();
+    for (Map.Entry<String, Ref> e : refs.entrySet()) {
+      Ref r = e.getValue();
+      b.put(e.getKey(), r.isPeeled() ? r : repo.peel(r));
+    }
+    return b.build();
+  }
+
+  private static String key(ProjectControl ctl, Map<String, Ref> refs) {
+    Hasher h = Hashing.sha1().newHasher()
+        .putString(ctl.getProject().getName(), UTF_8)
+        .putByte((byte) 0);
+
+    CurrentUser user = ctl.getUser();
+    if (user.isIdentifiedUser()) {
+      h.putInt(user.getAccountId().get());
+    } else {
+      h.putInt(0);
+    }
+    TreeSet<String> groups = new TreeSet<>();
+    for (AccountGroup.UUID uuid : user.getEffectiveGroups().getKnownGroups()) {
+      groups.add(uuid.get());
+    }
+    for (String g : groups) {
+      h.putString(g, UTF_8).putByte((byte) 0);
+    }
+    byte[] buf = new byte[Constants.OBJECT_ID_LENGTH];
+    for (ProjectState s : ctl.getProjectState().tree()) {
+      putId(h, buf, s.getConfig().getRevision());
+    }
+
+    // Refs are sorted by name, so equal ref databases hash to the same key.
+    for (Ref r : refs.values()) {
+      h.putString(r.getName(), UTF_8).putByte((byte) 0);
+      if (r.isSymbolic()) {
+        h.putString(r.getTarget().getName(), UTF_8).putByte((byte) 0);
+      } else {
+        putId(h, buf, r.getObjectId());
+      }
+    }
+    return h.hash().toString();
+  }
+
+  private static void putId(Hasher h, byte[] buf, ObjectId id) {
+    h.putByte((byte) 0);
+    if (id != null) {
+      id.copyRawTo(buf, 0);
+      h.putBytes(buf);
+    }
+  }
+}
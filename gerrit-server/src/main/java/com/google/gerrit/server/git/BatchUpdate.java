@@ -59,7 +59,9 @@ import com.google.gerrit.server.project.InvalidChangeOperationException;
 import com.google.gerrit.server.project.NoSuchChangeException;
 import com.google.gerrit.server.project.NoSuchProjectException;
 import com.google.gerrit.server.project.NoSuchRefException;
+import com.google.gerrit.server.util.ManualRequestContext;
 import com.google.gerrit.server.util.RequestId;
+import com.google.gerrit.server.util.ThreadLocalRequestContext;
 import com.google.gwtorm.server.OrmConcurrencyException;
 import com.google.gwtorm.server.OrmException;
 import com.google.gwtorm.server.SchemaFactory;
@@ -192,6 +194,17 @@ public class BatchUpdate implements AutoCloseable {
   }
 
   public class RepoContext extends Context {
+    private final ReviewDb db;
+
+    private RepoContext(ReviewDb db) {
+      this.db = db;
+    }
+
+    @Override
+    public ReviewDb getDb() {
+      return db;
+    }
+
     @Override
     public Repository getRepository() throws IOException {
       return BatchUpdate.this.getRepository();
@@ -345,6 +358,13 @@ public class BatchUpdate implements AutoCloseable {
     /** Called after updating all changes. */
     public void afterUpdateChanges() throws Exception {
     }
+
+    /**
+     * Called after all changes are reindexed, but before firing ref update
+     * events and running post-update steps.
+     */
+    public void afterReindex() throws Exception {
+    }
   }
 
   private static Order getOrder(Collection<BatchUpdate> updates) {
@@ -379,6 +399,64 @@ public class BatchUpdate implements AutoCloseable {
     return p;
   }
 
+  private static boolean getUpdateReposInParallel(
+      Collection<BatchUpdate> updates) {
+    Boolean p = null;
+    for (BatchUpdate u : updates) {
+      if (p == null) {
+        p = u.updateReposInParallel;
+      } else if (u.updateReposInParallel != p) {
+        throw new IllegalArgumentException(
+            "cannot mix parallel and non-parallel repository updates");
+      }
+    }
+    return p && updates.size() > 1;
+  }
+
+  private static void executeUpdateRepos(Collection<BatchUpdate> updates,
+      boolean parallel) throws UpdateException, RestApiException {
+    if (!parallel) {
+      for (BatchUpdate u : updates) {
+        u.executeUpdateRepo(u.db);
+      }
+      return;
+    }
+
+    ListeningExecutorService executor =
+        updates.iterator().next().repoUpdateExecutor;
+    List<ListenableFuture<?>> futures = new ArrayList<>(updates.size());
+    for (BatchUpdate u : updates) {
+      futures.add(executor.submit(u.new RepoTask(Thread.currentThread())));
+    }
+    // Wait for all updates, even after a failure, so that no task is still
+    // using a repository when the caller closes it.
+    ExecutionException failure = null;
+    try {
+      for (ListenableFuture<?> f : futures) {
+        try {
+          f.get();
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = e;
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      for (ListenableFuture<?> f : futures) {
+        f.cancel(true);
+      }
+      Thread.currentThread().interrupt();
+      throw new UpdateException(e);
+    }
+    if (failure != null) {
+      Throwables.propagateIfInstanceOf(
+          failure.getCause(), UpdateException.class);
+      Throwables.propagateIfInstanceOf(
+          failure.getCause(), RestApiException.class);
+      throw new UpdateException(failure.getCause());
+    }
+  }
+
   static void execute(Collection<BatchUpdate> updates, Listener listener,
       @Nullable RequestId requestId, boolean dryrun)
           throws UpdateException, RestApiException {
@@ -396,11 +474,10 @@ public class BatchUpdate implements AutoCloseable {
     try {
       Order order = getOrder(updates);
       boolean updateChangesInParallel = getUpdateChangesInParallel(updates);
+      boolean updateReposInParallel = getUpdateReposInParallel(updates);
       switch (order) {
         case REPO_BEFORE_DB:
-          for (BatchUpdate u : updates) {
-            u.executeUpdateRepo();
-          }
+          executeUpdateRepos(updates, updateReposInParallel);
           listener.afterUpdateRepos();
           for (BatchUpdate u : updates) {
             u.executeRefUpdates(dryrun);
@@ -416,9 +493,7 @@ public class BatchUpdate implements AutoCloseable {
             u.executeChangeOps(updateChangesInParallel, dryrun);
           }
           listener.afterUpdateChanges();
-          for (BatchUpdate u : updates) {
-            u.executeUpdateRepo();
-          }
+          executeUpdateRepos(updates, updateReposInParallel);
           listener.afterUpdateRepos();
           for (BatchUpdate u : updates) {
             u.executeRefUpdates(dryrun);
@@ -434,6 +509,7 @@ public class BatchUpdate implements AutoCloseable {
         indexFutures.addAll(u.indexFutures);
       }
       ChangeIndexer.allAsList(indexFutures).get();
+      listener.afterReindex();
 
       for (BatchUpdate u : updates) {
         if (u.batchRefUpdate != null) {
@@ -480,10 +556,12 @@ public class BatchUpdate implements AutoCloseable {
   private final GitReferenceUpdated gitRefUpdated;
   private final GitRepositoryManager repoManager;
   private final ListeningExecutorService changeUpdateExector;
+  private final ListeningExecutorService repoUpdateExecutor;
   private final NoteDbUpdateManager.Factory updateManagerFactory;
   private final NotesMigration notesMigration;
   private final ReviewDb db;
   private final SchemaFactory<ReviewDb> schemaFactory;
+  private final ThreadLocalRequestContext requestContext;
 
   private final long logThresholdNanos;
   private final Project.NameKey project;
@@ -506,6 +584,7 @@ public class BatchUpdate implements AutoCloseable {
   private boolean closeRepo;
   private Order order;
   private boolean updateChangesInParallel;
+  private boolean updateReposInParallel;
   private RequestId requestId;
 
   @AssistedInject
@@ -522,7 +601,9 @@ public class BatchUpdate implements AutoCloseable {
       GitRepositoryManager repoManager,
       NoteDbUpdateManager.Factory updateManagerFactory,
       NotesMigration notesMigration,
+      @RepoUpdateExecutor ListeningExecutorService repoUpdateExecutor,
       SchemaFactory<ReviewDb> schemaFactory,
+      ThreadLocalRequestContext requestContext,
       @Assisted ReviewDb db,
       @Assisted Project.NameKey project,
       @Assisted CurrentUser user,
@@ -536,7 +617,9 @@ public class BatchUpdate implements AutoCloseable {
     this.indexer = indexer;
     this.notesMigration = notesMigration;
     this.repoManager = repoManager;
+    this.repoUpdateExecutor = repoUpdateExecutor;
     this.schemaFactory = schemaFactory;
+    this.requestContext = requestContext;
     this.updateManagerFactory = updateManagerFactory;
 
     this.logThresholdNanos = MILLISECONDS.toNanos(
@@ -589,6 +672,20 @@ public class BatchUpdate implements AutoCloseable {
     return this;
   }
 
+  /**
+   * Execute {@link Op#updateRepo(RepoContext)} concurrently with the other
+   * updates passed to the same {@code execute} call, each update in its own
+   * thread.
+   * <p>
+   * Ops of a single update still run sequentially. All updates executed
+   * together must set this, and must not depend on each other's repository
+   * updates.
+   */
+  public BatchUpdate updateReposInParallel() {
+    this.updateReposInParallel = true;
+    return this;
+  }
+
   private void initRepository() throws IOException {
     if (repo == null) {
       this.repo = repoManager.openRepository(project);
@@ -654,10 +751,11 @@ public class BatchUpdate implements AutoCloseable {
     execute(ImmutableList.of(this), listener, requestId, false);
   }
 
-  private void executeUpdateRepo() throws UpdateException, RestApiException {
+  private void executeUpdateRepo(ReviewDb db)
+      throws UpdateException, RestApiException {
     try {
       logDebug("Executing updateRepo on {} ops", ops.size());
-      RepoContext ctx = new RepoContext();
+      RepoContext ctx = new RepoContext(db);
       for (Op op : ops.values()) {
         op.updateRepo(ctx);
       }
@@ -884,6 +982,29 @@ public class BatchUpdate implements AutoCloseable {
     }
   }
 
+  private class RepoTask implements Callable<Void> {
+    private final Thread mainThread;
+
+    private RepoTask(Thread mainThread) {
+      this.mainThread = mainThread;
+    }
+
+    @Override
+    public Void call() throws Exception {
+      if (Thread.currentThread() == mainThread) {
+        executeUpdateRepo(db);
+      } else {
+        // The caller's ReviewDb must not be shared between threads. Ops may
+        // also use request scoped objects, so run them as the update's user.
+        try (ManualRequestContext ctx =
+            new ManualRequestContext(user, schemaFactory, requestContext)) {
+          executeUpdateRepo(ctx.getReviewDbProvider().get());
+        }
+      }
+      return null;
+    }
+  }
+
   private class ChangeTask implements Callable<Void> {
     final Change.Id id;
     private final Collection<Op> changeOps;
@@ -0,0 +1,182 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.cache.Cache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.reviewdb.client.AccountGroup;
+import com.google.gerrit.reviewdb.client.RefNames;
+import com.google.gerrit.server.IdentifiedUser;
+import com.google.gerrit.server.cache.CacheBinding;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.cache.MemoryCacheFactory;
+import com.google.gerrit.server.config.AllUsersName;
+import com.google.gerrit.server.git.validators.CommitValidationMessage;
+import com.google.gerrit.server.git.validators.CommitValidators;
+import com.google.gerrit.server.project.ProjectState;
+import com.google.gerrit.server.project.RefControl;
+import com.google.inject.Inject;
+import com.google.inject.Module;
+import com.google.inject.Singleton;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages of commits that passed validation in {@link ReceiveCommits}, so
+ * that pushing the same commits again, e.g. after another commit of the push
+ * was rejected, does not validate them again.
+ * <p>
+ * Only successful validations are cached. Besides the commit, the key covers
+ * everything the validators depend on: the user with their groups and email
+ * addresses, the destination ref, the validation policy, the set of
+ * validators including plugin validators, and the revisions of the project
+ * configs and banned commits. It does not cover state outside of Gerrit that
+ * validators may check, like an issue tracker, which is why the cache is
+ * disabled by default.
+ */
+@Singleton
+public class CommitValidationCache {
+  private static final String CACHE_NAME = "commit_validation";
+
+  public static Module module() {
+    return new CacheModule() {
+      @Override
+      protected void configure() {
+        CacheBinding<String, List<CommitValidationMessage>> binding =
+            cache(CACHE_NAME,
+                String.class,
+                new TypeLiteral<List<CommitValidationMessage>>() {})
+              .maximumWeight(0)
+              .expireAfterWrite(1, TimeUnit.HOURS);
+        bind(new TypeLiteral<
+                CacheBinding<String, List<CommitValidationMessage>>>() {})
+            .annotatedWith(Names.named(CACHE_NAME))
+            .toInstance(binding);
+        bind(CommitValidationCache.class);
+      }
+    };
+  }
+
+  private final Cache<String, List<CommitValidationMessage>> cache;
+  private final AllUsersName allUsers;
+  private final boolean enabled;
+
+  @Inject
+  CommitValidationCache(
+      MemoryCacheFactory cacheFactory,
+      @Named(CACHE_NAME)
+          CacheBinding<String, List<CommitValidationMessage>> binding,
+      @Named(CACHE_NAME) Cache<String, List<CommitValidationMessage>> cache,
+      AllUsersName allUsers) {
+    this.cache = cache;
+    this.allUsers = allUsers;
+    this.enabled = cacheFactory.memoryLimit(binding) > 0;
+  }
+
+  /**
+   * Compute the part of the key shared by all commits validated together.
+   *
+   * @param ctl control of the destination ref.
+   * @param repo repository of the project.
+   * @param policy validation policy.
+   * @param validators validators that will run.
+   * @return context to pass to {@link #get} and {@link #put}; null if the
+   *     cache is disabled, or if the validation results depend on more than
+   *     the commit and must not be cached.
+   * @throws IOException the banned commits could not be read.
+   */
+  @Nullable
+  String newContext(RefControl ctl, Repository repo,
+      CommitValidators.Policy policy, CommitValidators validators)
+      throws IOException {
+    if (!enabled) {
+      return null;
+    }
+    // Validation of project and user configs depends on the pushed tree.
+    if (RefNames.REFS_CONFIG.equals(ctl.getRefName())
+        || allUsers.equals(ctl.getProjectControl().getProject().getNameKey())) {
+      return null;
+    }
+
+    IdentifiedUser user = ctl.getUser().asIdentifiedUser();
+    Hasher h = Hashing.sha1().newHasher()
+        .putString(ctl.getProjectControl().getProject().getName(), UTF_8)
+        .putByte((byte) 0)
+        .putString(ctl.getRefName(), UTF_8)
+        .putByte((byte) 0)
+        .putInt(user.getAccountId().get())
+        .putString(policy.name(), UTF_8);
+    // Validators check permissions and the user's email addresses.
+    TreeSet<String> groups = new TreeSet<>();
+    for (AccountGroup.UUID uuid : user.getEffectiveGroups().getKnownGroups()) {
+      groups.add(uuid.get());
+    }
+    putStrings(h, groups);
+    putStrings(h, new TreeSet<>(user.getEmailAddresses()));
+    for (String id : validators.getValidatorIds()) {
+      h.putByte((byte) 0).putString(id, UTF_8);
+    }
+    for (ProjectState s : ctl.getProjectControl().getProjectState().tree()) {
+      putId(h, s.getConfig().getRevision());
+    }
+    Ref banned = repo.getRefDatabase().exactRef(RefNames.REFS_REJECT_COMMITS);
+    putId(h, banned != null ? banned.getObjectId() : null);
+    return h.hash().toString();
+  }
+
+  private static void putStrings(Hasher h, Iterable<String> strings) {
+    h.putByte((byte) 0);
+    for (String str : strings) {
+      h.putString(str, UTF_8).putByte((byte) 0);
+    }
+  }
+
+  private static void putId(Hasher h, @Nullable ObjectId id) {
+    h.putByte((byte) 0);
+    if (id != null) {
+      h.putString(id.name(), UTF_8);
+    }
+  }
+
+  @Nullable
+  List<CommitValidationMessage> get(String context, AnyObjectId commit) {
+    return cache.getIfPresent(key(context, commit));
+  }
+
+  void put(String context, AnyObjectId commit,
+      List<CommitValidationMessage> messages) {
+    cache.put(key(context, commit), ImmutableList.copyOf(messages));
+  }
+
+  private static String key(String context, AnyObjectId commit) {
+    return context + commit.name();
+  }
+}
@@ -18,6 +18,7 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static java.util.Comparator.comparing;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 import com.google.auto.value.AutoValue;
 import com.google.common.base.Joiner;
@@ -30,6 +31,7 @@ import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.MultimapBuilder;
+import com.google.common.collect.Multimaps;
 import com.google.common.collect.Sets;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.common.TimeUtil;
@@ -50,9 +52,11 @@ import com.google.gerrit.server.ChangeMessagesUtil;
 import com.google.gerrit.server.ChangeUtil;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.InternalUser;
+import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.git.BatchUpdate.ChangeContext;
 import com.google.gerrit.server.git.MergeOpRepoManager.OpenBranch;
 import com.google.gerrit.server.git.MergeOpRepoManager.OpenRepo;
+import com.google.gerrit.server.git.SubmitMetrics.Phase;
 import com.google.gerrit.server.git.strategy.SubmitStrategy;
 import com.google.gerrit.server.git.strategy.SubmitStrategyFactory;
 import com.google.gerrit.server.git.strategy.SubmitStrategyListener;
@@ -68,6 +72,7 @@ import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
 
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
@@ -79,6 +84,7 @@ import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
@@ -119,11 +125,12 @@ public class MergeOp implements AutoCloseable {
         bb.put(cd.change().getDest(), cd.getId());
       }
       byBranch = bb.build();
-      commits = new HashMap<>();
-      problems = MultimapBuilder
+      // Submit strategies of different projects may run concurrently.
+      commits = Collections.synchronizedMap(new HashMap<>());
+      problems = Multimaps.synchronizedListMultimap(MultimapBuilder
           .treeKeys(comparing(Change.Id::get))
           .arrayListValues(1)
-          .build();
+          .build());
     }
 
     public ImmutableSet<Change.Id> getChangeIds() {
@@ -217,6 +224,8 @@ public class MergeOp implements AutoCloseable {
   private final SubmitStrategyFactory submitStrategyFactory;
   private final SubmoduleOp.Factory subOpFactory;
   private final MergeOpRepoManager orm;
+  private final SubmitMetrics metrics;
+  private final int submitThreads;
 
   private Timestamp ts;
   private RequestId submissionId;
@@ -237,7 +246,9 @@ public class MergeOp implements AutoCloseable {
       InternalChangeQuery internalChangeQuery,
       SubmitStrategyFactory submitStrategyFactory,
       SubmoduleOp.Factory subOpFactory,
-      MergeOpRepoManager orm) {
+      MergeOpRepoManager orm,
+      SubmitMetrics metrics,
+      @GerritServerConfig Config cfg) {
     this.cmUtil = cmUtil;
     this.batchUpdateFactory = batchUpdateFactory;
     this.internalUserFactory = internalUserFactory;
@@ -247,6 +258,12 @@ public class MergeOp implements AutoCloseable {
     this.submitStrategyFactory = submitStrategyFactory;
     this.subOpFactory = subOpFactory;
     this.orm = orm;
+    this.metrics = metrics;
+    this.submitThreads = submitThreads(cfg);
+  }
+
+  static int submitThreads(Config cfg) {
+    return cfg.getInt("change", null, "submitThreads", 1);
   }
 
   @Override
@@ -486,9 +503,17 @@ public class MergeOp implements AutoCloseable {
         allProjects = projects;
       }
       this.allProjects = allProjects;
-      BatchUpdate.execute(orm.batchUpdates(allProjects),
-          new SubmitStrategyListener(submitInput, strategies, commits),
-          submissionId, dryrun);
+      List<BatchUpdate> updates = orm.batchUpdates(allProjects);
+      if (canUpdateReposInParallel(toSubmit, submoduleOp, updates)) {
+        logDebug("Updating {} repositories in parallel", updates.size());
+        for (BatchUpdate u : updates) {
+          u.updateReposInParallel();
+        }
+      }
+      PhaseTimer timer = new PhaseTimer(
+          new SubmitStrategyListener(submitInput, strategies, commits));
+      BatchUpdate.execute(updates, timer, submissionId, dryrun);
+      timer.done();
     } catch (UpdateException | SubmoduleException e) {
       // BatchUpdate may have inadvertently wrapped an IntegrationException
       // thrown by some legacy SubmitStrategyOp code that intended the error
@@ -508,6 +533,88 @@ public class MergeOp implements AutoCloseable {
     }
   }
 
+  /**
+   * Whether the merge tips of all branches can be computed concurrently, one
+   * thread per project.
+   * <p>
+   * Superproject subscriptions make the gitlinks of a superproject depend on
+   * the new tips of its submodules, so any submission touching a
+   * subscription is integrated one project at a time.
+   */
+  private boolean canUpdateReposInParallel(
+      Map<Branch.NameKey, BranchBatch> toSubmit, SubmoduleOp submoduleOp,
+      List<BatchUpdate> updates) {
+    if (submitThreads <= 1 || updates.size() <= 1) {
+      return false;
+    }
+    Set<Branch.NameKey> allBranches = submoduleOp.getBranchesInOrder();
+    if (allBranches == null) {
+      return true;
+    }
+    for (Branch.NameKey branch : allBranches) {
+      if (!toSubmit.containsKey(branch) || submoduleOp.hasSubscription(branch)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Records the latency of each phase of {@link BatchUpdate#execute}, then
+   * calls the wrapped listener.
+   */
+  private class PhaseTimer extends BatchUpdate.Listener {
+    private final BatchUpdate.Listener delegate;
+    private final long start;
+    private long phaseStart;
+
+    private PhaseTimer(BatchUpdate.Listener delegate) {
+      this.delegate = delegate;
+      this.start = System.nanoTime();
+      this.phaseStart = start;
+    }
+
+    @Override
+    public void afterUpdateRepos() throws Exception {
+      delegate.afterUpdateRepos();
+      record(Phase.MERGE);
+    }
+
+    @Override
+    public void afterRefUpdates() throws Exception {
+      delegate.afterRefUpdates();
+      record(Phase.REF_UPDATE);
+    }
+
+    @Override
+    public void afterUpdateChanges() throws Exception {
+      delegate.afterUpdateChanges();
+      record(Phase.CHANGE_UPDATE);
+    }
+
+    @Override
+    public void afterReindex() throws Exception {
+      delegate.afterReindex();
+      record(Phase.INDEX);
+    }
+
+    private void done() {
+      record(Phase.POST_UPDATE);
+      if (!dryrun) {
+        metrics.submitLatency.record(
+            System.nanoTime() - start, NANOSECONDS);
+      }
+    }
+
+    private void record(Phase phase) {
+      long now = System.nanoTime();
+      if (!dryrun) {
+        metrics.phaseLatency.record(phase, now - phaseStart, NANOSECONDS);
+      }
+      phaseStart = now;
+    }
+  }
+
   public Set<Project.NameKey> getAllProjects() {
     return allProjects;
   }
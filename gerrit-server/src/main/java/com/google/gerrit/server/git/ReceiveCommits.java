@@ -36,6 +36,7 @@ import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
@@ -50,6 +51,8 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Sets;
 import com.google.common.collect.SortedSetMultimap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.common.TimeUtil;
 import com.google.gerrit.common.data.Capable;
@@ -117,10 +120,13 @@ import com.google.gerrit.server.query.change.InternalChangeQuery;
 import com.google.gerrit.server.ssh.SshInfo;
 import com.google.gerrit.server.util.LabelVote;
 import com.google.gerrit.server.util.MagicBranch;
+import com.google.gerrit.server.util.ManualRequestContext;
 import com.google.gerrit.server.util.RequestId;
 import com.google.gerrit.server.util.RequestScopePropagator;
+import com.google.gerrit.server.util.ThreadLocalRequestContext;
 import com.google.gerrit.util.cli.CmdLineParser;
 import com.google.gwtorm.server.OrmException;
+import com.google.gwtorm.server.SchemaFactory;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.assistedinject.Assisted;
@@ -169,7 +175,9 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -291,11 +299,15 @@ public class ReceiveCommits {
   private final ProjectCache projectCache;
   private final String canonicalWebUrl;
   private final CommitValidators.Factory commitValidatorsFactory;
+  private final CommitValidationCache commitValidationCache;
+  private final ListeningExecutorService commitValidationExecutor;
   private final RefOperationValidators.Factory refValidatorsFactory;
   private final TagCache tagCache;
   private final AccountCache accountCache;
   private final ChangeInserter.Factory changeInserterFactory;
   private final RequestScopePropagator requestScopePropagator;
+  private final SchemaFactory<ReviewDb> schemaFactory;
+  private final ThreadLocalRequestContext requestContext;
   private final SshInfo sshInfo;
   private final AllProjectsName allProjectsName;
   private final ReceiveConfig receiveConfig;
@@ -358,11 +370,17 @@ public class ReceiveCommits {
       TagCache tagCache,
       AccountCache accountCache,
       @Nullable SearchingChangeCacheImpl changeCache,
+      @Nullable VisibleChangesCache visibleChangesCache,
       ChangeInserter.Factory changeInserterFactory,
       CommitValidators.Factory commitValidatorsFactory,
+      CommitValidationCache commitValidationCache,
+      @CommitValidationExecutor
+          ListeningExecutorService commitValidationExecutor,
       RefOperationValidators.Factory refValidatorsFactory,
       @CanonicalWebUrl String canonicalWebUrl,
       RequestScopePropagator requestScopePropagator,
+      SchemaFactory<ReviewDb> schemaFactory,
+      ThreadLocalRequestContext requestContext,
       SshInfo sshInfo,
       AllProjectsName allProjectsName,
       ReceiveConfig receiveConfig,
@@ -398,8 +416,12 @@ public class ReceiveCommits {
     this.accountCache = accountCache;
     this.changeInserterFactory = changeInserterFactory;
     this.commitValidatorsFactory = commitValidatorsFactory;
+    this.commitValidationCache = commitValidationCache;
+    this.commitValidationExecutor = commitValidationExecutor;
     this.refValidatorsFactory = refValidatorsFactory;
     this.requestScopePropagator = requestScopePropagator;
+    this.schemaFactory = schemaFactory;
+    this.requestContext = requestContext;
     this.sshInfo = sshInfo;
     this.allProjectsName = allProjectsName;
     this.receiveConfig = receiveConfig;
@@ -459,7 +481,7 @@ public class ReceiveCommits {
           receiveConfig.checkReferencedObjectsAreReachable);
     }
     rp.setAdvertiseRefsHook(new VisibleRefFilter(tagCache, notesFactory,
-        changeCache, repo, projectControl, db, false));
+        changeCache, visibleChangesCache, repo, projectControl, db, false));
     List<AdvertiseRefsHook> advHooks = new ArrayList<>(3);
     advHooks.add(new AdvertiseRefsHook() {
       @Override
@@ -2574,15 +2596,15 @@ public class ReceiveCommits {
       SetMultimap<ObjectId, Ref> existing = changeRefsById();
       walk.markStart((RevCommit)parsedObject);
       markHeadsAsUninteresting(walk, cmd.getRefName());
-      int i = 0;
+      List<RevCommit> toValidate = new ArrayList<>();
       for (RevCommit c; (c = walk.next()) != null;) {
-        i++;
-        if (existing.keySet().contains(c)) {
-          continue;
-        } else if (!validCommit(walk, ctl, cmd, c)) {
-          break;
+        if (!existing.keySet().contains(c)) {
+          toValidate.add(c);
         }
+      }
 
+      int valid = validCommits(walk, ctl, cmd, toValidate);
+      for (RevCommit c : toValidate.subList(0, valid)) {
         if (defaultName && user.hasEmailAddress(
               c.getCommitterIdent().getEmailAddress())) {
           try {
@@ -2600,7 +2622,7 @@ public class ReceiveCommits {
           }
         }
       }
-      logDebug("Validated {} new commits", i);
+      logDebug("Validated {} new commits", valid);
     } catch (IOException err) {
       cmd.setResult(REJECTED_MISSING_OBJECT);
       logError("Invalid pack upload; one or more objects weren't sent", err);
@@ -2609,16 +2631,21 @@ public class ReceiveCommits {
 
   private boolean validCommit(RevWalk rw, RefControl ctl, ReceiveCommand cmd,
       ObjectId id) throws IOException {
+    return validCommits(rw, ctl, cmd, Collections.singletonList(id)) == 1;
+  }
 
-    if (validCommits.contains(id)) {
-      return true;
-    }
-
-    RevCommit c = rw.parseCommit(id);
-    rw.parseBody(c);
-    CommitReceivedEvent receiveEvent =
-        new CommitReceivedEvent(cmd, project, ctl.getRefName(), c, user);
-
+  /**
+   * Validate commits, in parallel if receive.commitValidationThreads is
+   * greater than 1.
+   * <p>
+   * Results are processed in the order of the commits, so the command is
+   * rejected for the first invalid commit with the same messages as if the
+   * commits had been validated one at a time.
+   *
+   * @return number of leading commits that are valid.
+   */
+  private int validCommits(RevWalk rw, RefControl ctl, ReceiveCommand cmd,
+      List<? extends ObjectId> ids) throws IOException {
     CommitValidators.Policy policy;
     if (magicBranch != null
         && cmd.getRefName().equals(magicBranch.cmd.getRefName())
@@ -2628,18 +2655,96 @@ public class ReceiveCommits {
       policy = CommitValidators.Policy.RECEIVE_COMMITS;
     }
 
+    final Thread mainThread = Thread.currentThread();
+    CommitValidators validators = null;
+    String cacheContext = null;
+    int window = receiveConfig.commitValidationThreads > 1
+        ? 2 * receiveConfig.commitValidationThreads
+        : 1;
+    List<Future<List<CommitValidationMessage>>> results =
+        new ArrayList<>(ids.size());
+    // Only results of validators run for this command may be cached for it;
+    // commits validated for another command of the push are skipped.
+    boolean[] computed = new boolean[ids.size()];
     try {
-      messages.addAll(
-          commitValidatorsFactory.create(policy, ctl, sshInfo, repo)
-              .validate(receiveEvent));
-    } catch (CommitValidationException e) {
-      logDebug("Commit validation failed on {}", c.name());
-      messages.addAll(e.getMessages());
-      reject(cmd, e.getMessage());
-      return false;
+      for (int i = 0; i < ids.size(); i++) {
+        // Parse commits on this thread, as the RevWalk is not thread-safe.
+        while (results.size() < Math.min(ids.size(), i + window)) {
+          ObjectId id = ids.get(results.size());
+          List<CommitValidationMessage> cached = null;
+          if (validCommits.contains(id)) {
+            cached = Collections.emptyList();
+          } else {
+            if (validators == null) {
+              validators =
+                  commitValidatorsFactory.create(policy, ctl, sshInfo, repo);
+              cacheContext = commitValidationCache.newContext(
+                  ctl, repo, policy, validators);
+            }
+            if (cacheContext != null) {
+              cached = commitValidationCache.get(cacheContext, id);
+            }
+          }
+          if (cached != null) {
+            results.add(Futures.immediateFuture(cached));
+            continue;
+          }
+
+          computed[results.size()] = true;
+          RevCommit c = rw.parseCommit(id);
+          rw.parseBody(c);
+          final CommitValidators v = validators;
+          final CommitReceivedEvent receiveEvent =
+              new CommitReceivedEvent(cmd, project, ctl.getRefName(), c, user);
+          results.add(commitValidationExecutor.submit(
+              requestScopePropagator.wrap(
+                  new Callable<List<CommitValidationMessage>>() {
+                    @Override
+                    public List<CommitValidationMessage> call()
+                        throws CommitValidationException, OrmException {
+                      if (Thread.currentThread() == mainThread) {
+                        return v.validate(receiveEvent);
+                      }
+                      // The request's ReviewDb must not be shared between
+                      // threads, so validators get their own.
+                      try (ManualRequestContext ctx = new ManualRequestContext(
+                          user, schemaFactory, requestContext)) {
+                        return v.validate(receiveEvent);
+                      }
+                    }
+                  })));
+        }
+
+        ObjectId id = ids.get(i);
+        try {
+          List<CommitValidationMessage> m = results.get(i).get();
+          messages.addAll(m);
+          if (computed[i] && cacheContext != null) {
+            commitValidationCache.put(cacheContext, id, m);
+          }
+          validCommits.add(id.copy());
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof CommitValidationException) {
+            CommitValidationException ve =
+                (CommitValidationException) e.getCause();
+            logDebug("Commit validation failed on {}", id.name());
+            messages.addAll(ve.getMessages());
+            reject(cmd, ve.getMessage());
+            return i;
+          }
+          Throwables.propagateIfPossible(e.getCause());
+          throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted validating commits", e);
+        }
+      }
+      return ids.size();
+    } finally {
+      for (Future<?> f : results) {
+        f.cancel(true);
+      }
     }
-    validCommits.add(c.copy());
-    return true;
   }
 
   private void autoCloseChanges(final ReceiveCommand cmd) {
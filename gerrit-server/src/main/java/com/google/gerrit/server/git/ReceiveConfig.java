@@ -28,8 +28,13 @@ class ReceiveConfig {
   final boolean checkMagicRefs;
   final boolean checkReferencedObjectsAreReachable;
   final boolean allowDrafts;
+  final int commitValidationThreads;
   private final int systemMaxBatchChanges;
 
+  static int commitValidationThreads(Config config) {
+    return config.getInt("receive", null, "commitValidationThreads", 1);
+  }
+
   @Inject
   ReceiveConfig(@GerritServerConfig Config config) {
     checkMagicRefs = config.getBoolean(
@@ -41,6 +46,7 @@ class ReceiveConfig {
     allowDrafts = config.getBoolean(
         "change", null, "allowDrafts",
         true);
+    commitValidationThreads = commitValidationThreads(config);
     systemMaxBatchChanges = config.getInt("receive", "maxBatchChanges", 0);
   }
 
@@ -17,33 +17,51 @@ package com.google.gerrit.server.git;
 import com.google.auto.value.AutoValue;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Striped;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
 import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
 import com.google.gerrit.reviewdb.client.Change;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.reviewdb.client.RefNames;
 import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.server.ReviewerSet;
 import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.index.change.ChangeField;
 import com.google.gerrit.server.query.change.ChangeData;
 import com.google.gerrit.server.query.change.InternalChangeQuery;
 import com.google.gerrit.server.util.OneOffRequestContext;
+import com.google.gwtorm.server.OrmException;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import com.google.inject.TypeLiteral;
 import com.google.inject.name.Named;
 
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.Repository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.Lock;
 
 @Singleton
 public class SearchingChangeCacheImpl implements GitReferenceUpdatedListener {
@@ -51,6 +69,15 @@ public class SearchingChangeCacheImpl implements GitReferenceUpdatedListener {
       LoggerFactory.getLogger(SearchingChangeCacheImpl.class);
   static final String ID_CACHE = "changes";
 
+  /**
+   * Above this many dirty changes, caches of a project's changes reload it
+   * with a single query instead of reading each dirty change.
+   */
+  static final int MAX_DIRTY = 100;
+
+  /** Number of locks serializing patches of project entries. */
+  private static final int LOCK_STRIPES = 64;
+
   public static class Module extends CacheModule {
     @Override
     protected void configure() {
@@ -58,7 +85,8 @@ public class SearchingChangeCacheImpl implements GitReferenceUpdatedListener {
           Project.NameKey.class,
           new TypeLiteral<List<CachedChange>>() {})
         .maximumWeight(0)
-        .loader(Loader.class);
+        .loader(Loader.class)
+        .weigher(ChangesWeigher.class);
 
       bind(SearchingChangeCacheImpl.class);
       DynamicSet.bind(binder(), GitReferenceUpdatedListener.class)
@@ -75,15 +103,60 @@ public class SearchingChangeCacheImpl implements GitReferenceUpdatedListener {
     @Nullable abstract ReviewerSet reviewers();
   }
 
+  static boolean incrementalUpdate(Config cfg) {
+    return cfg.getBoolean("cache", ID_CACHE, "incrementalUpdate", false);
+  }
+
+  @Singleton
+  static class Metrics {
+    final Counter0 patchCount;
+    final Counter0 reloadCount;
+
+    @Inject
+    Metrics(MetricMaker metricMaker) {
+      patchCount = metricMaker.newCounter(
+          "caches/changes/patch_count",
+          new Description("Project entries patched with updated changes")
+            .setRate()
+            .setUnit("updates"));
+      reloadCount = metricMaker.newCounter(
+          "caches/changes/reload_count",
+          new Description("Project entries loaded with a full index query")
+            .setRate()
+            .setUnit("loads"));
+    }
+  }
+
   private final LoadingCache<Project.NameKey, List<CachedChange>> cache;
   private final ChangeData.Factory changeDataFactory;
+  private final OneOffRequestContext requestContext;
+  private final Provider<InternalChangeQuery> queryProvider;
+  private final GitRepositoryManager repoManager;
+  private final Metrics metrics;
+  private final boolean incrementalUpdate;
+  private final ConcurrentMap<Project.NameKey, Set<Change.Id>> dirty;
+  private final ConcurrentMap<Project.NameKey, Integer> loading;
+  private final Striped<Lock> locks;
 
   @Inject
   SearchingChangeCacheImpl(
       @Named(ID_CACHE) LoadingCache<Project.NameKey, List<CachedChange>> cache,
-      ChangeData.Factory changeDataFactory) {
+      ChangeData.Factory changeDataFactory,
+      OneOffRequestContext requestContext,
+      Provider<InternalChangeQuery> queryProvider,
+      GitRepositoryManager repoManager,
+      Metrics metrics,
+      @GerritServerConfig Config cfg) {
     this.cache = cache;
     this.changeDataFactory = changeDataFactory;
+    this.requestContext = requestContext;
+    this.queryProvider = queryProvider;
+    this.repoManager = repoManager;
+    this.metrics = metrics;
+    this.incrementalUpdate = incrementalUpdate(cfg);
+    this.dirty = new ConcurrentHashMap<>();
+    this.loading = new ConcurrentHashMap<>();
+    this.locks = Striped.lock(LOCK_STRIPES);
   }
 
   /**
@@ -99,7 +172,7 @@ public class SearchingChangeCacheImpl implements GitReferenceUpdatedListener {
    */
   public List<ChangeData> getChangeData(ReviewDb db, Project.NameKey project) {
     try {
-      List<CachedChange> cached = cache.get(project);
+      List<CachedChange> cached = get(project);
       List<ChangeData> cds = new ArrayList<>(cached.size());
       for (CachedChange cc : cached) {
         ChangeData cd = changeDataFactory.create(db, cc.change());
@@ -113,36 +186,190 @@ public class SearchingChangeCacheImpl implements GitReferenceUpdatedListener {
     }
   }
 
+  private List<CachedChange> get(Project.NameKey project)
+      throws ExecutionException {
+    if (!incrementalUpdate) {
+      return cache.get(project);
+    }
+
+    List<CachedChange> cached = cache.getIfPresent(project);
+    if (cached == null) {
+      return load(project);
+    }
+    if (!dirty.containsKey(project)) {
+      return cached;
+    }
+
+    // Concurrent readers must not each patch part of the dirty changes, as
+    // the last one to put its entry would drop the others' updates.
+    Lock lock = locks.get(project);
+    lock.lock();
+    try {
+      cached = cache.getIfPresent(project);
+      if (cached == null) {
+        return load(project);
+      }
+      Set<Change.Id> pending = dirty.remove(project);
+      if (pending == null || pending.isEmpty()) {
+        return cached;
+      }
+      if (pending.size() > MAX_DIRTY) {
+        cache.invalidate(project);
+        return load(project);
+      }
+
+      try {
+        cached = patch(project, cached, pending);
+      } catch (Exception e) {
+        log.warn("Cannot patch changes for " + project + ", reloading", e);
+        cache.invalidate(project);
+        return load(project);
+      }
+      cache.put(project, cached);
+      metrics.patchCount.increment();
+      return cached;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private List<CachedChange> load(Project.NameKey project)
+      throws ExecutionException {
+    // The load may read the index before a concurrent update is indexed, so
+    // updates seen while loading are kept as dirty and patched in on the next
+    // lookup, as are any left over from an evicted entry.
+    loading.merge(project, 1, Integer::sum);
+    try {
+      return cache.get(project);
+    } finally {
+      loading.computeIfPresent(project, (p, n) -> n > 1 ? n - 1 : null);
+    }
+  }
+
+  private List<CachedChange> patch(Project.NameKey project,
+      List<CachedChange> cached, Set<Change.Id> ids) throws Exception {
+    Map<Change.Id, CachedChange> byId = new LinkedHashMap<>();
+    for (CachedChange cc : cached) {
+      byId.put(cc.change().getId(), cc);
+    }
+    for (Change.Id id : ids) {
+      byId.remove(id);
+    }
+    Set<Change.Id> missing = new HashSet<>(ids);
+    try (AutoCloseable ctx = requestContext.open()) {
+      for (ChangeData cd : query(queryProvider).byLegacyChangeIds(ids)) {
+        missing.remove(cd.getId());
+        // Change numbers are global; skip anything moved to another project.
+        if (cd.change().getProject().equals(project)) {
+          byId.put(cd.getId(), cachedChange(cd));
+        }
+      }
+    }
+    // The index may not reflect the ref update yet, so changes it did not
+    // return stay dirty, unless they were deleted.
+    Set<Change.Id> stillDirty = withRefs(project, missing);
+    if (!stillDirty.isEmpty()) {
+      dirty.compute(project, (p, pending) -> {
+        Set<Change.Id> r = pending != null ? pending : new HashSet<>();
+        r.addAll(stillDirty);
+        return r;
+      });
+    }
+    return Collections.unmodifiableList(new ArrayList<>(byId.values()));
+  }
+
+  private Set<Change.Id> withRefs(Project.NameKey project, Set<Change.Id> ids)
+      throws IOException {
+    if (ids.isEmpty()) {
+      return ids;
+    }
+    try (Repository repo = repoManager.openRepository(project)) {
+      RefDatabase refDb = repo.getRefDatabase();
+      Set<Change.Id> result = new HashSet<>();
+      for (Change.Id id : ids) {
+        if (!refDb.getRefs(id.toRefPrefix()).isEmpty()) {
+          result.add(id);
+        }
+      }
+      return result;
+    }
+  }
+
   @Override
   public void onGitReferenceUpdated(GitReferenceUpdatedListener.Event event) {
     if (event.getRefName().startsWith(RefNames.REFS_CHANGES)) {
-      cache.invalidate(new Project.NameKey(event.getProjectName()));
+      Project.NameKey project = new Project.NameKey(event.getProjectName());
+      Change.Id id = Change.Id.fromRef(event.getRefName());
+      if (!incrementalUpdate || id == null) {
+        cache.invalidate(project);
+        return;
+      }
+      if (cache.getIfPresent(project) != null
+          || loading.containsKey(project)) {
+        // The index may not reflect this update yet, so defer reading the
+        // change until the entry is next used.
+        dirty.compute(project, (p, ids) -> {
+          Set<Change.Id> r = ids != null ? ids : new HashSet<>();
+          r.add(id);
+          return r;
+        });
+      }
+    }
+  }
+
+  private static InternalChangeQuery query(
+      Provider<InternalChangeQuery> queryProvider) {
+    return queryProvider.get()
+        .setRequestedFields(ImmutableSet.of(
+            ChangeField.CHANGE.getName(),
+            ChangeField.REVIEWER.getName()));
+  }
+
+  private static CachedChange cachedChange(ChangeData cd)
+      throws OrmException {
+    return new AutoValue_SearchingChangeCacheImpl_CachedChange(
+        cd.change(), cd.getReviewers());
+  }
+
+  static class ChangesWeigher
+      implements Weigher<Project.NameKey, List<CachedChange>> {
+    private final boolean incrementalUpdate;
+
+    @Inject
+    ChangesWeigher(@GerritServerConfig Config cfg) {
+      this.incrementalUpdate = incrementalUpdate(cfg);
+    }
+
+    @Override
+    public int weigh(Project.NameKey project, List<CachedChange> changes) {
+      // Patched entries grow over time, so bound the total number of cached
+      // changes rather than the number of projects.
+      return incrementalUpdate ? Math.max(1, changes.size()) : 1;
     }
   }
 
   static class Loader extends CacheLoader<Project.NameKey, List<CachedChange>> {
     private final OneOffRequestContext requestContext;
     private final Provider<InternalChangeQuery> queryProvider;
+    private final Metrics metrics;
 
     @Inject
     Loader(OneOffRequestContext requestContext,
-        Provider<InternalChangeQuery> queryProvider) {
+        Provider<InternalChangeQuery> queryProvider,
+        Metrics metrics) {
       this.requestContext = requestContext;
       this.queryProvider = queryProvider;
+      this.metrics = metrics;
     }
 
     @Override
     public List<CachedChange> load(Project.NameKey key) throws Exception {
+      metrics.reloadCount.increment();
       try (AutoCloseable ctx = requestContext.open()) {
-        List<ChangeData> cds = queryProvider.get()
-            .setRequestedFields(ImmutableSet.of(
-                ChangeField.CHANGE.getName(),
-                ChangeField.REVIEWER.getName()))
-            .byProject(key);
+        List<ChangeData> cds = query(queryProvider).byProject(key);
         List<CachedChange> result = new ArrayList<>(cds.size());
         for (ChangeData cd : cds) {
-          result.add(new AutoValue_SearchingChangeCacheImpl_CachedChange(
-              cd.change(), cd.getReviewers()));
+          result.add(cachedChange(cd));
         }
         return Collections.unmodifiableList(result);
       }
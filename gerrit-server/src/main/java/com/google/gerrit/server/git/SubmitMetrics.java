@@ -0,0 +1,67 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Field;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import com.google.gerrit.metrics.Timer1;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+@Singleton
+class SubmitMetrics {
+  /** Phases of integrating a submission, in the order they run. */
+  enum Phase {
+    /** Running the submit strategies to compute new branch tips. */
+    MERGE,
+
+    /** Updating the refs of all branches. */
+    REF_UPDATE,
+
+    /** Updating the submitted changes in the database. */
+    CHANGE_UPDATE,
+
+    /** Waiting for the submitted changes to be reindexed. */
+    INDEX,
+
+    /** Firing events and sending emails. */
+    POST_UPDATE;
+  }
+
+  /** End-to-end latency of integrating a submission. */
+  final Timer0 submitLatency;
+
+  /** The portion of {@link #submitLatency} spent in each phase. */
+  final Timer1<Phase> phaseLatency;
+
+  @Inject
+  SubmitMetrics(MetricMaker metrics) {
+    submitLatency = metrics.newTimer(
+        "change/submit/latency",
+        new Description("Latency of integrating a submission")
+            .setCumulative()
+            .setUnit(Units.MILLISECONDS));
+
+    phaseLatency = metrics.newTimer(
+        "change/submit/phase_latency",
+        new Description("Latency of integrating a submission by phase")
+            .setCumulative()
+            .setUnit(Units.MILLISECONDS),
+        Field.ofEnum(Phase.class, "phase"));
+  }
+}
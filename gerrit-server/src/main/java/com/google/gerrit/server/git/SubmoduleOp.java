@@ -67,6 +67,7 @@ import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SubmoduleOp {
 
@@ -131,7 +132,7 @@ public class SubmoduleOp {
     this.orm = orm;
     this.updatedBranches = updatedBranches;
     this.targets = HashMultimap.create();
-    this.branchTips = new HashMap<>();
+    this.branchTips = new ConcurrentHashMap<>();
     this.branchGitModules = new HashMap<>();
     this.sortedBranches = calculateSubscriptionMap();
   }
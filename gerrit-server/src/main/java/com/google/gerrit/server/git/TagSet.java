@@ -17,11 +17,16 @@ package com.google.gerrit.server.git;
 import static org.eclipse.jgit.lib.ObjectIdSerialization.readNotNull;
 import static org.eclipse.jgit.lib.ObjectIdSerialization.writeNotNull;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.gerrit.reviewdb.client.PatchSet;
 import com.google.gerrit.reviewdb.client.Project;
 
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.BitmapIndex;
+import org.eclipse.jgit.lib.BitmapIndex.Bitmap;
+import org.eclipse.jgit.lib.BitmapIndex.BitmapBuilder;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectIdOwnerMap;
@@ -29,17 +34,23 @@ import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
+import org.eclipse.jgit.revwalk.RevObject;
 import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 
 class TagSet {
@@ -55,6 +66,11 @@ class TagSet {
     this.tags = new ObjectIdOwnerMap<>();
   }
 
+  @VisibleForTesting
+  Set<String> getRefNames() {
+    return refs.keySet();
+  }
+
   Tag lookupTag(AnyObjectId id) {
     return tags.get(id);
   }
@@ -154,7 +170,15 @@ class TagSet {
   }
 
   void build(Repository git, TagSet old, TagMatcher m) {
-    if (old != null && m != null && refresh(old, m)) {
+    if (old != null && m != null && m.lostRefs.isEmpty()
+        && refresh(old, m)) {
+      return;
+    }
+    if (old != null && updateFromBitmaps(git, old)) {
+      return;
+    }
+    if (old != null && m != null && !m.lostRefs.isEmpty()
+        && refresh(old, m)) {
       return;
     }
 
@@ -275,6 +299,194 @@ class TagSet {
     return true;
   }
 
+  /**
+   * Update a copy of the old set using the pack bitmap index of the
+   * repository, instead of walking the complete history again.
+   * <p>
+   * Only references that were rewound or are new, and tags that are new, are
+   * looked at. The commits reachable from a reference are found by walking
+   * back from its tip until reaching commits that have a bitmap, which is
+   * usually only a few commits away. A tag is then reachable if its commit is
+   * in the union of these bitmaps. References that were deleted are removed
+   * from the set.
+   *
+   * @return true if the set was updated; false if the repository has no
+   *     bitmap index or could not be read, leaving this set empty.
+   */
+  private boolean updateFromBitmaps(Repository git, TagSet old) {
+    try (RevWalk rw = new RevWalk(git)) {
+      rw.setRetainBody(false);
+      BitmapIndex bitmaps = rw.getObjectReader().getBitmapIndex();
+      if (bitmaps == null) {
+        return false;
+      }
+
+      refs.putAll(old.refs);
+      for (Tag srcTag : old.tags) {
+        BitSet mine = new BitSet();
+        mine.or(srcTag.refFlags);
+        tags.add(new Tag(srcTag, mine));
+      }
+
+      Map<String, Ref> all = git.getRefDatabase().getRefs(RefDatabase.ALL);
+      removeDeletedRefs(all);
+
+      List<CachedRef> current = new ArrayList<>();
+      List<CachedRef> changed = new ArrayList<>();
+      List<Tag> newTags = new ArrayList<>();
+      for (Ref ref : all.values()) {
+        if (skip(ref)) {
+          continue;
+        } else if (isTag(ref)) {
+          Ref peeled = git.peel(ref);
+          ObjectId id = peeled.getPeeledObjectId();
+          if (id == null) {
+            id = peeled.getObjectId();
+          }
+          if (!tags.contains(id)) {
+            Tag tag = new Tag(id, new BitSet());
+            tags.add(tag);
+            if (isCommit(rw, id)) {
+              newTags.add(tag);
+            }
+          }
+          continue;
+        }
+
+        CachedRef r = refs.get(ref.getName());
+        if (r == null) {
+          r = new CachedRef(ref, refs.size());
+          refs.put(ref.getName(), r);
+          changed.add(r);
+        } else if (!r.get().equals(ref.getObjectId())) {
+          r = new CachedRef(r.flag, ref.getObjectId());
+          refs.put(ref.getName(), r);
+          changed.add(r);
+        }
+        current.add(r);
+      }
+
+      Map<ObjectId, BitmapBuilder> reachable = new HashMap<>();
+      Map<ObjectId, Boolean> commits = new HashMap<>();
+      for (CachedRef r : changed) {
+        BitmapBuilder b = reachableFrom(rw, bitmaps, r.get(), reachable);
+        for (Tag tag : tags) {
+          tag.refFlags.set(r.flag, b != null && b.contains(tag)
+              && isCommit(rw, tag, commits));
+        }
+      }
+      if (!newTags.isEmpty()) {
+        for (CachedRef r : current) {
+          if (changed.contains(r)) {
+            continue;
+          }
+          BitmapBuilder b = reachableFrom(rw, bitmaps, r.get(), reachable);
+          if (b == null) {
+            continue;
+          }
+          for (Tag tag : newTags) {
+            if (b.contains(tag)) {
+              tag.refFlags.set(r.flag);
+            }
+          }
+        }
+      }
+      return true;
+    } catch (IOException e) {
+      log.warn("Error updating tags of " + projectName + " from bitmaps", e);
+      refs.clear();
+      tags.clear();
+      return false;
+    }
+  }
+
+  /**
+   * Remove references that no longer exist. The reference using the highest
+   * flag takes over the flag of a removed reference, so that flags stay
+   * numbered from 0 to {@code refs.size() - 1} and new references can
+   * continue to use {@code refs.size()}.
+   */
+  private void removeDeletedRefs(Map<String, Ref> all) {
+    List<String> deleted = new ArrayList<>();
+    for (String name : refs.keySet()) {
+      if (!all.containsKey(name)) {
+        deleted.add(name);
+      }
+    }
+    if (deleted.isEmpty()) {
+      return;
+    }
+
+    String[] byFlag = new String[refs.size()];
+    for (Map.Entry<String, CachedRef> e : refs.entrySet()) {
+      byFlag[e.getValue().flag] = e.getKey();
+    }
+    for (String name : deleted) {
+      int flag = refs.remove(name).flag;
+      int last = refs.size();
+      if (flag != last) {
+        String moved = byFlag[last];
+        refs.put(moved, new CachedRef(flag, refs.get(moved).get()));
+        byFlag[flag] = moved;
+      }
+      for (Tag tag : tags) {
+        tag.refFlags.set(flag, flag != last && tag.refFlags.get(last));
+        tag.refFlags.clear(last);
+      }
+    }
+  }
+
+  private static boolean isCommit(RevWalk rw, AnyObjectId id,
+      Map<ObjectId, Boolean> cache) throws IOException {
+    Boolean r = cache.get(id);
+    if (r == null) {
+      r = isCommit(rw, id);
+      cache.put(id.copy(), r);
+    }
+    return r;
+  }
+
+  private static boolean isCommit(RevWalk rw, AnyObjectId id)
+      throws IOException {
+    try {
+      return rw.getObjectReader().open(id).getType() == Constants.OBJ_COMMIT;
+    } catch (MissingObjectException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return objects reachable from the commit, or null if the id is not a
+   *     commit.
+   */
+  private static BitmapBuilder reachableFrom(RevWalk rw, BitmapIndex bitmaps,
+      ObjectId tip, Map<ObjectId, BitmapBuilder> cache) throws IOException {
+    if (cache.containsKey(tip)) {
+      return cache.get(tip);
+    }
+
+    BitmapBuilder b = null;
+    try {
+      RevCommit c = rw.parseCommit(tip);
+      b = bitmaps.newBitmapBuilder();
+      Bitmap stored = bitmaps.getBitmap(c);
+      if (stored != null) {
+        b.or(stored);
+      } else {
+        rw.reset();
+        rw.setRevFilter(new AddToBitmapFilter(bitmaps, b));
+        rw.markStart(c);
+        while (rw.next() != null) {
+          // The filter collects the commits.
+        }
+      }
+    } catch (IncorrectObjectTypeException | MissingObjectException notCommit) {
+      // Reaches no tags.
+    }
+    cache.put(tip, b);
+    return b;
+  }
+
   private void copy(TagSet old, TagMatcher m) {
     refs.putAll(old.refs);
 
@@ -367,6 +579,47 @@ class TagSet {
     }
   }
 
+  /**
+   * Adds commits to a bitmap, and the bitmaps of commits having one, without
+   * walking the history below commits already in the bitmap.
+   */
+  private static final class AddToBitmapFilter extends RevFilter {
+    private final BitmapIndex bitmaps;
+    private final BitmapBuilder bitmap;
+
+    AddToBitmapFilter(BitmapIndex bitmaps, BitmapBuilder bitmap) {
+      this.bitmaps = bitmaps;
+      this.bitmap = bitmap;
+    }
+
+    @Override
+    public boolean include(RevWalk walker, RevCommit c) {
+      if (!bitmap.contains(c)) {
+        Bitmap stored = bitmaps.getBitmap(c);
+        if (stored == null) {
+          bitmap.addObject(c, Constants.OBJ_COMMIT);
+          return false;
+        }
+        bitmap.or(stored);
+      }
+      // All ancestors are in the bitmap; do not walk them.
+      for (RevCommit p : c.getParents()) {
+        p.add(RevFlag.SEEN);
+      }
+      return false;
+    }
+
+    @Override
+    public RevFilter clone() {
+      return this;
+    }
+
+    @Override
+    public boolean requiresCommitBody() {
+      return false;
+    }
+  }
+
   private static final class TagWalk extends RevWalk {
     TagWalk(Repository git) {
       super(git);
@@ -0,0 +1,409 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import com.google.common.cache.Cache;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.primitives.Ints;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.client.RefNames;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.cache.CacheBinding;
+import com.google.gerrit.server.cache.CacheModule;
+import com.google.gerrit.server.cache.MemoryCacheFactory;
+import com.google.gerrit.server.index.change.ChangeField;
+import com.google.gerrit.server.project.ProjectControl;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.query.change.InternalChangeQuery;
+import com.google.gerrit.server.util.OneOffRequestContext;
+import com.google.gwtorm.server.OrmException;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
+
+import com.googlecode.javaewah.EWAHCompressedBitmap;
+import com.googlecode.javaewah.IntIterator;
+
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Per-project index of change numbers by destination branch.
+ * <p>
+ * Visibility of a non-draft change is fully determined by visibility of its
+ * destination branch, so the set of changes a user may see can be computed by
+ * OR-ing together the compressed bitmaps of all branches that are visible to
+ * the user's groups. This costs one {@link
+ * com.google.gerrit.server.project.RefControl} check per destination branch
+ * instead of one per change. Draft changes also depend on the identity of the
+ * user and are still checked one by one.
+ * <p>
+ * Entries are updated incrementally: a ref update on a change ref only marks
+ * that change as dirty, and the next lookup re-reads the dirty changes from
+ * the secondary index before answering. Changes the index does not return yet
+ * stay dirty until it does, or until their refs are deleted.
+ */
+@Singleton
+public class VisibleChangesCache implements GitReferenceUpdatedListener {
+  static final String CACHE_NAME = "visible_changes";
+
+  public static class Module extends CacheModule {
+    @Override
+    protected void configure() {
+      CacheBinding<Project.NameKey, Entry> binding =
+          cache(CACHE_NAME, Project.NameKey.class, Entry.class)
+            .maximumWeight(0);
+      bind(new TypeLiteral<CacheBinding<Project.NameKey, Entry>>() {})
+          .annotatedWith(Names.named(CACHE_NAME))
+          .toInstance(binding);
+
+      bind(VisibleChangesCache.class);
+      DynamicSet.bind(binder(), GitReferenceUpdatedListener.class)
+          .to(VisibleChangesCache.class);
+    }
+  }
+
+  /** Immutable bitmaps of the changes of one project. */
+  static class ChangeBitmaps {
+    private static final EWAHCompressedBitmap EMPTY =
+        new EWAHCompressedBitmap();
+    private static final ChangeBitmaps EMPTY_BITMAPS = new ChangeBitmaps(
+        ImmutableMap.<String, EWAHCompressedBitmap> of(), EMPTY);
+
+    final ImmutableMap<String, EWAHCompressedBitmap> byBranch;
+    final EWAHCompressedBitmap drafts;
+
+    ChangeBitmaps(Map<String, EWAHCompressedBitmap> byBranch,
+        EWAHCompressedBitmap drafts) {
+      this.byBranch = ImmutableMap.copyOf(byBranch);
+      this.drafts = drafts;
+    }
+
+    static ChangeBitmaps create(Iterable<Change> changes) {
+      return EMPTY_BITMAPS.update(changes, ImmutableSet.<Change.Id> of());
+    }
+
+    /**
+     * Returns a copy of these bitmaps where all changes in {@code dirty} were
+     * removed, and then all changes in {@code changes} were added.
+     */
+    ChangeBitmaps update(Iterable<Change> changes,
+        Collection<Change.Id> dirty) {
+      Map<String, List<Integer>> added = new HashMap<>();
+      List<Integer> addedDrafts = new ArrayList<>();
+      for (Change c : changes) {
+        String branch = c.getDest().get();
+        List<Integer> ids = added.get(branch);
+        if (ids == null) {
+          ids = new ArrayList<>();
+          added.put(branch, ids);
+        }
+        ids.add(c.getId().get());
+        if (c.getStatus() == Change.Status.DRAFT) {
+          addedDrafts.add(c.getId().get());
+        }
+      }
+
+      List<Integer> removedIds = new ArrayList<>(dirty.size());
+      for (Change.Id id : dirty) {
+        removedIds.add(id.get());
+      }
+      EWAHCompressedBitmap removed = bitmapOf(removedIds);
+
+      Map<String, EWAHCompressedBitmap> newByBranch = new HashMap<>();
+      for (Map.Entry<String, EWAHCompressedBitmap> e : byBranch.entrySet()) {
+        EWAHCompressedBitmap b = e.getValue().andNot(removed);
+        if (b.cardinality() > 0) {
+          newByBranch.put(e.getKey(), b);
+        }
+      }
+      for (Map.Entry<String, List<Integer>> e : added.entrySet()) {
+        EWAHCompressedBitmap b = bitmapOf(e.getValue());
+        EWAHCompressedBitmap old = newByBranch.get(e.getKey());
+        newByBranch.put(e.getKey(), old != null ? old.or(b) : b);
+      }
+      return new ChangeBitmaps(newByBranch,
+          drafts.andNot(removed).or(bitmapOf(addedDrafts)));
+    }
+
+    private static EWAHCompressedBitmap bitmapOf(List<Integer> ids) {
+      if (ids.isEmpty()) {
+        return EMPTY;
+      }
+      int[] sorted = Ints.toArray(new HashSet<>(ids));
+      Arrays.sort(sorted);
+      return EWAHCompressedBitmap.bitmapOf(sorted);
+    }
+  }
+
+  /** Mutable cache entry: current bitmaps plus changes updated since. */
+  static class Entry {
+    volatile ChangeBitmaps bitmaps;
+    final Set<Change.Id> dirty = ConcurrentHashMap.newKeySet();
+
+    Entry(ChangeBitmaps bitmaps) {
+      this.bitmaps = bitmaps;
+    }
+  }
+
+  @Singleton
+  static class Metrics {
+    final Counter0 hitCount;
+    final Counter0 missCount;
+    final Counter0 rebuildCount;
+
+    @Inject
+    Metrics(MetricMaker metricMaker) {
+      hitCount = metricMaker.newCounter(
+          "git/visible_changes/hit_count",
+          new Description("Visible change lookups answered from bitmaps")
+            .setRate()
+            .setUnit("lookups"));
+      missCount = metricMaker.newCounter(
+          "git/visible_changes/miss_count",
+          new Description(
+              "Visible change lookups that built a project's bitmaps")
+            .setRate()
+            .setUnit("lookups"));
+      rebuildCount = metricMaker.newCounter(
+          "git/visible_changes/rebuild_count",
+          new Description(
+              "Visible change lookups that patched dirty changes into bitmaps")
+            .setRate()
+            .setUnit("lookups"));
+    }
+  }
+
+  private final Cache<Project.NameKey, Entry> cache;
+  private final SearchingChangeCacheImpl changeCache;
+  private final GitRepositoryManager repoManager;
+  private final OneOffRequestContext requestContext;
+  private final Provider<InternalChangeQuery> queryProvider;
+  private final Metrics metrics;
+  private final boolean enabled;
+
+  @Inject
+  VisibleChangesCache(
+      MemoryCacheFactory cacheFactory,
+      @Named(CACHE_NAME) CacheBinding<Project.NameKey, Entry> binding,
+      @Named(CACHE_NAME) Cache<Project.NameKey, Entry> cache,
+      SearchingChangeCacheImpl changeCache,
+      GitRepositoryManager repoManager,
+      OneOffRequestContext requestContext,
+      Provider<InternalChangeQuery> queryProvider,
+      Metrics metrics) {
+    this.cache = cache;
+    this.changeCache = changeCache;
+    this.repoManager = repoManager;
+    this.requestContext = requestContext;
+    this.queryProvider = queryProvider;
+    this.metrics = metrics;
+    this.enabled = cacheFactory.memoryLimit(binding) > 0;
+  }
+
+  /**
+   * @return whether bitmaps are kept between lookups. If not, building them
+   *     costs more than checking the changes of a project one by one.
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Compute the changes of a project that are visible to a user.
+   *
+   * @param ctl control for the project and user.
+   * @param db database handle to populate missing change data (probably
+   *        unused).
+   * @return bit set of visible change numbers.
+   * @throws OrmException if the bitmaps could not be built or updated.
+   */
+  public BitSet visibleChanges(final ProjectControl ctl, final ReviewDb db)
+      throws OrmException {
+    ChangeBitmaps bitmaps = get(ctl.getProject().getNameKey(), db);
+
+    List<EWAHCompressedBitmap> visible = new ArrayList<>();
+    for (Map.Entry<String, EWAHCompressedBitmap> e
+        : bitmaps.byBranch.entrySet()) {
+      if (ctl.controlForRef(e.getKey()).isVisible()) {
+        visible.add(e.getValue());
+      }
+    }
+    if (visible.isEmpty()) {
+      return new BitSet();
+    }
+
+    EWAHCompressedBitmap all = visible.size() == 1
+        ? visible.get(0)
+        : EWAHCompressedBitmap.or(
+            visible.toArray(new EWAHCompressedBitmap[visible.size()]));
+    BitSet result = toBitSet(all);
+
+    EWAHCompressedBitmap drafts = all.and(bitmaps.drafts);
+    if (drafts.cardinality() > 0) {
+      // Drafts are only visible to their owner and reviewers; fall back to
+      // checking these individually.
+      BitSet draftBits = toBitSet(drafts);
+      for (ChangeData cd : changeCache.getChangeData(
+          db, ctl.getProject().getNameKey())) {
+        int id = cd.getId().get();
+        if (draftBits.get(id)
+            && !ctl.controlForIndexedChange(cd.change()).isVisible(db, cd)) {
+          result.clear(id);
+        }
+      }
+    }
+    return result;
+  }
+
+  private ChangeBitmaps get(final Project.NameKey project, final ReviewDb db)
+      throws OrmException {
+    Entry entry = cache.getIfPresent(project);
+    if (entry == null) {
+      metrics.missCount.increment();
+      try {
+        entry = cache.get(project, () -> new Entry(ChangeBitmaps.create(
+            changes(changeCache.getChangeData(db, project)))));
+      } catch (ExecutionException e) {
+        throw new OrmException("Cannot build visible changes of " + project,
+            e.getCause());
+      }
+    }
+
+    if (entry.dirty.isEmpty()) {
+      metrics.hitCount.increment();
+      return entry.bitmaps;
+    }
+
+    synchronized (entry) {
+      if (entry.dirty.isEmpty()) {
+        return entry.bitmaps;
+      }
+      metrics.rebuildCount.increment();
+      Set<Change.Id> dirty = new HashSet<>(entry.dirty);
+      entry.dirty.removeAll(dirty);
+      try {
+        if (dirty.size() > SearchingChangeCacheImpl.MAX_DIRTY) {
+          entry.bitmaps = ChangeBitmaps.create(
+              changes(changeCache.getChangeData(db, project)));
+        } else {
+          List<Change> changes = readChanges(dirty);
+          Set<Change.Id> missing = new HashSet<>(dirty);
+          for (Change c : changes) {
+            missing.remove(c.getId());
+          }
+          // The index may not reflect the ref update yet, so changes it did
+          // not return stay dirty, unless they were deleted.
+          missing = withRefs(project, missing);
+          entry.bitmaps = entry.bitmaps.update(changes, dirty);
+          entry.dirty.addAll(missing);
+        }
+      } catch (OrmException | RuntimeException e) {
+        entry.dirty.addAll(dirty);
+        throw e;
+      }
+      return entry.bitmaps;
+    }
+  }
+
+  private Set<Change.Id> withRefs(Project.NameKey project, Set<Change.Id> ids)
+      throws OrmException {
+    if (ids.isEmpty()) {
+      return ids;
+    }
+    try (Repository repo = repoManager.openRepository(project)) {
+      RefDatabase refDb = repo.getRefDatabase();
+      Set<Change.Id> result = new HashSet<>();
+      for (Change.Id id : ids) {
+        if (!refDb.getRefs(id.toRefPrefix()).isEmpty()) {
+          result.add(id);
+        }
+      }
+      return result;
+    } catch (IOException e) {
+      throw new OrmException("Cannot read change refs of " + project, e);
+    }
+  }
+
+  private List<Change> readChanges(Set<Change.Id> ids) throws OrmException {
+    try (AutoCloseable ctx = requestContext.open()) {
+      return changes(queryProvider.get()
+          .setRequestedFields(ImmutableSet.of(ChangeField.CHANGE.getName()))
+          .byLegacyChangeIds(ids));
+    } catch (OrmException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new OrmException(e);
+    }
+  }
+
+  private static List<Change> changes(List<ChangeData> cds)
+      throws OrmException {
+    List<Change> changes = new ArrayList<>(cds.size());
+    for (ChangeData cd : cds) {
+      changes.add(cd.change());
+    }
+    return changes;
+  }
+
+  private static BitSet toBitSet(EWAHCompressedBitmap bitmap) {
+    BitSet bits = new BitSet();
+    IntIterator it = bitmap.intIterator();
+    while (it.hasNext()) {
+      bits.set(it.next());
+    }
+    return bits;
+  }
+
+  @Override
+  public void onGitReferenceUpdated(GitReferenceUpdatedListener.Event event) {
+    String ref = event.getRefName();
+    if (!ref.startsWith(RefNames.REFS_CHANGES)) {
+      return;
+    }
+    Change.Id id = Change.Id.fromRef(ref);
+    if (id == null) {
+      return;
+    }
+    Entry entry = cache.getIfPresent(
+        new Project.NameKey(event.getProjectName()));
+    if (entry != null) {
+      entry.dirty.add(id);
+    }
+  }
+}
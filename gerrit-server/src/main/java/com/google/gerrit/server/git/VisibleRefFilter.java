@@ -28,6 +28,7 @@ import com.google.gerrit.reviewdb.client.RefNames;
 import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.notedb.ChangeNotes;
+import com.google.gerrit.server.project.NoSuchChangeException;
 import com.google.gerrit.server.project.ProjectControl;
 import com.google.gerrit.server.query.change.ChangeData;
 import com.google.gwtorm.server.OrmException;
@@ -45,6 +46,8 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -56,21 +59,32 @@ public class VisibleRefFilter extends AbstractAdvertiseRefsHook {
   private static final Logger log =
       LoggerFactory.getLogger(VisibleRefFilter.class);
 
+  /**
+   * Up to this many changes matching the prefixes given to {@link
+   * #filterPrefixes(Collection)} are checked one by one, rather than
+   * computing the visible changes of the whole project.
+   */
+  private static final int MAX_CHANGES_TO_CHECK = 20;
+
   private final TagCache tagCache;
   private final ChangeNotes.Factory changeNotesFactory;
   @Nullable private final SearchingChangeCacheImpl changeCache;
+  @Nullable private final VisibleChangesCache visibleChangesCache;
   private final Repository db;
   private final Project.NameKey projectName;
   private final ProjectControl projectCtl;
   private final ReviewDb reviewDb;
   private final boolean showMetadata;
+  private Collection<String> refPrefixes = Collections.emptyList();
   private String userEditPrefix;
-  private Set<Change.Id> visibleChanges;
+  private BitSet visibleChanges;
+  private Map<Change.Id, Boolean> visibleById = Collections.emptyMap();
 
   public VisibleRefFilter(
       TagCache tagCache,
       ChangeNotes.Factory changeNotesFactory,
       @Nullable SearchingChangeCacheImpl changeCache,
+      @Nullable VisibleChangesCache visibleChangesCache,
       Repository db,
       ProjectControl projectControl,
       ReviewDb reviewDb,
@@ -78,6 +92,7 @@ public class VisibleRefFilter extends AbstractAdvertiseRefsHook {
     this.tagCache = tagCache;
     this.changeNotesFactory = changeNotesFactory;
     this.changeCache = changeCache;
+    this.visibleChangesCache = visibleChangesCache;
     this.db = db;
     this.projectName = projectControl.getProject().getNameKey();
     this.projectCtl = projectControl;
@@ -85,6 +100,19 @@ public class VisibleRefFilter extends AbstractAdvertiseRefsHook {
     this.showMetadata = showMetadata;
   }
 
+  /**
+   * Advertise only the refs whose names start with any of the given prefixes,
+   * as returned by {@link #filterPrefixes(Collection)}.
+   *
+   * @param prefixes prefixes of the names of the refs to advertise; if empty,
+   *     all visible refs are advertised.
+   * @return this filter.
+   */
+  public VisibleRefFilter setRefPrefixes(Collection<String> prefixes) {
+    refPrefixes = prefixes;
+    return this;
+  }
+
   public Map<String, Ref> filter(Map<String, Ref> refs, boolean filterTagsSeparately) {
     if (projectCtl.getProjectState().isAllUsers()) {
       refs = addUsersSelfSymref(refs);
@@ -168,6 +196,97 @@ public class VisibleRefFilter extends AbstractAdvertiseRefsHook {
     return result;
   }
 
+  /**
+   * Filter the refs whose names start with any of the given prefixes, like the
+   * {@code ref-prefix} arguments of {@code ls-refs} in Git protocol v2.
+   * <p>
+   * Only the directories of the ref database that may contain matching refs
+   * are scanned and checked for visibility. If the matching refs belong to
+   * few changes, these are checked one by one instead of computing the
+   * visible changes of the whole project, so the work scales with the
+   * requested refs rather than with all refs of the repository. Tags are the
+   * exception, as whether a tag is visible still depends on all visible refs.
+   *
+   * @param prefixes prefixes of the names of the refs to return; if empty,
+   *     all visible refs are returned.
+   * @return visible refs whose names start with any of the prefixes.
+   * @throws IOException the ref database could not be read.
+   */
+  public Map<String, Ref> filterPrefixes(Collection<String> prefixes)
+      throws IOException {
+    RefDatabase refDb = db.getRefDatabase();
+    if (prefixes.isEmpty()) {
+      return filter(refDb.getRefs(RefDatabase.ALL), false);
+    }
+
+    Map<String, Ref> refs = new HashMap<>();
+    boolean tags = false;
+    for (String prefix : prefixes) {
+      scan(refDb, prefix, refs);
+      tags |= prefix.startsWith(Constants.R_TAGS)
+          || Constants.R_TAGS.startsWith(prefix);
+    }
+    if (showMetadata && visibleChanges == null) {
+      Set<Change.Id> changeIds = changeIds(refs.keySet());
+      if (!changeIds.isEmpty() && changeIds.size() <= MAX_CHANGES_TO_CHECK) {
+        visibleById = visibleChangesByNotes(changeIds);
+      }
+    }
+
+    Map<String, Ref> result = new HashMap<>();
+    for (Ref ref : filter(refs, tags).values()) {
+      // Drop refs added by the filter, like refs/users/self.
+      if (startsWithAny(ref.getName(), prefixes)) {
+        result.put(ref.getName(), ref);
+      }
+    }
+    return result;
+  }
+
+  private static void scan(RefDatabase refDb, String prefix,
+      Map<String, Ref> out) throws IOException {
+    int slash = prefix.lastIndexOf('/');
+    if (slash < 0 && !Constants.R_REFS.startsWith(prefix)) {
+      // Besides refs/, a full scan only returns HEAD.
+      Ref head = refDb.exactRef(Constants.HEAD);
+      if (head != null && head.getName().startsWith(prefix)) {
+        out.put(head.getName(), head);
+      }
+      return;
+    }
+
+    // The ref database scans whole directories only.
+    String dir = slash < 0 ? RefDatabase.ALL : prefix.substring(0, slash + 1);
+    for (Ref ref : refDb.getRefs(dir).values()) {
+      if (ref.getName().startsWith(prefix)) {
+        out.put(ref.getName(), ref);
+      }
+    }
+  }
+
+  private static Set<Change.Id> changeIds(Collection<String> names) {
+    Set<Change.Id> ids = new HashSet<>();
+    for (String name : names) {
+      Change.Id id = RefNames.isRefsEdit(name)
+          ? Change.Id.fromEditRefPart(name)
+          : Change.Id.fromRef(name);
+      if (id != null) {
+        ids.add(id);
+      }
+    }
+    return ids;
+  }
+
+  private static boolean startsWithAny(String name,
+      Collection<String> prefixes) {
+    for (String prefix : prefixes) {
+      if (name.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   private Map<String, Ref> fastHideRefsMetaConfig(Map<String, Ref> refs) {
     if (refs.containsKey(REFS_CONFIG)
         && !projectCtl.controlForRef(REFS_CONFIG).isVisible()) {
@@ -194,6 +313,9 @@ public class VisibleRefFilter extends AbstractAdvertiseRefsHook {
   protected Map<String, Ref> getAdvertisedRefs(Repository repository,
       RevWalk revWalk) throws ServiceMayNotContinueException {
     try {
+      if (!refPrefixes.isEmpty()) {
+        return filterPrefixes(refPrefixes);
+      }
       return filter(repository.getRefDatabase().getRefs(RefDatabase.ALL));
     } catch (ServiceMayNotContinueException e) {
       throw e;
@@ -210,13 +332,19 @@ public class VisibleRefFilter extends AbstractAdvertiseRefsHook {
 
   private boolean visible(Change.Id changeId) {
     if (visibleChanges == null) {
-      if (changeCache == null) {
+      Boolean checked = visibleById.get(changeId);
+      if (checked != null) {
+        return checked;
+      }
+      if (visibleChangesCache != null && visibleChangesCache.isEnabled()) {
+        visibleChanges = visibleChangesByBitmap();
+      } else if (changeCache == null) {
         visibleChanges = visibleChangesByScan();
       } else {
         visibleChanges = visibleChangesBySearch();
       }
     }
-    return visibleChanges.contains(changeId);
+    return visibleChanges.get(changeId.get());
   }
 
   private boolean visibleEdit(String name) {
@@ -229,39 +357,69 @@ public class VisibleRefFilter extends AbstractAdvertiseRefsHook {
     return false;
   }
 
-  private Set<Change.Id> visibleChangesBySearch() {
+  private BitSet visibleChangesByBitmap() {
+    try {
+      return visibleChangesCache.visibleChanges(projectCtl, reviewDb);
+    } catch (OrmException e) {
+      log.warn("Cannot use visible changes cache for project "
+          + projectCtl.getProject().getName() + ", checking changes", e);
+      return changeCache == null
+          ? visibleChangesByScan()
+          : visibleChangesBySearch();
+    }
+  }
+
+  private Map<Change.Id, Boolean> visibleChangesByNotes(Set<Change.Id> ids) {
+    Map<Change.Id, Boolean> result = new HashMap<>();
+    for (Change.Id id : ids) {
+      try {
+        ChangeNotes cn =
+            changeNotesFactory.createChecked(reviewDb, projectName, id);
+        result.put(id, projectCtl.controlFor(cn).isVisible(reviewDb));
+      } catch (NoSuchChangeException e) {
+        result.put(id, false);
+      } catch (OrmException e) {
+        // Leave the change to the check of all changes of the project.
+        log.warn("Cannot load change " + id + " of project " + projectName,
+            e);
+      }
+    }
+    return result;
+  }
+
+  private BitSet visibleChangesBySearch() {
     Project project = projectCtl.getProject();
     try {
-      Set<Change.Id> visibleChanges = new HashSet<>();
+      BitSet visibleChanges = new BitSet();
       for (ChangeData cd : changeCache.getChangeData(
           reviewDb, project.getNameKey())) {
         if (projectCtl.controlForIndexedChange(cd.change())
             .isVisible(reviewDb, cd)) {
-          visibleChanges.add(cd.getId());
+          visibleChanges.set(cd.getId().get());
         }
       }
       return visibleChanges;
     } catch (OrmException e) {
       log.error("Cannot load changes for project " + project.getName()
           + ", assuming no changes are visible", e);
-      return Collections.emptySet();
+      return new BitSet();
     }
   }
 
-  private Set<Change.Id> visibleChangesByScan() {
+  private BitSet visibleChangesByScan() {
     Project.NameKey project = projectCtl.getProject().getNameKey();
     try {
-      Set<Change.Id> visibleChanges = new HashSet<>();
+      BitSet visibleChanges = new BitSet();
       for (ChangeNotes cn : changeNotesFactory.scan(db, reviewDb, project)) {
         if (projectCtl.controlFor(cn).isVisible(reviewDb)) {
-          visibleChanges.add(cn.getChangeId());
+          visibleChanges.set(cn.getChangeId().get());
         }
       }
       return visibleChanges;
     } catch (IOException | OrmException e) {
       log.error("Cannot load changes for project " + project
           + ", assuming no changes are visible", e);
-      return Collections.emptySet();
+      return new BitSet();
     }
   }
 
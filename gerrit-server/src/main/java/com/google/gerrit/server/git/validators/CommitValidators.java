@@ -61,6 +61,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
@@ -201,6 +202,27 @@ public class CommitValidators {
     return messages;
   }
 
+  /**
+   * @return identities of the validators run by {@link #validate}, in order,
+   *     including validators of plugins. The identity of a plugin validator
+   *     changes when its plugin is reloaded.
+   */
+  public List<String> getValidatorIds() {
+    List<String> ids = new ArrayList<>();
+    for (CommitValidationListener v : validators) {
+      if (v instanceof PluginCommitValidationListener) {
+        for (CommitValidationListener p
+            : ((PluginCommitValidationListener) v).commitValidationListeners) {
+          ids.add(p.getClass().getName() + "@"
+              + Integer.toHexString(System.identityHashCode(p)));
+        }
+      } else {
+        ids.add(v.getClass().getName());
+      }
+    }
+    return ids;
+  }
+
   public static class ChangeIdValidator implements CommitValidationListener {
     private static final int SHA1_LENGTH = 7;
     private static final String CHANGE_ID_PREFIX =
@@ -613,7 +635,12 @@ public class CommitValidators {
     public List<CommitValidationMessage> onCommitReceived(
         CommitReceivedEvent receiveEvent) throws CommitValidationException {
       try {
-        if (rejectCommits.contains(receiveEvent.commit)) {
+        boolean banned;
+        synchronized (rejectCommits) {
+          // NoteMap loads buckets lazily and may be used by several threads.
+          banned = rejectCommits.contains(receiveEvent.commit);
+        }
+        if (banned) {
           throw new CommitValidationException("contains banned commit "
               + receiveEvent.commit.getName());
         }
@@ -67,6 +67,16 @@ public interface Index<K, V> {
    */
   void deleteAll() throws IOException;
 
+  /**
+   * Make all documents written so far durable.
+   * <p>
+   * Used by batch indexers that record their progress, so that everything
+   * recorded as done survives a crash.
+   *
+   * @throws IOException
+   */
+  void commit() throws IOException;
+
   /**
    * Convert the given operator predicate into a source searching the index and
    * returning only the documents matching that predicate.
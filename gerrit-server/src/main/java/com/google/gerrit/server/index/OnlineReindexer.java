@@ -32,15 +32,31 @@ public class OnlineReindexer<K, V, I extends Index<K, V>> {
   private final IndexCollection<K, V, I> indexes;
   private final SiteIndexer<K, V, I> batchIndexer;
   private final int version;
+  private final boolean incremental;
   private I index;
   private final AtomicBoolean running = new AtomicBoolean();
 
   public OnlineReindexer(
       IndexDefinition<K, V, I> def,
       int version) {
+    this(def, version, false);
+  }
+
+  /**
+   * @param def index definition.
+   * @param version schema version to reindex into.
+   * @param incremental whether to reuse stored fields of documents that are
+   *     up to date in the current search index, rather than building every
+   *     document from scratch.
+   */
+  public OnlineReindexer(
+      IndexDefinition<K, V, I> def,
+      int version,
+      boolean incremental) {
     this.indexes = def.getIndexCollection();
     this.batchIndexer = def.getSiteIndexer();
     this.version = version;
+    this.incremental = incremental;
   }
 
   public void start() {
@@ -76,8 +92,11 @@ public class OnlineReindexer<K, V, I extends Index<K, V>> {
   private void reindex() {
     index = checkNotNull(indexes.getWriteIndex(version),
         "not an active write schema version: %s", version);
-    log.info("Starting online reindex from schema version {} to {}",
-        version(indexes.getSearchIndex()), version(index));
+    I source = indexes.getSearchIndex();
+    log.info("Starting {}online reindex from schema version {} to {}",
+        incremental ? "incremental " : "", version(source), version(index));
+    batchIndexer.setSourceIndex(
+        incremental && version(source) != version(index) ? source : null);
     SiteIndexer.Result result = batchIndexer.indexAll(index);
     if (!result.success()) {
       log.error("Online reindex of schema version {} failed. Successfully"
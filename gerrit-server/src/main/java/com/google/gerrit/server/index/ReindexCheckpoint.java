@@ -0,0 +1,153 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.SYNC;
+
+import com.google.common.collect.Sets;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Progress of a batch reindex, stored in a file so that an interrupted
+ * reindex can be resumed.
+ * <p>
+ * The file lists the keys (e.g. project names) whose documents have all been
+ * written, one per line. A key passed to {@link #done(String)} is only appended
+ * to the file by {@link #flush(Index)} after the index has been committed, so
+ * every key in the file is durable in the index.
+ */
+public class ReindexCheckpoint {
+  private static final long FLUSH_INTERVAL_NANOS =
+      TimeUnit.MINUTES.toNanos(1);
+
+  /**
+   * Open the checkpoint stored in a file.
+   *
+   * @param file file holding the checkpoint.
+   * @param resume whether to keep the keys already recorded in the file; if
+   *     false the file is truncated.
+   * @return the checkpoint.
+   * @throws IOException the file could not be read or truncated.
+   */
+  public static ReindexCheckpoint open(Path file, boolean resume)
+      throws IOException {
+    Set<String> done = Sets.newConcurrentHashSet();
+    if (resume && Files.exists(file)) {
+      for (String line : Files.readAllLines(file, UTF_8)) {
+        if (!line.isEmpty()) {
+          done.add(line);
+        }
+      }
+    } else {
+      Files.deleteIfExists(file);
+    }
+    return new ReindexCheckpoint(file, done);
+  }
+
+  private final Path file;
+  private final Set<String> done;
+  private final List<String> pending;
+  private long lastFlush;
+
+  private ReindexCheckpoint(Path file, Set<String> done) {
+    this.file = file;
+    this.done = done;
+    this.pending = new ArrayList<>();
+    this.lastFlush = System.nanoTime();
+  }
+
+  /** @return whether a key was recorded as done by a previous run. */
+  public boolean isDone(String key) {
+    return done.contains(key);
+  }
+
+  /** @return number of keys recorded as done. */
+  public int size() {
+    return done.size();
+  }
+
+  /**
+   * Record that all documents of a key were written.
+   *
+   * @param key key that is done.
+   */
+  public synchronized void done(String key) {
+    pending.add(key);
+  }
+
+  /**
+   * Flush pending keys if the last flush was long enough ago.
+   *
+   * @param index index the documents were written to.
+   * @throws IOException the index could not be committed or the file could
+   *     not be written.
+   */
+  public void maybeFlush(Index<?, ?> index) throws IOException {
+    synchronized (this) {
+      if (System.nanoTime() - lastFlush < FLUSH_INTERVAL_NANOS) {
+        return;
+      }
+    }
+    flush(index);
+  }
+
+  /**
+   * Commit the index and append all pending keys to the file.
+   *
+   * @param index index the documents were written to.
+   * @throws IOException the index could not be committed or the file could
+   *     not be written.
+   */
+  public void flush(Index<?, ?> index) throws IOException {
+    List<String> keys;
+    synchronized (this) {
+      lastFlush = System.nanoTime();
+      if (pending.isEmpty()) {
+        return;
+      }
+      keys = new ArrayList<>(pending);
+      pending.clear();
+    }
+    index.commit();
+    synchronized (file) {
+      try (Writer w = Files.newBufferedWriter(
+          file, UTF_8, CREATE, APPEND, SYNC)) {
+        for (String key : keys) {
+          w.write(key);
+          w.write('\n');
+        }
+      }
+    }
+    done.addAll(keys);
+  }
+
+  /** Delete the file, e.g. after the reindex succeeded. */
+  public void delete() throws IOException {
+    synchronized (file) {
+      Files.deleteIfExists(file);
+    }
+  }
+}
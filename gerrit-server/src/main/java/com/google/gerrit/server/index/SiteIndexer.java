@@ -19,6 +19,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import com.google.common.base.Stopwatch;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gerrit.common.Nullable;
 
 import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.util.io.NullOutputStream;
@@ -68,6 +69,8 @@ public abstract class SiteIndexer<K, V, I extends Index<K, V>> {
   protected OutputStream progressOut = NullOutputStream.INSTANCE;
   protected PrintWriter verboseWriter =
       new PrintWriter(NullOutputStream.INSTANCE);
+  protected ReindexCheckpoint checkpoint;
+  protected I sourceIndex;
 
   public void setTotalWork(int num) {
     totalWork = num;
@@ -81,6 +84,28 @@ public abstract class SiteIndexer<K, V, I extends Index<K, V>> {
     verboseWriter = new PrintWriter(checkNotNull(out));
   }
 
+  /**
+   * Set the checkpoint to skip work done by a previous run and to record the
+   * progress of this one. Indexers that cannot split their work ignore it.
+   *
+   * @param checkpoint checkpoint, or null to not record progress.
+   */
+  public void setCheckpoint(@Nullable ReindexCheckpoint checkpoint) {
+    this.checkpoint = checkpoint;
+  }
+
+  /**
+   * Set an older version of the index to reuse stored fields from, for
+   * documents that are still up to date. Indexers that cannot reuse documents
+   * ignore it.
+   *
+   * @param sourceIndex index to reuse documents from, or null to build all
+   *     documents from scratch.
+   */
+  public void setSourceIndex(@Nullable I sourceIndex) {
+    this.sourceIndex = sourceIndex;
+  }
+
   public abstract Result indexAll(I index);
 
   protected final void addErrorListener(ListenableFuture<?> future,
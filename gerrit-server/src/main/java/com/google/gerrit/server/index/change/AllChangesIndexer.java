@@ -21,6 +21,7 @@ import com.google.common.base.Stopwatch;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
@@ -28,6 +29,7 @@ import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.gerrit.common.Nullable;
 import com.google.gerrit.reviewdb.client.Change;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.reviewdb.server.ReviewDb;
@@ -36,12 +38,15 @@ import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.MergeUtil;
 import com.google.gerrit.server.git.MultiProgressMonitor;
 import com.google.gerrit.server.git.MultiProgressMonitor.Task;
+import com.google.gerrit.server.index.IndexConfig;
 import com.google.gerrit.server.index.IndexExecutor;
 import com.google.gerrit.server.index.SiteIndexer;
 import com.google.gerrit.server.notedb.ChangeNotes;
+import com.google.gerrit.server.notedb.NotesMigration;
 import com.google.gerrit.server.patch.AutoMerger;
 import com.google.gerrit.server.project.ProjectCache;
 import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.util.ThreadLocalRequestContext;
 import com.google.gwtorm.server.SchemaFactory;
 import com.google.inject.Inject;
 
@@ -70,6 +75,7 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -79,6 +85,7 @@ import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class AllChangesIndexer
     extends SiteIndexer<Change.Id, ChangeData, ChangeIndex> {
@@ -94,6 +101,10 @@ public class AllChangesIndexer
   private final ProjectCache projectCache;
   private final ThreeWayMergeStrategy mergeStrategy;
   private final AutoMerger autoMerger;
+  private final ThreadLocalRequestContext context;
+  private final NotesMigration migration;
+  private final IndexConfig indexConfig;
+  private final int shardSize;
 
   @Inject
   AllChangesIndexer(SchemaFactory<ReviewDb> schemaFactory,
@@ -104,7 +115,9 @@ public class AllChangesIndexer
       ChangeNotes.Factory notesFactory,
       @GerritServerConfig Config config,
       ProjectCache projectCache,
-      AutoMerger autoMerger) {
+      AutoMerger autoMerger,
+      ThreadLocalRequestContext context,
+      NotesMigration migration) {
     this.schemaFactory = schemaFactory;
     this.changeDataFactory = changeDataFactory;
     this.repoManager = repoManager;
@@ -114,6 +127,10 @@ public class AllChangesIndexer
     this.projectCache = projectCache;
     this.mergeStrategy = MergeUtil.getMergeStrategy(config);
     this.autoMerger = autoMerger;
+    this.context = context;
+    this.migration = migration;
+    this.indexConfig = IndexConfig.fromConfig(config);
+    this.shardSize = config.getInt("index", null, "batchShardSize", 1000);
   }
 
   private static class ProjectHolder implements Comparable<ProjectHolder> {
@@ -142,6 +159,9 @@ public class AllChangesIndexer
     int changeCount = 0;
     Stopwatch sw = Stopwatch.createStarted();
     for (Project.NameKey name : projectCache.all()) {
+      if (checkpoint != null && checkpoint.isDone(name.get())) {
+        continue;
+      }
       try (Repository repo = repoManager.openRepository(name)) {
         int size = ChangeNotes.Factory.scan(repo).size();
         changeCount += size;
@@ -174,10 +194,21 @@ public class AllChangesIndexer
     final List<ListenableFuture<?>> futures = new ArrayList<>();
     final AtomicBoolean ok = new AtomicBoolean(true);
 
+    StoredChangeLoader stored = null;
+    if (sourceIndex != null) {
+      stored = new StoredChangeLoader(sourceIndex, index.getSchema(),
+          indexConfig, context, migration);
+      if (!stored.isUsable()) {
+        log.warn("Schema version {} does not store changes; reindexing all"
+            + " changes", sourceIndex.getSchema().getVersion());
+        stored = null;
+      }
+    }
+
     for (final ProjectHolder project : projects) {
-      ListenableFuture<?> future = executor.submit(reindexProject(
-          indexerFactory.create(executor, index), project.name, doneTask,
-          failedTask, verboseWriter));
+      ListenableFuture<?> future = reindexProject(
+          indexerFactory.create(executor, index), index, stored, project.name,
+          doneTask, failedTask, verboseWriter);
       addErrorListener(future, "project " + project.name, projTask, ok);
       futures.add(future);
     }
@@ -195,6 +226,13 @@ public class AllChangesIndexer
       log.error("Error in batch indexer", e);
       ok.set(false);
     }
+    if (checkpoint != null) {
+      try {
+        checkpoint.flush(index);
+      } catch (IOException e) {
+        log.error("Error saving reindex checkpoint", e);
+      }
+    }
     // If too many changes failed, maybe there was a bug in the indexer. Don't
     // trust the results. This is not an exact percentage since we bump the same
     // failure counter if a project can't be read, but close enough.
@@ -206,16 +244,77 @@ public class AllChangesIndexer
           nFailed, nTotal, Math.round(pctFailed));
       ok.set(false);
     }
+    if (stored != null) {
+      log.info("Reused stored fields of {} up-to-date changes from schema"
+          + " version {}", stored.getReusedCount(),
+          sourceIndex.getSchema().getVersion());
+    }
     return new Result(sw, ok.get(), doneTask.getCount(), failedTask.getCount());
   }
 
-  private Callable<Void> reindexProject(final ChangeIndexer indexer,
-      final Project.NameKey project, final Task done, final Task failed,
-      final PrintWriter verboseWriter) {
-    return new Callable<Void>() {
+  /**
+   * Index all changes of a project.
+   * <p>
+   * The project is first scanned for changes, which are then split into
+   * shards of at most {@code index.batchShardSize} changes. Shards are indexed
+   * in parallel, so that a single large project does not keep the reindex
+   * running on one thread.
+   */
+  private ListenableFuture<?> reindexProject(final ChangeIndexer indexer,
+      final ChangeIndex index, @Nullable final StoredChangeLoader stored,
+      final Project.NameKey project,
+      final Task done, final Task failed, final PrintWriter verboseWriter) {
+    final AtomicInteger projectFailures = new AtomicInteger();
+    ListenableFuture<List<Shard>> shards =
+        executor.submit(scanProject(project));
+    ListenableFuture<List<Void>> indexed = Futures.transformAsync(shards,
+        new AsyncFunction<List<Shard>, List<Void>>() {
+          @Override
+          public ListenableFuture<List<Void>> apply(List<Shard> input) {
+            List<ListenableFuture<Void>> futures =
+                new ArrayList<>(input.size());
+            for (Shard shard : input) {
+              futures.add(executor.submit(new ProjectIndexer(indexer,
+                  mergeStrategy,
+                  autoMerger,
+                  schemaFactory,
+                  changeDataFactory,
+                  repoManager,
+                  stored,
+                  project,
+                  shard,
+                  done,
+                  failed,
+                  projectFailures,
+                  verboseWriter)));
+            }
+            return Futures.allAsList(futures);
+          }
+        });
+    if (checkpoint == null) {
+      return indexed;
+    }
+    return Futures.transformAsync(indexed,
+        new AsyncFunction<List<Void>, Void>() {
+          @Override
+          public ListenableFuture<Void> apply(List<Void> input)
+              throws IOException {
+            // Projects with failed changes are not recorded, so that they are
+            // indexed again when resuming.
+            if (projectFailures.get() == 0) {
+              checkpoint.done(project.get());
+              checkpoint.maybeFlush(index);
+            }
+            return Futures.immediateFuture(null);
+          }
+        });
+  }
+
+  private Callable<List<Shard>> scanProject(final Project.NameKey project) {
+    return new Callable<List<Shard>>() {
       @Override
-      public Void call() throws Exception {
-        Multimap<ObjectId, ChangeData> byId = ArrayListMultimap.create();
+      public List<Shard> call() throws Exception {
+        Multimap<ObjectId, ChangeNotes> byId = ArrayListMultimap.create();
         // TODO(dborowitz): Opening all repositories in a live server may be
         // wasteful; see if we can determine which ones it is safe to close
         // with RepositoryCache.close(repo).
@@ -225,82 +324,163 @@ public class AllChangesIndexer
           for (ChangeNotes cn : notesFactory.scan(repo, db, project)) {
             Ref r = refs.get(cn.getChange().currentPatchSetId().toRefName());
             if (r != null) {
-              byId.put(r.getObjectId(), changeDataFactory.create(db, cn));
+              byId.put(r.getObjectId(), cn);
             }
           }
-          new ProjectIndexer(indexer,
-              mergeStrategy,
-              autoMerger,
-              byId,
-              repo,
-              done,
-              failed,
-              verboseWriter).call();
+          return shard(repo, byId);
         } catch (RepositoryNotFoundException rnfe) {
           log.error(rnfe.getMessage());
+          return Collections.emptyList();
         }
-        return null;
       }
 
       @Override
       public String toString() {
-        return "Index all changes of project " + project.get();
+        return "Scan changes of project " + project.get();
       }
     };
   }
 
+  private List<Shard> shard(Repository repo,
+      Multimap<ObjectId, ChangeNotes> byId) throws IOException {
+    if (byId.isEmpty()) {
+      return Collections.emptyList();
+    } else if (shardSize <= 0 || byId.size() <= shardSize) {
+      return Collections.singletonList(new Shard(byId, false));
+    }
+
+    // Order commits by a single walk over the branches, so that shards don't
+    // each have to walk the whole history again, and reads from the pack
+    // stay local within a shard.
+    List<ObjectId> ordered = new ArrayList<>(byId.keySet().size());
+    Set<ObjectId> remaining = new HashSet<>(byId.keySet());
+    try (RevWalk walk = new RevWalk(repo)) {
+      walk.setRetainBody(false);
+      markBranches(repo, walk);
+      RevCommit c;
+      while ((c = walk.next()) != null && !remaining.isEmpty()) {
+        if (remaining.remove(c)) {
+          ordered.add(c.copy());
+        }
+      }
+    }
+    ordered.addAll(remaining);
+
+    List<Shard> shards = new ArrayList<>();
+    Multimap<ObjectId, ChangeNotes> shard = LinkedListMultimap.create();
+    for (ObjectId id : ordered) {
+      if (shard.size() >= shardSize) {
+        shards.add(new Shard(shard, true));
+        shard = LinkedListMultimap.create();
+      }
+      shard.putAll(id, byId.get(id));
+    }
+    shards.add(new Shard(shard, true));
+    return shards;
+  }
+
+  private static void markBranches(Repository repo, RevWalk walk)
+      throws IOException {
+    for (Ref ref : repo.getRefDatabase().getRefs(Constants.R_HEADS).values()) {
+      RevObject o = walk.parseAny(ref.getObjectId());
+      if (o instanceof RevCommit) {
+        walk.markStart((RevCommit) o);
+      }
+    }
+  }
+
+  /** Changes of a project indexed by one task, keyed by current revision. */
+  private static class Shard {
+    private final Multimap<ObjectId, ChangeNotes> byId;
+    private final boolean ordered;
+
+    private Shard(Multimap<ObjectId, ChangeNotes> byId, boolean ordered) {
+      this.byId = byId;
+      this.ordered = ordered;
+    }
+  }
+
   private static class ProjectIndexer implements Callable<Void> {
     private final ChangeIndexer indexer;
     private final ThreeWayMergeStrategy mergeStrategy;
     private final AutoMerger autoMerger;
+    private final SchemaFactory<ReviewDb> schemaFactory;
+    private final ChangeData.Factory changeDataFactory;
+    private final GitRepositoryManager repoManager;
+    private final StoredChangeLoader stored;
+    private final Project.NameKey project;
+    private final Shard shard;
     private final Multimap<ObjectId, ChangeData> byId;
     private final ProgressMonitor done;
     private final ProgressMonitor failed;
+    private final AtomicInteger projectFailures;
     private final PrintWriter verboseWriter;
-    private final Repository repo;
+    private Repository repo;
 
     private ProjectIndexer(ChangeIndexer indexer,
         ThreeWayMergeStrategy mergeStrategy,
         AutoMerger autoMerger,
-        Multimap<ObjectId, ChangeData> changesByCommitId,
-        Repository repo,
+        SchemaFactory<ReviewDb> schemaFactory,
+        ChangeData.Factory changeDataFactory,
+        GitRepositoryManager repoManager,
+        @Nullable StoredChangeLoader stored,
+        Project.NameKey project,
+        Shard shard,
         ProgressMonitor done,
         ProgressMonitor failed,
+        AtomicInteger projectFailures,
         PrintWriter verboseWriter) {
       this.indexer = indexer;
       this.mergeStrategy = mergeStrategy;
       this.autoMerger = autoMerger;
-      this.byId = changesByCommitId;
-      this.repo = repo;
+      this.schemaFactory = schemaFactory;
+      this.changeDataFactory = changeDataFactory;
+      this.repoManager = repoManager;
+      this.stored = stored;
+      this.project = project;
+      this.shard = shard;
+      this.byId = LinkedListMultimap.create();
       this.done = done;
       this.failed = failed;
+      this.projectFailures = projectFailures;
       this.verboseWriter = verboseWriter;
     }
 
     @Override
     public Void call() throws Exception {
-      try (ObjectInserter ins = repo.newObjectInserter();
+      try (Repository r = repoManager.openRepository(project);
+          ReviewDb db = schemaFactory.open();
+          ObjectInserter ins = r.newObjectInserter();
           RevWalk walk = new RevWalk(ins.newReader())) {
-        // Walk only refs first to cover as many changes as we can without having
-        // to mark every single change.
-        for (Ref ref : repo.getRefDatabase().getRefs(Constants.R_HEADS).values()) {
-          RevObject o = walk.parseAny(ref.getObjectId());
-          if (o instanceof RevCommit) {
-            walk.markStart((RevCommit) o);
-          }
+        repo = r;
+        Map<Change.Id, ChangeData> upToDate = stored != null
+            ? stored.load(db, shard.byId.values())
+            : Collections.<Change.Id, ChangeData> emptyMap();
+        for (Map.Entry<ObjectId, ChangeNotes> e : shard.byId.entries()) {
+          ChangeData cd = upToDate.get(e.getValue().getChangeId());
+          byId.put(e.getKey(), cd != null
+              ? cd
+              : changeDataFactory.create(db, e.getValue()));
         }
 
-        RevCommit bCommit;
-        while ((bCommit = walk.next()) != null && !byId.isEmpty()) {
-          if (byId.containsKey(bCommit)) {
-            getPathsAndIndex(walk, ins, bCommit);
-            byId.removeAll(bCommit);
+        if (!shard.ordered) {
+          // Walk only refs first to cover as many changes as we can without
+          // having to mark every single change.
+          markBranches(repo, walk);
+          RevCommit bCommit;
+          while ((bCommit = walk.next()) != null && !byId.isEmpty()) {
+            if (byId.containsKey(bCommit)) {
+              getPathsAndIndex(walk, ins, bCommit);
+              byId.removeAll(bCommit);
+            }
           }
         }
 
         for (ObjectId id : byId.keySet()) {
           getPathsAndIndex(walk, ins, id);
         }
+      } catch (RepositoryNotFoundException rnfe) {
+        log.error(rnfe.getMessage());
       }
       return null;
     }
@@ -381,6 +561,7 @@ public class AllChangesIndexer
     private void fail(String error, boolean failed, Exception e) {
       if (failed) {
         this.failed.update(1);
+        projectFailures.incrementAndGet();
       }
 
       if (e != null) {
@@ -19,8 +19,28 @@ import com.google.gerrit.server.index.Index;
 import com.google.gerrit.server.index.IndexDefinition;
 import com.google.gerrit.server.query.change.ChangeData;
 
+import java.io.IOException;
+import java.util.Collection;
+
 public interface ChangeIndex extends Index<Change.Id, ChangeData> {
   public interface Factory extends
       IndexDefinition.IndexFactory<Change.Id, ChangeData, ChangeIndex> {
   }
+
+  /**
+   * Update several change documents.
+   * <p>
+   * Implementations may apply the updates with fewer writes than calling
+   * {@link #replace(Object)} for each change; by default they are not
+   * batched.
+   *
+   * @param cds changes to update.
+   * @throws IOException an update failed; some of the other changes may
+   *     already have been updated.
+   */
+  default void replaceAll(Collection<ChangeData> cds) throws IOException {
+    for (ChangeData cd : cds) {
+      replace(cd);
+    }
+  }
 }
@@ -20,12 +20,14 @@ import com.google.common.util.concurrent.CheckedFuture;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.gerrit.extensions.events.ChangeIndexedListener;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.reviewdb.client.Change;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.reviewdb.server.ReviewDb;
 import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.index.Index;
 import com.google.gerrit.server.notedb.ChangeNotes;
 import com.google.gerrit.server.notedb.NotesMigration;
@@ -41,6 +43,7 @@ import com.google.inject.assistedinject.Assisted;
 import com.google.inject.assistedinject.AssistedInject;
 import com.google.inject.util.Providers;
 
+import org.eclipse.jgit.lib.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,9 +51,13 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -58,6 +65,11 @@ import java.util.concurrent.atomic.AtomicReference;
  * <p>
  * Indexing is run in the background, as it may require substantial work to
  * compute some of the fields and/or update the index.
+ * <p>
+ * If {@code index.writeBatchSize} is greater than 1, changes queued by {@link
+ * #indexAsync(Project.NameKey, Change.Id)} while the indexing threads are busy
+ * are written to the index together, and changes queued again before their
+ * indexing started are indexed only once.
  */
 public class ChangeIndexer {
   private static final Logger log =
@@ -102,6 +114,13 @@ public class ChangeIndexer {
   private final ThreadLocalRequestContext context;
   private final ListeningExecutorService executor;
   private final DynamicSet<ChangeIndexedListener> indexedListener;
+  private final int writeBatchSize;
+
+  // Changes waiting for a BatchIndexTask, in the order they were queued.
+  // Guarded by itself, as is queuedBatches.
+  private final Map<Change.Id, SettableFuture<Void>> pending;
+  private final Map<Change.Id, Project.NameKey> pendingProjects;
+  private int queuedBatches;
 
   @AssistedInject
   ChangeIndexer(SchemaFactory<ReviewDb> schemaFactory,
@@ -110,6 +129,7 @@ public class ChangeIndexer {
       ChangeData.Factory changeDataFactory,
       ThreadLocalRequestContext context,
       DynamicSet<ChangeIndexedListener> indexedListener,
+      @GerritServerConfig Config cfg,
       @Assisted ListeningExecutorService executor,
       @Assisted ChangeIndex index) {
     this.executor = executor;
@@ -121,6 +141,9 @@ public class ChangeIndexer {
     this.index = index;
     this.indexes = null;
     this.indexedListener = indexedListener;
+    this.writeBatchSize = writeBatchSize(cfg);
+    this.pending = new LinkedHashMap<>();
+    this.pendingProjects = new LinkedHashMap<>();
   }
 
   @AssistedInject
@@ -130,6 +153,7 @@ public class ChangeIndexer {
       ChangeData.Factory changeDataFactory,
       ThreadLocalRequestContext context,
       DynamicSet<ChangeIndexedListener> indexedListener,
+      @GerritServerConfig Config cfg,
       @Assisted ListeningExecutorService executor,
       @Assisted ChangeIndexCollection indexes) {
     this.executor = executor;
@@ -141,19 +165,72 @@ public class ChangeIndexer {
     this.index = null;
     this.indexes = indexes;
     this.indexedListener = indexedListener;
+    this.writeBatchSize = writeBatchSize(cfg);
+    this.pending = new LinkedHashMap<>();
+    this.pendingProjects = new LinkedHashMap<>();
+  }
+
+  private static int writeBatchSize(Config cfg) {
+    return Math.max(cfg.getInt("index", null, "writeBatchSize", 1), 1);
   }
 
   /**
    * Start indexing a change.
+   * <p>
+   * The returned future completes once the change was written to the index
+   * and is visible to searches, so a request that waits for it before
+   * querying the index reads its own writes, even if the change was indexed
+   * together with others.
    *
    * @param id change to index.
    * @return future for the indexing task.
    */
   public CheckedFuture<?, IOException> indexAsync(Project.NameKey project,
       Change.Id id) {
-    return executor != null
-        ? submit(new IndexTask(project, id))
-        : Futures.<Object, IOException> immediateCheckedFuture(null);
+    if (executor == null) {
+      return Futures.<Object, IOException> immediateCheckedFuture(null);
+    } else if (writeBatchSize > 1) {
+      return addToBatch(project, id);
+    }
+    return submit(new IndexTask(project, id));
+  }
+
+  private CheckedFuture<?, IOException> addToBatch(Project.NameKey project,
+      Change.Id id) {
+    SettableFuture<Void> future;
+    boolean submit = false;
+    synchronized (pending) {
+      future = pending.get(id);
+      if (future == null) {
+        future = SettableFuture.create();
+        pending.put(id, future);
+        pendingProjects.put(id, project);
+        // Keep enough tasks queued to take all pending changes, so that
+        // changes are not held back while there are idle indexing threads.
+        if (pending.size() > queuedBatches * writeBatchSize) {
+          queuedBatches++;
+          submit = true;
+        }
+      }
+    }
+    if (submit) {
+      BatchIndexTask task = new BatchIndexTask();
+      try {
+        executor.submit(task);
+      } catch (RejectedExecutionException e) {
+        // The task was already counted in queuedBatches, and pending changes
+        // may be waiting for it; running it here releases both.
+        log.warn("Cannot queue batch index task, indexing in calling thread",
+            e);
+        try {
+          task.call();
+        } catch (Exception err) {
+          // Already logged and set on the futures of the batch.
+        }
+      }
+    }
+    return Futures.makeChecked(
+        Futures.nonCancellationPropagating(future), MAPPER);
   }
 
   /**
@@ -250,7 +327,51 @@ public class ChangeIndexer {
         Futures.nonCancellationPropagating(executor.submit(task)), MAPPER);
   }
 
-  private class IndexTask implements Callable<Void> {
+  private abstract class AbstractIndexTask implements Callable<Void> {
+    protected abstract void callImpl(ReviewDb db) throws Exception;
+
+    @Override
+    public Void call() throws Exception {
+      final AtomicReference<Provider<ReviewDb>> dbRef =
+          Atomics.newReference();
+      RequestContext newCtx = new RequestContext() {
+        @Override
+        public Provider<ReviewDb> getReviewDbProvider() {
+          Provider<ReviewDb> db = dbRef.get();
+          if (db == null) {
+            try {
+              db = Providers.of(schemaFactory.open());
+            } catch (OrmException e) {
+              ProvisionException pe =
+                  new ProvisionException("error opening ReviewDb");
+              pe.initCause(e);
+              throw pe;
+            }
+            dbRef.set(db);
+          }
+          return db;
+        }
+
+        @Override
+        public CurrentUser getUser() {
+          throw new OutOfScopeException("No user during ChangeIndexer");
+        }
+      };
+      RequestContext oldCtx = context.setContext(newCtx);
+      try {
+        callImpl(newCtx.getReviewDbProvider().get());
+        return null;
+      } finally  {
+        context.setContext(oldCtx);
+        Provider<ReviewDb> db = dbRef.get();
+        if (db != null) {
+          db.get().close();
+        }
+      }
+    }
+  }
+
+  private class IndexTask extends AbstractIndexTask {
     private final Project.NameKey project;
     private final Change.Id id;
 
@@ -262,56 +383,107 @@ public class ChangeIndexer {
     @Override
     public Void call() throws Exception {
       try {
-        final AtomicReference<Provider<ReviewDb>> dbRef =
-            Atomics.newReference();
-        RequestContext newCtx = new RequestContext() {
-          @Override
-          public Provider<ReviewDb> getReviewDbProvider() {
-            Provider<ReviewDb> db = dbRef.get();
-            if (db == null) {
-              try {
-                db = Providers.of(schemaFactory.open());
-              } catch (OrmException e) {
-                ProvisionException pe =
-                    new ProvisionException("error opening ReviewDb");
-                pe.initCause(e);
-                throw pe;
-              }
-              dbRef.set(db);
-            }
-            return db;
-          }
-
-          @Override
-          public CurrentUser getUser() {
-            throw new OutOfScopeException("No user during ChangeIndexer");
-          }
-        };
-        RequestContext oldCtx = context.setContext(newCtx);
-        try {
-          ChangeData cd = newChangeData(
-              newCtx.getReviewDbProvider().get(), project, id);
-          index(cd);
-          return null;
-        } finally  {
-          context.setContext(oldCtx);
-          Provider<ReviewDb> db = dbRef.get();
-          if (db != null) {
-            db.get().close();
-          }
-        }
+        return super.call();
       } catch (Exception e) {
         log.error(String.format("Failed to index change %d", id.get()), e);
         throw e;
       }
     }
 
+    @Override
+    protected void callImpl(ReviewDb db) throws Exception {
+      index(newChangeData(db, project, id));
+    }
+
     @Override
     public String toString() {
       return "index-change-" + id.get();
     }
   }
 
+  private class BatchIndexTask extends AbstractIndexTask {
+    private final Map<Change.Id, SettableFuture<Void>> batch =
+        new LinkedHashMap<>();
+    private final Map<Change.Id, Project.NameKey> projects =
+        new LinkedHashMap<>();
+
+    @Override
+    public Void call() throws Exception {
+      synchronized (pending) {
+        queuedBatches--;
+        Iterator<Map.Entry<Change.Id, SettableFuture<Void>>> it =
+            pending.entrySet().iterator();
+        while (it.hasNext() && batch.size() < writeBatchSize) {
+          Map.Entry<Change.Id, SettableFuture<Void>> e = it.next();
+          batch.put(e.getKey(), e.getValue());
+          projects.put(e.getKey(), pendingProjects.remove(e.getKey()));
+          it.remove();
+        }
+      }
+      if (batch.isEmpty()) {
+        return null;
+      }
+
+      try {
+        return super.call();
+      } catch (Exception e) {
+        log.error("Failed to execute " + this, e);
+        for (SettableFuture<Void> f : batch.values()) {
+          f.setException(e);
+        }
+        throw e;
+      }
+    }
+
+    @Override
+    protected void callImpl(ReviewDb db) throws Exception {
+      List<ChangeData> cds = new ArrayList<>(batch.size());
+      for (Map.Entry<Change.Id, Project.NameKey> e : projects.entrySet()) {
+        try {
+          cds.add(newChangeData(db, e.getValue(), e.getKey()));
+        } catch (OrmException | RuntimeException err) {
+          log.error(String.format(
+              "Failed to index change %d", e.getKey().get()), err);
+          batch.get(e.getKey()).setException(err);
+        }
+      }
+      try {
+        for (ChangeIndex i : getWriteIndexes()) {
+          i.replaceAll(cds);
+        }
+      } catch (IOException | RuntimeException e) {
+        // Don't let one broken change fail the others; retry them one by one
+        // to find out which changes failed.
+        log.warn("Failed to execute " + this + ", indexing changes separately",
+            e);
+        for (ChangeData cd : cds) {
+          indexSeparately(cd);
+        }
+        return;
+      }
+      for (ChangeData cd : cds) {
+        fireChangeIndexedEvent(cd.getId().get());
+        batch.get(cd.getId()).set(null);
+      }
+    }
+
+    private void indexSeparately(ChangeData cd) {
+      try {
+        index(cd);
+        batch.get(cd.getId()).set(null);
+      } catch (IOException | RuntimeException e) {
+        log.error(
+            String.format("Failed to index change %d", cd.getId().get()), e);
+        batch.get(cd.getId()).setException(e);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "index-changes-" + batch.keySet();
+    }
+  }
+
   private class DeleteTask implements Callable<Void> {
     private final Change.Id id;
 
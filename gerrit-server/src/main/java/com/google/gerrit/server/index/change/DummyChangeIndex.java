@@ -45,6 +45,10 @@ public class DummyChangeIndex implements ChangeIndex {
   public void deleteAll() throws IOException {
   }
 
+  @Override
+  public void commit() throws IOException {
+  }
+
   @Override
   public ChangeDataSource getSource(Predicate<ChangeData> p, QueryOptions opts) {
     throw new UnsupportedOperationException();
@@ -0,0 +1,187 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index.change;
+
+import com.google.common.collect.Iterables;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.index.FieldDef;
+import com.google.gerrit.server.index.IndexConfig;
+import com.google.gerrit.server.index.QueryOptions;
+import com.google.gerrit.server.index.Schema;
+import com.google.gerrit.server.notedb.ChangeNotes;
+import com.google.gerrit.server.notedb.NoteDbChangeState;
+import com.google.gerrit.server.notedb.NotesMigration;
+import com.google.gerrit.server.query.Predicate;
+import com.google.gerrit.server.query.QueryParseException;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.query.change.LegacyChangeIdPredicate;
+import com.google.gerrit.server.util.RequestContext;
+import com.google.gerrit.server.util.ThreadLocalRequestContext;
+import com.google.gwtorm.server.OrmException;
+import com.google.inject.OutOfScopeException;
+import com.google.inject.Provider;
+import com.google.inject.util.Providers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads changes from an older version of the change index, so that their
+ * stored fields can be reused when indexing them into a new schema version.
+ * <p>
+ * Only stored fields with the same definition in both schema versions are
+ * read; all other fields are computed as usual when the new document is
+ * built. A stored change is only returned if it is still up to date, i.e. its
+ * change row and, when reading changes from NoteDb, its meta ref are
+ * unchanged.
+ */
+class StoredChangeLoader {
+  private static final Logger log =
+      LoggerFactory.getLogger(StoredChangeLoader.class);
+
+  private static final int MAX_BATCH_SIZE = 100;
+
+  /**
+   * @return names of stored fields with the same definition in both schema
+   *     versions.
+   */
+  static Set<String> reusableFields(Schema<ChangeData> from,
+      Schema<ChangeData> to) {
+    Set<String> fields = new HashSet<>();
+    for (FieldDef<ChangeData, ?> f : to.getStoredFields().values()) {
+      if (from.getFields().get(f.getName()) == f) {
+        fields.add(f.getName());
+      }
+    }
+    return fields;
+  }
+
+  private final ChangeIndex source;
+  private final Set<String> fields;
+  private final IndexConfig indexConfig;
+  private final ThreadLocalRequestContext context;
+  private final NotesMigration migration;
+  private final int batchSize;
+  private final AtomicInteger reused;
+
+  StoredChangeLoader(ChangeIndex source,
+      Schema<ChangeData> target,
+      IndexConfig indexConfig,
+      ThreadLocalRequestContext context,
+      NotesMigration migration) {
+    this.source = source;
+    this.fields = reusableFields(source.getSchema(), target);
+    this.indexConfig = indexConfig;
+    this.context = context;
+    this.migration = migration;
+    this.batchSize = Math.min(MAX_BATCH_SIZE, indexConfig.maxTerms());
+    this.reused = new AtomicInteger();
+  }
+
+  /**
+   * @return whether the source index stores enough to reuse its documents,
+   *     i.e. the change itself.
+   */
+  boolean isUsable() {
+    return fields.contains(ChangeField.CHANGE.getName());
+  }
+
+  /** @return number of changes returned by {@link #load} so far. */
+  int getReusedCount() {
+    return reused.get();
+  }
+
+  /**
+   * Load up-to-date stored changes.
+   *
+   * @param db open database the returned changes use to load anything that
+   *     was not stored.
+   * @param notes current state of the changes to load.
+   * @return stored changes by ID; changes that are stale or missing from the
+   *     source index are absent.
+   */
+  Map<Change.Id, ChangeData> load(final ReviewDb db,
+      Collection<ChangeNotes> notes) {
+    Map<Change.Id, ChangeNotes> current = new HashMap<>();
+    for (ChangeNotes cn : notes) {
+      current.put(cn.getChangeId(), cn);
+    }
+
+    Map<Change.Id, ChangeData> result = new HashMap<>();
+    RequestContext oldCtx = context.setContext(new RequestContext() {
+      @Override
+      public Provider<ReviewDb> getReviewDbProvider() {
+        return Providers.of(db);
+      }
+
+      @Override
+      public CurrentUser getUser() {
+        throw new OutOfScopeException("No user while reading stored changes");
+      }
+    });
+    try {
+      for (List<Change.Id> batch
+          : Iterables.partition(current.keySet(), batchSize)) {
+        List<Predicate<ChangeData>> preds = new ArrayList<>(batch.size());
+        for (Change.Id id : batch) {
+          preds.add(new LegacyChangeIdPredicate(id));
+        }
+        QueryOptions opts =
+            QueryOptions.create(indexConfig, 0, batch.size(), fields);
+        for (ChangeData cd : source.getSource(Predicate.or(preds), opts)
+            .read()) {
+          ChangeNotes cn = current.get(cd.getId());
+          if (cn != null && isUpToDate(cd.change(), cn)) {
+            result.put(cd.getId(), cd);
+          }
+        }
+      }
+    } catch (OrmException | QueryParseException | RuntimeException e) {
+      log.warn("Cannot read stored changes from schema version "
+          + source.getSchema().getVersion() + "; reindexing them", e);
+    } finally {
+      context.setContext(oldCtx);
+    }
+    reused.addAndGet(result.size());
+    return result;
+  }
+
+  private boolean isUpToDate(Change stored, ChangeNotes current) {
+    Change c = current.getChange();
+    if (stored.getRowVersion() != c.getRowVersion()
+        || !Objects.equals(stored.getLastUpdatedOn(), c.getLastUpdatedOn())
+        || !Objects.equals(stored.getNoteDbState(), c.getNoteDbState())) {
+      return false;
+    }
+    if (!migration.readChanges()) {
+      return true;
+    }
+    NoteDbChangeState state = NoteDbChangeState.parse(stored);
+    return state != null
+        && state.getChangeMetaId().equals(current.getRevision());
+  }
+}
@@ -33,6 +33,7 @@ import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.lib.ObjectId;
 
 import java.io.IOException;
+import java.io.Serializable;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 
@@ -46,16 +47,20 @@ public class ChangeNotesCache {
       @Override
       protected void configure() {
         bind(ChangeNotesCache.class);
-        cache(CACHE_NAME,
+        persist(CACHE_NAME,
             Key.class,
-            ChangeNotesState.class)
-          .maximumWeight(1000);
+            ChangeNotesState.class,
+            ChangeNotesState.Serializer.INSTANCE)
+          .maximumWeight(1000)
+          .diskLimit(0);
       }
     };
   }
 
   @AutoValue
-  public abstract static class Key {
+  public abstract static class Key implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     abstract Project.NameKey project();
     abstract Change.Id changeId();
     abstract ObjectId id();
@@ -15,6 +15,13 @@
 package com.google.gerrit.server.notedb;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.gerrit.server.ioutil.BasicSerialization.readBytes;
+import static com.google.gerrit.server.ioutil.BasicSerialization.readFixInt64;
+import static com.google.gerrit.server.ioutil.BasicSerialization.readVarInt32;
+import static com.google.gerrit.server.ioutil.BasicSerialization.writeBytes;
+import static com.google.gerrit.server.ioutil.BasicSerialization.writeFixInt64;
+import static com.google.gerrit.server.ioutil.BasicSerialization.writeVarInt32;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Comparator.comparing;
 
 import com.google.auto.value.AutoValue;
@@ -23,7 +30,10 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableTable;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Table;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.common.data.SubmitRecord;
 import com.google.gerrit.reviewdb.client.Account;
@@ -36,11 +46,24 @@ import com.google.gerrit.reviewdb.client.PatchSetApproval;
 import com.google.gerrit.reviewdb.client.RevId;
 import com.google.gerrit.server.ReviewerSet;
 import com.google.gerrit.server.ReviewerStatusUpdate;
+import com.google.gerrit.server.cache.CacheSerializer;
+import com.google.gwtorm.protobuf.CodecFactory;
+import com.google.gwtorm.protobuf.ProtobufCodec;
 
+import org.eclipse.jgit.util.IO;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.sql.Timestamp;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Immutable state associated with a change meta ref at a given commit.
@@ -193,4 +216,314 @@ public abstract class ChangeNotesState {
       change.clearCurrentPatchSet();
     }
   }
+
+  /**
+   * Stores a state in a compact binary form, for the persistent cache.
+   * <p>
+   * ReviewDb entities use their protobuf codecs, as in the secondary index;
+   * everything else is written with {@link
+   * com.google.gerrit.server.ioutil.BasicSerialization}, and the whole state
+   * is deflated. Change messages by patch set are not stored, as they are the
+   * same messages as {@link #allChangeMessages()}.
+   */
+  static class Serializer implements CacheSerializer<ChangeNotesState> {
+    static final Serializer INSTANCE = new Serializer();
+
+    private static final int VERSION = 1;
+
+    private static final ProtobufCodec<PatchSet> PATCH_SET_CODEC =
+        CodecFactory.encoder(PatchSet.class);
+    private static final ProtobufCodec<PatchSetApproval> APPROVAL_CODEC =
+        CodecFactory.encoder(PatchSetApproval.class);
+    private static final ProtobufCodec<ChangeMessage> MESSAGE_CODEC =
+        CodecFactory.encoder(ChangeMessage.class);
+    private static final ProtobufCodec<PatchLineComment> COMMENT_CODEC =
+        CodecFactory.encoder(PatchLineComment.class);
+
+    private Serializer() {
+    }
+
+    @Override
+    public byte[] serialize(ChangeNotesState state) throws IOException {
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      writeVarInt32(buf, VERSION);
+      try (DeflaterOutputStream out = new DeflaterOutputStream(buf)) {
+        writeVarInt32(out, state.changeId().get());
+        writeColumns(out, state.columns());
+        writeAccount(out, state.assignee());
+        writeVarInt32(out, state.hashtags().size());
+        for (String hashtag : state.hashtags()) {
+          writeString(out, hashtag);
+        }
+        writeEntities(out, PATCH_SET_CODEC, state.patchSets().values());
+        writeEntities(out, APPROVAL_CODEC, state.approvals().values());
+
+        ImmutableTable<ReviewerStateInternal, Account.Id, Timestamp>
+            reviewers = state.reviewers().asTable();
+        writeVarInt32(out, reviewers.size());
+        for (Table.Cell<ReviewerStateInternal, Account.Id, Timestamp> c
+            : reviewers.cellSet()) {
+          writeString(out, c.getRowKey().name());
+          writeAccount(out, c.getColumnKey());
+          writeTimestamp(out, c.getValue());
+        }
+        writeVarInt32(out, state.allPastReviewers().size());
+        for (Account.Id id : state.allPastReviewers()) {
+          writeAccount(out, id);
+        }
+        writeVarInt32(out, state.reviewerUpdates().size());
+        for (ReviewerStatusUpdate u : state.reviewerUpdates()) {
+          writeTimestamp(out, u.date());
+          writeAccount(out, u.updatedBy());
+          writeAccount(out, u.reviewer());
+          writeString(out, u.state().name());
+        }
+
+        writeVarInt32(out, state.submitRecords().size());
+        for (SubmitRecord r : state.submitRecords()) {
+          writeSubmitRecord(out, r);
+        }
+        writeEntities(out, MESSAGE_CODEC, state.allChangeMessages());
+        writeVarInt32(out, state.publishedComments().size());
+        for (Map.Entry<RevId, PatchLineComment> e
+            : state.publishedComments().entries()) {
+          writeString(out, e.getKey().get());
+          writeBytes(out, COMMENT_CODEC.encodeToByteArray(e.getValue()));
+        }
+      }
+      return buf.toByteArray();
+    }
+
+    @Override
+    public ChangeNotesState deserialize(byte[] data) throws IOException {
+      ByteArrayInputStream buf = new ByteArrayInputStream(data);
+      if (readVarInt32(buf) != VERSION) {
+        throw new IOException("Unsupported ChangeNotesState version");
+      }
+      try (InflaterInputStream in = new InflaterInputStream(buf)) {
+        Change.Id changeId = new Change.Id(readVarInt32(in));
+        ChangeColumns columns = readColumns(in, changeId);
+        Account.Id assignee = readAccount(in);
+        ImmutableSet.Builder<String> hashtags = ImmutableSet.builder();
+        for (int n = readVarInt32(in); n > 0; n--) {
+          hashtags.add(readString(in));
+        }
+
+        ImmutableSortedMap.Builder<PatchSet.Id, PatchSet> patchSets =
+            ImmutableSortedMap.orderedBy(comparing(PatchSet.Id::get));
+        for (int n = readVarInt32(in); n > 0; n--) {
+          PatchSet ps = PATCH_SET_CODEC.decode(readBytes(in));
+          patchSets.put(ps.getId(), ps);
+        }
+        ImmutableListMultimap.Builder<PatchSet.Id, PatchSetApproval>
+            approvals = ImmutableListMultimap.builder();
+        for (int n = readVarInt32(in); n > 0; n--) {
+          PatchSetApproval a = APPROVAL_CODEC.decode(readBytes(in));
+          approvals.put(a.getPatchSetId(), a);
+        }
+
+        ImmutableTable.Builder<ReviewerStateInternal, Account.Id, Timestamp>
+            reviewers = ImmutableTable.builder();
+        for (int n = readVarInt32(in); n > 0; n--) {
+          reviewers.put(ReviewerStateInternal.valueOf(readString(in)),
+              readAccount(in), readTimestamp(in));
+        }
+        ImmutableList.Builder<Account.Id> allPastReviewers =
+            ImmutableList.builder();
+        for (int n = readVarInt32(in); n > 0; n--) {
+          allPastReviewers.add(readAccount(in));
+        }
+        ImmutableList.Builder<ReviewerStatusUpdate> reviewerUpdates =
+            ImmutableList.builder();
+        for (int n = readVarInt32(in); n > 0; n--) {
+          reviewerUpdates.add(ReviewerStatusUpdate.create(readTimestamp(in),
+              readAccount(in), readAccount(in),
+              ReviewerStateInternal.valueOf(readString(in))));
+        }
+
+        ImmutableList.Builder<SubmitRecord> submitRecords =
+            ImmutableList.builder();
+        for (int n = readVarInt32(in); n > 0; n--) {
+          submitRecords.add(readSubmitRecord(in));
+        }
+        ImmutableList.Builder<ChangeMessage> messages = ImmutableList.builder();
+        ImmutableListMultimap.Builder<PatchSet.Id, ChangeMessage>
+            messagesByPatchSet = ImmutableListMultimap.builder();
+        for (int n = readVarInt32(in); n > 0; n--) {
+          ChangeMessage m = MESSAGE_CODEC.decode(readBytes(in));
+          messages.add(m);
+          if (m.getPatchSetId() != null) {
+            messagesByPatchSet.put(m.getPatchSetId(), m);
+          }
+        }
+        ImmutableListMultimap.Builder<RevId, PatchLineComment> comments =
+            ImmutableListMultimap.builder();
+        for (int n = readVarInt32(in); n > 0; n--) {
+          RevId rev = new RevId(readString(in));
+          PatchLineComment c = COMMENT_CODEC.decode(readBytes(in));
+          c.setRevId(rev);
+          comments.put(rev, c);
+        }
+
+        return new AutoValue_ChangeNotesState(
+            changeId,
+            columns,
+            assignee,
+            hashtags.build(),
+            patchSets.build(),
+            approvals.build(),
+            ReviewerSet.fromTable(reviewers.build()),
+            allPastReviewers.build(),
+            reviewerUpdates.build(),
+            submitRecords.build(),
+            messages.build(),
+            messagesByPatchSet.build(),
+            comments.build());
+      }
+    }
+
+    private static void writeColumns(OutputStream out,
+        @Nullable ChangeColumns c) throws IOException {
+      if (c == null) {
+        writeVarInt32(out, 0);
+        return;
+      }
+      writeVarInt32(out, 1);
+      writeString(out, c.changeKey().get());
+      writeTimestamp(out, c.createdOn());
+      writeTimestamp(out, c.lastUpdatedOn());
+      writeAccount(out, c.owner());
+      writeString(out, c.branch());
+      writeVarInt32(out, c.currentPatchSetId() != null
+          ? c.currentPatchSetId().get()
+          : 0);
+      writeString(out, c.subject());
+      writeString(out, c.topic());
+      writeString(out, c.originalSubject());
+      writeString(out, c.submissionId());
+      writeString(out, c.status() != null ? c.status().name() : null);
+    }
+
+    private static ChangeColumns readColumns(InputStream in,
+        Change.Id changeId) throws IOException {
+      if (readVarInt32(in) == 0) {
+        return null;
+      }
+      Change.Key changeKey = new Change.Key(readString(in));
+      Timestamp createdOn = readTimestamp(in);
+      Timestamp lastUpdatedOn = readTimestamp(in);
+      Account.Id owner = readAccount(in);
+      String branch = readString(in);
+      int psId = readVarInt32(in);
+      String subject = readString(in);
+      String topic = readString(in);
+      String originalSubject = readString(in);
+      String submissionId = readString(in);
+      String status = readString(in);
+      return new AutoValue_ChangeNotesState_ChangeColumns(
+          changeKey,
+          createdOn,
+          lastUpdatedOn,
+          owner,
+          branch,
+          psId != 0 ? new PatchSet.Id(changeId, psId) : null,
+          subject,
+          topic,
+          originalSubject,
+          submissionId,
+          status != null ? Change.Status.valueOf(status) : null);
+    }
+
+    private static void writeSubmitRecord(OutputStream out, SubmitRecord r)
+        throws IOException {
+      writeString(out, r.status != null ? r.status.name() : null);
+      writeString(out, r.errorMessage);
+      if (r.labels == null) {
+        writeVarInt32(out, 0);
+        return;
+      }
+      writeVarInt32(out, r.labels.size() + 1);
+      for (SubmitRecord.Label l : r.labels) {
+        writeString(out, l.label);
+        writeString(out, l.status != null ? l.status.name() : null);
+        writeAccount(out, l.appliedBy);
+      }
+    }
+
+    private static SubmitRecord readSubmitRecord(InputStream in)
+        throws IOException {
+      SubmitRecord r = new SubmitRecord();
+      String status = readString(in);
+      r.status = status != null ? SubmitRecord.Status.valueOf(status) : null;
+      r.errorMessage = readString(in);
+      int n = readVarInt32(in);
+      if (n > 0) {
+        r.labels = Lists.newArrayListWithCapacity(n - 1);
+        for (int i = 1; i < n; i++) {
+          SubmitRecord.Label l = new SubmitRecord.Label();
+          l.label = readString(in);
+          String labelStatus = readString(in);
+          l.status = labelStatus != null
+              ? SubmitRecord.Label.Status.valueOf(labelStatus)
+              : null;
+          l.appliedBy = readAccount(in);
+          r.labels.add(l);
+        }
+      }
+      return r;
+    }
+
+    private static <T> void writeEntities(OutputStream out,
+        ProtobufCodec<T> codec, Collection<T> entities) throws IOException {
+      writeVarInt32(out, entities.size());
+      for (T e : entities) {
+        writeBytes(out, codec.encodeToByteArray(e));
+      }
+    }
+
+    /** Write an account ID; 0 is not a valid account and stands for null. */
+    private static void writeAccount(OutputStream out,
+        @Nullable Account.Id id) throws IOException {
+      writeVarInt32(out, id != null ? id.get() : 0);
+    }
+
+    private static Account.Id readAccount(InputStream in) throws IOException {
+      int id = readVarInt32(in);
+      return id != 0 ? new Account.Id(id) : null;
+    }
+
+    private static void writeTimestamp(OutputStream out, Timestamp ts)
+        throws IOException {
+      writeFixInt64(out, ts.getTime());
+    }
+
+    private static Timestamp readTimestamp(InputStream in) throws IOException {
+      return new Timestamp(readFixInt64(in));
+    }
+
+    /**
+     * Write a string prefixed by its length plus one, so that null and the
+     * empty string can be told apart.
+     */
+    private static void writeString(OutputStream out, @Nullable String s)
+        throws IOException {
+      if (s == null) {
+        writeVarInt32(out, 0);
+        return;
+      }
+      byte[] b = s.getBytes(UTF_8);
+      writeVarInt32(out, b.length + 1);
+      out.write(b);
+    }
+
+    private static String readString(InputStream in) throws IOException {
+      int n = readVarInt32(in);
+      if (n == 0) {
+        return null;
+      }
+      byte[] b = new byte[n - 1];
+      IO.readFully(in, b, 0, b.length);
+      return new String(b, UTF_8);
+    }
+  }
 }
@@ -0,0 +1,60 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+@Singleton
+class DiffMetrics {
+  /** Latency of computing the diff of a single file of a patch list. */
+  final Timer0 fileLatency;
+
+  /** End-to-end latency of loading a patch list. */
+  final Timer0 patchListLatency;
+
+  /**
+   * Count of files whose diff timed out and was computed again with the
+   * simpler histogram diff.
+   */
+  final Counter0 fileTimeoutCount;
+
+  @Inject
+  DiffMetrics(MetricMaker metrics) {
+    fileLatency = metrics.newTimer(
+        "diff/file_latency",
+        new Description("Latency of computing the diff of a single file")
+            .setCumulative()
+            .setUnit(Units.MILLISECONDS));
+
+    patchListLatency = metrics.newTimer(
+        "diff/patch_list_latency",
+        new Description("Latency of loading a patch list")
+            .setCumulative()
+            .setUnit(Units.MILLISECONDS));
+
+    fileTimeoutCount = metrics.newCounter(
+        "diff/file_timeout_count",
+        new Description("Files whose diff timed out and fell back to"
+            + " histogram diff")
+            .setCumulative()
+            .setUnit("files"));
+  }
+}
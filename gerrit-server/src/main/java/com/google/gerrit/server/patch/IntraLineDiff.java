@@ -15,15 +15,20 @@
 package com.google.gerrit.server.patch;
 
 import static com.google.gerrit.server.ioutil.BasicSerialization.readEnum;
+import static com.google.gerrit.server.ioutil.BasicSerialization.readFixInt64;
 import static com.google.gerrit.server.ioutil.BasicSerialization.readVarInt32;
 import static com.google.gerrit.server.ioutil.BasicSerialization.writeEnum;
+import static com.google.gerrit.server.ioutil.BasicSerialization.writeFixInt64;
 import static com.google.gerrit.server.ioutil.BasicSerialization.writeVarInt32;
 
 import com.google.gerrit.reviewdb.client.CodedEnum;
+import com.google.gerrit.server.cache.CacheSerializer;
 
 import org.eclipse.jgit.diff.Edit;
 import org.eclipse.jgit.diff.ReplaceEdit;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
@@ -55,6 +60,9 @@ public class IntraLineDiff implements Serializable {
   private transient Status status;
   private transient List<Edit> edits;
 
+  private IntraLineDiff() {
+  }
+
   IntraLineDiff(Status status) {
     this.status = status;
     this.edits = Collections.emptyList();
@@ -74,6 +82,14 @@ public class IntraLineDiff implements Serializable {
   }
 
   private void writeObject(final ObjectOutputStream out) throws IOException {
+    writeTo(out);
+  }
+
+  private void readObject(final ObjectInputStream in) throws IOException {
+    readFrom(in);
+  }
+
+  private void writeTo(OutputStream out) throws IOException {
     writeEnum(out, status);
     writeVarInt32(out, edits.size());
     for (Edit e : edits) {
@@ -91,7 +107,7 @@ public class IntraLineDiff implements Serializable {
     }
   }
 
-  private void readObject(final ObjectInputStream in) throws IOException {
+  private void readFrom(InputStream in) throws IOException {
     status = readEnum(in, Status.values());
     int editCount = readVarInt32(in);
     Edit[] editArray = new Edit[editCount];
@@ -128,4 +144,35 @@ public class IntraLineDiff implements Serializable {
   private static List<Edit> toList(Edit[] l) {
     return Collections.unmodifiableList(Arrays.asList(l));
   }
+
+  /**
+   * Stores the same form as Java serialization, without the stream and class
+   * headers, prefixed with the {@code serialVersionUID} of {@link
+   * IntraLineDiffKey}.
+   */
+  static class Serializer implements CacheSerializer<IntraLineDiff> {
+    static final Serializer INSTANCE = new Serializer();
+
+    private Serializer() {
+    }
+
+    @Override
+    public byte[] serialize(IntraLineDiff object) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      writeFixInt64(out, serialVersionUID);
+      object.writeTo(out);
+      return out.toByteArray();
+    }
+
+    @Override
+    public IntraLineDiff deserialize(byte[] in) throws IOException {
+      ByteArrayInputStream buf = new ByteArrayInputStream(in);
+      if (readFixInt64(buf) != serialVersionUID) {
+        throw new IOException("Unsupported IntraLineDiff version");
+      }
+      IntraLineDiff d = new IntraLineDiff();
+      d.readFrom(buf);
+      return d;
+    }
+  }
 }
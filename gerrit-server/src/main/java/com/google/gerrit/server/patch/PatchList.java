@@ -16,8 +16,10 @@ package com.google.gerrit.server.patch;
 
 
 import static com.google.gerrit.server.ioutil.BasicSerialization.readBytes;
+import static com.google.gerrit.server.ioutil.BasicSerialization.readFixInt64;
 import static com.google.gerrit.server.ioutil.BasicSerialization.readVarInt32;
 import static com.google.gerrit.server.ioutil.BasicSerialization.writeBytes;
+import static com.google.gerrit.server.ioutil.BasicSerialization.writeFixInt64;
 import static com.google.gerrit.server.ioutil.BasicSerialization.writeVarInt32;
 import static org.eclipse.jgit.lib.ObjectIdSerialization.readCanBeNull;
 import static org.eclipse.jgit.lib.ObjectIdSerialization.readNotNull;
@@ -27,6 +29,7 @@ import static org.eclipse.jgit.lib.ObjectIdSerialization.writeNotNull;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.reviewdb.client.Patch;
 import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.server.cache.CacheSerializer;
 
 import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.ObjectId;
@@ -34,6 +37,7 @@ import org.eclipse.jgit.lib.ObjectId;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
@@ -84,6 +88,9 @@ public class PatchList implements Serializable {
     this.patches = patches;
   }
 
+  private PatchList() {
+  }
+
   /** Old side tree or commit; null only if this is a combined diff. */
   @Nullable
   public ObjectId getOldId() {
@@ -168,6 +175,14 @@ public class PatchList implements Serializable {
   }
 
   private void writeObject(final ObjectOutputStream output) throws IOException {
+    writeBytes(output, toByteArray());
+  }
+
+  private void readObject(final ObjectInputStream input) throws IOException {
+    readFrom(new ByteArrayInputStream(readBytes(input)));
+  }
+
+  private byte[] toByteArray() throws IOException {
     final ByteArrayOutputStream buf = new ByteArrayOutputStream();
     try (DeflaterOutputStream out = new DeflaterOutputStream(buf)) {
       writeCanBeNull(out, oldId);
@@ -181,11 +196,10 @@ public class PatchList implements Serializable {
         p.writeTo(out);
       }
     }
-    writeBytes(output, buf.toByteArray());
+    return buf.toByteArray();
   }
 
-  private void readObject(final ObjectInputStream input) throws IOException {
-    final ByteArrayInputStream buf = new ByteArrayInputStream(readBytes(input));
+  private void readFrom(InputStream buf) throws IOException {
     try (InflaterInputStream in = new InflaterInputStream(buf)) {
       oldId = readCanBeNull(in);
       newId = readNotNull(in);
@@ -201,4 +215,35 @@ public class PatchList implements Serializable {
       patches = all;
     }
   }
+
+  /**
+   * Stores the same compressed form as Java serialization, without the
+   * stream and class headers, prefixed with the {@code serialVersionUID} of
+   * {@link PatchListKey}.
+   */
+  static class Serializer implements CacheSerializer<PatchList> {
+    static final Serializer INSTANCE = new Serializer();
+
+    private Serializer() {
+    }
+
+    @Override
+    public byte[] serialize(PatchList object) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      writeFixInt64(out, serialVersionUID);
+      out.write(object.toByteArray());
+      return out.toByteArray();
+    }
+
+    @Override
+    public PatchList deserialize(byte[] in) throws IOException {
+      ByteArrayInputStream buf = new ByteArrayInputStream(in);
+      if (readFixInt64(buf) != serialVersionUID) {
+        throw new IOException("Unsupported PatchList version");
+      }
+      PatchList p = new PatchList();
+      p.readFrom(buf);
+      return p;
+    }
+  }
 }
@@ -47,12 +47,14 @@ public class PatchListCacheImpl implements PatchListCache {
         factory(PatchListLoader.Factory.class);
         persist(FILE_NAME, PatchListKey.class, PatchList.class)
             .maximumWeight(10 << 20)
-            .weigher(PatchListWeigher.class);
+            .weigher(PatchListWeigher.class)
+            .serializer(PatchList.Serializer.INSTANCE);
 
         factory(IntraLineLoader.Factory.class);
         persist(INTRA_NAME, IntraLineDiffKey.class, IntraLineDiff.class)
             .maximumWeight(10 << 20)
-            .weigher(IntraLineWeigher.class);
+            .weigher(IntraLineWeigher.class)
+            .serializer(IntraLineDiff.Serializer.INSTANCE);
 
         bind(PatchListCacheImpl.class);
         bind(PatchListCache.class).to(PatchListCacheImpl.class);
@@ -22,12 +22,14 @@ import static org.eclipse.jgit.lib.Constants.OBJ_BLOB;
 
 import com.google.common.base.Throwables;
 import com.google.gerrit.extensions.client.DiffPreferencesInfo.Whitespace;
+import com.google.gerrit.metrics.Timer0;
 import com.google.gerrit.reviewdb.client.Patch;
 import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.server.config.ConfigUtil;
 import com.google.gerrit.server.config.GerritServerConfig;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.InMemoryInserter;
+import com.google.gerrit.server.git.InsertedObject;
 import com.google.gerrit.server.git.MergeUtil;
 import com.google.inject.assistedinject.Assisted;
 import com.google.inject.assistedinject.AssistedInject;
@@ -83,9 +85,11 @@ public class PatchListLoader implements Callable<PatchList> {
   private final ThreeWayMergeStrategy mergeStrategy;
   private final ExecutorService diffExecutor;
   private final AutoMerger autoMerger;
+  private final DiffMetrics metrics;
   private final PatchListKey key;
   private final Project.NameKey project;
   private final long timeoutMillis;
+  private final int fileThreads;
   private final boolean save;
 
   @AssistedInject
@@ -94,6 +98,7 @@ public class PatchListLoader implements Callable<PatchList> {
       @GerritServerConfig Config cfg,
       @DiffExecutor ExecutorService de,
       AutoMerger am,
+      DiffMetrics dm,
       @Assisted PatchListKey k,
       @Assisted Project.NameKey p) {
     repoManager = mgr;
@@ -101,19 +106,23 @@ public class PatchListLoader implements Callable<PatchList> {
     mergeStrategy = MergeUtil.getMergeStrategy(cfg);
     diffExecutor = de;
     autoMerger = am;
+    metrics = dm;
     key = k;
     project = p;
     timeoutMillis =
         ConfigUtil.getTimeUnit(cfg, "cache", PatchListCacheImpl.FILE_NAME,
             "timeout", TimeUnit.MILLISECONDS.convert(5, TimeUnit.SECONDS),
             TimeUnit.MILLISECONDS);
+    fileThreads =
+        cfg.getInt("cache", PatchListCacheImpl.FILE_NAME, "fileThreads", 1);
     save = AutoMerger.cacheAutomerge(cfg);
   }
 
   @Override
   public PatchList call() throws IOException,
       PatchListNotAvailableException {
-    try (Repository repo = repoManager.openRepository(project);
+    try (Timer0.Context ctx = metrics.patchListLatency.start();
+        Repository repo = repoManager.openRepository(project);
         ObjectInserter ins = newInserter(repo);
         ObjectReader reader = ins.newReader();
         RevWalk rw = new RevWalk(reader)) {
@@ -191,7 +200,14 @@ public class PatchListLoader implements Callable<PatchList> {
             .collect(toSet());
       }
 
-      int cnt = diffEntries.size();
+      List<DiffEntry> toDiff = new ArrayList<>(diffEntries.size());
+      for (DiffEntry e : diffEntries) {
+        if (paths == null || paths.contains(e.getNewPath())
+            || paths.contains(e.getOldPath())) {
+          toDiff.add(e);
+        }
+      }
+
       List<PatchListEntry> entries = new ArrayList<>();
       entries.add(newCommitMessage(cmp, reader,
           comparisonType.isAgainstParentOrAutoMerge() ? null : aCommit, b));
@@ -201,18 +217,19 @@ public class PatchListLoader implements Callable<PatchList> {
             comparisonType.isAgainstParentOrAutoMerge() ? null : aCommit, b,
             comparisonType));
       }
-      for (int i = 0; i < cnt; i++) {
-        DiffEntry e = diffEntries.get(i);
-        if (paths == null || paths.contains(e.getNewPath())
-            || paths.contains(e.getOldPath())) {
-
-          FileHeader fh = toFileHeader(key, df, e);
-          long oldSize =
-              getFileSize(reader, e.getOldMode(), e.getOldPath(), aTree);
-          long newSize =
-              getFileSize(reader, e.getNewMode(), e.getNewPath(), bTree);
-          entries.add(newEntry(aTree, fh, newSize, newSize - oldSize));
-        }
+      List<FileHeader> headers = fileThreads > 1 && toDiff.size() > 1
+          ? toFileHeadersInParallel(repo, ins, cmp, df, toDiff)
+          : null;
+      for (int i = 0; i < toDiff.size(); i++) {
+        DiffEntry e = toDiff.get(i);
+        FileHeader fh = headers != null
+            ? headers.get(i)
+            : toFileHeader(key, df, e);
+        long oldSize =
+            getFileSize(reader, e.getOldMode(), e.getOldPath(), aTree);
+        long newSize =
+            getFileSize(reader, e.getNewMode(), e.getNewPath(), bTree);
+        entries.add(newEntry(aTree, fh, newSize, newSize - oldSize));
       }
       return new PatchList(a, b, isMerge, comparisonType,
           entries.toArray(new PatchListEntry[entries.size()]));
@@ -258,7 +275,9 @@ public class PatchListLoader implements Callable<PatchList> {
       @Override
       public FileHeader call() throws IOException {
         synchronized (diffEntry) {
-          return diffFormatter.toFileHeader(diffEntry);
+          try (Timer0.Context ctx = metrics.fileLatency.start()) {
+            return diffFormatter.toFileHeader(diffEntry);
+          }
         }
       }
     });
@@ -266,12 +285,7 @@ public class PatchListLoader implements Callable<PatchList> {
     try {
       return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
     } catch (InterruptedException | TimeoutException e) {
-      log.warn(timeoutMillis + " ms timeout reached for Diff loader"
-                      + " in project " + project
-                      + " on commit " + key.getNewId().name()
-                      + " on path " + diffEntry.getNewPath()
-                      + " comparing " + diffEntry.getOldId().name()
-                      + ".." + diffEntry.getNewId().name());
+      warnTimeout(diffEntry);
       result.cancel(true);
       synchronized (diffEntry) {
         return toFileHeaderWithoutMyersDiff(diffFormatter, diffEntry);
@@ -284,6 +298,107 @@ public class PatchListLoader implements Callable<PatchList> {
     }
   }
 
+  private void warnTimeout(DiffEntry diffEntry) {
+    log.warn(timeoutMillis + " ms timeout reached for Diff loader"
+                    + " in project " + project
+                    + " on commit " + key.getNewId().name()
+                    + " on path " + diffEntry.getNewPath()
+                    + " comparing " + diffEntry.getOldId().name()
+                    + ".." + diffEntry.getNewId().name());
+    metrics.fileTimeoutCount.increment();
+  }
+
+  /**
+   * Compute the file headers of all entries on the diff executor.
+   * <p>
+   * At most {@code cache.diff.fileThreads} files are diffed at a time, each
+   * with its own reader, and {@code cache.diff.timeout} applies to the whole
+   * patch list rather than to each file. Files whose diff did not finish in
+   * time fall back to the histogram diff on the calling thread. As when diffing
+   * one file at a time, the patch list with these fallbacks is cached.
+   */
+  private List<FileHeader> toFileHeadersInParallel(Repository repo,
+      ObjectInserter ins, RawTextComparator cmp, DiffFormatter df,
+      List<DiffEntry> diffEntries) throws IOException {
+    // Objects only held by an in-memory inserter, such as the auto-merge, are
+    // not visible to readers of other threads unless copied.
+    List<InsertedObject> inMemory = ins instanceof InMemoryInserter
+        ? ((InMemoryInserter) ins).getInsertedObjects()
+        : Collections.<InsertedObject> emptyList();
+    long deadline = System.nanoTime()
+        + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    int cnt = diffEntries.size();
+    List<Future<FileHeader>> futures = new ArrayList<>(cnt);
+    List<FileHeader> result = new ArrayList<>(cnt);
+    int timedOut = 0;
+    try {
+      for (int i = 0; i < cnt; i++) {
+        while (futures.size() < Math.min(cnt, i + fileThreads)
+            && System.nanoTime() < deadline) {
+          futures.add(diffExecutor.submit(newDiffTask(
+              repo, inMemory, cmp, diffEntries.get(futures.size()))));
+        }
+
+        FileHeader fh = null;
+        if (i < futures.size()) {
+          Future<FileHeader> f = futures.get(i);
+          try {
+            fh = f.get(Math.max(deadline - System.nanoTime(), 0),
+                TimeUnit.NANOSECONDS);
+          } catch (InterruptedException | TimeoutException e) {
+            f.cancel(true);
+          } catch (ExecutionException e) {
+            // If there was an error computing the result, carry it
+            // up to the caller so the cache knows this key is invalid.
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw new IOException(e.getMessage(), e.getCause());
+          }
+        }
+        if (fh == null) {
+          timedOut++;
+          metrics.fileTimeoutCount.increment();
+          fh = toFileHeaderWithoutMyersDiff(df, diffEntries.get(i));
+        }
+        result.add(fh);
+      }
+    } finally {
+      for (Future<FileHeader> f : futures) {
+        f.cancel(true);
+      }
+    }
+    if (timedOut > 0) {
+      log.warn(timeoutMillis + " ms timeout reached for Diff loader"
+          + " in project " + project
+          + " on commit " + key.getNewId().name()
+          + "; " + timedOut + " of " + cnt
+          + " files fell back to histogram diff");
+    }
+    return result;
+  }
+
+  private Callable<FileHeader> newDiffTask(final Repository repo,
+      final List<InsertedObject> inMemory, final RawTextComparator cmp,
+      final DiffEntry diffEntry) {
+    return new Callable<FileHeader>() {
+      @Override
+      public FileHeader call() throws IOException {
+        try (Timer0.Context ctx = metrics.fileLatency.start();
+            ObjectReader repoReader = repo.newObjectReader();
+            InMemoryInserter ins = new InMemoryInserter(repoReader);
+            ObjectReader reader = ins.newReader();
+            DiffFormatter df =
+                new DiffFormatter(DisabledOutputStream.INSTANCE)) {
+          for (InsertedObject obj : inMemory) {
+            ins.insert(obj);
+          }
+          df.setReader(reader, repo.getConfig());
+          df.setDiffComparator(cmp);
+          return df.toFileHeader(diffEntry);
+        }
+      }
+    };
+  }
+
   private FileHeader toFileHeaderWithoutMyersDiff(DiffFormatter diffFormatter,
       DiffEntry diffEntry) throws IOException {
     HistogramDiff histogramDiff = new HistogramDiff();
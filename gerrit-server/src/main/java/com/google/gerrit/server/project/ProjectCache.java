@@ -77,6 +77,23 @@ public interface ProjectCache {
    */
   Iterable<Project.NameKey> byName(String prefix);
 
+  /**
+   * Filter the set of registered project names by substring.
+   *
+   * @param substring substring to look for, ignoring case.
+   * @return sorted iteration of projects containing the substring.
+   */
+  Iterable<Project.NameKey> bySubstring(String substring);
+
+  /**
+   * Filter the set of registered project names by regular expression.
+   *
+   * @param regex regular expression the whole name must match.
+   * @return sorted iteration of projects matching the regular expression.
+   * @throws IllegalArgumentException the regular expression is invalid.
+   */
+  Iterable<Project.NameKey> byRegex(String regex);
+
   /** Notify the cache that a new project was constructed. */
   void onCreateProject(Project.NameKey newProjectName);
 }
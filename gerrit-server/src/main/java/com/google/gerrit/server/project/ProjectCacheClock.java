@@ -33,7 +33,10 @@ public class ProjectCacheClock {
 
   @Inject
   public ProjectCacheClock(@GerritServerConfig Config serverConfig) {
-    this(checkFrequency(serverConfig));
+    // Without checks on access, ProjectCacheRefresher evicts stale projects.
+    this(checkOnAccess(serverConfig)
+        ? checkFrequency(serverConfig)
+        : Long.MAX_VALUE);
   }
 
   public ProjectCacheClock(long checkFrequencyMillis) {
@@ -70,7 +73,11 @@ public class ProjectCacheClock {
     return generation;
   }
 
-  private static long checkFrequency(Config serverConfig) {
+  static boolean checkOnAccess(Config serverConfig) {
+    return serverConfig.getBoolean("cache", "projects", "checkOnAccess", true);
+  }
+
+  static long checkFrequency(Config serverConfig) {
     String freq = serverConfig.getString("cache", "projects", "checkFrequency");
     if (freq != null
         && ("disabled".equalsIgnoreCase(freq) || "off".equalsIgnoreCase(freq))) {
@@ -17,7 +17,6 @@ package com.google.gerrit.server.project;
 import com.google.common.base.Throwables;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
-import com.google.common.collect.Sets;
 import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.gerrit.reviewdb.client.AccountGroup;
 import com.google.gerrit.reviewdb.client.Project;
@@ -29,7 +28,6 @@ import com.google.gerrit.server.git.ProjectConfig;
 import com.google.inject.Inject;
 import com.google.inject.Module;
 import com.google.inject.Singleton;
-import com.google.inject.TypeLiteral;
 import com.google.inject.internal.UniqueAnnotations;
 import com.google.inject.name.Named;
 
@@ -39,12 +37,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.SortedSet;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -65,9 +63,7 @@ public class ProjectCacheImpl implements ProjectCache {
         cache(CACHE_NAME, String.class, ProjectState.class)
           .loader(Loader.class);
 
-        cache(CACHE_LIST,
-            ListKey.class,
-            new TypeLiteral<SortedSet<Project.NameKey>>() {})
+        cache(CACHE_LIST, ListKey.class, ProjectNameIndex.class)
           .maximumWeight(1)
           .loader(Lister.class);
 
@@ -83,7 +79,7 @@ public class ProjectCacheImpl implements ProjectCache {
   private final AllProjectsName allProjectsName;
   private final AllUsersName allUsersName;
   private final LoadingCache<String, ProjectState> byName;
-  private final LoadingCache<ListKey, SortedSet<Project.NameKey>> list;
+  private final LoadingCache<ListKey, ProjectNameIndex> list;
   private final Lock listLock;
   private final ProjectCacheClock clock;
 
@@ -92,7 +88,7 @@ public class ProjectCacheImpl implements ProjectCache {
       final AllProjectsName allProjectsName,
       final AllUsersName allUsersName,
       @Named(CACHE_NAME) LoadingCache<String, ProjectState> byName,
-      @Named(CACHE_LIST) LoadingCache<ListKey, SortedSet<Project.NameKey>> list,
+      @Named(CACHE_LIST) LoadingCache<ListKey, ProjectNameIndex> list,
       ProjectCacheClock clock) {
     this.allProjectsName = allProjectsName;
     this.allUsersName = allUsersName;
@@ -170,13 +166,16 @@ public class ProjectCacheImpl implements ProjectCache {
     }
   }
 
+  /** @return the project states currently held in the cache. */
+  Collection<ProjectState> cached() {
+    return byName.asMap().values();
+  }
+
   @Override
   public void remove(final Project p) {
     listLock.lock();
     try {
-      SortedSet<Project.NameKey> n = Sets.newTreeSet(list.get(ListKey.ALL));
-      n.remove(p.getNameKey());
-      list.put(ListKey.ALL, Collections.unmodifiableSortedSet(n));
+      list.put(ListKey.ALL, list.get(ListKey.ALL).remove(p.getNameKey()));
     } catch (ExecutionException e) {
       log.warn("Cannot list avaliable projects", e);
     } finally {
@@ -185,13 +184,31 @@ public class ProjectCacheImpl implements ProjectCache {
     evict(p);
   }
 
+  @Override
+  public Iterable<Project.NameKey> bySubstring(String substring) {
+    try {
+      return list.get(ListKey.ALL).bySubstring(substring);
+    } catch (ExecutionException e) {
+      log.warn("Cannot list available projects", e);
+      return Collections.emptyList();
+    }
+  }
+
+  @Override
+  public Iterable<Project.NameKey> byRegex(String regex) {
+    try {
+      return list.get(ListKey.ALL).byRegex(regex);
+    } catch (ExecutionException e) {
+      log.warn("Cannot list available projects", e);
+      return Collections.emptyList();
+    }
+  }
+
   @Override
   public void onCreateProject(Project.NameKey newProjectName) {
     listLock.lock();
     try {
-      SortedSet<Project.NameKey> n = Sets.newTreeSet(list.get(ListKey.ALL));
-      n.add(newProjectName);
-      list.put(ListKey.ALL, Collections.unmodifiableSortedSet(n));
+      list.put(ListKey.ALL, list.get(ListKey.ALL).add(newProjectName));
     } catch (ExecutionException e) {
       log.warn("Cannot list avaliable projects", e);
     } finally {
@@ -202,7 +219,7 @@ public class ProjectCacheImpl implements ProjectCache {
   @Override
   public Iterable<Project.NameKey> all() {
     try {
-      return list.get(ListKey.ALL);
+      return list.get(ListKey.ALL).all();
     } catch (ExecutionException e) {
       log.warn("Cannot list available projects", e);
       return Collections.emptyList();
@@ -225,7 +242,7 @@ public class ProjectCacheImpl implements ProjectCache {
   public Iterable<Project.NameKey> byName(final String pfx) {
     final Iterable<Project.NameKey> src;
     try {
-      src = list.get(ListKey.ALL).tailSet(new Project.NameKey(pfx));
+      src = list.get(ListKey.ALL).all().tailSet(new Project.NameKey(pfx));
     } catch (ExecutionException e) {
       return Collections.emptyList();
     }
@@ -309,7 +326,7 @@ public class ProjectCacheImpl implements ProjectCache {
     }
   }
 
-  static class Lister extends CacheLoader<ListKey, SortedSet<Project.NameKey>> {
+  static class Lister extends CacheLoader<ListKey, ProjectNameIndex> {
     private final GitRepositoryManager mgr;
 
     @Inject
@@ -318,8 +335,8 @@ public class ProjectCacheImpl implements ProjectCache {
     }
 
     @Override
-    public SortedSet<Project.NameKey> load(ListKey key) throws Exception {
-      return mgr.list();
+    public ProjectNameIndex load(ListKey key) throws Exception {
+      return ProjectNameIndex.create(mgr.list());
     }
   }
 }
@@ -0,0 +1,204 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.project;
+
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.lifecycle.LifecycleModule;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.client.RefNames;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.eclipse.jgit.internal.storage.file.FileSnapshot;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evicts stale projects from {@link ProjectCacheImpl} when
+ * {@code cache.projects.checkOnAccess} is false.
+ * <p>
+ * Updates of {@code refs/meta/config} made by this server evict the project
+ * as soon as they are reported to {@link GitReferenceUpdatedListener}. Updates
+ * made behind the server's back, e.g. by replication, are found by a periodic
+ * scan of the cached projects that only reads a project's
+ * {@code refs/meta/config} if its loose ref or {@code packed-refs} file
+ * changed on disk since the previous scan.
+ */
+@Singleton
+public class ProjectCacheRefresher
+    implements GitReferenceUpdatedListener, Runnable {
+  private static final Logger log =
+      LoggerFactory.getLogger(ProjectCacheRefresher.class);
+
+  private static final long MIN_SCAN_INTERVAL_MILLIS =
+      TimeUnit.SECONDS.toMillis(1);
+
+  public static class Module extends LifecycleModule {
+    @Override
+    protected void configure() {
+      DynamicSet.bind(binder(), GitReferenceUpdatedListener.class)
+          .to(ProjectCacheRefresher.class);
+      listener().to(Lifecycle.class);
+    }
+  }
+
+  static class Lifecycle implements LifecycleListener {
+    private final WorkQueue queue;
+    private final ProjectCacheRefresher refresher;
+    private final Config cfg;
+
+    @Inject
+    Lifecycle(WorkQueue queue,
+        ProjectCacheRefresher refresher,
+        @GerritServerConfig Config cfg) {
+      this.queue = queue;
+      this.refresher = refresher;
+      this.cfg = cfg;
+    }
+
+    @Override
+    public void start() {
+      long interval = ProjectCacheClock.checkFrequency(cfg);
+      if (refresher.enabled && interval != Long.MAX_VALUE) {
+        interval = Math.max(interval, MIN_SCAN_INTERVAL_MILLIS);
+        queue.getDefaultQueue().scheduleAtFixedRate(refresher, interval,
+            interval, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    @Override
+    public void stop() {
+      // handled by WorkQueue.stop() already
+    }
+  }
+
+  private static class Snapshot {
+    final ObjectId revision;
+    final File gitDir;
+    final FileSnapshot looseRef;
+    final FileSnapshot packedRefs;
+
+    Snapshot(ObjectId revision, File gitDir) {
+      this.revision = revision;
+      this.gitDir = gitDir;
+      this.looseRef = FileSnapshot.save(looseRef(gitDir));
+      this.packedRefs = FileSnapshot.save(packedRefs(gitDir));
+    }
+
+    boolean isModified() {
+      return looseRef.isModified(looseRef(gitDir))
+          || packedRefs.isModified(packedRefs(gitDir));
+    }
+
+    private static File looseRef(File gitDir) {
+      return new File(gitDir, RefNames.REFS_CONFIG);
+    }
+
+    private static File packedRefs(File gitDir) {
+      return new File(gitDir, Constants.PACKED_REFS);
+    }
+  }
+
+  private final ProjectCacheImpl projectCache;
+  private final GitRepositoryManager repoManager;
+  private final boolean enabled;
+  private final Map<Project.NameKey, Snapshot> snapshots;
+
+  @Inject
+  ProjectCacheRefresher(ProjectCacheImpl projectCache,
+      GitRepositoryManager repoManager,
+      @GerritServerConfig Config cfg) {
+    this.projectCache = projectCache;
+    this.repoManager = repoManager;
+    this.enabled = !ProjectCacheClock.checkOnAccess(cfg);
+    this.snapshots = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  public void onGitReferenceUpdated(Event event) {
+    if (enabled && RefNames.REFS_CONFIG.equals(event.getRefName())) {
+      projectCache.evict(new Project.NameKey(event.getProjectName()));
+    }
+  }
+
+  @Override
+  public void run() {
+    Set<Project.NameKey> seen = new HashSet<>();
+    int evicted = 0;
+    for (ProjectState state : projectCache.cached()) {
+      Project.NameKey name = state.getProject().getNameKey();
+      seen.add(name);
+      try {
+        if (isStale(name, state)) {
+          projectCache.evict(name);
+          snapshots.remove(name);
+          evicted++;
+        }
+      } catch (RuntimeException e) {
+        log.warn("Cannot check project " + name + " for updates", e);
+      }
+    }
+    snapshots.keySet().retainAll(seen);
+    if (evicted > 0) {
+      log.debug("Evicted {} stale projects from the project cache", evicted);
+    }
+  }
+
+  private boolean isStale(Project.NameKey name, ProjectState state) {
+    ObjectId revision = state.getConfig().getRevision();
+    Snapshot s = snapshots.get(name);
+    if (s != null && Objects.equals(revision, s.revision)
+        && !s.isModified()) {
+      return false;
+    }
+
+    // Take the snapshot before reading the ref, so that an update racing
+    // with this read is found by the next scan.
+    try (Repository git = repoManager.openRepository(name)) {
+      if (git.getDirectory() != null) {
+        snapshots.put(name, new Snapshot(revision, git.getDirectory()));
+      }
+      // A project without refs/meta/config is only stale once it has one.
+      Ref ref = git.getRefDatabase().exactRef(RefNames.REFS_CONFIG);
+      return !Objects.equals(ref != null ? ref.getObjectId() : null, revision);
+    } catch (IOException gone) {
+      return true;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "project cache refresher";
+  }
+}
@@ -0,0 +1,165 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.project;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Iterables;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.util.RegexListSearcher;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Immutable index of all project names, used by {@link ProjectCacheImpl}.
+ * <p>
+ * Names are kept sorted for prefix and regex lookups. Every name is also
+ * indexed by the trigrams of its lower case form, so that a substring lookup
+ * only checks the names sharing the substring's rarest trigram. Adding or
+ * removing a name only copies the names sharing a trigram with it.
+ */
+class ProjectNameIndex {
+  private static final int GRAM = 3;
+
+  static ProjectNameIndex create(Iterable<Project.NameKey> names) {
+    Map<String, SortedSet<Project.NameKey>> grams = new HashMap<>();
+    for (Project.NameKey name : names) {
+      for (String g : grams(name.get())) {
+        SortedSet<Project.NameKey> p = grams.get(g);
+        if (p == null) {
+          p = new TreeSet<>();
+          grams.put(g, p);
+        }
+        p.add(name);
+      }
+    }
+
+    ImmutableMap.Builder<String, ImmutableSortedSet<Project.NameKey>> b =
+        ImmutableMap.builder();
+    for (Map.Entry<String, SortedSet<Project.NameKey>> e : grams.entrySet()) {
+      b.put(e.getKey(), ImmutableSortedSet.copyOfSorted(e.getValue()));
+    }
+    return new ProjectNameIndex(ImmutableSortedSet.copyOf(names), b.build());
+  }
+
+  private static Set<String> grams(String name) {
+    String n = name.toLowerCase(Locale.US);
+    Set<String> r = new HashSet<>();
+    for (int i = 0; i + GRAM <= n.length(); i++) {
+      r.add(n.substring(i, i + GRAM));
+    }
+    return r;
+  }
+
+  private final ImmutableSortedSet<Project.NameKey> names;
+  private final ImmutableMap<String, ImmutableSortedSet<Project.NameKey>> grams;
+
+  private ProjectNameIndex(ImmutableSortedSet<Project.NameKey> names,
+      ImmutableMap<String, ImmutableSortedSet<Project.NameKey>> grams) {
+    this.names = names;
+    this.grams = grams;
+  }
+
+  /** @return all names, sorted. */
+  ImmutableSortedSet<Project.NameKey> all() {
+    return names;
+  }
+
+  /** @return a copy of this index with a name added. */
+  ProjectNameIndex add(Project.NameKey name) {
+    if (names.contains(name)) {
+      return this;
+    }
+    Map<String, ImmutableSortedSet<Project.NameKey>> g = new HashMap<>(grams);
+    for (String k : grams(name.get())) {
+      ImmutableSortedSet<Project.NameKey> p = g.get(k);
+      g.put(k, p != null
+          ? ImmutableSortedSet.<Project.NameKey> naturalOrder()
+              .addAll(p).add(name).build()
+          : ImmutableSortedSet.of(name));
+    }
+    return new ProjectNameIndex(
+        ImmutableSortedSet.<Project.NameKey> naturalOrder()
+            .addAll(names).add(name).build(),
+        ImmutableMap.copyOf(g));
+  }
+
+  /** @return a copy of this index with a name removed. */
+  ProjectNameIndex remove(Project.NameKey name) {
+    if (!names.contains(name)) {
+      return this;
+    }
+    Map<String, ImmutableSortedSet<Project.NameKey>> g = new HashMap<>(grams);
+    for (String k : grams(name.get())) {
+      ImmutableSortedSet<Project.NameKey> p = without(g.get(k), name);
+      if (p.isEmpty()) {
+        g.remove(k);
+      } else {
+        g.put(k, p);
+      }
+    }
+    return new ProjectNameIndex(without(names, name), ImmutableMap.copyOf(g));
+  }
+
+  private static ImmutableSortedSet<Project.NameKey> without(
+      ImmutableSortedSet<Project.NameKey> set, Project.NameKey name) {
+    return ImmutableSortedSet.<Project.NameKey> naturalOrder()
+        .addAll(set.headSet(name))
+        .addAll(set.tailSet(name, false))
+        .build();
+  }
+
+  /**
+   * @param substring substring to look for, ignoring case.
+   * @return sorted iteration of names containing the substring. The names are
+   *     filtered lazily, so stopping the iteration early saves work.
+   */
+  Iterable<Project.NameKey> bySubstring(String substring) {
+    final String s = substring.toLowerCase(Locale.US);
+    ImmutableSortedSet<Project.NameKey> candidates = names;
+    for (String g : grams(s)) {
+      ImmutableSortedSet<Project.NameKey> p = grams.get(g);
+      if (p == null) {
+        return ImmutableSortedSet.of();
+      }
+      if (p.size() < candidates.size()) {
+        candidates = p;
+      }
+    }
+    return Iterables.filter(candidates,
+        n -> n.get().toLowerCase(Locale.US).contains(s));
+  }
+
+  /**
+   * @param regex regular expression the whole name must match.
+   * @return sorted iteration of matching names. Only names starting with the
+   *     common prefix of all matches are checked.
+   * @throws IllegalArgumentException the regular expression is invalid.
+   */
+  Iterable<Project.NameKey> byRegex(String regex) {
+    return new RegexListSearcher<Project.NameKey>(regex) {
+      @Override
+      public String apply(Project.NameKey in) {
+        return in.get();
+      }
+    }.search(names.asList());
+  }
+}
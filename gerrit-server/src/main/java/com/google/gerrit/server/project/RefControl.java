@@ -42,6 +42,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /** Manages access control for Git references (aka branches, tags). */
@@ -54,20 +55,25 @@ public class RefControl {
   /** All permissions that apply to this reference. */
   private final PermissionCollection relevant;
 
-  /** Cached set of permissions matching this user. */
+  /**
+   * Cached set of permissions matching this user.
+   * <p>
+   * This and the other lazily computed fields may be filled concurrently, as
+   * commit validators of a push share one control across threads.
+   */
   private final Map<String, List<PermissionRule>> effective;
 
-  private Boolean owner;
-  private Boolean canForgeAuthor;
-  private Boolean canForgeCommitter;
-  private Boolean isVisible;
+  private volatile Boolean owner;
+  private volatile Boolean canForgeAuthor;
+  private volatile Boolean canForgeCommitter;
+  private volatile Boolean isVisible;
 
   RefControl(ProjectControl projectControl, String ref,
       PermissionCollection relevant) {
     this.projectControl = projectControl;
     this.refName = ref;
     this.relevant = relevant;
-    this.effective = new HashMap<>();
+    this.effective = new ConcurrentHashMap<>();
   }
 
   public String getRefName() {
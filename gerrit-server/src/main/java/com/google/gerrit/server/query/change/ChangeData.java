@@ -645,6 +645,15 @@ public class ChangeData {
     return r;
   }
 
+  void setLoadedPatchList(PatchSet.Id psId, Optional<PatchList> patchList) {
+    if (patchLists == null) {
+      patchLists = new HashMap<>();
+    }
+    if (!patchLists.containsKey(psId.get())) {
+      patchLists.put(psId.get(), patchList);
+    }
+  }
+
   private Optional<ChangedLines> computeChangedLines() throws OrmException {
     Change c = change();
     if (c == null) {
@@ -779,6 +788,20 @@ public class ChangeData {
     return change;
   }
 
+  boolean hasNotes() {
+    return notes != null;
+  }
+
+  void setLoadedNotes(ChangeNotes loaded) {
+    if (notes != null) {
+      return;
+    }
+    notes = loaded;
+    if (change == null) {
+      change = notes.getChange();
+    }
+  }
+
   public ChangeNotes notes() throws OrmException {
     if (notes == null) {
       if (!lazyLoad) {
@@ -0,0 +1,212 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.query.change;
+
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.notedb.ChangeNotes;
+import com.google.gerrit.server.notedb.NotesMigration;
+import com.google.gerrit.server.patch.PatchList;
+import com.google.gerrit.server.patch.PatchListCache;
+import com.google.gerrit.server.patch.PatchListNotAvailableException;
+import com.google.gerrit.server.util.ManualRequestContext;
+import com.google.gerrit.server.util.OneOffRequestContext;
+import com.google.gwtorm.server.OrmException;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.eclipse.jgit.lib.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Loads data for a batch of changes in parallel.
+ * <p>
+ * {@link ChangeNotes} (when reading changes from NoteDb) and the patch list of
+ * the current patch set are loaded on a bounded executor, while the caller
+ * consumes the batch in order, e.g. to format each change as soon as its own
+ * data is available. Anything not loaded here, including changes whose load
+ * failed, is still loaded lazily by {@link ChangeData}.
+ * <p>
+ * Disabled unless {@code change.loadThreads} is greater than 1.
+ */
+@Singleton
+public class ChangeDataLoader {
+  private static final Logger log =
+      LoggerFactory.getLogger(ChangeDataLoader.class);
+
+  private final ListeningExecutorService executor;
+  private final OneOffRequestContext requestContext;
+  private final NotesMigration migration;
+  private final ChangeNotes.Factory notesFactory;
+  private final PatchListCache patchListCache;
+
+  @Inject
+  ChangeDataLoader(@GerritServerConfig Config cfg,
+      WorkQueue workQueue,
+      OneOffRequestContext requestContext,
+      NotesMigration migration,
+      ChangeNotes.Factory notesFactory,
+      PatchListCache patchListCache) {
+    int threads = cfg.getInt("change", null, "loadThreads", 1);
+    this.executor = threads > 1
+        ? MoreExecutors.listeningDecorator(
+            workQueue.createQueue(threads, "ChangeDataLoader"))
+        : null;
+    this.requestContext = requestContext;
+    this.migration = migration;
+    this.notesFactory = notesFactory;
+    this.patchListCache = patchListCache;
+  }
+
+  public boolean isEnabled() {
+    return executor != null;
+  }
+
+  /**
+   * Start loading a batch of changes.
+   * <p>
+   * When reading changes from ReviewDb the change and its current patch set
+   * must already be loaded, e.g. with {@link
+   * ChangeData#ensureChangeLoaded(Iterable)} and {@link
+   * ChangeData#ensureCurrentPatchSetLoaded(Iterable)}, as ReviewDb is only
+   * accessed in batches from the request thread.
+   *
+   * @param changes changes to load.
+   * @param patchLists whether to also load the patch list of the current
+   *     patch set.
+   * @return batch that must be consumed by calling {@link Batch#await} on
+   *     each change before it is used.
+   */
+  public Batch start(Iterable<ChangeData> changes, boolean patchLists)
+      throws OrmException {
+    Map<ChangeData, ListenableFuture<Loaded>> futures =
+        new IdentityHashMap<>();
+    if (executor == null) {
+      return Batch.EMPTY;
+    }
+    for (ChangeData cd : changes) {
+      if (futures.containsKey(cd)) {
+        continue;
+      }
+      boolean loadNotes = migration.readChanges() && !cd.hasNotes();
+      if (!loadNotes && !patchLists) {
+        continue;
+      }
+      Project.NameKey project = cd.project();
+      Change.Id id = cd.getId();
+      Change change = loadNotes ? null : cd.change();
+      PatchSet ps = loadNotes ? null : cd.currentPatchSet();
+      futures.put(cd, executor.submit(
+          () -> load(project, id, change, ps, patchLists)));
+    }
+    return new Batch(futures);
+  }
+
+  private Loaded load(Project.NameKey project, Change.Id id, Change change,
+      PatchSet ps, boolean patchLists) throws OrmException {
+    ChangeNotes notes = null;
+    if (change == null) {
+      try (ManualRequestContext ctx = requestContext.open()) {
+        notes = notesFactory.create(
+            ctx.getReviewDbProvider().get(), project, id);
+      }
+      change = notes.getChange();
+      ps = notes.getPatchSets().get(change.currentPatchSetId());
+    }
+
+    Optional<PatchList> patchList = null;
+    if (patchLists && ps != null) {
+      try {
+        patchList = Optional.of(patchListCache.get(change, ps));
+      } catch (PatchListNotAvailableException e) {
+        patchList = Optional.absent();
+      }
+    }
+    return new Loaded(notes, ps, patchList);
+  }
+
+  private static class Loaded {
+    private final ChangeNotes notes;
+    private final PatchSet ps;
+    private final Optional<PatchList> patchList;
+
+    private Loaded(ChangeNotes notes, PatchSet ps,
+        Optional<PatchList> patchList) {
+      this.notes = notes;
+      this.ps = ps;
+      this.patchList = patchList;
+    }
+
+    private void apply(ChangeData cd) {
+      if (notes != null) {
+        cd.setLoadedNotes(notes);
+      }
+      if (ps != null && patchList != null) {
+        cd.setLoadedPatchList(ps.getId(), patchList);
+      }
+    }
+  }
+
+  /** Changes being loaded by {@link ChangeDataLoader#start}. */
+  public static class Batch {
+    /** Batch that loads nothing. */
+    public static final Batch EMPTY = new Batch(
+        Collections.<ChangeData, ListenableFuture<Loaded>> emptyMap());
+
+    private final Map<ChangeData, ListenableFuture<Loaded>> futures;
+
+    private Batch(Map<ChangeData, ListenableFuture<Loaded>> futures) {
+      this.futures = futures;
+    }
+
+    /**
+     * Wait for the data of a change and store it in the change.
+     * <p>
+     * If loading failed, the change is left as it was, to be loaded lazily.
+     * Calling this method for a change that is not part of the batch, or
+     * more than once, is a no-op.
+     *
+     * @param cd change to wait for; must be called from the thread that
+     *     owns {@code cd}.
+     */
+    public void await(ChangeData cd) {
+      ListenableFuture<Loaded> f = futures.remove(cd);
+      if (f == null) {
+        return;
+      }
+      try {
+        f.get().apply(cd);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        log.warn("Cannot load change " + cd.getId()
+            + " in parallel, loading lazily", e.getCause());
+      }
+    }
+  }
+}
@@ -15,6 +15,7 @@
 package com.google.gerrit.server.query.change;
 
 import com.google.common.cache.Cache;
+import com.google.gerrit.server.cache.BooleanCacheSerializer;
 import com.google.gerrit.server.cache.CacheModule;
 import com.google.inject.Inject;
 import com.google.inject.Module;
@@ -30,7 +31,8 @@ public class ConflictsCacheImpl implements ConflictsCache {
       @Override
       protected void configure() {
         persist(NAME, ConflictKey.class, Boolean.class)
-            .maximumWeight(37400);
+            .maximumWeight(37400)
+            .serializer(BooleanCacheSerializer.INSTANCE);
         bind(ConflictsCache.class).to(ConflictsCacheImpl.class);
       }
     };
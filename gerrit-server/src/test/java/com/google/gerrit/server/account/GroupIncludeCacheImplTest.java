@@ -0,0 +1,106 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.account;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.SetMultimap;
+import com.google.gerrit.reviewdb.client.AccountGroup;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Set;
+
+public class GroupIncludeCacheImplTest {
+  private static final AccountGroup.UUID A = new AccountGroup.UUID("a");
+  private static final AccountGroup.UUID B = new AccountGroup.UUID("b");
+  private static final AccountGroup.UUID C = new AccountGroup.UUID("c");
+  private static final AccountGroup.UUID D = new AccountGroup.UUID("d");
+  private static final AccountGroup.UUID E = new AccountGroup.UUID("e");
+
+  private SetMultimap<AccountGroup.UUID, AccountGroup.UUID> parents;
+  private GroupIncludeCacheImpl cache;
+
+  @Before
+  public void setUp() {
+    parents = HashMultimap.create();
+    LoadingCache<AccountGroup.UUID, Set<AccountGroup.UUID>> parentGroups =
+        CacheBuilder.newBuilder().build(
+            new CacheLoader<AccountGroup.UUID, Set<AccountGroup.UUID>>() {
+              @Override
+              public Set<AccountGroup.UUID> load(AccountGroup.UUID key) {
+                return ImmutableSet.copyOf(parents.get(key));
+              }
+            });
+    LoadingCache<AccountGroup.UUID, Set<AccountGroup.UUID>> ancestors =
+        CacheBuilder.newBuilder().build(
+            new GroupIncludeCacheImpl.AncestorsLoader(parentGroups));
+    LoadingCache<String, Set<AccountGroup.UUID>> external =
+        CacheBuilder.newBuilder().build(
+            new CacheLoader<String, Set<AccountGroup.UUID>>() {
+              @Override
+              public Set<AccountGroup.UUID> load(String key) {
+                return ImmutableSet.of();
+              }
+            });
+    cache = new GroupIncludeCacheImpl(
+        null, parentGroups, ancestors, external);
+  }
+
+  @Test
+  public void ancestorsAreTransitive() {
+    parents.put(A, B);
+    parents.put(B, C);
+    parents.put(B, D);
+    parents.put(D, E);
+    assertThat(cache.ancestorsOf(A)).containsExactly(B, C, D, E);
+    assertThat(cache.ancestorsOf(D)).containsExactly(E);
+    assertThat(cache.ancestorsOf(E)).isEmpty();
+  }
+
+  @Test
+  public void ancestorsOfCycle() {
+    parents.put(A, B);
+    parents.put(B, C);
+    parents.put(C, A);
+    assertThat(cache.ancestorsOf(A)).containsExactly(B, C);
+    assertThat(cache.ancestorsOf(B)).containsExactly(A, C);
+  }
+
+  @Test
+  public void evictParentGroupsRecomputesDescendants() {
+    parents.put(A, B);
+    parents.put(B, C);
+    parents.put(D, E);
+    assertThat(cache.ancestorsOf(A)).containsExactly(B, C);
+    assertThat(cache.ancestorsOf(B)).containsExactly(C);
+    assertThat(cache.ancestorsOf(D)).containsExactly(E);
+
+    parents.put(B, D);
+    parents.put(D, C);
+    cache.evictParentGroupsOf(B);
+    assertThat(cache.ancestorsOf(A)).containsExactly(B, C, D, E);
+    assertThat(cache.ancestorsOf(B)).containsExactly(C, D, E);
+
+    // D's parents were not evicted, so its cached ancestors are kept.
+    assertThat(cache.ancestorsOf(D)).containsExactly(E);
+  }
+}
@@ -0,0 +1,60 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.gerrit.extensions.client.ChangeKind;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class CacheSerializerTest {
+  private static final EnumCacheSerializer<ChangeKind> KIND =
+      new EnumCacheSerializer<>(ChangeKind.class);
+
+  @Test
+  public void booleanRoundTrip() throws Exception {
+    BooleanCacheSerializer s = BooleanCacheSerializer.INSTANCE;
+    assertThat(s.deserialize(s.serialize(true))).isTrue();
+    assertThat(s.deserialize(s.serialize(false))).isFalse();
+  }
+
+  @Test(expected = IOException.class)
+  public void booleanWithoutVersion() throws Exception {
+    BooleanCacheSerializer.INSTANCE.deserialize(new byte[] {1});
+  }
+
+  @Test
+  public void enumRoundTrip() throws Exception {
+    for (ChangeKind k : ChangeKind.values()) {
+      assertThat(KIND.deserialize(KIND.serialize(k))).isEqualTo(k);
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void enumWithoutVersion() throws Exception {
+    KIND.deserialize(ChangeKind.REWORK.name().getBytes(UTF_8));
+  }
+
+  @Test(expected = IOException.class)
+  public void enumUnknownConstant() throws Exception {
+    byte[] in = KIND.serialize(ChangeKind.REWORK);
+    in[1] = 'X';
+    KIND.deserialize(in);
+  }
+}
@@ -0,0 +1,187 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gwtorm.client.KeyUtil;
+import com.google.gwtorm.server.StandardKeyEncoder;
+
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class TagSetTest {
+  static {
+    KeyUtil.setEncoderImpl(new StandardKeyEncoder());
+  }
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private FileRepository repo;
+  private TestRepository<FileRepository> tr;
+  private TagCache cache;
+  private TagSetHolder holder;
+  private RevCommit c1;
+  private RevCommit c2;
+  private RevCommit side;
+
+  @Before
+  public void setUp() throws Exception {
+    repo = new FileRepository(tmp.newFolder("repo.git"));
+    repo.create(true);
+    tr = new TestRepository<>(repo);
+    cache = new TagCache(CacheBuilder.newBuilder()
+        .<String, TagCache.EntryVal> build());
+    holder = new TagSetHolder(new Project.NameKey("repo"));
+
+    c1 = tr.commit().message("1").create();
+    c2 = tr.commit().parent(c1).message("2").create();
+    side = tr.commit().parent(c1).message("side").create();
+    tr.update("refs/heads/master", c2);
+    tr.update("refs/heads/side", side);
+    tr.update("refs/tags/v1", tr.tag("v1", c1));
+    tr.update("refs/tags/v2", c2);
+    tr.update("refs/tags/side", side);
+  }
+
+  @After
+  public void tearDown() {
+    repo.close();
+  }
+
+  @Test
+  public void tagsOfRewoundBranchWithoutBitmaps() throws Exception {
+    assertThat(reachableFromMaster("v1", "v2", "side"))
+        .containsExactly("v1", "v2");
+
+    tr.update("refs/heads/master", side);
+    assertThat(reachableFromMaster("v1", "v2")).containsExactly("v1");
+  }
+
+  @Test
+  public void tagsOfRewoundBranchWithBitmaps() throws Exception {
+    gc();
+    assertThat(reachableFromMaster("v1", "v2", "side"))
+        .containsExactly("v1", "v2");
+
+    // Unlike walking the commits removed from the branch, bitmaps also find
+    // the tags added by the rewind.
+    tr.update("refs/heads/master", side);
+    assertThat(reachableFromMaster("v1", "v2", "side"))
+        .containsExactly("v1", "side");
+  }
+
+  @Test
+  public void newTagWithoutBitmaps() throws Exception {
+    assertNewTag();
+  }
+
+  @Test
+  public void newTagWithBitmaps() throws Exception {
+    gc();
+    assertNewTag();
+  }
+
+  @Test
+  public void deletedBranchWithBitmaps() throws Exception {
+    tr.update("refs/heads/a", c1);
+    gc();
+    assertThat(reachableFromMaster("v1", "v2", "side"))
+        .containsExactly("v1", "v2");
+
+    // The set is only updated once a branch points to a new commit.
+    delete("refs/heads/a");
+    tr.update("refs/heads/next", tr.commit().parent(side).create());
+    assertThat(reachableFrom("refs/heads/next", "v1", "v2", "side"))
+        .containsExactly("v1", "side");
+    assertThat(reachableFrom("refs/heads/side", "v1", "v2", "side"))
+        .containsExactly("v1", "side");
+    assertThat(reachableFromMaster("v1", "v2", "side"))
+        .containsExactly("v1", "v2");
+    assertThat(holder.getTagSet().getRefNames()).containsExactly(
+        "refs/heads/master", "refs/heads/next", "refs/heads/side");
+
+    delete("refs/heads/next");
+    delete("refs/heads/side");
+    tr.update("refs/heads/b", tr.commit().parent(c1).create());
+    assertThat(reachableFrom("refs/heads/b", "v1", "v2", "side"))
+        .containsExactly("v1");
+    assertThat(reachableFromMaster("v1", "v2", "side"))
+        .containsExactly("v1", "v2");
+    assertThat(holder.getTagSet().getRefNames())
+        .containsExactly("refs/heads/b", "refs/heads/master");
+  }
+
+  private void assertNewTag() throws Exception {
+    assertThat(reachableFromMaster("v1", "v2", "side"))
+        .containsExactly("v1", "v2");
+
+    RevCommit c3 = tr.commit().parent(c2).message("3").create();
+    tr.update("refs/heads/master", c3);
+    tr.update("refs/tags/v3", c3);
+    tr.update("refs/tags/side2", tr.commit().parent(side).create());
+    assertThat(reachableFromMaster("v1", "v2", "v3", "side", "side2"))
+        .containsExactly("v1", "v2", "v3");
+  }
+
+  private void delete(String name) throws Exception {
+    RefUpdate u = repo.updateRef(name);
+    u.setForceUpdate(true);
+    assertThat(u.delete()).isEqualTo(RefUpdate.Result.FORCED);
+  }
+
+  private List<String> reachableFromMaster(String... tags)
+      throws Exception {
+    return reachableFrom("refs/heads/master", tags);
+  }
+
+  private List<String> reachableFrom(String branch, String... tags)
+      throws Exception {
+    Ref ref = repo.exactRef(branch);
+    TagMatcher m = holder.matcher(
+        cache, repo, Collections.singletonList(ref));
+    List<String> r = new ArrayList<>();
+    for (String tag : tags) {
+      if (m.isReachable(repo.exactRef("refs/tags/" + tag))) {
+        r.add(tag);
+      }
+    }
+    return r;
+  }
+
+  private void gc() throws Exception {
+    new GC(repo).gc();
+    try (ObjectReader reader = repo.newObjectReader()) {
+      assertThat(reader.getBitmapIndex()).isNotNull();
+    }
+  }
+}
@@ -0,0 +1,123 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.git;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.primitives.Ints;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Branch;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.git.VisibleChangesCache.ChangeBitmaps;
+import com.google.gerrit.testutil.TestChanges;
+import com.google.gwtorm.client.KeyUtil;
+import com.google.gwtorm.server.StandardKeyEncoder;
+
+import com.googlecode.javaewah.EWAHCompressedBitmap;
+
+import org.junit.Test;
+
+import java.util.List;
+
+public class VisibleChangesCacheTest {
+  static {
+    KeyUtil.setEncoderImpl(new StandardKeyEncoder());
+  }
+
+  private static final Project.NameKey PROJECT =
+      new Project.NameKey("project");
+  private static final String MASTER = "refs/heads/master";
+  private static final String STABLE = "refs/heads/stable";
+
+  @Test
+  public void createGroupsChangesByBranch() {
+    ChangeBitmaps b = ChangeBitmaps.create(ImmutableList.of(
+        change(1, MASTER), change(2, STABLE), change(3, MASTER)));
+
+    assertThat(b.byBranch.keySet()).containsExactly(MASTER, STABLE);
+    assertThat(ids(b.byBranch.get(MASTER))).containsExactly(1, 3).inOrder();
+    assertThat(ids(b.byBranch.get(STABLE))).containsExactly(2);
+    assertThat(ids(b.drafts)).isEmpty();
+  }
+
+  @Test
+  public void updateAddsNewChanges() {
+    ChangeBitmaps b = ChangeBitmaps.create(ImmutableList.of(
+        change(1, MASTER)));
+    ChangeBitmaps u = b.update(ImmutableList.of(change(2, MASTER),
+        change(3, STABLE)), ids(2, 3));
+
+    assertThat(ids(u.byBranch.get(MASTER))).containsExactly(1, 2).inOrder();
+    assertThat(ids(u.byBranch.get(STABLE))).containsExactly(3);
+    // Bitmaps are immutable; the old ones are still valid for readers.
+    assertThat(b.byBranch.keySet()).containsExactly(MASTER);
+    assertThat(ids(b.byBranch.get(MASTER))).containsExactly(1);
+  }
+
+  @Test
+  public void updateMovesChangeToNewBranch() {
+    ChangeBitmaps b = ChangeBitmaps.create(ImmutableList.of(
+        change(1, MASTER), change(2, MASTER)));
+    ChangeBitmaps u = b.update(ImmutableList.of(change(2, STABLE)), ids(2));
+
+    assertThat(ids(u.byBranch.get(MASTER))).containsExactly(1);
+    assertThat(ids(u.byBranch.get(STABLE))).containsExactly(2);
+  }
+
+  @Test
+  public void updateRemovesDeletedChangesAndEmptyBranches() {
+    ChangeBitmaps b = ChangeBitmaps.create(ImmutableList.of(
+        change(1, MASTER), change(2, STABLE)));
+    ChangeBitmaps u = b.update(ImmutableList.<Change> of(), ids(2));
+
+    assertThat(u.byBranch.keySet()).containsExactly(MASTER);
+    assertThat(ids(u.byBranch.get(MASTER))).containsExactly(1);
+  }
+
+  @Test
+  public void updateTracksDraftStatus() {
+    Change draft = change(1, MASTER);
+    draft.setStatus(Change.Status.DRAFT);
+    ChangeBitmaps b = ChangeBitmaps.create(ImmutableList.of(
+        draft, change(2, MASTER)));
+    assertThat(ids(b.drafts)).containsExactly(1);
+
+    Change published = change(1, MASTER);
+    ChangeBitmaps u = b.update(ImmutableList.of(published), ids(1));
+    assertThat(ids(u.drafts)).isEmpty();
+    assertThat(ids(u.byBranch.get(MASTER))).containsExactly(1, 2).inOrder();
+  }
+
+  private static Change change(int id, String branch) {
+    Change c = TestChanges.newChange(PROJECT, new Account.Id(1000), id);
+    c.setDest(new Branch.NameKey(PROJECT, branch));
+    return c;
+  }
+
+  private static ImmutableSet<Change.Id> ids(int... ids) {
+    ImmutableSet.Builder<Change.Id> b = ImmutableSet.builder();
+    for (int id : ids) {
+      b.add(new Change.Id(id));
+    }
+    return b.build();
+  }
+
+  private static List<Integer> ids(EWAHCompressedBitmap bitmap) {
+    return Ints.asList(bitmap.toArray());
+  }
+}
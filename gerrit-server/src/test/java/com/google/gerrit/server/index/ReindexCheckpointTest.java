@@ -0,0 +1,99 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.easymock.EasyMock.createStrictMock;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class ReindexCheckpointTest {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path file;
+
+  @Before
+  public void setUp() throws Exception {
+    file = tmp.getRoot().toPath().resolve("changes_0001.checkpoint");
+  }
+
+  @Test
+  public void onlyFlushedKeysAreResumed() throws Exception {
+    Index<?, ?> index = createStrictMock(Index.class);
+    index.commit();
+    expectLastCall();
+    replay(index);
+
+    ReindexCheckpoint cp = ReindexCheckpoint.open(file, false);
+    cp.done("project1");
+    cp.flush(index);
+    cp.done("project2");
+    verify(index);
+
+    cp = ReindexCheckpoint.open(file, true);
+    assertThat(cp.isDone("project1")).isTrue();
+    assertThat(cp.isDone("project2")).isFalse();
+    assertThat(cp.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void flushWithoutPendingKeysDoesNotCommit() throws Exception {
+    Index<?, ?> index = createStrictMock(Index.class);
+    replay(index);
+
+    ReindexCheckpoint.open(file, false).flush(index);
+    verify(index);
+    assertThat(Files.exists(file)).isFalse();
+  }
+
+  @Test
+  public void failedCommitDoesNotRecordKeys() throws Exception {
+    Index<?, ?> index = createStrictMock(Index.class);
+    index.commit();
+    expectLastCall().andThrow(new IOException("commit failed"));
+    replay(index);
+
+    ReindexCheckpoint cp = ReindexCheckpoint.open(file, false);
+    cp.done("project1");
+    try {
+      cp.flush(index);
+      fail("expected IOException");
+    } catch (IOException e) {
+      // Expected.
+    }
+    assertThat(ReindexCheckpoint.open(file, true).size()).isEqualTo(0);
+  }
+
+  @Test
+  public void startingOverDeletesFile() throws Exception {
+    Files.write(file, "project1\n".getBytes(UTF_8));
+    assertThat(ReindexCheckpoint.open(file, true).isDone("project1")).isTrue();
+    assertThat(ReindexCheckpoint.open(file, false).size()).isEqualTo(0);
+    assertThat(Files.exists(file)).isFalse();
+  }
+}
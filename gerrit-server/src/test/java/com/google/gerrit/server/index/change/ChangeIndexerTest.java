@@ -0,0 +1,274 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index.change;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.fail;
+
+import com.google.common.util.concurrent.CheckedFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gerrit.extensions.events.ChangeIndexedListener;
+import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.notedb.ChangeNotes;
+import com.google.gerrit.server.project.ChangeControl;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.util.ThreadLocalRequestContext;
+import com.google.gerrit.testutil.TestNotesMigration;
+import com.google.gwtorm.client.KeyUtil;
+import com.google.gwtorm.server.StandardKeyEncoder;
+import com.google.inject.Guice;
+
+import org.eclipse.jgit.lib.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+
+public class ChangeIndexerTest {
+  static {
+    KeyUtil.setEncoderImpl(new StandardKeyEncoder());
+  }
+
+  private static final Project.NameKey PROJECT =
+      new Project.NameKey("project");
+  private static final Change.Id C1 = new Change.Id(1);
+  private static final Change.Id C2 = new Change.Id(2);
+  private static final Change.Id C3 = new Change.Id(3);
+
+  private ListeningExecutorService executor;
+  private CountDownLatch blocked;
+  private RecordingIndex index;
+
+  @Before
+  public void setUp() {
+    executor = MoreExecutors.listeningDecorator(
+        Executors.newSingleThreadExecutor());
+    index = new RecordingIndex();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void coalesceRepeatedWritesOfChange() throws Exception {
+    ChangeIndexer indexer = newIndexer(10);
+    blockExecutor();
+    CheckedFuture<?, IOException> f1 = indexer.indexAsync(PROJECT, C1);
+    CheckedFuture<?, IOException> f2 = indexer.indexAsync(PROJECT, C2);
+    CheckedFuture<?, IOException> f3 = indexer.indexAsync(PROJECT, C1);
+    blocked.countDown();
+
+    f1.checkedGet(10, SECONDS);
+    f2.checkedGet(10, SECONDS);
+    f3.checkedGet(10, SECONDS);
+    assertThat(index.batches).containsExactly(Arrays.asList(C1, C2));
+    assertThat(index.replaced).isEmpty();
+  }
+
+  @Test
+  public void limitBatchSize() throws Exception {
+    ChangeIndexer indexer = newIndexer(2);
+    blockExecutor();
+    List<CheckedFuture<?, IOException>> futures = new ArrayList<>();
+    for (Change.Id id : Arrays.asList(C1, C2, C3)) {
+      futures.add(indexer.indexAsync(PROJECT, id));
+    }
+    blocked.countDown();
+
+    for (CheckedFuture<?, IOException> f : futures) {
+      f.checkedGet(10, SECONDS);
+    }
+    assertThat(index.batches)
+        .containsExactly(Arrays.asList(C1, C2), Arrays.asList(C3))
+        .inOrder();
+  }
+
+  @Test
+  public void indexChangesSeparatelyIfBatchFails() throws Exception {
+    ChangeIndexer indexer = newIndexer(10);
+    index.failBatches = true;
+    index.broken = C2;
+    blockExecutor();
+    CheckedFuture<?, IOException> f1 = indexer.indexAsync(PROJECT, C1);
+    CheckedFuture<?, IOException> f2 = indexer.indexAsync(PROJECT, C2);
+    CheckedFuture<?, IOException> f3 = indexer.indexAsync(PROJECT, C3);
+    blocked.countDown();
+
+    f1.checkedGet(10, SECONDS);
+    f3.checkedGet(10, SECONDS);
+    try {
+      f2.checkedGet(10, SECONDS);
+      fail("expected IOException");
+    } catch (IOException e) {
+      // Expected.
+    }
+    assertThat(index.replaced).containsExactly(C1, C3).inOrder();
+  }
+
+  @Test
+  public void futureCompletesAfterWrite() throws Exception {
+    ChangeIndexer indexer = newIndexer(10);
+    index.writing = new CountDownLatch(1);
+    index.proceed = new CountDownLatch(1);
+    CheckedFuture<?, IOException> f = indexer.indexAsync(PROJECT, C1);
+
+    assertThat(index.writing.await(10, SECONDS)).isTrue();
+    assertThat(f.isDone()).isFalse();
+    index.proceed.countDown();
+
+    f.checkedGet(10, SECONDS);
+    assertThat(index.batches).containsExactly(Arrays.asList(C1));
+  }
+
+  @Test
+  public void batchSizeOfOneIndexesEachChange() throws Exception {
+    ChangeIndexer indexer = newIndexer(1);
+    blockExecutor();
+    CheckedFuture<?, IOException> f1 = indexer.indexAsync(PROJECT, C1);
+    CheckedFuture<?, IOException> f2 = indexer.indexAsync(PROJECT, C1);
+    blocked.countDown();
+
+    f1.checkedGet(10, SECONDS);
+    f2.checkedGet(10, SECONDS);
+    assertThat(index.batches).isEmpty();
+    assertThat(index.replaced).containsExactly(C1, C1);
+  }
+
+  @Test
+  public void indexInCallingThreadIfBatchIsRejected() throws Exception {
+    ChangeIndexer indexer = newIndexer(10);
+    executor.shutdown();
+    CheckedFuture<?, IOException> f1 = indexer.indexAsync(PROJECT, C1);
+    assertThat(f1.isDone()).isTrue();
+    // The rejected batch no longer counts as queued, so the next change gets
+    // a batch of its own.
+    CheckedFuture<?, IOException> f2 = indexer.indexAsync(PROJECT, C2);
+    assertThat(f2.isDone()).isTrue();
+
+    f1.checkedGet();
+    f2.checkedGet();
+    assertThat(index.batches)
+        .containsExactly(Arrays.asList(C1), Arrays.asList(C2))
+        .inOrder();
+  }
+
+  private void blockExecutor() {
+    blocked = new CountDownLatch(1);
+    executor.submit(() -> {
+      blocked.await();
+      return null;
+    });
+  }
+
+  private ChangeIndexer newIndexer(int writeBatchSize) {
+    Config cfg = new Config();
+    cfg.setInt("index", null, "writeBatchSize", writeBatchSize);
+    ReviewDb db = createNiceMock(ReviewDb.class);
+    replay(db);
+    return new ChangeIndexer(() -> db,
+        new TestNotesMigration().setAllEnabled(true), null,
+        new TestChangeDataFactory(),
+        Guice.createInjector().getInstance(ThreadLocalRequestContext.class),
+        DynamicSet.<ChangeIndexedListener> emptySet(), cfg, executor, index);
+  }
+
+  private static class TestChangeDataFactory implements ChangeData.Factory {
+    @Override
+    public ChangeData create(ReviewDb db, Project.NameKey project,
+        Change.Id id) {
+      return ChangeData.createForTest(project, id, 1);
+    }
+
+    @Override
+    public ChangeData create(ReviewDb db, Change c) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ChangeData create(ReviewDb db, ChangeNotes cn) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ChangeData create(ReviewDb db, ChangeControl c) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ChangeData createOnlyWhenNoteDbDisabled(ReviewDb db, Change.Id id) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static class RecordingIndex extends FakeChangeIndex {
+    final List<List<Change.Id>> batches =
+        Collections.synchronizedList(new ArrayList<List<Change.Id>>());
+    final List<Change.Id> replaced =
+        Collections.synchronizedList(new ArrayList<Change.Id>());
+    volatile boolean failBatches;
+    volatile Change.Id broken;
+    volatile CountDownLatch writing;
+    volatile CountDownLatch proceed;
+
+    RecordingIndex() {
+      super(FakeChangeIndex.V1);
+    }
+
+    @Override
+    public void replace(ChangeData cd) {
+      if (cd.getId().equals(broken)) {
+        throw new IllegalStateException("broken change " + cd.getId());
+      }
+      replaced.add(cd.getId());
+    }
+
+    @Override
+    public void replaceAll(Collection<ChangeData> cds) throws IOException {
+      if (failBatches) {
+        throw new IOException("batch failed");
+      }
+      if (writing != null) {
+        writing.countDown();
+        try {
+          proceed.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+      List<Change.Id> ids = new ArrayList<>(cds.size());
+      for (ChangeData cd : cds) {
+        ids.add(cd.getId());
+      }
+      batches.add(ids);
+    }
+  }
+}
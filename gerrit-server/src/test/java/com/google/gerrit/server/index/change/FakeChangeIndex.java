@@ -89,6 +89,11 @@ public class FakeChangeIndex implements ChangeIndex {
     throw new UnsupportedOperationException();
   }
 
+  @Override
+  public void commit() {
+    throw new UnsupportedOperationException();
+  }
+
   @Override
   public ChangeDataSource getSource(Predicate<ChangeData> p, QueryOptions opts)
       throws QueryParseException {
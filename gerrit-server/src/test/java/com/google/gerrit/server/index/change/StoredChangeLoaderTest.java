@@ -0,0 +1,204 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.index.change;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.common.TimeUtil;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.server.index.FieldDef;
+import com.google.gerrit.server.index.FieldType;
+import com.google.gerrit.server.index.IndexConfig;
+import com.google.gerrit.server.index.QueryOptions;
+import com.google.gerrit.server.index.Schema;
+import com.google.gerrit.server.notedb.AbstractChangeNotesTest;
+import com.google.gerrit.server.notedb.ChangeNotes;
+import com.google.gerrit.server.notedb.ChangeUpdate;
+import com.google.gerrit.server.notedb.NotesMigration;
+import com.google.gerrit.server.query.Predicate;
+import com.google.gerrit.server.query.change.ChangeData;
+import com.google.gerrit.server.query.change.ChangeDataSource;
+import com.google.gerrit.server.util.ThreadLocalRequestContext;
+import com.google.gerrit.testutil.TestNotesMigration;
+import com.google.gwtorm.server.ListResultSet;
+import com.google.gwtorm.server.ResultSet;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class StoredChangeLoaderTest extends AbstractChangeNotesTest {
+  private static final FieldDef<ChangeData, String> NEW_MERGEABLE =
+      new FieldDef.Single<ChangeData, String>(
+          ChangeField.MERGEABLE.getName(), FieldType.EXACT, true) {
+        @Override
+        public String get(ChangeData input, FillArgs args) {
+          return null;
+        }
+      };
+
+  private static final Schema<ChangeData> SCHEMA =
+      schema(1, ChangeField.CHANGE, ChangeField.PROJECT);
+
+  @Test
+  public void reusableFields() {
+    Schema<ChangeData> from = schema(1, ChangeField.CHANGE,
+        ChangeField.PROJECT, ChangeField.MERGEABLE, ChangeField.APPROVAL);
+    Schema<ChangeData> to = schema(2, ChangeField.CHANGE,
+        ChangeField.PROJECT, NEW_MERGEABLE, ChangeField.PATCH_SET);
+
+    // MERGEABLE has a new definition, PATCH_SET is new and APPROVAL was
+    // removed.
+    assertThat(StoredChangeLoader.reusableFields(from, to)).containsExactly(
+        ChangeField.CHANGE.getName(), ChangeField.PROJECT.getName());
+  }
+
+  @Test
+  public void reuseUpToDateChange() throws Exception {
+    ChangeNotes notes = currentNotes();
+    Change stored = new Change(notes.getChange());
+
+    StoredChangeLoader loader = newLoader(readChanges(), stored);
+    Map<Change.Id, ChangeData> result =
+        loader.load(null, ImmutableList.of(notes));
+
+    assertThat(result.keySet()).containsExactly(stored.getId());
+    assertThat(result.get(stored.getId()).change()).isSameAs(stored);
+    assertThat(loader.getReusedCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void reindexChangeWithDifferentRowVersion() throws Exception {
+    ChangeNotes notes = currentNotes();
+    Change stored = new Change(notes.getChange());
+    // Only gwtorm updates the row version.
+    Field rowVersion = Change.class.getDeclaredField("rowVersion");
+    rowVersion.setAccessible(true);
+    rowVersion.setInt(stored, stored.getRowVersion() + 1);
+
+    assertNotReused(notes, stored);
+  }
+
+  @Test
+  public void reindexChangeWithDifferentLastUpdatedOn() throws Exception {
+    ChangeNotes notes = currentNotes();
+    Change stored = new Change(notes.getChange());
+    stored.setLastUpdatedOn(TimeUtil.nowTs());
+
+    assertNotReused(notes, stored);
+  }
+
+  @Test
+  public void reindexChangeWithDifferentNoteDbState() throws Exception {
+    ChangeNotes notes = currentNotes();
+    Change stored = new Change(notes.getChange());
+    stored.setNoteDbState(ObjectId.zeroId().name());
+
+    assertNotReused(notes, stored);
+  }
+
+  @Test
+  public void reindexChangeWithDifferentMetaId() throws Exception {
+    Change c = newChange();
+    c.setNoteDbState(newNotes(c).getRevision().name());
+    ChangeUpdate update = newUpdate(c, changeOwner);
+    update.setTopic("topic");
+    update.commit();
+
+    // The change row still points at the previous meta ref.
+    ChangeNotes notes = newNotes(c);
+    Change stored = new Change(notes.getChange());
+    assertThat(stored.getNoteDbState())
+        .isNotEqualTo(notes.getRevision().name());
+
+    assertNotReused(notes, stored);
+    // Without reading changes from NoteDb the meta ref is not compared.
+    assertThat(newLoader(new TestNotesMigration(), stored)
+        .load(null, ImmutableList.of(notes)).keySet())
+        .containsExactly(stored.getId());
+  }
+
+  @Test
+  public void reindexChangeMissingFromSource() throws Exception {
+    ChangeNotes notes = currentNotes();
+
+    StoredChangeLoader loader = newLoader(readChanges());
+    assertThat(loader.load(null, ImmutableList.of(notes))).isEmpty();
+    assertThat(loader.getReusedCount()).isEqualTo(0);
+  }
+
+  private void assertNotReused(ChangeNotes notes, Change stored) {
+    StoredChangeLoader loader = newLoader(readChanges(), stored);
+    assertThat(loader.load(null, ImmutableList.of(notes))).isEmpty();
+    assertThat(loader.getReusedCount()).isEqualTo(0);
+  }
+
+  /** @return notes of a new change whose row matches its meta ref. */
+  private ChangeNotes currentNotes() throws Exception {
+    Change c = newChange();
+    c.setNoteDbState(newNotes(c).getRevision().name());
+    return newNotes(c);
+  }
+
+  private static NotesMigration readChanges() {
+    return new TestNotesMigration().setAllEnabled(true);
+  }
+
+  private StoredChangeLoader newLoader(NotesMigration migration,
+      Change... stored) {
+    List<ChangeData> docs = new ArrayList<>(stored.length);
+    for (Change c : stored) {
+      ChangeData cd = ChangeData.createForTest(
+          c.getProject(), c.getId(), c.currentPatchSetId().get());
+      cd.setChange(c);
+      docs.add(cd);
+    }
+    ChangeIndex source = new FakeChangeIndex(SCHEMA) {
+      @Override
+      public ChangeDataSource getSource(Predicate<ChangeData> p,
+          QueryOptions opts) {
+        return new ChangeDataSource() {
+          @Override
+          public int getCardinality() {
+            return docs.size();
+          }
+
+          @Override
+          public boolean hasChange() {
+            return true;
+          }
+
+          @Override
+          public ResultSet<ChangeData> read() {
+            return new ListResultSet<>(docs);
+          }
+        };
+      }
+    };
+    return new StoredChangeLoader(source, SCHEMA, IndexConfig.createDefault(),
+        injector.getInstance(ThreadLocalRequestContext.class), migration);
+  }
+
+  @SafeVarargs
+  private static Schema<ChangeData> schema(int version,
+      FieldDef<ChangeData, ?>... fields) {
+    return new Schema<>(version, ImmutableList.copyOf(fields));
+  }
+}
@@ -0,0 +1,216 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.notedb;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Table;
+import com.google.gerrit.common.data.SubmitRecord;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.ChangeMessage;
+import com.google.gerrit.reviewdb.client.CommentRange;
+import com.google.gerrit.reviewdb.client.LabelId;
+import com.google.gerrit.reviewdb.client.Patch;
+import com.google.gerrit.reviewdb.client.PatchLineComment;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.reviewdb.client.PatchSetApproval;
+import com.google.gerrit.reviewdb.client.RevId;
+import com.google.gerrit.server.ReviewerSet;
+import com.google.gerrit.server.ReviewerStatusUpdate;
+import com.google.gwtorm.client.KeyUtil;
+import com.google.gwtorm.server.StandardKeyEncoder;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.Map;
+
+/** Unit tests for {@link ChangeNotesState.Serializer}. */
+public class ChangeNotesStateTest {
+  static {
+    KeyUtil.setEncoderImpl(new StandardKeyEncoder());
+  }
+
+  private static final String REV1 = "abcd1234abcd1234abcd1234abcd1234abcd1234";
+  private static final String REV2 = "1234abcd1234abcd1234abcd1234abcd1234abcd";
+
+  private final Change.Id changeId = new Change.Id(1);
+  private final PatchSet.Id ps1 = new PatchSet.Id(changeId, 1);
+  private final PatchSet.Id ps2 = new PatchSet.Id(changeId, 2);
+  private final Account.Id owner = new Account.Id(1000001);
+  private final Account.Id reviewer = new Account.Id(1000002);
+  private final Timestamp ts = new Timestamp(1234567890000L);
+
+  @Test
+  public void roundTrip() throws Exception {
+    PatchSet p1 = patchSet(ps1, REV1);
+    p1.setPushCertificate("certificate");
+    PatchSet p2 = patchSet(ps2, REV2);
+    p2.setDraft(true);
+
+    PatchSetApproval psa = new PatchSetApproval(new PatchSetApproval.Key(
+        ps1, reviewer, new LabelId("Code-Review")), (short) 2, ts);
+    psa.setTag("tag");
+
+    Table<ReviewerStateInternal, Account.Id, Timestamp> reviewers =
+        HashBasedTable.create();
+    reviewers.put(ReviewerStateInternal.REVIEWER, reviewer, ts);
+
+    SubmitRecord sr = new SubmitRecord();
+    sr.status = SubmitRecord.Status.OK;
+    SubmitRecord.Label label = new SubmitRecord.Label();
+    label.label = "Code-Review";
+    label.status = SubmitRecord.Label.Status.OK;
+    label.appliedBy = reviewer;
+    sr.labels = ImmutableList.of(label);
+
+    ChangeMessage m1 = message("uuid1", ps1, "First");
+    ChangeMessage m2 = message("uuid2", ps2, "");
+
+    PatchLineComment c = new PatchLineComment(new PatchLineComment.Key(
+        new Patch.Key(ps1, "a.txt"), "uuid3"), 3, reviewer, null, ts);
+    c.setMessage("Comment");
+    c.setRange(new CommentRange(3, 0, 4, 1));
+    c.setRevId(new RevId(REV1));
+    c.setStatus(PatchLineComment.Status.PUBLISHED);
+
+    ChangeNotesState state = ChangeNotesState.create(
+        changeId,
+        new Change.Key("I1234567890abcdef1234567890abcdef12345678"),
+        ts,
+        new Timestamp(ts.getTime() + 1000),
+        owner,
+        "refs/heads/master",
+        ps2,
+        "Subject",
+        "",
+        "Original subject",
+        null,
+        Change.Status.NEW,
+        reviewer,
+        ImmutableSet.of("tag1", "tag2"),
+        ImmutableMap.of(ps1, p1, ps2, p2),
+        ImmutableListMultimap.of(ps1, psa),
+        ReviewerSet.fromTable(reviewers),
+        ImmutableList.of(reviewer),
+        ImmutableList.of(ReviewerStatusUpdate.create(
+            ts, owner, reviewer, ReviewerStateInternal.REVIEWER)),
+        ImmutableList.of(sr),
+        ImmutableList.of(m1, m2),
+        ImmutableListMultimap.of(ps1, m1, ps2, m2),
+        ImmutableListMultimap.of(new RevId(REV1), c));
+
+    ChangeNotesState actual = roundTrip(state);
+    assertThat(actual.changeId()).isEqualTo(changeId);
+    assertThat(actual.columns()).isEqualTo(state.columns());
+    assertThat(actual.columns().topic()).isEmpty();
+    assertThat(actual.columns().submissionId()).isNull();
+    assertThat(actual.assignee()).isEqualTo(reviewer);
+    assertThat(actual.hashtags()).containsExactly("tag1", "tag2").inOrder();
+
+    assertThat(actual.patchSets().keySet()).containsExactly(ps1, ps2).inOrder();
+    for (Map.Entry<PatchSet.Id, PatchSet> e : state.patchSets().entrySet()) {
+      assertThat(actual.patchSets().get(e.getKey()).toString())
+          .isEqualTo(e.getValue().toString());
+    }
+    assertThat(actual.patchSets().get(ps1).getPushCertificate())
+        .isEqualTo("certificate");
+    assertThat(actual.patchSets().get(ps2).isDraft()).isTrue();
+
+    assertThat(actual.approvals()).isEqualTo(state.approvals());
+    assertThat(actual.reviewers()).isEqualTo(state.reviewers());
+    assertThat(actual.allPastReviewers()).isEqualTo(state.allPastReviewers());
+    assertThat(actual.reviewerUpdates()).isEqualTo(state.reviewerUpdates());
+    assertThat(actual.submitRecords()).isEqualTo(state.submitRecords());
+
+    assertThat(actual.allChangeMessages()).hasSize(2);
+    assertThat(actual.allChangeMessages().get(0).toString())
+        .isEqualTo(m1.toString());
+    assertThat(actual.allChangeMessages().get(1).getMessage()).isEmpty();
+    assertThat(actual.changeMessagesByPatchSet().keySet())
+        .containsExactly(ps1, ps2).inOrder();
+
+    assertThat(actual.publishedComments())
+        .isEqualTo(state.publishedComments());
+  }
+
+  @Test
+  public void roundTripEmptyValues() throws Exception {
+    ChangeNotesState state = ChangeNotesState.create(
+        changeId,
+        new Change.Key("I1234567890abcdef1234567890abcdef12345678"),
+        ts,
+        ts,
+        owner,
+        "refs/heads/master",
+        ps1,
+        "Subject",
+        null,
+        "Subject",
+        null,
+        null,
+        null,
+        null,
+        ImmutableMap.of(ps1, patchSet(ps1, REV1)),
+        ImmutableListMultimap.<PatchSet.Id, PatchSetApproval> of(),
+        ReviewerSet.empty(),
+        ImmutableList.<Account.Id> of(),
+        ImmutableList.<ReviewerStatusUpdate> of(),
+        ImmutableList.<SubmitRecord> of(),
+        ImmutableList.<ChangeMessage> of(),
+        ImmutableListMultimap.<PatchSet.Id, ChangeMessage> of(),
+        ImmutableListMultimap.<RevId, PatchLineComment> of());
+
+    ChangeNotesState actual = roundTrip(state);
+    assertThat(actual.columns()).isEqualTo(state.columns());
+    assertThat(actual.assignee()).isNull();
+    assertThat(actual.patchSets().keySet()).containsExactly(ps1);
+    assertThat(actual.approvals()).isEmpty();
+    assertThat(actual.allChangeMessages()).isEmpty();
+  }
+
+  @Test(expected = IOException.class)
+  public void unsupportedVersion() throws Exception {
+    ChangeNotesState.Serializer.INSTANCE.deserialize(new byte[] {0});
+  }
+
+  private static ChangeNotesState roundTrip(ChangeNotesState state)
+      throws IOException {
+    ChangeNotesState.Serializer s = ChangeNotesState.Serializer.INSTANCE;
+    return s.deserialize(s.serialize(state));
+  }
+
+  private PatchSet patchSet(PatchSet.Id id, String rev) {
+    PatchSet ps = new PatchSet(id);
+    ps.setRevision(new RevId(rev));
+    ps.setUploader(owner);
+    ps.setCreatedOn(ts);
+    return ps;
+  }
+
+  private ChangeMessage message(String uuid, PatchSet.Id psId, String msg) {
+    ChangeMessage m = new ChangeMessage(
+        new ChangeMessage.Key(changeId, uuid), owner, ts, psId);
+    m.setMessage(msg);
+    return m;
+  }
+}
@@ -0,0 +1,94 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.patch;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.diff.ReplaceEdit;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+public class PatchListSerializerTest {
+  private static final ObjectId OLD =
+      ObjectId.fromString("0123456789012345678901234567890123456789");
+  private static final ObjectId NEW =
+      ObjectId.fromString("9876543210987654321098765432109876543210");
+
+  @Test
+  public void patchListRoundTrip() throws Exception {
+    PatchList p = new PatchList(OLD, NEW, true,
+        ComparisonType.againstParent(2),
+        new PatchListEntry[] {
+            PatchListEntry.empty("/COMMIT_MSG"),
+            PatchListEntry.empty("b.txt"),
+            PatchListEntry.empty("a.txt")});
+    PatchList.Serializer s = PatchList.Serializer.INSTANCE;
+    byte[] bytes = s.serialize(p);
+    PatchList r = s.deserialize(bytes);
+
+    assertThat(r.getOldId()).isEqualTo(OLD);
+    assertThat(r.getNewId()).isEqualTo(NEW);
+    assertThat(r.getComparisonType().getParentNum()).isEqualTo(2);
+    assertThat(r.getPatches()).hasSize(3);
+    assertThat(r.getPatches().get(1).getNewName()).isEqualTo("a.txt");
+    assertThat(r.getPatches().get(2).getNewName()).isEqualTo("b.txt");
+    assertThat(bytes.length).isLessThan(javaSerialize(p).length);
+  }
+
+  @Test
+  public void intraLineDiffRoundTrip() throws Exception {
+    Edit inner = new Edit(1, 2, 1, 3);
+    IntraLineDiff d = new IntraLineDiff(ImmutableList.<Edit> of(
+        new Edit(0, 1, 0, 0),
+        new ReplaceEdit(new Edit(3, 5, 2, 6), ImmutableList.of(inner))));
+    IntraLineDiff.Serializer s = IntraLineDiff.Serializer.INSTANCE;
+    byte[] bytes = s.serialize(d);
+    IntraLineDiff r = s.deserialize(bytes);
+
+    assertThat(r.getStatus()).isEqualTo(IntraLineDiff.Status.EDIT_LIST);
+    assertThat(r.getEdits()).hasSize(2);
+    assertThat(r.getEdits().get(0)).isEqualTo(new Edit(0, 1, 0, 0));
+    ReplaceEdit replace = (ReplaceEdit) r.getEdits().get(1);
+    assertThat(replace.getInternalEdits()).containsExactly(inner);
+    assertThat(bytes.length).isLessThan(javaSerialize(d).length);
+
+    assertThat(s.deserialize(s.serialize(
+        new IntraLineDiff(IntraLineDiff.Status.TIMEOUT))).getStatus())
+        .isEqualTo(IntraLineDiff.Status.TIMEOUT);
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectJavaSerialization() throws Exception {
+    PatchList p = new PatchList(null, NEW, false,
+        ComparisonType.againstAutoMerge(),
+        new PatchListEntry[] {PatchListEntry.empty("/COMMIT_MSG")});
+    PatchList.Serializer.INSTANCE.deserialize(javaSerialize(p));
+  }
+
+  private static byte[] javaSerialize(Object o) throws IOException {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(buf)) {
+      out.writeObject(o);
+    }
+    return buf.toByteArray();
+  }
+}
@@ -0,0 +1,296 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.project;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.LoadingCache;
+import com.google.gerrit.extensions.api.changes.NotifyHandling;
+import com.google.gerrit.extensions.common.AccountInfo;
+import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.reviewdb.client.RefNames;
+import com.google.gerrit.server.config.AllProjectsName;
+import com.google.gerrit.server.config.AllUsersName;
+import com.google.gerrit.server.git.GitRepositoryManager;
+import com.google.gerrit.server.git.ProjectConfig;
+import com.google.gerrit.testutil.TempFileUtil;
+import com.google.gwtorm.client.KeyUtil;
+import com.google.gwtorm.server.StandardKeyEncoder;
+
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+
+public class ProjectCacheRefresherTest {
+  static {
+    KeyUtil.setEncoderImpl(new StandardKeyEncoder());
+  }
+
+  private static final Project.NameKey PROJECT =
+      new Project.NameKey("project");
+
+  private CountingRepositoryManager repoManager;
+  private ProjectCacheImpl projectCache;
+  private ProjectCacheRefresher refresher;
+  private long refModified =
+      System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+
+  @Before
+  public void setUp() throws Exception {
+    repoManager =
+        new CountingRepositoryManager(TempFileUtil.createTempDirectory());
+    repoManager.createRepository(PROJECT).close();
+
+    Config cfg = new Config();
+    cfg.setBoolean("cache", "projects", "checkOnAccess", false);
+    projectCache = newProjectCache(cfg);
+    refresher = new ProjectCacheRefresher(projectCache, repoManager, cfg);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    TempFileUtil.cleanup();
+  }
+
+  @Test
+  public void accessDoesNotCheckForUpdates() throws Exception {
+    ProjectState state = projectCache.checkedGet(PROJECT);
+    updateConfig("updated");
+    repoManager.opened = 0;
+
+    assertThat(projectCache.checkedGet(PROJECT)).isSameAs(state);
+    assertThat(repoManager.opened).isEqualTo(0);
+  }
+
+  @Test
+  public void configRefUpdateEvictsProject() throws Exception {
+    ProjectState state = projectCache.checkedGet(PROJECT);
+
+    refresher.onGitReferenceUpdated(event(PROJECT, "refs/heads/master"));
+    assertThat(projectCache.checkedGet(PROJECT)).isSameAs(state);
+
+    refresher.onGitReferenceUpdated(event(PROJECT, RefNames.REFS_CONFIG));
+    assertThat(projectCache.checkedGet(PROJECT)).isNotSameAs(state);
+  }
+
+  @Test
+  public void refUpdateIsIgnoredWhenCheckingOnAccess() throws Exception {
+    Config cfg = new Config();
+    cfg.setBoolean("cache", "projects", "checkOnAccess", true);
+    refresher = new ProjectCacheRefresher(projectCache, repoManager, cfg);
+    ProjectState state = projectCache.checkedGet(PROJECT);
+
+    refresher.onGitReferenceUpdated(event(PROJECT, RefNames.REFS_CONFIG));
+    assertThat(projectCache.checkedGet(PROJECT)).isSameAs(state);
+  }
+
+  @Test
+  public void scanEvictsProjectUpdatedByOtherMeans() throws Exception {
+    updateConfig("first");
+    ProjectState state = projectCache.checkedGet(PROJECT);
+    refresher.run();
+    assertThat(projectCache.checkedGet(PROJECT)).isSameAs(state);
+
+    RevCommit c = updateConfig("second");
+    refresher.run();
+
+    ProjectState updated = projectCache.checkedGet(PROJECT);
+    assertThat(updated).isNotSameAs(state);
+    assertThat(updated.getConfig().getRevision()).isEqualTo(c);
+    assertThat(updated.getProject().getDescription()).isEqualTo("second");
+  }
+
+  @Test
+  public void scanSkipsUnmodifiedProject() throws Exception {
+    updateConfig("first");
+    ProjectState state = projectCache.checkedGet(PROJECT);
+    refresher.run();
+    repoManager.opened = 0;
+
+    refresher.run();
+    refresher.run();
+
+    assertThat(repoManager.opened).isEqualTo(0);
+    assertThat(projectCache.checkedGet(PROJECT)).isSameAs(state);
+  }
+
+  @Test
+  public void scanSkipsProjectWithoutConfigUntilItHasOne() throws Exception {
+    ProjectState state = projectCache.checkedGet(PROJECT);
+    assertThat(state.getConfig().getRevision()).isNull();
+    refresher.run();
+    repoManager.opened = 0;
+
+    refresher.run();
+    refresher.run();
+
+    assertThat(repoManager.opened).isEqualTo(0);
+    assertThat(projectCache.checkedGet(PROJECT)).isSameAs(state);
+
+    RevCommit c = updateConfig("created");
+    refresher.run();
+    assertThat(projectCache.checkedGet(PROJECT).getConfig().getRevision())
+        .isEqualTo(c);
+  }
+
+  private ProjectCacheImpl newProjectCache(Config cfg) {
+    AllProjectsName allProjects = new AllProjectsName("All-Projects");
+    AllUsersName allUsers = new AllUsersName("All-Users");
+    ProjectCacheClock clock = new ProjectCacheClock(cfg);
+    ProjectState.Factory stateFactory = config -> new ProjectState(null, null,
+        allProjects, allUsers, null, null, repoManager, null, null, null,
+        config);
+    LoadingCache<String, ProjectState> byName = CacheBuilder.newBuilder()
+        .build(new ProjectCacheImpl.Loader(stateFactory, repoManager, clock));
+    return new ProjectCacheImpl(allProjects, allUsers, byName, null, clock);
+  }
+
+  private RevCommit updateConfig(String description) throws Exception {
+    try (Repository repo = repoManager.open(PROJECT)) {
+      RevCommit c = new TestRepository<>(repo)
+          .branch(RefNames.REFS_CONFIG).commit()
+          .add(ProjectConfig.PROJECT_CONFIG,
+              "[project]\n\tdescription = " + description + "\n")
+          .create();
+      // Backdate the ref files, so that the scan does not consider their
+      // snapshots racily clean and read the ref again anyway. Each update
+      // still gets a distinct modification time.
+      refModified += TimeUnit.SECONDS.toMillis(1);
+      for (String name : new String[] {
+          RefNames.REFS_CONFIG, Constants.PACKED_REFS}) {
+        File f = new File(repo.getDirectory(), name);
+        if (f.exists()) {
+          assertThat(f.setLastModified(refModified)).isTrue();
+        }
+      }
+      return c;
+    }
+  }
+
+  private static GitReferenceUpdatedListener.Event event(
+      Project.NameKey project, String ref) {
+    return new GitReferenceUpdatedListener.Event() {
+      @Override
+      public String getProjectName() {
+        return project.get();
+      }
+
+      @Override
+      public NotifyHandling getNotify() {
+        return NotifyHandling.ALL;
+      }
+
+      @Override
+      public String getRefName() {
+        return ref;
+      }
+
+      @Override
+      public String getOldObjectId() {
+        return null;
+      }
+
+      @Override
+      public String getNewObjectId() {
+        return null;
+      }
+
+      @Override
+      public boolean isCreate() {
+        return false;
+      }
+
+      @Override
+      public boolean isDelete() {
+        return false;
+      }
+
+      @Override
+      public boolean isNonFastForward() {
+        return false;
+      }
+
+      @Override
+      public AccountInfo getUpdater() {
+        return null;
+      }
+    };
+  }
+
+  private static class CountingRepositoryManager
+      implements GitRepositoryManager {
+    private final File base;
+    private int opened;
+
+    CountingRepositoryManager(File base) {
+      this.base = base;
+    }
+
+    Repository open(Project.NameKey name) throws IOException {
+      File dir = new File(base, name.get() + Constants.DOT_GIT_EXT);
+      if (!dir.exists()) {
+        throw new RepositoryNotFoundException(dir);
+      }
+      return new FileRepositoryBuilder().setGitDir(dir).build();
+    }
+
+    @Override
+    public Repository openRepository(Project.NameKey name)
+        throws IOException {
+      opened++;
+      return open(name);
+    }
+
+    @Override
+    public Repository createRepository(Project.NameKey name)
+        throws IOException {
+      Repository repo = new FileRepositoryBuilder()
+          .setGitDir(new File(base, name.get() + Constants.DOT_GIT_EXT))
+          .build();
+      repo.create(true);
+      return repo;
+    }
+
+    @Override
+    public SortedSet<Project.NameKey> list() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getProjectDescription(Project.NameKey name) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setProjectDescription(Project.NameKey name,
+        String description) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,109 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.project;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gwtorm.client.KeyUtil;
+import com.google.gwtorm.server.StandardKeyEncoder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ProjectNameIndexTest {
+  static {
+    KeyUtil.setEncoderImpl(new StandardKeyEncoder());
+  }
+
+  private ProjectNameIndex index;
+
+  @Before
+  public void setUp() {
+    index = ProjectNameIndex.create(names(
+        "platform/build", "platform/Frameworks/base", "tools/gerrit",
+        "tools/repo", "All-Projects"));
+  }
+
+  @Test
+  public void allIsSorted() {
+    assertThat(index.all()).containsExactlyElementsIn(names(
+        "All-Projects", "platform/Frameworks/base", "platform/build",
+        "tools/gerrit", "tools/repo")).inOrder();
+  }
+
+  @Test
+  public void bySubstringIgnoresCase() {
+    assertThat(index.bySubstring("FRAME"))
+        .containsExactlyElementsIn(names("platform/Frameworks/base"));
+    assertThat(index.bySubstring("ls/")).containsExactlyElementsIn(
+        names("tools/gerrit", "tools/repo")).inOrder();
+    assertThat(index.bySubstring("repo")).containsExactlyElementsIn(
+        names("tools/repo"));
+    assertThat(index.bySubstring("")).hasSize(5);
+  }
+
+  @Test
+  public void bySubstringChecksAllTrigrams() {
+    // Every trigram of the substring occurs in some name, but not in order.
+    assertThat(index.bySubstring("ols/build")).isEmpty();
+    assertThat(index.bySubstring("xyz")).isEmpty();
+  }
+
+  @Test
+  public void byRegex() {
+    assertThat(index.byRegex("tools/.*")).containsExactlyElementsIn(
+        names("tools/gerrit", "tools/repo")).inOrder();
+    assertThat(index.byRegex(".*/bu.*")).containsExactlyElementsIn(
+        names("platform/build")).inOrder();
+  }
+
+  @Test
+  public void addAndRemove() {
+    ProjectNameIndex added = index.add(new Project.NameKey("tools/gerrit-ci"));
+    assertThat(added.bySubstring("gerrit")).containsExactlyElementsIn(
+        names("tools/gerrit", "tools/gerrit-ci")).inOrder();
+    assertThat(index.bySubstring("gerrit")).containsExactlyElementsIn(
+        names("tools/gerrit"));
+    assertThat(added.add(new Project.NameKey("tools/gerrit-ci")))
+        .isSameAs(added);
+
+    ProjectNameIndex removed = added.remove(new Project.NameKey("tools/gerrit"));
+    assertThat(removed.bySubstring("gerrit")).containsExactlyElementsIn(
+        names("tools/gerrit-ci"));
+    assertThat(removed.all()).hasSize(5);
+    assertThat(removed.remove(new Project.NameKey("tools/gerrit")))
+        .isSameAs(removed);
+
+    ProjectNameIndex empty = removed;
+    for (Project.NameKey n : ImmutableList.copyOf(removed.all())) {
+      empty = empty.remove(n);
+    }
+    assertThat(empty.all()).isEmpty();
+    assertThat(empty.bySubstring("gerrit")).isEmpty();
+  }
+
+  private static List<Project.NameKey> names(String... names) {
+    List<Project.NameKey> r = new ArrayList<>(names.length);
+    for (String n : names) {
+      r.add(new Project.NameKey(n));
+    }
+    return r;
+  }
+}
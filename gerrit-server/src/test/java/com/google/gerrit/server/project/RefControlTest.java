@@ -279,6 +279,16 @@ public class RefControlTest {
         return Collections.emptySet();
       }
 
+      @Override
+      public Iterable<Project.NameKey> bySubstring(String substring) {
+        return Collections.emptySet();
+      }
+
+      @Override
+      public Iterable<Project.NameKey> byRegex(String regex) {
+        return Collections.emptySet();
+      }
+
       @Override
       public void onCreateProject(Project.NameKey newProjectName) {
       }
@@ -927,7 +937,7 @@ public class RefControlTest {
 
     return new ProjectControl(Collections.<AccountGroup.UUID> emptySet(),
         Collections.<AccountGroup.UUID> emptySet(), projectCache,
-        sectionSorter, null, changeControlFactory, null, null,
+        sectionSorter, null, changeControlFactory, null, null, null,
         canonicalWebUrl, new MockUser(name, memberOf), newProjectState(local));
   }
 
@@ -0,0 +1,259 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.server.query.change;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.gerrit.reviewdb.client.Account;
+import com.google.gerrit.reviewdb.client.Change;
+import com.google.gerrit.reviewdb.client.PatchSet;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.server.patch.IntraLineDiff;
+import com.google.gerrit.server.patch.IntraLineDiffArgs;
+import com.google.gerrit.server.patch.IntraLineDiffKey;
+import com.google.gerrit.server.patch.PatchList;
+import com.google.gerrit.server.patch.PatchListCache;
+import com.google.gerrit.server.patch.PatchListEntry;
+import com.google.gerrit.server.patch.PatchListKey;
+import com.google.gerrit.server.patch.PatchListNotAvailableException;
+import com.google.gerrit.server.util.IdGenerator;
+import com.google.gerrit.testutil.TestChanges;
+import com.google.gerrit.testutil.TestNotesMigration;
+import com.google.gwtorm.client.KeyUtil;
+import com.google.gwtorm.server.StandardKeyEncoder;
+import com.google.inject.Guice;
+
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ChangeDataLoaderTest {
+  static {
+    KeyUtil.setEncoderImpl(new StandardKeyEncoder());
+  }
+
+  private static final Project.NameKey PROJECT =
+      new Project.NameKey("project");
+  private static final int THREADS = 4;
+
+  private WorkQueue workQueue;
+  private FakePatchListCache patchListCache;
+  private ChangeDataLoader loader;
+
+  @Before
+  public void setUp() {
+    Config cfg = new Config();
+    cfg.setInt("change", null, "loadThreads", THREADS);
+    workQueue = new WorkQueue(
+        Guice.createInjector().getInstance(IdGenerator.class), 1);
+    patchListCache = new FakePatchListCache();
+    loader = new ChangeDataLoader(cfg, workQueue, null,
+        new TestNotesMigration(), null, patchListCache);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    WorkQueue.Executor e = workQueue.getExecutor("ChangeDataLoader");
+    if (e != null) {
+      e.shutdownNow();
+      e.awaitTermination(10, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test
+  public void disabledByDefault() throws Exception {
+    ChangeDataLoader disabled = new ChangeDataLoader(new Config(), workQueue,
+        null, new TestNotesMigration(), null, patchListCache);
+    assertThat(disabled.isEnabled()).isFalse();
+    assertThat(disabled.start(ImmutableList.of(newChange(1)), true))
+        .isSameAs(ChangeDataLoader.Batch.EMPTY);
+    assertThat(patchListCache.calls.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void loadsPatchListsInParallel() throws Exception {
+    // Each load waits until all of them have started, which only completes
+    // if they run concurrently.
+    patchListCache.barrier = new CountDownLatch(THREADS);
+    List<ChangeData> changes = newChanges(THREADS);
+
+    ChangeDataLoader.Batch batch = loader.start(changes, true);
+    for (ChangeData cd : changes) {
+      batch.await(cd);
+    }
+
+    assertThat(patchListCache.barrier.getCount()).isEqualTo(0);
+    assertThat(patchListCache.calls.get()).isEqualTo(THREADS);
+    for (ChangeData cd : changes) {
+      assertThat(cd.changedLines().isPresent()).isTrue();
+    }
+    // Patch lists were stored in the changes, so nothing is loaded again.
+    assertThat(patchListCache.calls.get()).isEqualTo(THREADS);
+  }
+
+  @Test
+  public void resultsAreAppliedToTheirOwnChange() throws Exception {
+    // Odd changes have no patch list; loading finishes in reverse order.
+    patchListCache.unavailable = id -> id % 2 == 1;
+    patchListCache.delayMillis = id -> (10 - id) * 20;
+    List<ChangeData> changes = newChanges(10);
+
+    ChangeDataLoader.Batch batch = loader.start(changes, true);
+    for (ChangeData cd : changes) {
+      batch.await(cd);
+      assertThat(cd.changedLines().isPresent())
+          .named("changedLines of " + cd.getId())
+          .isEqualTo(cd.getId().get() % 2 == 0);
+    }
+    assertThat(patchListCache.calls.get()).isEqualTo(10);
+  }
+
+  @Test
+  public void awaitInAnyOrder() throws Exception {
+    List<ChangeData> changes = newChanges(5);
+
+    ChangeDataLoader.Batch batch = loader.start(changes, true);
+    for (ChangeData cd : Lists.reverse(changes)) {
+      batch.await(cd);
+      // Awaiting twice is a no-op.
+      batch.await(cd);
+    }
+    for (ChangeData cd : changes) {
+      assertThat(cd.changedLines().isPresent()).isTrue();
+    }
+    assertThat(patchListCache.calls.get()).isEqualTo(5);
+  }
+
+  @Test
+  public void duplicateChangesAreLoadedOnce() throws Exception {
+    ChangeData cd = newChange(1);
+
+    ChangeDataLoader.Batch batch = loader.start(ImmutableList.of(cd, cd), true);
+    batch.await(cd);
+
+    assertThat(cd.changedLines().isPresent()).isTrue();
+    assertThat(patchListCache.calls.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void failedLoadIsLeftToLazyLoading() throws Exception {
+    patchListCache.failing = true;
+    ChangeData cd = newChange(1);
+
+    ChangeDataLoader.Batch batch = loader.start(ImmutableList.of(cd), true);
+    batch.await(cd);
+    assertThat(patchListCache.calls.get()).isEqualTo(1);
+
+    // Nothing was stored in the change, so a later load still applies.
+    patchListCache.failing = false;
+    batch = loader.start(ImmutableList.of(cd), true);
+    batch.await(cd);
+    assertThat(cd.changedLines().isPresent()).isTrue();
+    assertThat(patchListCache.calls.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void nothingToLoadWithoutPatchLists() throws Exception {
+    ChangeData cd = newChange(1);
+
+    ChangeDataLoader.Batch batch = loader.start(ImmutableList.of(cd), false);
+    batch.await(cd);
+
+    assertThat(patchListCache.calls.get()).isEqualTo(0);
+  }
+
+  private static List<ChangeData> newChanges(int n) {
+    List<ChangeData> changes = Lists.newArrayListWithCapacity(n);
+    for (int i = 1; i <= n; i++) {
+      changes.add(newChange(i));
+    }
+    return changes;
+  }
+
+  private static ChangeData newChange(int id) {
+    ChangeData cd = ChangeData.createForTest(PROJECT, new Change.Id(id), 1);
+    cd.setChange(TestChanges.newChange(PROJECT, new Account.Id(1000), id));
+    return cd;
+  }
+
+  private interface IdPredicate {
+    boolean test(int id);
+  }
+
+  private interface IdDelay {
+    long millis(int id);
+  }
+
+  private static class FakePatchListCache implements PatchListCache {
+    private final AtomicInteger calls = new AtomicInteger();
+    private volatile CountDownLatch barrier;
+    private volatile boolean failing;
+    private volatile IdPredicate unavailable = id -> false;
+    private volatile IdDelay delayMillis = id -> 0;
+
+    @Override
+    public PatchList get(Change change, PatchSet patchSet)
+        throws PatchListNotAvailableException {
+      calls.incrementAndGet();
+      int id = change.getId().get();
+      try {
+        if (barrier != null) {
+          barrier.countDown();
+          if (!barrier.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("loads did not run in parallel");
+          }
+        }
+        Thread.sleep(delayMillis.millis(id));
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+      if (failing) {
+        throw new IllegalStateException("failing");
+      }
+      if (unavailable.test(id)) {
+        throw new PatchListNotAvailableException("unavailable");
+      }
+      return new PatchList(null, ObjectId.zeroId(), false, null,
+          new PatchListEntry[0]);
+    }
+
+    @Override
+    public PatchList get(PatchListKey key, Project.NameKey project) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ObjectId getOldId(Change change, PatchSet patchSet,
+        Integer parentNum) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public IntraLineDiff getIntraLineDiff(IntraLineDiffKey key,
+        IntraLineDiffArgs args) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -14,10 +14,12 @@
 
 package com.google.gerrit.server.query.change;
 
+import com.google.common.collect.ImmutableList;
 import com.google.gerrit.reviewdb.client.Change;
 import com.google.gerrit.testutil.InMemoryModule;
 import com.google.gerrit.testutil.InMemoryRepositoryManager.Repo;
 import com.google.inject.Guice;
+import com.google.inject.Inject;
 import com.google.inject.Injector;
 
 import org.eclipse.jgit.junit.TestRepository;
@@ -26,6 +28,8 @@ import org.eclipse.jgit.revwalk.RevCommit;
 import org.junit.Test;
 
 public class LuceneQueryChangesTest extends AbstractQueryChangesTest {
+  @Inject private ChangeData.Factory changeDataFactory;
+
   @Override
   protected Injector createInjector() {
     Config luceneConfig = new Config(config);
@@ -52,4 +56,26 @@ public class LuceneQueryChangesTest extends AbstractQueryChangesTest {
     assertQuery("message:one.two", change2);
     assertQuery("message:one two", change2);
   }
+
+  @Test
+  public void replaceAllMovesChangesBetweenSubIndexes() throws Exception {
+    TestRepository<Repo> repo = createProject("repo");
+    Change change1 = insert(repo, newChange(repo));
+    Change change2 =
+        insert(repo, newChangeWithStatus(repo, Change.Status.MERGED));
+    Change change3 = insert(repo, newChange(repo));
+    assertQuery("status:open", change3, change1);
+    assertQuery("status:merged", change2);
+
+    ChangeData cd1 = changeDataFactory.create(db, change1);
+    cd1.change().setStatus(Change.Status.ABANDONED);
+    ChangeData cd2 = changeDataFactory.create(db, change2);
+    cd2.change().setStatus(Change.Status.NEW);
+    ChangeData cd3 = changeDataFactory.create(db, change3);
+    indexes.getSearchIndex().replaceAll(ImmutableList.of(cd1, cd2, cd3));
+
+    assertQuery("status:open", change3, change2);
+    assertQuery("status:abandoned", change1);
+    assertQuery("status:merged");
+  }
 }
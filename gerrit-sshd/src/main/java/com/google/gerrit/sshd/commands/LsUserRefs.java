@@ -15,7 +15,6 @@
 package com.google.gerrit.sshd.commands;
 
 import static com.google.gerrit.sshd.CommandMetaData.Mode.MASTER_OR_SLAVE;
-import static org.eclipse.jgit.lib.RefDatabase.ALL;
 
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.common.data.GlobalCapability;
@@ -28,6 +27,7 @@ import com.google.gerrit.server.account.AccountResolver;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.SearchingChangeCacheImpl;
 import com.google.gerrit.server.git.TagCache;
+import com.google.gerrit.server.git.VisibleChangesCache;
 import com.google.gerrit.server.git.VisibleRefFilter;
 import com.google.gerrit.server.notedb.ChangeNotes;
 import com.google.gerrit.server.project.ProjectControl;
@@ -42,6 +42,8 @@ import org.eclipse.jgit.lib.Repository;
 import org.kohsuke.args4j.Option;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 @RequiresCapability(GlobalCapability.ADMINISTRATE_SERVER)
@@ -67,6 +69,10 @@ public class LsUserRefs extends SshCommand {
   @Nullable
   private SearchingChangeCacheImpl changeCache;
 
+  @Inject
+  @Nullable
+  private VisibleChangesCache visibleChangesCache;
+
   @Option(name = "--project", aliases = {"-p"}, metaVar = "PROJECT",
       required = true, usage = "project for which the refs should be listed")
   private ProjectControl projectControl;
@@ -78,6 +84,10 @@ public class LsUserRefs extends SshCommand {
   @Option(name = "--only-refs-heads", usage = "list only refs under refs/heads")
   private boolean onlyRefsHeads;
 
+  @Option(name = "--prefix", metaVar = "PREFIX",
+      usage = "list only refs starting with PREFIX")
+  private List<String> prefixes = new ArrayList<>();
+
   @Inject
   private GitRepositoryManager repoManager;
 
@@ -101,15 +111,16 @@ public class LsUserRefs extends SshCommand {
     try (Repository repo = repoManager.openRepository(
         userProjectControl.getProject().getNameKey())) {
       try {
+        if (onlyRefsHeads) {
+          prefixes.add(RefNames.REFS_HEADS);
+        }
         Map<String, Ref> refsMap = new VisibleRefFilter(
-                tagCache, changeNotesFactory, changeCache, repo,
-                userProjectControl, db, true)
-            .filter(repo.getRefDatabase().getRefs(ALL), false);
+                tagCache, changeNotesFactory, changeCache, visibleChangesCache,
+                repo, userProjectControl, db, true)
+            .filterPrefixes(prefixes);
 
         for (final String ref : refsMap.keySet()) {
-          if (!onlyRefsHeads || ref.startsWith(RefNames.REFS_HEADS)) {
-            stdout.println(ref);
-          }
+          stdout.println(ref);
         }
       } catch (IOException e) {
         throw new Failure(1, "fatal: Error reading refs: '"
@@ -16,44 +16,35 @@ package com.google.gerrit.sshd.commands;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
-import com.google.common.base.Supplier;
 import com.google.gerrit.common.UserScopedEventListener;
 import com.google.gerrit.common.data.GlobalCapability;
 import com.google.gerrit.extensions.annotations.RequiresCapability;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.extensions.registration.RegistrationHandle;
-import com.google.gerrit.reviewdb.client.Project;
 import com.google.gerrit.server.CurrentUser;
 import com.google.gerrit.server.IdentifiedUser;
 import com.google.gerrit.server.events.Event;
 import com.google.gerrit.server.events.EventTypes;
-import com.google.gerrit.server.events.ProjectNameKeySerializer;
-import com.google.gerrit.server.events.SupplierSerializer;
 import com.google.gerrit.server.git.WorkQueue;
 import com.google.gerrit.server.git.WorkQueue.CancelableRunnable;
 import com.google.gerrit.sshd.BaseCommand;
 import com.google.gerrit.sshd.CommandMetaData;
 import com.google.gerrit.sshd.StreamCommandExecutor;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.inject.Inject;
 
 import org.apache.sshd.server.Environment;
 import org.kohsuke.args4j.Option;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
 
 @RequiresCapability(GlobalCapability.STREAM_EVENTS)
 @CommandMetaData(name = "stream-events", description = "Monitor events occurring in real time")
 final class StreamEvents extends BaseCommand {
-  /** Maximum number of events that may be queued up for each connection. */
-  private static final int MAX_EVENTS = 128;
-
   /** Number of events to write before yielding off the thread. */
   private static final int BATCH_SIZE = 32;
 
@@ -71,11 +62,11 @@ final class StreamEvents extends BaseCommand {
   @StreamCommandExecutor
   private WorkQueue.Executor pool;
 
-  /** Queue of events to stream to the connected user. */
-  private final LinkedBlockingQueue<Event> queue =
-      new LinkedBlockingQueue<>(MAX_EVENTS);
+  @Inject
+  private StreamEventsRing ring;
 
-  private Gson gson;
+  /** Events to stream to the connected user. */
+  private StreamEventsRing.Subscriber queue;
 
   private RegistrationHandle eventListenerRegistration;
 
@@ -108,9 +99,6 @@ final class StreamEvents extends BaseCommand {
     }
   };
 
-  /** True if {@link DroppedOutputEvent} needs to be sent. */
-  private volatile boolean dropped;
-
   /** Lock to protect {@link #queue}, {@link #task}, {@link #done}. */
   private final Object taskLock = new Object();
 
@@ -126,7 +114,10 @@ final class StreamEvents extends BaseCommand {
    */
   private Future<?> task;
 
-  private PrintWriter stdout;
+  private OutputStream stdout;
+
+  /** True if writing to {@link #stdout} failed. */
+  private volatile boolean outputError;
 
   @Override
   public void start(final Environment env) throws IOException {
@@ -143,7 +134,8 @@ final class StreamEvents extends BaseCommand {
       return;
     }
 
-    stdout = toPrintWriter(out);
+    stdout = new BufferedOutputStream(out);
+    queue = ring.subscribe();
     eventListenerRegistration =
         eventListeners.add(new UserScopedEventListener() {
           @Override
@@ -159,17 +151,14 @@ final class StreamEvents extends BaseCommand {
             return currentUser;
           }
         });
-
-    gson = new GsonBuilder()
-        .registerTypeAdapter(Supplier.class, new SupplierSerializer())
-        .registerTypeAdapter(
-            Project.NameKey.class, new ProjectNameKeySerializer())
-        .create();
   }
 
   @Override
   protected void onExit(final int rc) {
     eventListenerRegistration.remove();
+    if (queue != null) {
+      queue.close();
+    }
 
     synchronized (taskLock) {
       done = true;
@@ -181,6 +170,9 @@ final class StreamEvents extends BaseCommand {
   @Override
   public void destroy() {
     eventListenerRegistration.remove();
+    if (queue != null) {
+      queue.close();
+    }
 
     final boolean exit;
     synchronized (taskLock) {
@@ -199,9 +191,7 @@ final class StreamEvents extends BaseCommand {
 
   private void offer(final Event event) {
     synchronized (taskLock) {
-      if (!queue.offer(event)) {
-        dropped = true;
-      }
+      queue.offer(event);
 
       if (task == null && !done) {
         task = pool.submit(writer);
@@ -209,13 +199,19 @@ final class StreamEvents extends BaseCommand {
     }
   }
 
-  private Event poll() {
-    synchronized (taskLock) {
-      Event event = queue.poll();
-      if (event == null) {
-        task = null;
+  private byte[] poll() {
+    while (true) {
+      synchronized (taskLock) {
+        if (queue.isEmpty()) {
+          task = null;
+          return null;
+        }
+      }
+      // Serialize outside of the lock, which blocks offering new events.
+      byte[] event = queue.poll();
+      if (event != null) {
+        return event;
       }
-      return event;
     }
   }
 
@@ -223,7 +219,7 @@ final class StreamEvents extends BaseCommand {
     int processed = 0;
 
     while (processed < BATCH_SIZE) {
-      if (Thread.interrupted() || stdout.checkError()) {
+      if (Thread.interrupted() || outputError) {
         // The other side either requested a shutdown by calling our
         // destroy() above, or it closed the stream and is no longer
         // accepting output. Either way terminate this instance.
@@ -234,12 +230,10 @@ final class StreamEvents extends BaseCommand {
         return;
       }
 
-      if (dropped) {
-        write(new DroppedOutputEvent());
-        dropped = false;
+      final byte[] event = poll();
+      if (queue.checkDropped()) {
+        write(ring.toJson(new DroppedOutputEvent()));
       }
-
-      final Event event = poll();
       if (event == null) {
         break;
       }
@@ -261,16 +255,23 @@ final class StreamEvents extends BaseCommand {
     }
   }
 
-  private void write(final Object message) {
-    final String msg = gson.toJson(message) + "\n";
+  private void write(final byte[] message) {
     synchronized (stdout) {
-      stdout.print(msg);
+      try {
+        stdout.write(message);
+      } catch (IOException e) {
+        outputError = true;
+      }
     }
   }
 
   private void flush() {
     synchronized (stdout) {
-      stdout.flush();
+      try {
+        stdout.flush();
+      } catch (IOException e) {
+        outputError = true;
+      }
     }
   }
 }
@@ -0,0 +1,242 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.sshd.commands;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Supplier;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.config.GerritServerConfig;
+import com.google.gerrit.server.events.Event;
+import com.google.gerrit.server.events.ProjectNameKeySerializer;
+import com.google.gerrit.server.events.SupplierSerializer;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.eclipse.jgit.lib.Config;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recent events, shared by all {@code stream-events} connections.
+ * <p>
+ * Each event is stored once, no matter how many connections may see it, and
+ * serialized to JSON once, when the first connection writes it. Every
+ * connection reads the events it may see at its own pace through a {@link
+ * Subscriber}; the visibility of events is checked by the {@code EventBroker}
+ * for each connection before offering them to its subscriber.
+ * <p>
+ * The ring holds a fixed number of events. Connections that fall behind by
+ * more events than that miss the overwritten ones.
+ */
+@Singleton
+class StreamEventsRing {
+  /** Position of one connection in the ring. */
+  class Subscriber {
+    // Sequence numbers of the events offered to this subscriber that were not
+    // read yet, oldest first. Guarded by this.
+    private final ArrayDeque<Long> pending = new ArrayDeque<>();
+    private boolean dropped;
+
+    /**
+     * Add an event to the events to be read by this subscriber.
+     *
+     * @param event event the subscriber may see.
+     */
+    void offer(Event event) {
+      long seq = add(event);
+      synchronized (this) {
+        pending.add(seq);
+        dropOverwritten(seq);
+      }
+    }
+
+    /**
+     * Read the next event.
+     * <p>
+     * Events that were overwritten before they were read are skipped; call
+     * {@link #checkDropped()} to find out.
+     *
+     * @return the next event as a line of JSON, or null if there is none.
+     */
+    byte[] poll() {
+      while (true) {
+        long seq;
+        synchronized (this) {
+          if (pending.isEmpty()) {
+            return null;
+          }
+          seq = pending.remove();
+        }
+        byte[] json = read(seq);
+        if (json != null) {
+          return json;
+        }
+        drop(1);
+      }
+    }
+
+    /** @return whether events were dropped since the last call. */
+    synchronized boolean checkDropped() {
+      boolean result = dropped;
+      dropped = false;
+      return result;
+    }
+
+    /** Stop receiving events. */
+    void close() {
+      subscribers.remove(this);
+    }
+
+    synchronized boolean isEmpty() {
+      return pending.isEmpty();
+    }
+
+    synchronized int getBacklog() {
+      return pending.size();
+    }
+
+    private void dropOverwritten(long latest) {
+      int n = 0;
+      while (pending.peek() <= latest - slots.length) {
+        pending.remove();
+        n++;
+      }
+      if (n > 0) {
+        drop(n);
+      }
+    }
+
+    private void drop(int n) {
+      synchronized (this) {
+        dropped = true;
+      }
+      droppedEvents.incrementBy(n);
+    }
+  }
+
+  private static class Slot {
+    final long seq;
+    final Event event;
+    private byte[] json;
+
+    Slot(long seq, Event event) {
+      this.seq = seq;
+      this.event = event;
+    }
+
+    synchronized byte[] json(Gson gson) {
+      if (json == null) {
+        // Serializing resolves the lazy fields supplied by EventFactory.
+        json = (gson.toJson(event) + "\n").getBytes(UTF_8);
+      }
+      return json;
+    }
+  }
+
+  private final Gson gson;
+  private final Slot[] slots;
+  private final Set<Subscriber> subscribers;
+  private final Counter0 droppedEvents;
+
+  // Sequence numbers of the events in the ring, by identity, as the same event
+  // is offered to every subscriber that may see it. Guarded by this, as is
+  // next.
+  private final Map<Event, Long> seqs;
+  private long next;
+
+  @Inject
+  StreamEventsRing(@GerritServerConfig Config cfg, MetricMaker metrics) {
+    this(cfg.getInt("sshd", "streamEventsBuffer", 4096), metrics);
+  }
+
+  StreamEventsRing(int size, MetricMaker metrics) {
+    gson = new GsonBuilder()
+        .registerTypeAdapter(Supplier.class, new SupplierSerializer())
+        .registerTypeAdapter(
+            Project.NameKey.class, new ProjectNameKeySerializer())
+        .create();
+    slots = new Slot[Math.max(size, 1)];
+    subscribers = ConcurrentHashMap.newKeySet();
+    seqs = new IdentityHashMap<>();
+
+    droppedEvents = metrics.newCounter(
+        "sshd/stream_events/dropped_count",
+        new Description("Events not sent to stream-events connections that"
+            + " fell too far behind")
+            .setRate()
+            .setUnit("events"));
+    metrics.newCallbackMetric(
+        "sshd/stream_events/max_backlog",
+        Integer.class,
+        new Description("Events waiting to be sent to the slowest"
+            + " stream-events connection")
+            .setGauge()
+            .setUnit("events"),
+        () -> {
+          int max = 0;
+          for (Subscriber s : subscribers) {
+            max = Math.max(max, s.getBacklog());
+          }
+          return max;
+        });
+  }
+
+  Subscriber subscribe() {
+    Subscriber s = new Subscriber();
+    subscribers.add(s);
+    return s;
+  }
+
+  /**
+   * @param obj object to serialize.
+   * @return the object as a line of JSON.
+   */
+  byte[] toJson(Object obj) {
+    return (gson.toJson(obj) + "\n").getBytes(UTF_8);
+  }
+
+  private synchronized long add(Event event) {
+    Long seq = seqs.get(event);
+    if (seq != null) {
+      return seq;
+    }
+    long s = next++;
+    int i = (int) (s % slots.length);
+    if (slots[i] != null) {
+      seqs.remove(slots[i].event);
+    }
+    slots[i] = new Slot(s, event);
+    seqs.put(event, s);
+    return s;
+  }
+
+  private byte[] read(long seq) {
+    Slot slot;
+    synchronized (this) {
+      slot = slots[(int) (seq % slots.length)];
+    }
+    return slot != null && slot.seq == seq ? slot.json(gson) : null;
+  }
+}
@@ -18,9 +18,11 @@ import com.google.common.collect.Lists;
 import com.google.gerrit.common.Nullable;
 import com.google.gerrit.extensions.registration.DynamicSet;
 import com.google.gerrit.reviewdb.server.ReviewDb;
+import com.google.gerrit.server.git.AdvertisedRefsCache;
 import com.google.gerrit.server.git.SearchingChangeCacheImpl;
 import com.google.gerrit.server.git.TagCache;
 import com.google.gerrit.server.git.TransferConfig;
+import com.google.gerrit.server.git.VisibleChangesCache;
 import com.google.gerrit.server.git.VisibleRefFilter;
 import com.google.gerrit.server.git.validators.UploadValidationException;
 import com.google.gerrit.server.git.validators.UploadValidators;
@@ -34,8 +36,10 @@ import org.eclipse.jgit.transport.PostUploadHookChain;
 import org.eclipse.jgit.transport.PreUploadHook;
 import org.eclipse.jgit.transport.PreUploadHookChain;
 import org.eclipse.jgit.transport.UploadPack;
+import org.kohsuke.args4j.Option;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /** Publishes Git repositories over SSH using the Git upload-pack protocol. */
@@ -49,6 +53,9 @@ final class Upload extends AbstractGitCommand {
   @Inject
   private TagCache tagCache;
 
+  @Inject
+  private AdvertisedRefsCache advertisedRefsCache;
+
   @Inject
   private ChangeNotes.Factory changeNotesFactory;
 
@@ -56,6 +63,10 @@ final class Upload extends AbstractGitCommand {
   @Nullable
   private SearchingChangeCacheImpl changeCache;
 
+  @Inject
+  @Nullable
+  private VisibleChangesCache visibleChangesCache;
+
   @Inject
   private DynamicSet<PreUploadHook> preUploadHooks;
 
@@ -68,6 +79,10 @@ final class Upload extends AbstractGitCommand {
   @Inject
   private SshSession session;
 
+  @Option(name = "--ref-prefix", metaVar = "PREFIX",
+      usage = "advertise only refs starting with PREFIX")
+  private List<String> refPrefixes = new ArrayList<>();
+
   @Override
   protected void runImpl() throws IOException, Failure {
     if (!projectControl.canRunUploadPack()) {
@@ -75,10 +90,17 @@ final class Upload extends AbstractGitCommand {
     }
 
     final UploadPack up = new UploadPack(repo);
-    up.setAdvertiseRefsHook(
-        new VisibleRefFilter(
-            tagCache, changeNotesFactory, changeCache, repo, projectControl, db,
-            true));
+    VisibleRefFilter refFilter = new VisibleRefFilter(
+        tagCache, changeNotesFactory, changeCache, visibleChangesCache,
+        repo, projectControl, db, true);
+    if (refPrefixes.isEmpty()) {
+      up.setAdvertiseRefsHook(
+          advertisedRefsCache.newHook(refFilter, projectControl));
+    } else {
+      // The advertised refs cache is keyed on all refs of the repository,
+      // which would defeat reading only the requested ones.
+      up.setAdvertiseRefsHook(refFilter.setRefPrefixes(refPrefixes));
+    }
     up.setPackConfig(config.getPackConfig());
     up.setTimeout(config.getTimeout());
     up.setPostUploadHook(
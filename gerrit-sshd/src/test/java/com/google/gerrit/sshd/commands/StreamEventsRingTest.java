@@ -0,0 +1,96 @@
+// Copyright (C) 2016 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.gerrit.sshd.commands;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.events.Event;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class StreamEventsRingTest {
+  private static class TestEvent extends Event {
+    TestEvent() {
+      super("test");
+    }
+  }
+
+  private StreamEventsRing ring;
+
+  @Before
+  public void setUp() {
+    ring = new StreamEventsRing(2, new DisabledMetricMaker());
+  }
+
+  @Test
+  public void sameEventIsSerializedOnce() {
+    StreamEventsRing.Subscriber a = ring.subscribe();
+    StreamEventsRing.Subscriber b = ring.subscribe();
+    Event e = new TestEvent();
+    a.offer(e);
+    b.offer(e);
+
+    byte[] json = a.poll();
+    assertThat(new String(json, UTF_8)).contains("\"type\":\"test\"");
+    assertThat(b.poll()).isSameAs(json);
+    assertThat(a.poll()).isNull();
+    assertThat(b.poll()).isNull();
+  }
+
+  @Test
+  public void subscriberOnlyReadsOfferedEvents() {
+    StreamEventsRing.Subscriber a = ring.subscribe();
+    StreamEventsRing.Subscriber b = ring.subscribe();
+    a.offer(new TestEvent());
+    assertThat(a.isEmpty()).isFalse();
+    assertThat(b.isEmpty()).isTrue();
+    assertThat(b.poll()).isNull();
+  }
+
+  @Test
+  public void slowSubscriberDropsOverwrittenEvents() {
+    StreamEventsRing.Subscriber slow = ring.subscribe();
+    StreamEventsRing.Subscriber fast = ring.subscribe();
+    for (int i = 0; i < 3; i++) {
+      Event e = new TestEvent();
+      slow.offer(e);
+      fast.offer(e);
+      assertThat(fast.poll()).isNotNull();
+    }
+    assertThat(fast.checkDropped()).isFalse();
+
+    assertThat(slow.getBacklog()).isEqualTo(2);
+    assertThat(slow.checkDropped()).isTrue();
+    assertThat(slow.checkDropped()).isFalse();
+    assertThat(slow.poll()).isNotNull();
+    assertThat(slow.poll()).isNotNull();
+    assertThat(slow.poll()).isNull();
+  }
+
+  @Test
+  public void eventOverwrittenByOtherSubscribersIsSkipped() {
+    StreamEventsRing.Subscriber slow = ring.subscribe();
+    StreamEventsRing.Subscriber fast = ring.subscribe();
+    slow.offer(new TestEvent());
+    fast.offer(new TestEvent());
+    fast.offer(new TestEvent());
+
+    assertThat(slow.poll()).isNull();
+    assertThat(slow.checkDropped()).isTrue();
+  }
+}